@@ -477,6 +477,16 @@ public class WifiScanner {
          */
         @SystemApi
         public boolean hideFromAppOps;
+        /**
+         * Maximum age, in milliseconds, of cached scan results that may be used to satisfy this
+         * single scan request instead of scanning the corresponding channels again. Channels
+         * scanned more recently than this are served from the cache; the remaining channels are
+         * scanned as usual. Requests which want full scan results or an RNR scan are either
+         * served entirely from the cache or scanned in full. 0 (the default) disables the cache
+         * and always scans all channels.
+         * {@hide}
+         */
+        public int maxCachedResultAgeMs;
 
         /**
          * Configure whether it is needed to scan 6Ghz non Preferred Scanning Channels when scanning
@@ -561,6 +571,7 @@ public class WifiScanner {
             dest.writeInt(hideFromAppOps ? 1 : 0);
             dest.writeInt(mRnrSetting);
             dest.writeBoolean(mEnable6GhzPsc);
+            dest.writeInt(maxCachedResultAgeMs);
             if (channels != null) {
                 dest.writeInt(channels.length);
                 for (int i = 0; i < channels.length; i++) {
@@ -595,6 +606,7 @@ public class WifiScanner {
                         settings.hideFromAppOps = in.readInt() == 1;
                         settings.mRnrSetting = in.readInt();
                         settings.mEnable6GhzPsc = in.readBoolean();
+                        settings.maxCachedResultAgeMs = in.readInt();
                         int num_channels = in.readInt();
                         settings.channels = new ChannelSpec[num_channels];
                         for (int i = 0; i < num_channels; i++) {
@@ -226,6 +226,27 @@ public class WifiP2pManager {
     public static final String EXTRA_PARAM_KEY_BUNDLE =
             "android.net.wifi.p2p.EXTRA_PARAM_KEY_BUNDLE";
 
+    /**
+     * Extra for transporting the peers added to the peer list.
+     * @hide
+     */
+    public static final String EXTRA_PARAM_KEY_ADDED_PEERS =
+            "android.net.wifi.p2p.EXTRA_PARAM_KEY_ADDED_PEERS";
+
+    /**
+     * Extra for transporting the peers updated in the peer list.
+     * @hide
+     */
+    public static final String EXTRA_PARAM_KEY_UPDATED_PEERS =
+            "android.net.wifi.p2p.EXTRA_PARAM_KEY_UPDATED_PEERS";
+
+    /**
+     * Extra for transporting the peers removed from the peer list.
+     * @hide
+     */
+    public static final String EXTRA_PARAM_KEY_REMOVED_PEERS =
+            "android.net.wifi.p2p.EXTRA_PARAM_KEY_REMOVED_PEERS";
+
     /**
      * Broadcast intent action to indicate whether Wi-Fi p2p is enabled or disabled. An
      * extra {@link #EXTRA_WIFI_STATE} provides the state information as int.
@@ -783,6 +804,11 @@ public class WifiP2pManager {
 
     /** @hide */
     public static final int SET_WFDR2_INFO                          = BASE + 116;
+
+    /** @hide */
+    public static final int SET_PEER_LIST_CHANGED_LISTENER          = BASE + 117;
+    /** @hide */
+    public static final int PEER_LIST_CHANGED                       = BASE + 118;
     /**
      * Create a new WifiP2pManager instance. Applications use
      * {@link android.content.Context#getSystemService Context.getSystemService()} to retrieve
@@ -853,6 +879,27 @@ public class WifiP2pManager {
         public void onPeersAvailable(WifiP2pDeviceList peers);
     }
 
+    /**
+     * Interface for callback invocation when the peer list changes.
+     *
+     * This callback is registered by
+     * {@link #setPeerListChangedListener(Channel, PeerListChangedListener)}.
+     */
+    public interface PeerListChangedListener {
+        /**
+         * The peer list changed. Changes which happen in quick succession are reported together.
+         *
+         * The first invocation after registration reports the whole peer list as added peers.
+         *
+         * @param addedPeers peers which were added to the peer list.
+         * @param updatedPeers peers whose details or status changed.
+         * @param removedPeers peers which were removed from the peer list.
+         */
+        void onPeerListChanged(@NonNull List<WifiP2pDevice> addedPeers,
+                @NonNull List<WifiP2pDevice> updatedPeers,
+                @NonNull List<WifiP2pDevice> removedPeers);
+    }
+
     /** Interface for callback invocation when connection info is available */
     public interface ConnectionInfoListener {
         /**
@@ -1181,6 +1228,7 @@ public class WifiP2pManager {
         private DnsSdServiceResponseListener mDnsSdServRspListener;
         private DnsSdTxtRecordListener mDnsSdTxtListener;
         private UpnpServiceResponseListener mUpnpServRspListener;
+        private PeerListChangedListener mPeerListChangedListener;
         private HashMap<Integer, Object> mListenerMap = new HashMap<Integer, Object>();
         private final Object mListenerMapLock = new Object();
         private int mListenerKey = 0;
@@ -1332,6 +1380,19 @@ public class WifiP2pManager {
                             ((PeerListListener) listener).onPeersAvailable(peers);
                         }
                         break;
+                    case PEER_LIST_CHANGED:
+                        if (mPeerListChangedListener != null) {
+                            Bundle bundle = (Bundle) message.obj;
+                            List<WifiP2pDevice> addedPeers = bundle.getParcelableArrayList(
+                                    EXTRA_PARAM_KEY_ADDED_PEERS);
+                            List<WifiP2pDevice> updatedPeers = bundle.getParcelableArrayList(
+                                    EXTRA_PARAM_KEY_UPDATED_PEERS);
+                            List<WifiP2pDevice> removedPeers = bundle.getParcelableArrayList(
+                                    EXTRA_PARAM_KEY_REMOVED_PEERS);
+                            mPeerListChangedListener.onPeerListChanged(
+                                    addedPeers, updatedPeers, removedPeers);
+                        }
+                        break;
                     case RESPONSE_CONNECTION_INFO:
                         WifiP2pInfo wifiP2pInfo = (WifiP2pInfo) message.obj;
                         if (listener != null) {
@@ -2285,6 +2346,34 @@ public class WifiP2pManager {
                 channel.putListener(listener), extras, channel.mContext));
     }
 
+    /**
+     * Set a listener which is notified of the changes of the peer list.
+     * <p>
+     * Unlike {@link #WIFI_P2P_PEERS_CHANGED_ACTION}, which carries the whole peer list, the
+     * listener only receives the peers which were added, updated or removed. Changes which
+     * happen in quick succession, e.g. during a peer discovery, are reported together.
+     * <p>
+     * The permission requirements are the same as for
+     * {@link #requestPeers(Channel, PeerListListener)}. The listener is not invoked if the
+     * application does not have them.
+     *
+     * @param channel is the channel created at {@link #initialize}
+     * @param listener for callback when the peer list changes, or null to remove the current
+     *        listener.
+     */
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.NEARBY_WIFI_DEVICES,
+            android.Manifest.permission.ACCESS_FINE_LOCATION
+            }, conditional = true)
+    public void setPeerListChangedListener(@NonNull Channel channel,
+            @Nullable PeerListChangedListener listener) {
+        checkChannel(channel);
+        channel.mPeerListChangedListener = listener;
+        Bundle extras = prepareExtrasBundle(channel);
+        channel.mAsyncChannel.sendMessage(prepareMessage(SET_PEER_LIST_CHANGED_LISTENER,
+                listener != null ? 1 : 0, 0, extras, channel.mContext));
+    }
+
     /**
      * Request device connection info.
      *
@@ -127,10 +127,12 @@ public class WifiScannerTest {
         ScanSettings writeSettings = new ScanSettings();
         writeSettings.type = WifiScanner.SCAN_TYPE_LOW_POWER;
         writeSettings.band = WifiScanner.WIFI_BAND_BOTH_WITH_DFS;
+        writeSettings.maxCachedResultAgeMs = 5000;
 
         ScanSettings readSettings = parcelWriteRead(writeSettings);
         assertEquals(readSettings.type, writeSettings.type);
         assertEquals(readSettings.band, writeSettings.band);
+        assertEquals(5000, readSettings.maxCachedResultAgeMs);
         assertEquals(0, readSettings.channels.length);
     }
 
@@ -655,6 +655,7 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
     private final WifiNetworkSelector mWifiNetworkSelector;
 
     private final WifiInjector mWifiInjector;
+    private final WifiEventJournal mWifiEventJournal;
 
     // Permanently disable a network due to no internet if the estimated probability of having
     // internet is less than this value.
@@ -829,6 +830,7 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
 
         mWifiNetworkSelector = wifiNetworkSelector;
         mWifiInjector = wifiInjector;
+        mWifiEventJournal = mWifiInjector.getWifiEventJournal();
         mQosPolicyRequestHandler = new QosPolicyRequestHandler(mInterfaceName, mWifiNative, this,
                 mWifiInjector.getWifiHandlerThread());
 
@@ -2911,6 +2913,7 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
         mWifiMetrics.reportNetworkDisconnect(mInterfaceName, disconnectReason,
                 mWifiInfo.getRssi(),
                 mWifiInfo.getLinkSpeed());
+        mWifiEventJournal.logDisconnect(mLastNetworkId, mLastBssid, disconnectReason);
 
         if (mVerboseLoggingEnabled) {
             Log.v(getTag(), "handleNetworkDisconnect: newConnectionInProgress: "
@@ -3129,6 +3132,8 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
             WifiConfiguration config, String targetBSSID, int roamType) {
         int overlapWithLastConnectionMs =
                 mWifiMetrics.startConnectionEvent(mInterfaceName, config, targetBSSID, roamType);
+        mWifiEventJournal.logConnectStart(config.networkId, targetBSSID,
+                roamType == WifiMetricsProto.ConnectionEvent.ROAM_ENTERPRISE);
         if (mDeviceConfigFacade.isOverlappingConnectionBugreportEnabled()
                 && overlapWithLastConnectionMs
                 > mDeviceConfigFacade.getOverlappingConnectionDurationThresholdMs()) {
@@ -3178,6 +3183,7 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
         }
 
         String bssid = mLastBssid == null ? mTargetBssid : mLastBssid;
+        mWifiEventJournal.logConnectEnd(configuration.networkId, bssid, level2FailureCode);
         String ssid = mWifiInfo.getSSID();
         if (WifiManager.UNKNOWN_SSID.equals(ssid)) {
             ssid = getConnectingSsidInternal();
@@ -4048,6 +4054,13 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
 
                     mTargetWifiConfiguration = config;
                     mNetworkNotFoundEventCount = 0;
+                    if (config.enterpriseConfig != null
+                            && config.enterpriseConfig.isAuthenticationSimBased()) {
+                        // Encrypt the identity while connecting rather than when it is requested,
+                        // for the connections which did not go through network selection. This
+                        // is a no-op if the selection already encrypted it.
+                        mWifiCarrierInfoManager.precomputeSimIdentity(config);
+                    }
                     /* Check for FILS configuration again after updating the config */
                     if (config.isFilsSha256Enabled() || config.isFilsSha384Enabled()) {
                         boolean isIpClientStarted = startIpClient(config, true);
@@ -5678,6 +5691,10 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
                 case WifiMonitor.NETWORK_CONNECTION_EVENT: {
                     NetworkConnectionEventInfo connectionInfo =
                             (NetworkConnectionEventInfo) message.obj;
+                    if (!isRoaming() && mWifiInfo.getBSSID() != null
+                            && !Objects.equals(mWifiInfo.getBSSID(), connectionInfo.bssid)) {
+                        mWifiEventJournal.logRoam(connectionInfo.networkId, connectionInfo.bssid);
+                    }
                     mWifiInfo.setBSSID(connectionInfo.bssid);
                     mLastNetworkId = connectionInfo.networkId;
                     mWifiInfo.setNetworkId(mLastNetworkId);
@@ -5758,6 +5775,9 @@ public class ClientModeImpl extends StateMachine implements ClientMode {
                     }
                     if (mLastBssid != null && (mWifiInfo.getBSSID() == null
                             || !mLastBssid.equals(mWifiInfo.getBSSID()))) {
+                        if (!isRoaming() && mWifiInfo.getBSSID() != null) {
+                            mWifiEventJournal.logRoam(mLastNetworkId, mLastBssid);
+                        }
                         mWifiInfo.setBSSID(mLastBssid);
                         WifiConfiguration config = getConnectedWifiConfigurationInternal();
                         if (config != null) {
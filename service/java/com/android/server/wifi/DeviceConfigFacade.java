@@ -147,6 +147,12 @@ public class DeviceConfigFacade {
     // Maximum traffic stats threshold for link bandwidth estimator
     static final int DEFAULT_TRAFFIC_STATS_THRESHOLD_MAX_KB = 8000;
     static final int DEFAULT_BANDWIDTH_ESTIMATOR_TIME_CONSTANT_LARGE_SEC = 6;
+    // Default window in ms during which single scan requests are coalesced into one scan.
+    // 0 disables coalescing.
+    static final int DEFAULT_SINGLE_SCAN_COALESCING_WINDOW_MS = 0;
+    // Default max age in ms of the cached results of a channel with which scan requests from
+    // apps may be served. 0 disables the cache.
+    static final int DEFAULT_APP_SCAN_MAX_CACHED_RESULT_AGE_MS = 0;
     // Cached values of fields updated via updateDeviceConfigFlags()
     private boolean mIsAbnormalConnectionBugreportEnabled;
     private int mAbnormalConnectionDurationMs;
@@ -205,6 +211,8 @@ public class DeviceConfigFacade {
     private int mTrafficStatsThresholdMaxKbyte;
     private int mBandwidthEstimatorLargeTimeConstantSec;
     private boolean mInterfaceFailureBugreportEnabled;
+    private int mSingleScanCoalescingWindowMs;
+    private int mAppScanMaxCachedResultAgeMs;
 
     public DeviceConfigFacade(Context context, Handler handler, WifiMetrics wifiMetrics) {
         mContext = context;
@@ -378,6 +386,12 @@ public class DeviceConfigFacade {
                 DEFAULT_BANDWIDTH_ESTIMATOR_TIME_CONSTANT_LARGE_SEC);
         mInterfaceFailureBugreportEnabled = DeviceConfig.getBoolean(NAMESPACE,
                 "interface_failure_bugreport_enabled", false);
+        mSingleScanCoalescingWindowMs = DeviceConfig.getInt(NAMESPACE,
+                "single_scan_coalescing_window_ms",
+                DEFAULT_SINGLE_SCAN_COALESCING_WINDOW_MS);
+        mAppScanMaxCachedResultAgeMs = DeviceConfig.getInt(NAMESPACE,
+                "app_scan_max_cached_result_age_ms",
+                DEFAULT_APP_SCAN_MAX_CACHED_RESULT_AGE_MS);
 
     }
 
@@ -800,4 +814,19 @@ public class DeviceConfigFacade {
     public boolean isInterfaceFailureBugreportEnabled() {
         return mInterfaceFailureBugreportEnabled;
     }
+
+    /**
+     * Gets the window in ms during which single scan requests are coalesced into one scan
+     */
+    public int getSingleScanCoalescingWindowMs() {
+        return mSingleScanCoalescingWindowMs;
+    }
+
+    /**
+     * Gets the max age in ms of the cached results of a channel with which scan requests from
+     * apps may be served
+     */
+    public int getAppScanMaxCachedResultAgeMs() {
+        return mAppScanMaxCachedResultAgeMs;
+    }
 }
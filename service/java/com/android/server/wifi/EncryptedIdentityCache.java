@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of the encrypted EAP-SIM/AKA identities computed ahead of a connection, keyed by
+ * (subscription ID, IMSI encryption key identifier, identity). The identity holds the EAP method
+ * prefix and the NAI realm.
+ *
+ * The encryption is randomized, so each encrypted identity is handed out once, as reusing it
+ * would make the connections of the device linkable.
+ *
+ * Entries put with a generation older than the last invalidation are dropped, so that a
+ * computation started before an invalidation does not repopulate the cache.
+ *
+ * This class is thread safe.
+ */
+public class EncryptedIdentityCache {
+    private static final int MAX_ENTRIES = 8;
+
+    private static class Key {
+        public final int subId;
+        public final String keyIdentifier;
+        public final String identity;
+
+        Key(int subId, String keyIdentifier, String identity) {
+            this.subId = subId;
+            this.keyIdentifier = keyIdentifier;
+            this.identity = identity;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Key)) return false;
+            Key that = (Key) other;
+            return subId == that.subId
+                    && Objects.equals(keyIdentifier, that.keyIdentifier)
+                    && Objects.equals(identity, that.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(subId, keyIdentifier, identity);
+        }
+    }
+
+    // Least recently added first.
+    private final LinkedHashMap<Key, String> mEntries = new LinkedHashMap<Key, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int mGeneration = 0;
+    private long mNumHits = 0;
+    private long mNumMisses = 0;
+    private long mNumPrecomputed = 0;
+
+    /**
+     * Return the current generation, to be passed to {@link #put}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Return true if an encrypted identity is cached for the given key.
+     */
+    public synchronized boolean contains(int subId, @Nullable String keyIdentifier,
+            @NonNull String identity) {
+        return mEntries.containsKey(new Key(subId, keyIdentifier, identity));
+    }
+
+    /**
+     * Cache an encrypted identity, unless the cache was invalidated since the given generation.
+     */
+    public synchronized void put(int generation, int subId, @Nullable String keyIdentifier,
+            @NonNull String identity, @NonNull String encryptedIdentity) {
+        if (generation != mGeneration) return;
+        mEntries.put(new Key(subId, keyIdentifier, identity), encryptedIdentity);
+        mNumPrecomputed++;
+    }
+
+    /**
+     * Remove and return the encrypted identity cached for the given key, or null.
+     */
+    public synchronized @Nullable String take(int subId, @Nullable String keyIdentifier,
+            @NonNull String identity) {
+        String encryptedIdentity = mEntries.remove(new Key(subId, keyIdentifier, identity));
+        if (encryptedIdentity == null) {
+            mNumMisses++;
+        } else {
+            mNumHits++;
+        }
+        return encryptedIdentity;
+    }
+
+    /**
+     * Remove the entries of a subscription.
+     */
+    public synchronized void invalidate(int subId) {
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().subId == subId) {
+                it.remove();
+            }
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Dump the state of the cache, without the identities.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("EncryptedIdentityCache: size=" + mEntries.size()
+                + " precomputed=" + mNumPrecomputed
+                + " hits=" + mNumHits
+                + " misses=" + mNumMisses
+                + " generation=" + mGeneration);
+    }
+}
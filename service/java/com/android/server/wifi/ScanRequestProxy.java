@@ -30,8 +30,6 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WifiScanner;
 import android.net.wifi.util.ScanResultUtil;
 import android.os.Handler;
-import android.os.RemoteCallbackList;
-import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.WorkSource;
 import android.text.TextUtils;
@@ -45,6 +43,7 @@ import com.android.modules.utils.build.SdkLevel;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 import com.android.wifi.resources.R;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -118,7 +117,7 @@ public class ScanRequestProxy {
     // for bssid more efficiently.
     private final Map<String, ScanResult> mLastScanResultsMap = new HashMap<>();
     // external ScanResultCallback tracker
-    private final RemoteCallbackList<IScanResultsCallback> mRegisteredScanResultsCallbacks;
+    private final ScanResultsCallbackDispatcher mScanResultsCallbackDispatcher;
     // Global scan listener for listening to all scan requests.
     private class GlobalScanListener implements WifiScanner.ScanListener {
         @Override
@@ -203,7 +202,8 @@ public class ScanRequestProxy {
     ScanRequestProxy(Context context, AppOpsManager appOpsManager, ActivityManager activityManager,
                      WifiInjector wifiInjector, WifiConfigManager configManager,
                      WifiPermissionsUtil wifiPermissionUtil, WifiMetrics wifiMetrics, Clock clock,
-                     Handler handler, WifiSettingsConfigStore settingsConfigStore) {
+                     Handler handler, Handler callbackHandler,
+                     WifiSettingsConfigStore settingsConfigStore) {
         mContext = context;
         mHandler = handler;
         mAppOps = appOpsManager;
@@ -214,7 +214,7 @@ public class ScanRequestProxy {
         mWifiMetrics = wifiMetrics;
         mClock = clock;
         mSettingsConfigStore = settingsConfigStore;
-        mRegisteredScanResultsCallbacks = new RemoteCallbackList<>();
+        mScanResultsCallbackDispatcher = new ScanResultsCallbackDispatcher(callbackHandler, clock);
     }
 
     /**
@@ -482,6 +482,9 @@ public class ScanRequestProxy {
                 // since the scan request is from a normal app, do not scan all 6Ghz channels.
                 settings.set6GhzPscOnlyEnabled(true);
             }
+            // A normal app may be served with recent enough results instead of a new scan.
+            settings.maxCachedResultAgeMs =
+                    mWifiInjector.getDeviceConfigFacade().getAppScanMaxCachedResultAgeMs();
         }
         settings.band = WifiScanner.WIFI_BAND_ALL;
         settings.reportEvents = WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN
@@ -548,15 +551,7 @@ public class ScanRequestProxy {
     }
 
     private void sendScanResultsAvailableToCallbacks() {
-        int itemCount = mRegisteredScanResultsCallbacks.beginBroadcast();
-        for (int i = 0; i < itemCount; i++) {
-            try {
-                mRegisteredScanResultsCallbacks.getBroadcastItem(i).onScanResultsAvailable();
-            } catch (RemoteException e) {
-                Log.e(TAG, "onScanResultsAvailable: remote exception -- " + e);
-            }
-        }
-        mRegisteredScanResultsCallbacks.finishBroadcast();
+        mScanResultsCallbackDispatcher.notifyScanResultsAvailable();
     }
 
     /**
@@ -565,7 +560,7 @@ public class ScanRequestProxy {
      * @return true if succeed otherwise false.
      */
     public boolean registerScanResultsCallback(IScanResultsCallback callback) {
-        return mRegisteredScanResultsCallbacks.register(callback);
+        return mScanResultsCallbackDispatcher.register(callback);
     }
 
     /**
@@ -573,7 +568,14 @@ public class ScanRequestProxy {
      * @param callback IScanResultListener instance to add.
      */
     public void unregisterScanResultsCallback(IScanResultsCallback callback) {
-        mRegisteredScanResultsCallbacks.unregister(callback);
+        mScanResultsCallbackDispatcher.unregister(callback);
+    }
+
+    /**
+     * Dump the state of the scan results callbacks.
+     */
+    public void dump(PrintWriter pw) {
+        mScanResultsCallbackDispatcher.dump(pw);
     }
 
     /**
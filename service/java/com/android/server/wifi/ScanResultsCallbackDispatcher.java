@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.annotation.NonNull;
+import android.net.wifi.IScanResultsCallback;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delivers the scan results available events to the registered {@link IScanResultsCallback}s
+ * from a dedicated handler, so that the binder calls to the clients are not made on the wifi
+ * thread.
+ *
+ * Each client has at most one pending event. As the event carries no data, an event raised while
+ * the previous one is still pending for a client is coalesced into it, so a slow client only
+ * delays its own deliveries.
+ */
+public class ScanResultsCallbackDispatcher {
+    private static final String TAG = "ScanResultsCallbackDispatcher";
+
+    private final Handler mHandler;
+    private final Clock mClock;
+    private final Object mLock = new Object();
+    private final RemoteCallbackList<IScanResultsCallback> mCallbacks =
+            new RemoteCallbackList<IScanResultsCallback>() {
+                @Override
+                public void onCallbackDied(IScanResultsCallback callback, Object cookie) {
+                    synchronized (mLock) {
+                        ClientState state = (ClientState) cookie;
+                        state.mRegistered = false;
+                        mClientStates.remove(callback.asBinder(), state);
+                    }
+                }
+            };
+    @GuardedBy("mLock")
+    private final Map<IBinder, ClientState> mClientStates = new HashMap<>();
+
+    private static class ClientState {
+        private final IScanResultsCallback mCallback;
+        private boolean mRegistered = true;
+        // Whether an event is pending, and since when.
+        private boolean mPending = false;
+        private long mPendingSinceMs;
+        // Whether the delivery runnable is posted or running.
+        private boolean mScheduled = false;
+        private long mNumDelivered = 0;
+        private long mNumCoalesced = 0;
+        private long mTotalLatencyMs = 0;
+        private long mMaxLatencyMs = 0;
+
+        ClientState(IScanResultsCallback callback) {
+            mCallback = callback;
+        }
+    }
+
+    public ScanResultsCallbackDispatcher(@NonNull Handler handler, @NonNull Clock clock) {
+        mHandler = handler;
+        mClock = clock;
+    }
+
+    /**
+     * Register a callback, replacing the previous registration of the same callback.
+     *
+     * @return true if succeed otherwise false.
+     */
+    public boolean register(@NonNull IScanResultsCallback callback) {
+        synchronized (mLock) {
+            ClientState state = new ClientState(callback);
+            if (!mCallbacks.register(callback, state)) {
+                return false;
+            }
+            ClientState previous = mClientStates.put(callback.asBinder(), state);
+            if (previous != null) {
+                previous.mRegistered = false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Unregister a callback. A pending event is dropped.
+     */
+    public void unregister(@NonNull IScanResultsCallback callback) {
+        synchronized (mLock) {
+            mCallbacks.unregister(callback);
+            ClientState state = mClientStates.remove(callback.asBinder());
+            if (state != null) {
+                state.mRegistered = false;
+            }
+        }
+    }
+
+    /**
+     * Schedule the delivery of a scan results available event to each registered callback.
+     */
+    public void notifyScanResultsAvailable() {
+        long nowMs = mClock.getElapsedSinceBootMillis();
+        synchronized (mLock) {
+            for (ClientState state : mClientStates.values()) {
+                if (state.mPending) {
+                    state.mNumCoalesced++;
+                    continue;
+                }
+                state.mPending = true;
+                state.mPendingSinceMs = nowMs;
+                if (!state.mScheduled) {
+                    state.mScheduled = true;
+                    mHandler.post(() -> deliver(state));
+                }
+            }
+        }
+    }
+
+    private void deliver(ClientState state) {
+        long pendingSinceMs;
+        synchronized (mLock) {
+            if (!state.mRegistered) {
+                state.mPending = false;
+                state.mScheduled = false;
+                return;
+            }
+            pendingSinceMs = state.mPendingSinceMs;
+            // Events raised from now on need another delivery.
+            state.mPending = false;
+        }
+        try {
+            state.mCallback.onScanResultsAvailable();
+        } catch (RemoteException e) {
+            Log.e(TAG, "onScanResultsAvailable: remote exception -- " + e);
+        }
+        long latencyMs = mClock.getElapsedSinceBootMillis() - pendingSinceMs;
+        synchronized (mLock) {
+            state.mNumDelivered++;
+            state.mTotalLatencyMs += latencyMs;
+            state.mMaxLatencyMs = Math.max(state.mMaxLatencyMs, latencyMs);
+            if (state.mPending && state.mRegistered) {
+                // An event was raised during the call, deliver it after the other clients.
+                mHandler.post(() -> deliver(state));
+            } else {
+                state.mScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Dump the delivery statistics of each client.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("ScanResultsCallbackDispatcher: " + mClientStates.size() + " callbacks");
+            for (ClientState state : mClientStates.values()) {
+                pw.println("  " + state.mCallback.asBinder()
+                        + " delivered=" + state.mNumDelivered
+                        + " coalesced=" + state.mNumCoalesced
+                        + " avgLatencyMs=" + (state.mNumDelivered == 0
+                                ? 0 : state.mTotalLatencyMs / state.mNumDelivered)
+                        + " maxLatencyMs=" + state.mMaxLatencyMs
+                        + " pending=" + state.mPending);
+            }
+        }
+    }
+}
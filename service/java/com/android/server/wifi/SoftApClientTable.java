@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.annotation.NonNull;
+import android.net.MacAddress;
+import android.net.wifi.WifiClient;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Table of the clients connected to each instance of a Soft AP.
+ *
+ * Clients are indexed by MAC address within each instance, so membership checks, additions and
+ * removals take constant time. Each client is assigned a slot in a set of primitive arrays
+ * holding its per-client counters, and slots are reused once the client disconnects.
+ *
+ * Neither hostapd nor the HAL report per-station traffic, so activity is only tracked per
+ * instance, from the packet counters of its interface. An instance which moved no packet means
+ * that all its clients were idle; a client idle next to an active one is not detected.
+ */
+public class SoftApClientTable {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_CONNECTION_HISTORY = 64;
+
+    // Instance identifier -> (MAC address -> slot), in connection order.
+    private final Map<String, LinkedHashMap<MacAddress, Integer>> mInstances = new HashMap<>();
+
+    // Per-slot data, valid for the slots in use.
+    private WifiClient[] mClients = new WifiClient[INITIAL_CAPACITY];
+    private long[] mConnectTimeMs = new long[INITIAL_CAPACITY];
+
+    // Instance identifier -> {tx packets, rx packets} of its interface when last counted, and
+    // the last time the instance was seen moving packets.
+    private final Map<String, long[]> mInstancePackets = new HashMap<>();
+
+    // Stack of the free slots below mNumSlots.
+    private int[] mFreeSlots = new int[INITIAL_CAPACITY];
+    private int mNumFreeSlots = 0;
+    // Number of slots ever used.
+    private int mNumSlots = 0;
+    private int mSize = 0;
+
+    // MAC address -> {start of the counting window, number of connections in it}, for the
+    // clients seen recently, least recently connected first.
+    private final LinkedHashMap<MacAddress, long[]> mConnectionHistory =
+            new LinkedHashMap<MacAddress, long[]>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MacAddress, long[]> eldest) {
+                    return size() > MAX_CONNECTION_HISTORY;
+                }
+            };
+
+    // Client lists returned to the callers, refreshed in place on demand after a change.
+    private final Map<String, List<WifiClient>> mClientListMap = new HashMap<>();
+    private boolean mClientListMapDirty = false;
+
+    /**
+     * Make sure the instance is in the table, with no client if it was not.
+     */
+    public void addInstance(@NonNull String instance) {
+        if (mInstances.containsKey(instance)) return;
+        mInstances.put(instance, new LinkedHashMap<>());
+        mClientListMapDirty = true;
+    }
+
+    /**
+     * Remove an instance and all its clients.
+     */
+    public void removeInstance(@NonNull String instance) {
+        LinkedHashMap<MacAddress, Integer> clients = mInstances.remove(instance);
+        if (clients == null) return;
+        for (int slot : clients.values()) {
+            freeSlot(slot);
+        }
+        mInstancePackets.remove(instance);
+        mClientListMapDirty = true;
+    }
+
+    /**
+     * Return true if the client is connected.
+     */
+    public boolean contains(@NonNull WifiClient client) {
+        return getSlot(client) >= 0;
+    }
+
+    /**
+     * Add a connected client.
+     *
+     * @param client the client.
+     * @param nowMs the current time, recorded as the connection time of the client.
+     * @return false if the client was already connected.
+     */
+    public boolean add(@NonNull WifiClient client, long nowMs) {
+        LinkedHashMap<MacAddress, Integer> clients = mInstances.computeIfAbsent(
+                client.getApInstanceIdentifier(), k -> new LinkedHashMap<>());
+        if (clients.containsKey(client.getMacAddress())) return false;
+        int slot = allocateSlot();
+        mClients[slot] = client;
+        mConnectTimeMs[slot] = nowMs;
+        clients.put(client.getMacAddress(), slot);
+        mSize++;
+        mClientListMapDirty = true;
+        return true;
+    }
+
+    /**
+     * Remove a disconnected client.
+     *
+     * @return false if the client was not connected.
+     */
+    public boolean remove(@NonNull WifiClient client) {
+        LinkedHashMap<MacAddress, Integer> clients =
+                mInstances.get(client.getApInstanceIdentifier());
+        if (clients == null) return false;
+        Integer slot = clients.remove(client.getMacAddress());
+        if (slot == null) return false;
+        freeSlot(slot);
+        mClientListMapDirty = true;
+        return true;
+    }
+
+    /**
+     * Remove all the instances and clients.
+     */
+    public void clear() {
+        mInstances.clear();
+        mInstancePackets.clear();
+        Arrays.fill(mClients, 0, mNumSlots, null);
+        mNumFreeSlots = 0;
+        mNumSlots = 0;
+        mSize = 0;
+        mClientListMapDirty = true;
+    }
+
+    /**
+     * Return the number of connected clients on all instances.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the number of clients connected to an instance.
+     */
+    public int size(@NonNull String instance) {
+        LinkedHashMap<MacAddress, Integer> clients = mInstances.get(instance);
+        return clients == null ? 0 : clients.size();
+    }
+
+    /**
+     * Return the identifiers of the instances in the table.
+     */
+    public @NonNull Set<String> getInstances() {
+        return Collections.unmodifiableSet(mInstances.keySet());
+    }
+
+    /**
+     * Return the clients connected to all instances.
+     */
+    public @NonNull List<WifiClient> getClients() {
+        List<WifiClient> result = new ArrayList<>(mSize);
+        for (LinkedHashMap<MacAddress, Integer> clients : mInstances.values()) {
+            for (int slot : clients.values()) {
+                result.add(mClients[slot]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the clients of each instance, in connection order. The same map is returned on
+     * every call and is only brought up to date by the next call after a change, so building
+     * the lists costs O(n) per call rather than per connection event.
+     */
+    public @NonNull Map<String, List<WifiClient>> getClientListMap() {
+        if (mClientListMapDirty) {
+            mClientListMap.keySet().retainAll(mInstances.keySet());
+            for (Map.Entry<String, LinkedHashMap<MacAddress, Integer>> e
+                    : mInstances.entrySet()) {
+                List<WifiClient> list =
+                        mClientListMap.computeIfAbsent(e.getKey(), k -> new ArrayList<>());
+                list.clear();
+                for (int slot : e.getValue().values()) {
+                    list.add(mClients[slot]);
+                }
+            }
+            mClientListMapDirty = false;
+        }
+        return mClientListMap;
+    }
+
+    /**
+     * Count a connection attempt of a client. The connections of each client are counted over
+     * fixed windows, and the counts are kept for the clients which connected recently even
+     * once they are disconnected.
+     *
+     * @param macAddress the MAC address of the client.
+     * @param nowMs the current time.
+     * @param windowMs the length of the counting window.
+     * @return the number of connection attempts of the client in the current window, including
+     *         this one.
+     */
+    public int noteConnectionAttempt(@NonNull MacAddress macAddress, long nowMs, long windowMs) {
+        long[] history = mConnectionHistory.remove(macAddress);
+        if (history == null || nowMs - history[0] >= windowMs) {
+            history = new long[] {nowMs, 0};
+        }
+        history[1]++;
+        // Re-insert to move the client to the most recent position.
+        mConnectionHistory.put(macAddress, history);
+        return (int) history[1];
+    }
+
+    /**
+     * Return how long the client has been connected, or -1 if it is not connected.
+     */
+    public long getConnectedDurationMs(@NonNull WifiClient client, long nowMs) {
+        int slot = getSlot(client);
+        return slot < 0 ? -1 : nowMs - mConnectTimeMs[slot];
+    }
+
+    /**
+     * Count the packets moved by an instance since the last call. The first call for an
+     * instance only records its counters.
+     *
+     * @param instance the identifier of the instance.
+     * @param txPackets the number of packets sent by the interface of the instance.
+     * @param rxPackets the number of packets received by the interface of the instance.
+     * @param nowMs the current time, recorded as the last activity of the instance if it moved
+     *              packets.
+     * @return true if the instance moved packets since the last call.
+     */
+    public boolean updateInstancePackets(@NonNull String instance, long txPackets,
+            long rxPackets, long nowMs) {
+        long[] last = mInstancePackets.get(instance);
+        if (last == null) {
+            mInstancePackets.put(instance, new long[] {txPackets, rxPackets, Long.MIN_VALUE});
+            return false;
+        }
+        // The counters restart from 0 if the interface is recreated.
+        boolean moved = txPackets > last[0] || rxPackets > last[1];
+        last[0] = txPackets;
+        last[1] = rxPackets;
+        if (moved) {
+            last[2] = nowMs;
+        }
+        return moved;
+    }
+
+    /**
+     * Return how long the instance of the client moved no packet since the client connected, or
+     * -1 if it is not connected.
+     */
+    public long getIdleDurationMs(@NonNull WifiClient client, long nowMs) {
+        int slot = getSlot(client);
+        return slot < 0 ? -1 : nowMs - getLastActiveTimeMs(client.getApInstanceIdentifier(), slot);
+    }
+
+    /**
+     * Return the clients of the instances which moved no packet for at least the given
+     * duration, counted from the connection of each client.
+     */
+    public @NonNull List<WifiClient> getIdleClients(long nowMs, long idleDurationMs) {
+        List<WifiClient> result = new ArrayList<>();
+        for (Map.Entry<String, LinkedHashMap<MacAddress, Integer>> e : mInstances.entrySet()) {
+            for (int slot : e.getValue().values()) {
+                if (nowMs - getLastActiveTimeMs(e.getKey(), slot) >= idleDurationMs) {
+                    result.add(mClients[slot]);
+                }
+            }
+        }
+        return result;
+    }
+
+    private long getLastActiveTimeMs(String instance, int slot) {
+        long[] packets = mInstancePackets.get(instance);
+        return packets == null ? mConnectTimeMs[slot] : Math.max(mConnectTimeMs[slot], packets[2]);
+    }
+
+    /**
+     * Dump the state of the table.
+     */
+    public void dump(PrintWriter pw, long nowMs) {
+        pw.println("SoftApClientTable: size=" + mSize + " slots=" + mNumSlots);
+        for (Map.Entry<String, LinkedHashMap<MacAddress, Integer>> e : mInstances.entrySet()) {
+            for (int slot : e.getValue().values()) {
+                pw.println("  " + mClients[slot] + " connectedMs="
+                        + (nowMs - mConnectTimeMs[slot])
+                        + " idleMs=" + (nowMs - getLastActiveTimeMs(e.getKey(), slot)));
+            }
+        }
+        pw.println("SoftApClientTable connection history:");
+        for (Map.Entry<MacAddress, long[]> e : mConnectionHistory.entrySet()) {
+            pw.println("  " + e.getKey() + " windowAgeMs=" + (nowMs - e.getValue()[0])
+                    + " attempts=" + e.getValue()[1]);
+        }
+    }
+
+    private int getSlot(WifiClient client) {
+        LinkedHashMap<MacAddress, Integer> clients =
+                mInstances.get(client.getApInstanceIdentifier());
+        if (clients == null) return -1;
+        Integer slot = clients.get(client.getMacAddress());
+        return slot == null ? -1 : slot;
+    }
+
+    private int allocateSlot() {
+        if (mNumFreeSlots > 0) {
+            return mFreeSlots[--mNumFreeSlots];
+        }
+        if (mNumSlots == mClients.length) {
+            int capacity = mClients.length * 2;
+            mClients = Arrays.copyOf(mClients, capacity);
+            mConnectTimeMs = Arrays.copyOf(mConnectTimeMs, capacity);
+            mFreeSlots = Arrays.copyOf(mFreeSlots, capacity);
+        }
+        return mNumSlots++;
+    }
+
+    private void freeSlot(int slot) {
+        mClients[slot] = null;
+        mFreeSlots[mNumFreeSlots++] = slot;
+        mSize--;
+    }
+}
@@ -104,6 +104,10 @@ public class SoftApManager implements ActiveModeManager {
 
     private static final long SCHEDULE_IDLE_INSTANCE_SHUTDOWN_TIMEOUT_DELAY_MS = 10;
 
+    // Ratio between the longest and the shortest interval between two samples of the client
+    // traffic.
+    private static final int MAX_CLIENT_STATS_SAMPLE_INTERVAL_MULTIPLIER = 8;
+
     private String mCountryCode;
 
     private final SoftApStateMachine mStateMachine;
@@ -151,9 +155,11 @@ public class SoftApManager implements ActiveModeManager {
     @NonNull
     private SoftApCapability mCurrentSoftApCapability;
 
-    private Map<String, List<WifiClient>> mConnectedClientWithApInfoMap = new HashMap<>();
+    private final SoftApClientTable mConnectedClientTable = new SoftApClientTable();
     @VisibleForTesting
     Map<WifiClient, Integer> mPendingDisconnectClients = new HashMap<>();
+    // Idle clients which were asked to disconnect, until their disconnection event.
+    private final Set<WifiClient> mIdleDisconnectingClients = new HashSet<>();
 
     private boolean mTimeoutEnabled = false;
     private boolean mBridgedModeOpportunisticsShutdownTimeoutEnabled = false;
@@ -166,6 +172,23 @@ public class SoftApManager implements ActiveModeManager {
 
     private long mDefaultShutdownIdleInstanceInBridgedModeTimeoutMillis;
 
+    private final long mConnectedClientsCallbackBatchWindowMillis;
+
+    private final int mMaxClientsPerBand;
+
+    private final int mClientReconnectLimit;
+
+    private final long mClientReconnectWindowMillis;
+
+    private final long mClientStatsSampleIntervalMillis;
+
+    private final long mClientIdleTimeoutMillis;
+
+    // Interval until the next sample of the client traffic. Grows while the clients are idle.
+    private long mCurrentClientStatsSampleIntervalMillis;
+
+    private final Clock mClock;
+
     private final boolean mIsDisableShutDownBridgedModeIdleInstanceTimerWhenCharging;
 
     private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
@@ -342,6 +365,7 @@ public class SoftApManager implements ActiveModeManager {
             @NonNull SoftApNotifier softApNotifier,
             @NonNull ClientModeImplMonitor cmiMonitor,
             @NonNull ActiveModeWarden activeModeWarden,
+            @NonNull Clock clock,
             long id,
             @NonNull WorkSource requestorWs,
             @NonNull SoftApRole role,
@@ -402,6 +426,20 @@ public class SoftApManager implements ActiveModeManager {
         mIsDisableShutDownBridgedModeIdleInstanceTimerWhenCharging = mContext.getResources()
                 .getBoolean(R.bool
                 .config_wifiFrameworkSoftApDisableBridgedModeShutdownIdleInstanceWhenCharging);
+        mConnectedClientsCallbackBatchWindowMillis = mContext.getResources().getInteger(
+                R.integer.config_wifiSoftApConnectedClientsCallbackBatchWindowMillis);
+        mMaxClientsPerBand = mContext.getResources().getInteger(
+                R.integer.config_wifiSoftApMaxClientsPerBand);
+        mClientReconnectLimit = mContext.getResources().getInteger(
+                R.integer.config_wifiSoftApClientReconnectLimit);
+        mClientReconnectWindowMillis = mContext.getResources().getInteger(
+                R.integer.config_wifiSoftApClientReconnectWindowMillis);
+        mClientStatsSampleIntervalMillis = mContext.getResources().getInteger(
+                R.integer.config_wifiSoftApClientStatsSampleIntervalMillis);
+        mClientIdleTimeoutMillis = mContext.getResources().getInteger(
+                R.integer.config_wifiSoftApClientIdleTimeoutMillis);
+        mCurrentClientStatsSampleIntervalMillis = mClientStatsSampleIntervalMillis;
+        mClock = clock;
         mCmiMonitor = cmiMonitor;
         mActiveModeWarden = activeModeWarden;
         mCmiMonitor.registerListener(new ClientModeImplListener() {
@@ -569,7 +607,10 @@ public class SoftApManager implements ActiveModeManager {
                 + mOriginalModeConfiguration.getTargetMode());
         pw.println("mCurrentSoftApConfiguration: " + mCurrentSoftApConfiguration);
         pw.println("mCurrentSoftApCapability: " + mCurrentSoftApCapability);
-        pw.println("getConnectedClientList().size(): " + getConnectedClientList().size());
+        pw.println("getConnectedClientList().size(): " + mConnectedClientTable.size());
+        mConnectedClientTable.dump(pw, mClock.getElapsedSinceBootMillis());
+        pw.println("mCurrentClientStatsSampleIntervalMillis: "
+                + mCurrentClientStatsSampleIntervalMillis);
         pw.println("mTimeoutEnabled: " + mTimeoutEnabled);
         pw.println("mBridgedModeOpportunisticsShutdownTimeoutEnabled: "
                 + mBridgedModeOpportunisticsShutdownTimeoutEnabled);
@@ -805,11 +846,37 @@ public class SoftApManager implements ActiveModeManager {
     }
 
     private List<WifiClient> getConnectedClientList() {
-        List<WifiClient> connectedClientList = new ArrayList<>();
-        for (List<WifiClient> it : mConnectedClientWithApInfoMap.values()) {
-            connectedClientList.addAll(it);
+        return mConnectedClientTable.getClients();
+    }
+
+    /**
+     * Notify the connected clients and the Soft AP infos now, dropping any batched notification.
+     */
+    private void notifyConnectedClientsOrInfoChanged() {
+        mStateMachine.removeMessages(SoftApStateMachine.CMD_NOTIFY_CONNECTED_CLIENTS_CHANGED);
+        if (mSoftApCallback == null) {
+            Log.e(getTag(), "SoftApCallback is null. Dropping ConnectedClientsChanged event.");
+            return;
+        }
+        mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
+                mConnectedClientTable.getClientListMap(), isBridgeRequired());
+    }
+
+    /**
+     * Notify a change of the connected clients, batching the changes which happen within
+     * config_wifiSoftApConnectedClientsCallbackBatchWindowMillis into one notification.
+     */
+    private void scheduleConnectedClientsChangedNotification() {
+        if (mConnectedClientsCallbackBatchWindowMillis <= 0) {
+            notifyConnectedClientsOrInfoChanged();
+            return;
         }
-        return connectedClientList;
+        if (mStateMachine.getHandler().hasMessages(
+                SoftApStateMachine.CMD_NOTIFY_CONNECTED_CLIENTS_CHANGED)) {
+            return;
+        }
+        mStateMachine.sendMessageDelayed(SoftApStateMachine.CMD_NOTIFY_CONNECTED_CLIENTS_CHANGED,
+                mConnectedClientsCallbackBatchWindowMillis);
     }
 
     private boolean checkSoftApClient(SoftApConfiguration config, WifiClient newClient) {
@@ -841,12 +908,25 @@ public class SoftApManager implements ActiveModeManager {
             }
             return false;
         }
+        if (mClientReconnectLimit > 0 && mConnectedClientTable.noteConnectionAttempt(
+                newClient.getMacAddress(), mClock.getElapsedSinceBootMillis(),
+                mClientReconnectWindowMillis) > mClientReconnectLimit) {
+            Log.i(getTag(), "Force disconnect for client reconnecting too often: " + newClient);
+            if (!mWifiNative.forceClientDisconnect(
+                    mApInterfaceName, newClient.getMacAddress(),
+                    WifiManager.SAP_CLIENT_DISCONNECT_REASON_CODE_UNSPECIFIED)) {
+                addClientToPendingDisconnectionList(newClient,
+                        WifiManager.SAP_CLIENT_DISCONNECT_REASON_CODE_UNSPECIFIED);
+            }
+            mWifiMetrics.noteSoftApClientBlockedByReconnectLimit();
+            return false;
+        }
         int maxConfig = mCurrentSoftApCapability.getMaxSupportedClients();
         if (config.getMaxNumberOfClients() > 0) {
             maxConfig = Math.min(maxConfig, config.getMaxNumberOfClients());
         }
 
-        if (getConnectedClientList().size() >= maxConfig) {
+        if (mConnectedClientTable.size() >= maxConfig) {
             Log.i(getTag(), "No more room for new client:" + newClient);
             if (!mWifiNative.forceClientDisconnect(
                     mApInterfaceName, newClient.getMacAddress(),
@@ -863,9 +943,45 @@ public class SoftApManager implements ActiveModeManager {
             }
             return false;
         }
+        int band = getBandOfInstance(newClient.getApInstanceIdentifier());
+        if (mMaxClientsPerBand > 0 && band > 0
+                && getConnectedClientCountOnBand(band) >= mMaxClientsPerBand) {
+            Log.i(getTag(), "No more room on band " + band + " for new client:" + newClient);
+            if (!mWifiNative.forceClientDisconnect(
+                    mApInterfaceName, newClient.getMacAddress(),
+                    WifiManager.SAP_CLIENT_BLOCK_REASON_CODE_NO_MORE_STAS)) {
+                addClientToPendingDisconnectionList(newClient,
+                        WifiManager.SAP_CLIENT_BLOCK_REASON_CODE_NO_MORE_STAS);
+            }
+            mSoftApCallback.onBlockedClientConnecting(newClient,
+                    WifiManager.SAP_CLIENT_BLOCK_REASON_CODE_NO_MORE_STAS);
+            mWifiMetrics.noteSoftApClientBlockedByBandLimit();
+            return false;
+        }
         return true;
     }
 
+    /**
+     * Return the band of an instance, or -1 if the instance is unknown.
+     */
+    private int getBandOfInstance(String instance) {
+        SoftApInfo info = mCurrentSoftApInfoMap.get(instance);
+        return info == null ? -1 : ApConfigUtil.convertFrequencyToBand(info.getFrequency());
+    }
+
+    /**
+     * Return the number of clients connected on all the instances operating on a band.
+     */
+    private int getConnectedClientCountOnBand(int band) {
+        int count = 0;
+        for (String instance : mConnectedClientTable.getInstances()) {
+            if (getBandOfInstance(instance) == band) {
+                count += mConnectedClientTable.size(instance);
+            }
+        }
+        return count;
+    }
+
     private class SoftApStateMachine extends StateMachine {
         // Commands for the state machine.
         public static final int CMD_START = 0;
@@ -885,6 +1001,8 @@ public class SoftApManager implements ActiveModeManager {
         public static final int CMD_HANDLE_WIFI_CONNECTED = 15;
         public static final int CMD_UPDATE_COUNTRY_CODE = 16;
         public static final int CMD_CHARGING_STATE_CHANGED = 17;
+        public static final int CMD_NOTIFY_CONNECTED_CLIENTS_CHANGED = 18;
+        public static final int CMD_SAMPLE_CLIENT_STATS = 19;
 
         private final State mIdleState = new IdleState();
         private final State mStartedState = new StartedState();
@@ -1179,8 +1297,8 @@ public class SoftApManager implements ActiveModeManager {
                 final boolean timeoutEnabled = isTetheringInterface ? mTimeoutEnabled
                         : (mBridgedModeOpportunisticsShutdownTimeoutEnabled && !mIsCharging);
                 final int clientNumber = isTetheringInterface
-                        ? getConnectedClientList().size()
-                        : mConnectedClientWithApInfoMap.get(instance).size();
+                        ? mConnectedClientTable.size()
+                        : mConnectedClientTable.size(instance);
                 Log.d(getTag(), "rescheduleTimeoutMessageIfNeeded " + instance + ", timeoutEnabled="
                         + timeoutEnabled + ", isCharging" + mIsCharging + ", clientNumber="
                         + clientNumber);
@@ -1279,56 +1397,130 @@ public class SoftApManager implements ActiveModeManager {
                     Log.d(getTag(), "Remove client: " + client.getMacAddress()
                             + "from pending disconnectionlist");
                 }
+                mIdleDisconnectingClients.remove(client);
 
                 String apInstanceIdentifier = client.getApInstanceIdentifier();
-                List clientList = mConnectedClientWithApInfoMap.computeIfAbsent(
-                        apInstanceIdentifier, k -> new ArrayList<>());
-                int index = clientList.indexOf(client);
-
-                if ((index != -1) == isConnected) {
+                mConnectedClientTable.addInstance(apInstanceIdentifier);
+                if (mConnectedClientTable.contains(client) == isConnected) {
                     Log.e(getTag(), "Drop client connection event, client "
                             + client + "isConnected: " + isConnected
                             + " , duplicate event or client is blocked");
                     return;
                 }
+                long nowMs = mClock.getElapsedSinceBootMillis();
                 if (isConnected) {
                     boolean isAllow = checkSoftApClient(mCurrentSoftApConfiguration, client);
                     if (isAllow) {
-                        clientList.add(client);
+                        if (isClientStatsSamplingEnabled()) {
+                            // Record the counters of the instance, so that the next sample
+                            // counts the traffic from now on.
+                            sampleInstancePackets(apInstanceIdentifier, nowMs);
+                        }
+                        mConnectedClientTable.add(client, nowMs);
                     } else {
                         return;
                     }
                 } else {
-                    if (null == clientList.remove(index)) {
-                        Log.e(getTag(), "client doesn't exist in list, it should NOT happen");
+                    mConnectedClientTable.remove(client);
+                }
+                if (isClientStatsSamplingEnabled()) {
+                    if (isConnected) {
+                        // Sample quickly again, a new client is likely to be active.
+                        scheduleClientStatsSample(mClientStatsSampleIntervalMillis);
+                    } else if (mConnectedClientTable.size() == 0) {
+                        removeMessages(CMD_SAMPLE_CLIENT_STATS);
                     }
                 }
 
-                // Update clients list.
-                mConnectedClientWithApInfoMap.put(apInstanceIdentifier, clientList);
-                SoftApInfo currentInfoWithClientsChanged = mCurrentSoftApInfoMap
-                        .get(apInstanceIdentifier);
+                // Only log the change, the whole list can be long on a busy hotspot.
                 Log.d(getTag(), "The connected wifi stations have changed with count: "
-                        + clientList.size() + ": " + clientList + " on the AP which info is "
-                        + currentInfoWithClientsChanged);
+                        + mConnectedClientTable.size(apInstanceIdentifier) + ", "
+                        + client.getMacAddress() + (isConnected ? " connected" : " disconnected")
+                        + " on the AP which info is "
+                        + mCurrentSoftApInfoMap.get(apInstanceIdentifier));
 
-                if (mSoftApCallback != null) {
-                    mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
-                            mConnectedClientWithApInfoMap, isBridgeRequired());
-                } else {
-                    Log.e(getTag(),
-                            "SoftApCallback is null. Dropping ConnectedClientsChanged event.");
-                }
+                scheduleConnectedClientsChangedNotification();
 
                 mWifiMetrics.addSoftApNumAssociatedStationsChangedEvent(
-                        getConnectedClientList().size(),
-                        mConnectedClientWithApInfoMap.get(apInstanceIdentifier).size(),
+                        mConnectedClientTable.size(),
+                        mConnectedClientTable.size(apInstanceIdentifier),
                         mOriginalModeConfiguration.getTargetMode(),
                         mCurrentSoftApInfoMap.get(apInstanceIdentifier));
 
                 rescheduleTimeoutMessages(apInstanceIdentifier);
             }
 
+            private boolean isClientStatsSamplingEnabled() {
+                return mClientStatsSampleIntervalMillis > 0;
+            }
+
+            /**
+             * Count the packets moved by an instance since the last sample.
+             *
+             * @return true if the instance moved packets.
+             */
+            private boolean sampleInstancePackets(String instance, long nowMs) {
+                return mConnectedClientTable.updateInstancePackets(instance,
+                        mWifiNative.getTxPackets(instance), mWifiNative.getRxPackets(instance),
+                        nowMs);
+            }
+
+            private void scheduleClientStatsSample(long delayMillis) {
+                removeMessages(CMD_SAMPLE_CLIENT_STATS);
+                mCurrentClientStatsSampleIntervalMillis = delayMillis;
+                sendMessageDelayed(CMD_SAMPLE_CLIENT_STATS, delayMillis);
+            }
+
+            /**
+             * Return the longest interval between two samples of the client traffic, reached
+             * while the clients are idle. It does not exceed the idle timeout, so that idle
+             * clients are disconnected on time.
+             */
+            private long getMaxClientStatsSampleIntervalMillis() {
+                long maxInterval = mClientStatsSampleIntervalMillis
+                        * MAX_CLIENT_STATS_SAMPLE_INTERVAL_MULTIPLIER;
+                if (mClientIdleTimeoutMillis > 0) {
+                    maxInterval = Math.min(maxInterval, mClientIdleTimeoutMillis);
+                }
+                return Math.max(mClientStatsSampleIntervalMillis, maxInterval);
+            }
+
+            /**
+             * Sample the traffic of the instances with clients and disconnect the idle clients.
+             * Samples are taken at the base interval while there is traffic, and the interval
+             * doubles with each idle sample.
+             */
+            private void sampleClientStats() {
+                long nowMs = mClock.getElapsedSinceBootMillis();
+                boolean hasTraffic = false;
+                for (String instance : mConnectedClientTable.getInstances()) {
+                    if (mConnectedClientTable.size(instance) == 0) continue;
+                    hasTraffic |= sampleInstancePackets(instance, nowMs);
+                }
+                if (mClientIdleTimeoutMillis > 0) {
+                    for (WifiClient idleClient : mConnectedClientTable.getIdleClients(
+                            nowMs, mClientIdleTimeoutMillis)) {
+                        // Already asked to disconnect, waiting for the event or for a retry.
+                        if (mPendingDisconnectClients.containsKey(idleClient)
+                                || !mIdleDisconnectingClients.add(idleClient)) {
+                            continue;
+                        }
+                        Log.i(getTag(), "Force disconnect for idle client: " + idleClient);
+                        if (!mWifiNative.forceClientDisconnect(
+                                mApInterfaceName, idleClient.getMacAddress(),
+                                WifiManager.SAP_CLIENT_DISCONNECT_REASON_CODE_UNSPECIFIED)) {
+                            addClientToPendingDisconnectionList(idleClient,
+                                    WifiManager.SAP_CLIENT_DISCONNECT_REASON_CODE_UNSPECIFIED);
+                        }
+                        mWifiMetrics.noteSoftApClientDisconnectedByIdleTimeout();
+                    }
+                }
+                if (mConnectedClientTable.size() == 0) return;
+                scheduleClientStatsSample(hasTraffic ? mClientStatsSampleIntervalMillis
+                        : Math.min(mCurrentClientStatsSampleIntervalMillis * 2,
+                                getMaxClientStatsSampleIntervalMillis()));
+            }
+
             /**
              * @param apInfo, the new SoftApInfo changed. Null used to clean up.
              */
@@ -1337,24 +1529,22 @@ public class SoftApManager implements ActiveModeManager {
                 if (apInfo == null) {
                     // Clean up
                     mCurrentSoftApInfoMap.clear();
-                    mConnectedClientWithApInfoMap.clear();
-                    mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
-                            mConnectedClientWithApInfoMap, isBridgeRequired());
+                    mConnectedClientTable.clear();
+                    notifyConnectedClientsOrInfoChanged();
                     return;
                 }
                 String changedInstance = apInfo.getApInstanceIdentifier();
                 if (apInfo.equals(mCurrentSoftApInfoMap.get(changedInstance))) {
                     if (isRemoved) {
                         boolean isClientConnected =
-                                mConnectedClientWithApInfoMap.get(changedInstance).size() > 0;
+                                mConnectedClientTable.size(changedInstance) > 0;
                         mCurrentSoftApInfoMap.remove(changedInstance);
                         mSoftApTimeoutMessageMap.remove(changedInstance);
-                        mConnectedClientWithApInfoMap.remove(changedInstance);
-                        mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
-                                mConnectedClientWithApInfoMap, isBridgeRequired());
+                        mConnectedClientTable.removeInstance(changedInstance);
+                        notifyConnectedClientsOrInfoChanged();
                         if (isClientConnected) {
                             mWifiMetrics.addSoftApNumAssociatedStationsChangedEvent(
-                                    getConnectedClientList().size(), 0,
+                                    mConnectedClientTable.size(), 0,
                                     mOriginalModeConfiguration.getTargetMode(), apInfo);
                         }
                         if (isBridgeRequired()) {
@@ -1366,17 +1556,15 @@ public class SoftApManager implements ActiveModeManager {
                 }
 
                 // Make sure an empty client list is created when info updated
-                List clientList = mConnectedClientWithApInfoMap.computeIfAbsent(
-                        changedInstance, k -> new ArrayList<>());
+                mConnectedClientTable.addInstance(changedInstance);
 
-                if (clientList.size() != 0) {
+                if (mConnectedClientTable.size(changedInstance) != 0) {
                     Log.e(getTag(), "The info: " + apInfo
                             + " changed when client connected, it should NOT happen!!");
                 }
 
                 mCurrentSoftApInfoMap.put(changedInstance, new SoftApInfo(apInfo));
-                mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
-                        mConnectedClientWithApInfoMap, isBridgeRequired());
+                notifyConnectedClientsOrInfoChanged();
 
                 boolean isNeedToScheduleTimeoutMessage = false;
                 if (!mSoftApTimeoutMessageMap.containsKey(mApInterfaceName)) {
@@ -1426,10 +1614,9 @@ public class SoftApManager implements ActiveModeManager {
                     mModeListener.onStarted(SoftApManager.this);
                     mWifiMetrics.incrementSoftApStartResult(true, 0);
                     mCurrentSoftApInfoMap.clear();
-                    mConnectedClientWithApInfoMap.clear();
+                    mConnectedClientTable.clear();
                     if (mSoftApCallback != null) {
-                        mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
-                                mConnectedClientWithApInfoMap, isBridgeRequired());
+                        notifyConnectedClientsOrInfoChanged();
                     }
                 } else {
                     // the interface was up, but goes down
@@ -1465,8 +1652,9 @@ public class SoftApManager implements ActiveModeManager {
                 }
                 mSarManager.setSapWifiState(WifiManager.WIFI_AP_STATE_ENABLED);
                 Log.d(getTag(), "Resetting connected clients on start");
-                mConnectedClientWithApInfoMap.clear();
+                mConnectedClientTable.clear();
                 mPendingDisconnectClients.clear();
+                mIdleDisconnectingClients.clear();
                 mEverReportMetricsForMaxClient = false;
                 if (mWifiNative.useVendorHostapdHalForOwe(mCurrentSoftApConfiguration)) {
                         if (!mSoftApTimeoutMessageMap.containsKey(mApInterfaceName)) {
@@ -1489,23 +1677,27 @@ public class SoftApManager implements ActiveModeManager {
                 if (SdkLevel.isAtLeastS()) {
                     mCoexManager.unregisterCoexListener(mCoexListener);
                 }
-                if (getConnectedClientList().size() != 0) {
+                if (mConnectedClientTable.size() != 0) {
                     Log.d(getTag(), "Resetting num stations on stop");
-                    for (List<WifiClient> it : mConnectedClientWithApInfoMap.values()) {
-                        if (it.size() != 0) {
+                    for (String instance : mConnectedClientTable.getInstances()) {
+                        if (mConnectedClientTable.size(instance) != 0) {
                             mWifiMetrics.addSoftApNumAssociatedStationsChangedEvent(
                                     0, 0, mOriginalModeConfiguration.getTargetMode(),
-                                    mCurrentSoftApInfoMap
-                                            .get(it.get(0).getApInstanceIdentifier()));
+                                    mCurrentSoftApInfoMap.get(instance));
                         }
                     }
-                    mConnectedClientWithApInfoMap.clear();
+                    mConnectedClientTable.clear();
                     if (mSoftApCallback != null) {
-                        mSoftApCallback.onConnectedClientsOrInfoChanged(mCurrentSoftApInfoMap,
-                                mConnectedClientWithApInfoMap, isBridgeRequired());
+                        notifyConnectedClientsOrInfoChanged();
                     }
                 }
+                if (getHandler().hasMessages(CMD_NOTIFY_CONNECTED_CLIENTS_CHANGED)) {
+                    // Deliver the batched changes before leaving.
+                    notifyConnectedClientsOrInfoChanged();
+                }
                 mPendingDisconnectClients.clear();
+                mIdleDisconnectingClients.clear();
+                removeMessages(CMD_SAMPLE_CLIENT_STATS);
                 for (String key : mSoftApTimeoutMessageMap.keySet()) {
                     cancelTimeoutMessage(key);
                 }
@@ -1568,6 +1760,12 @@ public class SoftApManager implements ActiveModeManager {
                                 + isConnected);
                         updateConnectedClients(client, isConnected);
                         break;
+                    case CMD_NOTIFY_CONNECTED_CLIENTS_CHANGED:
+                        notifyConnectedClientsOrInfoChanged();
+                        break;
+                    case CMD_SAMPLE_CLIENT_STATS:
+                        sampleClientStats();
+                        break;
                     case CMD_AP_INFO_CHANGED:
                         if (!(message.obj instanceof SoftApInfo)) {
                             Log.e(getTag(), "Invalid type returned for"
@@ -1608,7 +1806,7 @@ public class SoftApManager implements ActiveModeManager {
                                     + " Dropping.");
                             break;
                         }
-                        if (getConnectedClientList().size() != 0) {
+                        if (mConnectedClientTable.size() != 0) {
                             Log.wtf(getTag(), "Timeout message received but has clients. "
                                     + "Dropping.");
                             break;
@@ -55,9 +55,11 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.messages.nano.SystemMessageProto.SystemMessage;
 import com.android.modules.utils.HandlerExecutor;
@@ -206,6 +208,27 @@ public class WifiCarrierInfoManager {
             new SparseArray<>();
 
     private List<SubscriptionInfo> mActiveSubInfos = null;
+    // Indexes of mActiveSubInfos, by subscription ID and by carrier ID in list order.
+    private final SparseArray<SubscriptionInfo> mActiveSubInfoBySubId = new SparseArray<>();
+    private final SparseArray<List<SubscriptionInfo>> mActiveSubInfosByCarrierId =
+            new SparseArray<>();
+    // SIM application state of the subscriptions, read from telephony once per subscription
+    // until the next subscription, carrier config or SIM state change.
+    private final SparseIntArray mSimApplicationStatePerSubId = new SparseIntArray();
+    private final EncryptedIdentityCache mEncryptedIdentityCache = new EncryptedIdentityCache();
+    // IMSI encryption key of the subscriptions, read from telephony once per subscription until
+    // the next subscription or carrier config change, or key reset. Also accessed from the
+    // identity precompute thread, so guarded by its own lock. Keys loaded with a generation
+    // older than the last invalidation are not cached.
+    private final Object mImsiEncryptionInfoLock = new Object();
+    @GuardedBy("mImsiEncryptionInfoLock")
+    private final SparseArray<ImsiEncryptionInfo> mImsiEncryptionInfoPerSubId =
+            new SparseArray<>();
+    @GuardedBy("mImsiEncryptionInfoLock")
+    private int mImsiEncryptionInfoGeneration = 0;
+    // Handler of the thread computing the encrypted identities ahead of the connections,
+    // created on first use.
+    private Handler mIdentityPrecomputeHandler;
 
     private boolean mHasNewUserDataToSerialize = false;
     private boolean mHasNewSharedDataToSerialize = false;
@@ -452,7 +475,11 @@ public class WifiCarrierInfoManager {
         @Override
         public void onSubscriptionsChanged() {
             mActiveSubInfos = mSubscriptionManager.getActiveSubscriptionInfoList();
+            updateActiveSubInfoIndexes();
             mSubIdToSimInfoSparseArray.clear();
+            mSimApplicationStatePerSubId.clear();
+            mEncryptedIdentityCache.invalidateAll();
+            invalidateImsiEncryptionInfo(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
             mSubscriptionGroupMap.clear();
             if (mVerboseLogEnabled) {
                 Log.v(TAG, "active subscription changes: " + mActiveSubInfos);
@@ -474,6 +501,24 @@ public class WifiCarrierInfoManager {
         }
     }
 
+    private void updateActiveSubInfoIndexes() {
+        mActiveSubInfoBySubId.clear();
+        mActiveSubInfosByCarrierId.clear();
+        if (mActiveSubInfos == null) {
+            return;
+        }
+        for (SubscriptionInfo subInfo : mActiveSubInfos) {
+            mActiveSubInfoBySubId.put(subInfo.getSubscriptionId(), subInfo);
+            List<SubscriptionInfo> subInfos =
+                    mActiveSubInfosByCarrierId.get(subInfo.getCarrierId());
+            if (subInfos == null) {
+                subInfos = new ArrayList<>();
+                mActiveSubInfosByCarrierId.put(subInfo.getCarrierId(), subInfos);
+            }
+            subInfos.add(subInfo);
+        }
+    }
+
     /**
      * Listener for carrier privilege changes.
      */
@@ -538,15 +583,19 @@ public class WifiCarrierInfoManager {
                 new SubscriptionChangeListener());
         onCarrierConfigChanged(context);
 
-        // Monitor for carrier config changes.
+        // Monitor for carrier config and SIM state changes.
         IntentFilter filter = new IntentFilter();
         filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
         context.registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED
                         .equals(intent.getAction())) {
                     mHandler.post(() -> onCarrierConfigChanged(context));
+                } else if (TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED
+                        .equals(intent.getAction())) {
+                    mHandler.post(() -> onSimApplicationStateChanged());
                 }
             }
         }, filter);
@@ -593,8 +642,7 @@ public class WifiCarrierInfoManager {
         if (mCachedCarrierConfigPerSubId.contains(subId)) {
             return mCachedCarrierConfigPerSubId.get(subId);
         }
-        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
-        if (specifiedTm.getSimApplicationState() != TelephonyManager.SIM_STATE_LOADED) {
+        if (!isSimApplicationLoaded(subId)) {
             return null;
         }
         if (mCarrierConfigManager == null) {
@@ -663,6 +711,32 @@ public class WifiCarrierInfoManager {
                 CarrierConfigManager.KEY_CARRIER_PROVISIONS_WIFI_MERGED_NETWORKS_BOOL, false);
     }
 
+    /**
+     * Returns true if the SIM application of the subscription is loaded, reading its state from
+     * telephony only if it is not cached.
+     */
+    private boolean isSimApplicationLoaded(int subId) {
+        int index = mSimApplicationStatePerSubId.indexOfKey(subId);
+        int state;
+        if (index >= 0) {
+            state = mSimApplicationStatePerSubId.valueAt(index);
+        } else {
+            state = mTelephonyManager.createForSubscriptionId(subId).getSimApplicationState();
+            mSimApplicationStatePerSubId.put(subId, state);
+        }
+        return state == TelephonyManager.SIM_STATE_LOADED;
+    }
+
+    /**
+     * Clears the cached SIM state and identities, which are read again on the next access.
+     */
+    private void onSimApplicationStateChanged() {
+        vlogd("SIM application state changed");
+        mSimApplicationStatePerSubId.clear();
+        mSubIdToSimInfoSparseArray.clear();
+        mEncryptedIdentityCache.invalidateAll();
+    }
+
     /**
      * Updates the IMSI encryption information and clears cached CarrierConfig data.
      */
@@ -670,6 +744,9 @@ public class WifiCarrierInfoManager {
         SparseArray<PersistableBundle> cachedCarrierConfigPerSubIdOld =
                 mCachedCarrierConfigPerSubId.clone();
         mCachedCarrierConfigPerSubId.clear();
+        mSimApplicationStatePerSubId.clear();
+        mEncryptedIdentityCache.invalidateAll();
+        invalidateImsiEncryptionInfo(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         mImsiEncryptionInfoAvailable.clear();
         if (mActiveSubInfos == null || mActiveSubInfos.isEmpty()) {
             return;
@@ -681,10 +758,8 @@ public class WifiCarrierInfoManager {
                 Log.e(TAG, "Carrier config is missing for: " + subId);
             } else {
                 try {
-                    if (requiresImsiEncryption(subId)
-                            && mTelephonyManager.createForSubscriptionId(subId)
-                            .getCarrierInfoForImsiEncryption(TelephonyManager.KEY_TYPE_WLAN)
-                            != null) {
+                    if (requiresImsiEncryption(subId) && loadImsiEncryptionInfo(
+                            mTelephonyManager.createForSubscriptionId(subId), subId) != null) {
                         vlogd("IMSI encryption info is available for " + subId);
                         mImsiEncryptionInfoAvailable.put(subId, true);
                     }
@@ -769,15 +844,18 @@ public class WifiCarrierInfoManager {
             return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
         }
 
+        List<SubscriptionInfo> subInfos = mActiveSubInfosByCarrierId.get(carrierId);
+        if (subInfos == null) {
+            vlogd("no matching subId for carrierId " + carrierId);
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
         int dataSubId = SubscriptionManager.getDefaultDataSubscriptionId();
         int matchSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-        for (SubscriptionInfo subInfo : mActiveSubInfos) {
-            if (subInfo.getCarrierId() == carrierId) {
-                matchSubId = subInfo.getSubscriptionId();
-                if (matchSubId == dataSubId) {
-                    // Priority of Data sub is higher than non data sub.
-                    break;
-                }
+        for (SubscriptionInfo subInfo : subInfos) {
+            matchSubId = subInfo.getSubscriptionId();
+            if (matchSubId == dataSubId) {
+                // Priority of Data sub is higher than non data sub.
+                break;
             }
         }
         vlogd("matching subId is " + matchSubId);
@@ -797,11 +875,9 @@ public class WifiCarrierInfoManager {
         }
 
         int slot = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-        for (SubscriptionInfo subInfo : mActiveSubInfos) {
-            if (subInfo.getCarrierId() == carrierId && subInfo.getSubscriptionId() == subId) {
-                slot = subInfo.getSimSlotIndex();
-                break;
-            }
+        SubscriptionInfo subInfo = mActiveSubInfoBySubId.get(subId);
+        if (subInfo != null && subInfo.getCarrierId() == carrierId) {
+            slot = subInfo.getSimSlotIndex();
         }
         vlogd("matching simSlot is " + slot + " and SimNumber is " + (slot + 1));
         return slot;
@@ -839,10 +915,10 @@ public class WifiCarrierInfoManager {
         if (mActiveSubInfos == null || mActiveSubInfos.isEmpty()) {
             return false;
         }
-        if (getSimInfo(subId) == null || getCarrierConfigForSubId(subId) == null) {
+        if (!mActiveSubInfoBySubId.contains(subId)) {
             return false;
         }
-        return mActiveSubInfos.stream().anyMatch(info -> info.getSubscriptionId() == subId);
+        return getSimInfo(subId) != null && getCarrierConfigForSubId(subId) != null;
     }
 
     /**
@@ -854,30 +930,18 @@ public class WifiCarrierInfoManager {
      */
     public Pair<String, String> getSimIdentity(WifiConfiguration config) {
         int subId = getBestMatchSubscriptionId(config);
-        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
-            return null;
-        }
-
-        SimInfo simInfo = getSimInfo(subId);
-        if (simInfo == null) {
-            return null;
-        }
-
-        String identity = buildIdentity(getSimMethodForConfig(config), simInfo.imsi,
-                simInfo.mccMnc, false);
+        String identity = getUnencryptedSimIdentity(config, subId);
         if (identity == null) {
-            Log.e(TAG, "Failed to build the identity");
             return null;
         }
 
         if (!requiresImsiEncryption(subId)) {
             return Pair.create(identity, "");
         }
-        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
         ImsiEncryptionInfo imsiEncryptionInfo;
         try {
-            imsiEncryptionInfo = specifiedTm.getCarrierInfoForImsiEncryption(
-                    TelephonyManager.KEY_TYPE_WLAN);
+            imsiEncryptionInfo = loadImsiEncryptionInfo(
+                    mTelephonyManager.createForSubscriptionId(subId), subId);
         } catch (RuntimeException e) {
             Log.e(TAG, "Failed to get imsi encryption info: " + e.getMessage());
             return null;
@@ -887,8 +951,11 @@ public class WifiCarrierInfoManager {
             return Pair.create(identity, "");
         }
 
-        String encryptedIdentity = buildEncryptedIdentity(identity,
-                    imsiEncryptionInfo);
+        String encryptedIdentity = mEncryptedIdentityCache.take(subId,
+                imsiEncryptionInfo.getKeyIdentifier(), identity);
+        if (encryptedIdentity == null) {
+            encryptedIdentity = buildEncryptedIdentity(identity, imsiEncryptionInfo);
+        }
 
         // In case of failure for encryption, abort current EAP authentication.
         if (encryptedIdentity == null) {
@@ -898,6 +965,127 @@ public class WifiCarrierInfoManager {
         return Pair.create(identity, encryptedIdentity);
     }
 
+    /**
+     * Get the identity for the current SIM, without encrypting it, or null if the SIM is not
+     * available. Unlike {@link #getSimIdentity}, this neither calls telephony for the IMSI
+     * encryption key nor consumes an encrypted identity computed ahead of the connection.
+     *
+     * @param config WifiConfiguration that indicates what sort of authentication is necessary
+     * @return the identity, or null if the SIM is not available or config is invalid
+     */
+    public @Nullable String getUnencryptedSimIdentity(WifiConfiguration config) {
+        return getUnencryptedSimIdentity(config, getBestMatchSubscriptionId(config));
+    }
+
+    private @Nullable String getUnencryptedSimIdentity(WifiConfiguration config, int subId) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            return null;
+        }
+
+        SimInfo simInfo = getSimInfo(subId);
+        if (simInfo == null) {
+            return null;
+        }
+
+        String identity = buildIdentity(getSimMethodForConfig(config), simInfo.imsi,
+                simInfo.mccMnc, false);
+        if (identity == null) {
+            Log.e(TAG, "Failed to build the identity");
+        }
+        return identity;
+    }
+
+    /**
+     * Return the IMSI encryption key of a subscription, from the cache or else from telephony.
+     * Only keys which are present are cached, so that a key downloaded later is picked up.
+     *
+     * @throws RuntimeException if telephony fails to return the key.
+     */
+    private @Nullable ImsiEncryptionInfo loadImsiEncryptionInfo(
+            @NonNull TelephonyManager specifiedTm, int subId) {
+        int generation;
+        synchronized (mImsiEncryptionInfoLock) {
+            ImsiEncryptionInfo cached = mImsiEncryptionInfoPerSubId.get(subId);
+            if (cached != null) {
+                return cached;
+            }
+            generation = mImsiEncryptionInfoGeneration;
+        }
+        ImsiEncryptionInfo imsiEncryptionInfo = specifiedTm.getCarrierInfoForImsiEncryption(
+                TelephonyManager.KEY_TYPE_WLAN);
+        if (imsiEncryptionInfo != null) {
+            synchronized (mImsiEncryptionInfoLock) {
+                if (generation == mImsiEncryptionInfoGeneration) {
+                    mImsiEncryptionInfoPerSubId.put(subId, imsiEncryptionInfo);
+                }
+            }
+        }
+        return imsiEncryptionInfo;
+    }
+
+    /**
+     * Drop the cached IMSI encryption key of a subscription, or of all the subscriptions if
+     * the given subscription ID is invalid.
+     */
+    private void invalidateImsiEncryptionInfo(int subId) {
+        synchronized (mImsiEncryptionInfoLock) {
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                mImsiEncryptionInfoPerSubId.remove(subId);
+            } else {
+                mImsiEncryptionInfoPerSubId.clear();
+            }
+            mImsiEncryptionInfoGeneration++;
+        }
+    }
+
+    /**
+     * Compute in the background the encrypted identity {@link #getSimIdentity} will need to
+     * connect to the given network, if the IMSI of its SIM is to be encrypted, so that the
+     * encryption is not done while answering the identity request of the supplicant.
+     *
+     * @param config WifiConfiguration of a SIM based network which is likely to be connected.
+     */
+    public void precomputeSimIdentity(@NonNull WifiConfiguration config) {
+        int subId = getBestMatchSubscriptionId(config);
+        if (!SubscriptionManager.isValidSubscriptionId(subId)
+                || !requiresImsiEncryption(subId)) {
+            return;
+        }
+        SimInfo simInfo = getSimInfo(subId);
+        if (simInfo == null) {
+            return;
+        }
+        String identity = buildIdentity(getSimMethodForConfig(config), simInfo.imsi,
+                simInfo.mccMnc, false);
+        if (identity == null) {
+            return;
+        }
+        if (mIdentityPrecomputeHandler == null) {
+            mIdentityPrecomputeHandler = new Handler(
+                    mWifiInjector.getWifiCarrierIdentityHandlerThread().getLooper());
+        }
+        int generation = mEncryptedIdentityCache.getGeneration();
+        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
+        mIdentityPrecomputeHandler.post(() -> {
+            ImsiEncryptionInfo imsiEncryptionInfo;
+            try {
+                imsiEncryptionInfo = loadImsiEncryptionInfo(specifiedTm, subId);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to get imsi encryption info: " + e.getMessage());
+                return;
+            }
+            if (imsiEncryptionInfo == null || mEncryptedIdentityCache.contains(subId,
+                    imsiEncryptionInfo.getKeyIdentifier(), identity)) {
+                return;
+            }
+            String encryptedIdentity = buildEncryptedIdentity(identity, imsiEncryptionInfo);
+            if (encryptedIdentity != null) {
+                mEncryptedIdentityCache.put(generation, subId,
+                        imsiEncryptionInfo.getKeyIdentifier(), identity, encryptedIdentity);
+            }
+        });
+    }
+
     /**
      * Gets Anonymous identity for current active SIM.
      *
@@ -1479,6 +1667,8 @@ public class WifiCarrierInfoManager {
         if (!SubscriptionManager.isValidSubscriptionId(subId)) {
             return;
         }
+        mEncryptedIdentityCache.invalidate(subId);
+        invalidateImsiEncryptionInfo(subId);
         TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
         specifiedTm.resetCarrierKeysForImsiEncryption();
     }
@@ -1634,6 +1824,8 @@ public class WifiCarrierInfoManager {
         pw.println("mMergedCarrierNetworkOffloadMap=" + mMergedCarrierNetworkOffloadMap);
         pw.println("mSubIdToSimInfoSparseArray=" + mSubIdToSimInfoSparseArray);
         pw.println("mActiveSubInfos=" + mActiveSubInfos);
+        pw.println("mSimApplicationStatePerSubId=" + mSimApplicationStatePerSubId);
+        mEncryptedIdentityCache.dump(pw);
         pw.println("mCachedCarrierConfigPerSubId=" + mCachedCarrierConfigPerSubId);
         pw.println("mCarrierPrivilegedPackagesBySimSlot=[ ");
         for (int i = 0; i < mCarrierPrivilegedPackagesBySimSlot.size(); i++) {
@@ -1911,12 +2103,8 @@ public class WifiCarrierInfoManager {
         if (mActiveSubInfos == null || mActiveSubInfos.isEmpty()) {
             return false;
         }
-        for (SubscriptionInfo info : mActiveSubInfos) {
-            if (info.getSubscriptionId() == subId) {
-                return info.getCarrierId() == carrierId;
-            }
-        }
-        return false;
+        SubscriptionInfo info = mActiveSubInfoBySubId.get(subId);
+        return info != null && info.getCarrierId() == carrierId;
     }
 
     private PendingIntent getPrivateBroadcast(@NonNull String action,
@@ -2030,10 +2218,10 @@ public class WifiCarrierInfoManager {
         if (simInfo != null && simInfo.mccMnc != null && !simInfo.mccMnc.isEmpty()) {
             return simInfo;
         }
-        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
-        if (specifiedTm.getSimApplicationState() != TelephonyManager.SIM_STATE_LOADED) {
+        if (!isSimApplicationLoaded(subId)) {
             return null;
         }
+        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
         String imsi = specifiedTm.getSubscriberId();
         String mccMnc = specifiedTm.getSimOperator();
         if (imsi == null || imsi.isEmpty()) {
@@ -3115,8 +3115,9 @@ public class WifiConfigManager {
                 continue;
             }
             if (config.enterpriseConfig.getEapMethod() == WifiEnterpriseConfig.Eap.PEAP) {
-                Pair<String, String> currentIdentity =
-                        mWifiCarrierInfoManager.getSimIdentity(config);
+                // Only the identity is needed, not its encrypted form.
+                String currentIdentity =
+                        mWifiCarrierInfoManager.getUnencryptedSimIdentity(config);
                 if (mVerboseLoggingEnabled) {
                     Log.d(TAG, "New identity for config " + config + ": " + currentIdentity);
                 }
@@ -3124,7 +3125,7 @@ public class WifiConfigManager {
                 if (currentIdentity == null) {
                     Log.d(TAG, "Identity is null");
                 } else {
-                    config.enterpriseConfig.setIdentity(currentIdentity.first);
+                    config.enterpriseConfig.setIdentity(currentIdentity);
                 }
                 // do not reset anonymous identity since it may be dependent on user-entry
                 // (i.e. cannot re-request on every reboot/SIM re-entry)
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.annotation.Nullable;
+import android.net.MacAddress;
+
+import com.android.server.wifi.proto.nano.WifiMetricsProto;
+import com.android.server.wifi.proto.nano.WifiMetricsProto.WifiEventJournal.Event;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Fixed size journal of scan and connection events, used to reconstruct network selection
+ * decisions offline.
+ *
+ * Events are stored as typed primitive records in a ring buffer, so recording an event does not
+ * allocate or build strings. Records are only formatted when the journal is dumped or exported as
+ * a {@link WifiMetricsProto.WifiEventJournal}.
+ */
+public class WifiEventJournal {
+    private static final int INVALID_NETWORK_ID = -1;
+
+    private final Clock mClock;
+    private final int mCapacity;
+
+    // Ring buffer of records, one array per field.
+    private final long[] mTimestampsMs;
+    private final int[] mTypes;
+    private final int[] mNetworkIds;
+    private final long[] mBssids;
+    private final int[] mArgs1;
+    private final int[] mArgs2;
+
+    // Index at which the next record is written.
+    private int mNext = 0;
+    // Number of valid records in the buffer.
+    private int mSize = 0;
+    // Number of records overwritten since the last clear.
+    private long mNumDroppedEvents = 0;
+
+    WifiEventJournal(Clock clock, int capacity) {
+        mClock = clock;
+        mCapacity = capacity;
+        mTimestampsMs = new long[capacity];
+        mTypes = new int[capacity];
+        mNetworkIds = new int[capacity];
+        mBssids = new long[capacity];
+        mArgs1 = new int[capacity];
+        mArgs2 = new int[capacity];
+    }
+
+    /**
+     * Record the start of a single scan.
+     *
+     * @param scanType type of the scan.
+     * @param numRequests number of scan requests merged into the scan.
+     */
+    public void logScanStart(int scanType, int numRequests) {
+        append(Event.TYPE_SCAN_START, INVALID_NETWORK_ID, 0, scanType, numRequests);
+    }
+
+    /**
+     * Record the results of a single scan.
+     *
+     * @param numResults number of scan results.
+     * @param scannedBands bands scanned, see {@link android.net.wifi.WifiScanner.ScanData}.
+     */
+    public void logScanResults(int numResults, int scannedBands) {
+        append(Event.TYPE_SCAN_RESULTS, INVALID_NETWORK_ID, 0, numResults, scannedBands);
+    }
+
+    /**
+     * Record the outcome of a network selection.
+     *
+     * @param networkId network id of the selected candidate, or -1 if none was selected.
+     * @param bssid BSSID of the selected candidate, if any.
+     * @param numCandidates number of candidates considered.
+     * @param numGroups number of candidate groups considered.
+     */
+    public void logNetworkSelection(int networkId, @Nullable MacAddress bssid, int numCandidates,
+            int numGroups) {
+        append(Event.TYPE_NETWORK_SELECTION, networkId, macAddressToLong(bssid), numCandidates,
+                numGroups);
+    }
+
+    /**
+     * Record the start of a connection attempt.
+     *
+     * @param networkId network id of the target network.
+     * @param bssid target BSSID, if any.
+     * @param isRoam true for a framework initiated roam, false for a new connection.
+     */
+    public void logConnectStart(int networkId, @Nullable String bssid, boolean isRoam) {
+        append(isRoam ? Event.TYPE_ROAM_START : Event.TYPE_CONNECT_START, networkId,
+                bssidToLong(bssid), 0, 0);
+    }
+
+    /**
+     * Record a roam done by the supplicant or the firmware, i.e. a BSSID change while connected.
+     *
+     * @param networkId network id of the connected network.
+     * @param bssid new BSSID.
+     */
+    public void logRoam(int networkId, @Nullable String bssid) {
+        append(Event.TYPE_ROAM, networkId, bssidToLong(bssid), 0, 0);
+    }
+
+    /**
+     * Record the end of a connection attempt.
+     *
+     * @param networkId network id of the target network.
+     * @param bssid BSSID of the target network, if any.
+     * @param failureCode failure code of the attempt, see {@link WifiMetrics.ConnectionEvent}.
+     */
+    public void logConnectEnd(int networkId, @Nullable String bssid, int failureCode) {
+        append(Event.TYPE_CONNECT_END, networkId, bssidToLong(bssid), failureCode, 0);
+    }
+
+    /**
+     * Record a disconnection.
+     *
+     * @param networkId network id of the last connected network.
+     * @param bssid BSSID of the last connected network, if any.
+     * @param reason disconnect reason.
+     */
+    public void logDisconnect(int networkId, @Nullable String bssid, int reason) {
+        append(Event.TYPE_DISCONNECT, networkId, bssidToLong(bssid), reason, 0);
+    }
+
+    private synchronized void append(int type, int networkId, long bssid, int arg1, int arg2) {
+        mTimestampsMs[mNext] = mClock.getElapsedSinceBootMillis();
+        mTypes[mNext] = type;
+        mNetworkIds[mNext] = networkId;
+        mBssids[mNext] = bssid;
+        mArgs1[mNext] = arg1;
+        mArgs2[mNext] = arg2;
+        mNext = (mNext + 1) % mCapacity;
+        if (mSize < mCapacity) {
+            mSize++;
+        } else {
+            mNumDroppedEvents++;
+        }
+    }
+
+    /**
+     * Drop all the recorded events.
+     */
+    public synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+        mNumDroppedEvents = 0;
+    }
+
+    /**
+     * Export the recorded events, oldest first.
+     */
+    public synchronized WifiMetricsProto.WifiEventJournal toProto() {
+        WifiMetricsProto.WifiEventJournal journal = new WifiMetricsProto.WifiEventJournal();
+        journal.events = new Event[mSize];
+        for (int i = 0; i < mSize; i++) {
+            int index = getIndex(i);
+            Event event = new Event();
+            event.timestampMs = mTimestampsMs[index];
+            event.type = mTypes[index];
+            event.networkId = mNetworkIds[index];
+            event.bssid = mBssids[index];
+            event.arg1 = mArgs1[index];
+            event.arg2 = mArgs2[index];
+            journal.events[i] = event;
+        }
+        journal.numDroppedEvents = mNumDroppedEvents;
+        return journal;
+    }
+
+    /**
+     * Dump the recorded events in a human readable form.
+     */
+    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Dump of WifiEventJournal");
+        pw.println("mCapacity=" + mCapacity + " mSize=" + mSize
+                + " mNumDroppedEvents=" + mNumDroppedEvents);
+        for (int i = 0; i < mSize; i++) {
+            int index = getIndex(i);
+            StringBuilder sb = new StringBuilder();
+            sb.append(mTimestampsMs[index]).append(" ").append(typeToString(mTypes[index]));
+            if (mNetworkIds[index] != INVALID_NETWORK_ID) {
+                sb.append(" nid=").append(mNetworkIds[index]);
+            }
+            if (mBssids[index] != 0) {
+                sb.append(" bssid=").append(MacAddress.fromBytes(longToBytes(mBssids[index])));
+            }
+            sb.append(" arg1=").append(mArgs1[index]).append(" arg2=").append(mArgs2[index]);
+            pw.println(sb.toString());
+        }
+    }
+
+    private int getIndex(int position) {
+        return (mNext - mSize + position + mCapacity) % mCapacity;
+    }
+
+    private static String typeToString(int type) {
+        switch (type) {
+            case Event.TYPE_SCAN_START:
+                return "SCAN_START";
+            case Event.TYPE_SCAN_RESULTS:
+                return "SCAN_RESULTS";
+            case Event.TYPE_NETWORK_SELECTION:
+                return "NETWORK_SELECTION";
+            case Event.TYPE_CONNECT_START:
+                return "CONNECT_START";
+            case Event.TYPE_ROAM_START:
+                return "ROAM_START";
+            case Event.TYPE_CONNECT_END:
+                return "CONNECT_END";
+            case Event.TYPE_DISCONNECT:
+                return "DISCONNECT";
+            case Event.TYPE_ROAM:
+                return "ROAM";
+            default:
+                return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    /**
+     * Pack a BSSID of the form "xx:xx:xx:xx:xx:xx" into a long without allocating.
+     * Returns 0 if the BSSID is null or malformed.
+     */
+    private static long bssidToLong(@Nullable String bssid) {
+        if (bssid == null || bssid.length() != 17) return 0;
+        long value = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(bssid.charAt(i), 16);
+            int low = Character.digit(bssid.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i < 15 && bssid.charAt(i + 2) != ':')) return 0;
+            value = (value << 8) | (high << 4) | low;
+        }
+        return value;
+    }
+
+    private static long macAddressToLong(@Nullable MacAddress macAddress) {
+        if (macAddress == null) return 0;
+        long value = 0;
+        for (byte b : macAddress.toByteArray()) {
+            value = (value << 8) | (b & 0xff);
+        }
+        return value;
+    }
+
+    private static byte[] longToBytes(long value) {
+        byte[] bytes = new byte[6];
+        for (int i = 5; i >= 0; i--) {
+            bytes[i] = (byte) (value & 0xff);
+            value >>= 8;
+        }
+        return bytes;
+    }
+}
@@ -147,6 +147,7 @@ public class WifiInjector {
     private final HandlerThread mWifiP2pServiceHandlerThread;
     private final HandlerThread mPasspointProvisionerHandlerThread;
     private final HandlerThread mWifiDiagnosticsHandlerThread;
+    private final HandlerThread mScanResultsCallbackHandlerThread;
     private final WifiTrafficPoller mWifiTrafficPoller;
     private final WifiCountryCode mCountryCode;
     private final BackupManagerProxy mBackupManagerProxy = new BackupManagerProxy();
@@ -181,6 +182,7 @@ public class WifiInjector {
     private final WifiConfigManager mWifiConfigManager;
     private final WifiConnectivityHelper mWifiConnectivityHelper;
     private final LocalLog mConnectivityLocalLog;
+    private final WifiEventJournal mWifiEventJournal;
     private final WifiNetworkSelector mWifiNetworkSelector;
     private final SavedNetworkNominator mSavedNetworkNominator;
     private final NetworkSuggestionNominator mNetworkSuggestionNominator;
@@ -191,6 +193,7 @@ public class WifiInjector {
     private final PasspointManager mPasspointManager;
     private HandlerThread mWifiAwareHandlerThread;
     private HandlerThread mRttHandlerThread;
+    private HandlerThread mWifiCarrierIdentityHandlerThread;
     private final HalDeviceManager mHalDeviceManager;
     private final WifiStateTracker mWifiStateTracker;
     private final SelfRecovery mSelfRecovery;
@@ -265,6 +268,8 @@ public class WifiInjector {
         Handler wifiHandler = new Handler(wifiLooper);
         mWifiDiagnosticsHandlerThread = new HandlerThread("WifiDiagnostics");
         mWifiDiagnosticsHandlerThread.start();
+        mScanResultsCallbackHandlerThread = new HandlerThread("WifiScanResultsCallback");
+        mScanResultsCallbackHandlerThread.start();
 
         mContext = context;
         mWifiNotificationManager = new WifiNotificationManager(mContext);
@@ -361,6 +366,13 @@ public class WifiInjector {
         mConnectivityLocalLog = new LocalLog(
                 mContext.getSystemService(ActivityManager.class).isLowRamDevice() ? maxLinesLowRam
                         : maxLinesHighRam);
+        int maxEventsLowRam = mContext.getResources().getInteger(
+                R.integer.config_wifiEventJournalMaxEventsLowRam);
+        int maxEventsHighRam = mContext.getResources().getInteger(
+                R.integer.config_wifiEventJournalMaxEventsHighRam);
+        mWifiEventJournal = new WifiEventJournal(mClock,
+                mContext.getSystemService(ActivityManager.class).isLowRamDevice() ? maxEventsLowRam
+                        : maxEventsHighRam);
         mWifiDiagnostics = new WifiDiagnostics(
                 mContext, this, mWifiNative, mBuildProperties,
                 new LastMileLogger(this), mClock, mWifiDiagnosticsHandlerThread.getLooper());
@@ -390,7 +402,8 @@ public class WifiInjector {
                 mContext.getSystemService(AppOpsManager.class),
                 mContext.getSystemService(ActivityManager.class),
                 this, mWifiConfigManager,
-                mWifiPermissionsUtil, mWifiMetrics, mClock, wifiHandler, mSettingsConfigStore);
+                mWifiPermissionsUtil, mWifiMetrics, mClock, wifiHandler,
+                new Handler(mScanResultsCallbackHandlerThread.getLooper()), mSettingsConfigStore);
         mSarManager = new SarManager(mContext, makeTelephonyManager(), wifiLooper,
                 mWifiNative);
         mWifiNetworkSelector = new WifiNetworkSelector(mContext, mWifiScoreCard, mScoringParams,
@@ -525,7 +538,7 @@ public class WifiInjector {
                 mFrameworkFacade, wifiHandler, mClock, mWifiMetrics);
         mSelfRecovery = new SelfRecovery(mContext, mActiveModeWarden, mClock, mWifiNative);
         mWifiMulticastLockManager = new WifiMulticastLockManager(mActiveModeWarden, mBatteryStats,
-                wifiLooper);
+                wifiLooper, mContext, mClock, mWifiMetrics);
 
         // Register the various network Nominators with the network selector.
         mWifiNetworkSelector.registerNetworkNominator(mSavedNetworkNominator);
@@ -751,7 +764,7 @@ public class WifiInjector {
                 mCountryCode.getCountryCode(), listener, callback, mWifiApConfigStore,
                 config, mWifiMetrics, mSarManager, mWifiDiagnostics,
                 new SoftApNotifier(mContext, mFrameworkFacade, mWifiNotificationManager),
-                mCmiMonitor, mActiveModeWarden, mClock.getElapsedSinceBootMillis(),
+                mCmiMonitor, mActiveModeWarden, mClock, mClock.getElapsedSinceBootMillis(),
                 requestorWs, role, verboseLoggingEnabled);
     }
 
@@ -925,6 +938,18 @@ public class WifiInjector {
         return mRttHandlerThread;
     }
 
+    /**
+     * Returns a singleton instance of the HandlerThread computing the encrypted EAP-SIM/AKA
+     * identities. Uses lazy initialization.
+     */
+    public HandlerThread getWifiCarrierIdentityHandlerThread() {
+        if (mWifiCarrierIdentityHandlerThread == null) { // lazy initialization
+            mWifiCarrierIdentityHandlerThread = new HandlerThread("WifiCarrierIdentity");
+            mWifiCarrierIdentityHandlerThread.start();
+        }
+        return mWifiCarrierIdentityHandlerThread;
+    }
+
     public MacAddressUtil getMacAddressUtil() {
         return mMacAddressUtil;
     }
@@ -1129,6 +1154,10 @@ public class WifiInjector {
         return mLinkProbeManager;
     }
 
+    public WifiEventJournal getWifiEventJournal() {
+        return mWifiEventJournal;
+    }
+
     public MultiInternetManager getMultiInternetManager() {
         return mMultiInternetManager;
     }
@@ -41,8 +41,9 @@ import com.android.server.wifi.proto.WifiStatsLog;
 import com.android.server.wifi.util.WorkSourceUtil;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -71,9 +72,14 @@ public class WifiLockManager {
     private final Handler mHandler;
     private final WifiMetrics mWifiMetrics;
 
-    private final List<WifiLock> mWifiLocks = new ArrayList<>();
+    // map binders to the locks they hold, in acquisition order
+    private final Map<IBinder, WifiLock> mWifiLocks = new LinkedHashMap<>();
     // map UIDs to their corresponding records (for low-latency locks)
     private final SparseArray<UidRec> mLowLatencyUidWatchList = new SparseArray<>();
+    // number of UIDs in mLowLatencyUidWatchList running in foreground
+    private int mNumFgLowLatencyUids = 0;
+    // merged WorkSource of all the locks, or null if it needs to be rebuilt
+    private WorkSource mMergedWorkSource = new WorkSource();
     /** the current op mode of the primary ClientModeManager */
     private int mCurrentOpMode = WifiManager.WIFI_MODE_NO_LOCKS_HELD;
     private boolean mScreenOn = false;
@@ -184,6 +190,7 @@ public class WifiLockManager {
                     }
 
                     uidRec.mIsFg = newModeIsFg;
+                    mNumFgLowLatencyUids += newModeIsFg ? 1 : -1;
                     updateOpMode();
 
                     // If conditions for lock activation are met,
@@ -250,7 +257,7 @@ public class WifiLockManager {
             return WifiManager.WIFI_MODE_FULL_LOW_LATENCY;
         }
 
-        if (mScreenOn && countFgLowLatencyUids() > 0) {
+        if (mScreenOn && mNumFgLowLatencyUids > 0) {
             return WifiManager.WIFI_MODE_FULL_LOW_LATENCY;
         }
 
@@ -265,11 +272,14 @@ public class WifiLockManager {
      * Method to create a WorkSource containing all active WifiLock WorkSources.
      */
     public synchronized WorkSource createMergedWorkSource() {
-        WorkSource mergedWS = new WorkSource();
-        for (WifiLock lock : mWifiLocks) {
-            mergedWS.add(lock.getWorkSource());
+        if (mMergedWorkSource == null) {
+            // A lock was released or updated since the last call, rebuild from the locks held.
+            mMergedWorkSource = new WorkSource();
+            for (WifiLock lock : mWifiLocks.values()) {
+                mMergedWorkSource.add(lock.getWorkSource());
+            }
         }
-        return mergedWS;
+        return new WorkSource(mMergedWorkSource);
     }
 
     /**
@@ -319,6 +329,7 @@ public class WifiLockManager {
         }
 
         wl.mWorkSource = newWorkSource;
+        mMergedWorkSource = null;
     }
 
     /**
@@ -407,7 +418,7 @@ public class WifiLockManager {
     }
 
     private synchronized void setBlameHiPerfLocks(boolean shouldBlame) {
-        for (WifiLock lock : mWifiLocks) {
+        for (WifiLock lock : mWifiLocks.values()) {
             if (lock.mMode == WifiManager.WIFI_MODE_FULL_HIGH_PERF) {
                 setBlameHiPerfWs(lock.getWorkSource(), shouldBlame);
             }
@@ -442,6 +453,7 @@ public class WifiLockManager {
             // Now check if the uid is running in foreground
             if (mFrameworkFacade.isAppForeground(mContext, uid)) {
                 uidRec.mIsFg = true;
+                mNumFgLowLatencyUids++;
             }
 
             if (canActivateLowLatencyLock(0, uidRec)) {
@@ -465,6 +477,9 @@ public class WifiLockManager {
         }
         if (uidRec.mLockCount == 0) {
             mLowLatencyUidWatchList.remove(uid);
+            if (uidRec.mIsFg) {
+                mNumFgLowLatencyUids--;
+            }
 
             // Remove blame for this UID if it was alerady set
             // Note that blame needs to be stopped only if it was started before
@@ -521,7 +536,10 @@ public class WifiLockManager {
             return false;
         }
 
-        mWifiLocks.add(lock);
+        mWifiLocks.put(lock.getBinder(), lock);
+        if (mMergedWorkSource != null) {
+            mMergedWorkSource.add(lock.getWorkSource());
+        }
 
         switch(lock.mMode) {
             case WifiManager.WIFI_MODE_FULL_HIGH_PERF:
@@ -547,10 +565,10 @@ public class WifiLockManager {
     }
 
     private synchronized WifiLock removeLock(IBinder binder) {
-        WifiLock lock = findLockByBinder(binder);
+        WifiLock lock = mWifiLocks.remove(binder);
         if (lock != null) {
-            mWifiLocks.remove(lock);
             lock.unlinkDeathRecipient();
+            mMergedWorkSource = null;
         }
         return lock;
     }
@@ -748,24 +766,7 @@ public class WifiLockManager {
     }
 
     private synchronized WifiLock findLockByBinder(IBinder binder) {
-        for (WifiLock lock : mWifiLocks) {
-            if (lock.getBinder() == binder) {
-                return lock;
-            }
-        }
-        return null;
-    }
-
-    private int countFgLowLatencyUids() {
-        int uidCount = 0;
-        int listSize = mLowLatencyUidWatchList.size();
-        for (int idx = 0; idx < listSize; idx++) {
-            UidRec uidRec = mLowLatencyUidWatchList.valueAt(idx);
-            if (uidRec.mIsFg) {
-                uidCount++;
-            }
-        }
-        return uidCount;
+        return mWifiLocks.get(binder);
     }
 
     private void setBlameHiPerfWs(WorkSource ws, boolean shouldBlame) {
@@ -831,7 +832,7 @@ public class WifiLockManager {
 
         pw.println();
         pw.println("Locks held:");
-        for (WifiLock lock : mWifiLocks) {
+        for (WifiLock lock : mWifiLocks.values()) {
             pw.print("    ");
             pw.println(lock);
         }
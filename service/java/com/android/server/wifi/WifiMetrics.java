@@ -1429,6 +1429,12 @@ public class WifiMetrics {
         public int numClientControlByUserResetToDefault = 0;
         // Collect the max client setting when reach it cause client is blocked
         public final IntCounter maxClientSettingWhenReachHistogram = new IntCounter();
+        // Collect the number of clients blocked by the per band client limit
+        public int numClientBlockedByBandLimit = 0;
+        // Collect the number of clients disconnected by the reconnect limit
+        public int numClientBlockedByReconnectLimit = 0;
+        // Collect the number of clients disconnected by the idle timeout
+        public int numClientDisconnectedByIdleTimeout = 0;
 
         public WifiMetricsProto.SoftApConfigLimitationMetrics toProto() {
             WifiMetricsProto.SoftApConfigLimitationMetrics proto =
@@ -1437,6 +1443,9 @@ public class WifiMetrics {
             proto.numMaxClientSettingResetToDefault = numMaxClientSettingResetToDefault;
             proto.numClientControlByUserResetToDefault = numClientControlByUserResetToDefault;
             proto.maxClientSettingWhenReachHistogram = maxClientSettingWhenReachHistogram.toProto();
+            proto.numClientBlockedByBandLimit = numClientBlockedByBandLimit;
+            proto.numClientBlockedByReconnectLimit = numClientBlockedByReconnectLimit;
+            proto.numClientDisconnectedByIdleTimeout = numClientDisconnectedByIdleTimeout;
             return proto;
         }
 
@@ -1445,6 +1454,9 @@ public class WifiMetrics {
             numMaxClientSettingResetToDefault = 0;
             numClientControlByUserResetToDefault = 0;
             maxClientSettingWhenReachHistogram.clear();
+            numClientBlockedByBandLimit = 0;
+            numClientBlockedByReconnectLimit = 0;
+            numClientDisconnectedByIdleTimeout = 0;
         }
 
         @Override
@@ -1457,7 +1469,13 @@ public class WifiMetrics {
                     .append(", numClientControlByUserResetToDefault=")
                     .append(numClientControlByUserResetToDefault)
                     .append(", maxClientSettingWhenReachHistogram=")
-                    .append(maxClientSettingWhenReachHistogram);
+                    .append(maxClientSettingWhenReachHistogram)
+                    .append(", numClientBlockedByBandLimit=")
+                    .append(numClientBlockedByBandLimit)
+                    .append(", numClientBlockedByReconnectLimit=")
+                    .append(numClientBlockedByReconnectLimit)
+                    .append(", numClientDisconnectedByIdleTimeout=")
+                    .append(numClientDisconnectedByIdleTimeout);
             return sb.toString();
         }
     }
@@ -2310,6 +2328,36 @@ public class WifiMetrics {
         }
     }
 
+    /**
+     * Log that a single scan was started after its coalescing window expired.
+     *
+     * @param numScansSaved number of scan requests merged into the scan which would otherwise
+     *                      have been issued as separate scans.
+     * @param delayMs delay added to the scan by the coalescing window.
+     */
+    public void logSingleScanCoalesced(int numScansSaved, long delayMs) {
+        synchronized (mLock) {
+            mWifiLogProto.numSingleScansSavedByCoalescing += numScansSaved;
+            mWifiLogProto.totalSingleScanCoalescingDelayMs += delayMs;
+        }
+    }
+
+    /**
+     * Log that a single scan request was served using cached per-channel scan results.
+     *
+     * @param fullyServed true if no channel needed to be scanned, false if only the channels
+     *                    with stale results were scanned.
+     */
+    public void logSingleScanServedFromCache(boolean fullyServed) {
+        synchronized (mLock) {
+            if (fullyServed) {
+                mWifiLogProto.numSingleScansFullyServedFromCache++;
+            } else {
+                mWifiLogProto.numSingleScansPartiallyServedFromCache++;
+            }
+        }
+    }
+
     /**
      * Increment connectivity oneshot scan count.
      */
@@ -3738,6 +3786,14 @@ public class WifiMetrics {
                         + mWifiLogProto.numOneshotScans);
                 pw.println("mWifiLogProto.numOneshotHasDfsChannelScans="
                         + mWifiLogProto.numOneshotHasDfsChannelScans);
+                pw.println("mWifiLogProto.numSingleScansSavedByCoalescing="
+                        + mWifiLogProto.numSingleScansSavedByCoalescing);
+                pw.println("mWifiLogProto.totalSingleScanCoalescingDelayMs="
+                        + mWifiLogProto.totalSingleScanCoalescingDelayMs);
+                pw.println("mWifiLogProto.numSingleScansFullyServedFromCache="
+                        + mWifiLogProto.numSingleScansFullyServedFromCache);
+                pw.println("mWifiLogProto.numSingleScansPartiallyServedFromCache="
+                        + mWifiLogProto.numSingleScansPartiallyServedFromCache);
                 pw.println("mWifiLogProto.numBackgroundScans="
                         + mWifiLogProto.numBackgroundScans);
                 pw.println("mWifiLogProto.numExternalAppOneshotScanRequests="
@@ -4024,6 +4080,20 @@ public class WifiMetrics {
                         + mWifiLogProto.totalNumberOfPasspointProfilesWithDecoratedIdentity);
                 pw.println("mWifiLogProto.passpointDeauthImminentScope="
                         + mPasspointDeauthImminentScope.toString());
+                pw.println("mWifiLogProto.numAnqpQueriesAvoided="
+                        + mWifiLogProto.numAnqpQueriesAvoided);
+                pw.println("mWifiLogProto.maxAnqpQueryQueueDepth="
+                        + mWifiLogProto.maxAnqpQueryQueueDepth);
+                pw.println("mWifiLogProto.numPasspointFirstMatches="
+                        + mWifiLogProto.numPasspointFirstMatches);
+                pw.println("mWifiLogProto.totalPasspointTimeToFirstMatchMs="
+                        + mWifiLogProto.totalPasspointTimeToFirstMatchMs);
+                pw.println("mWifiLogProto.numMulticastFilterTransitions="
+                        + mWifiLogProto.numMulticastFilterTransitions);
+                pw.println("mWifiLogProto.totalMulticastEnabledDurationMs="
+                        + mWifiLogProto.totalMulticastEnabledDurationMs);
+                pw.println("mWifiLogProto.numMulticastFilterTogglesDebounced="
+                        + mWifiLogProto.numMulticastFilterTogglesDebounced);
 
                 pw.println("mWifiLogProto.numRadioModeChangeToMcc="
                         + mWifiLogProto.numRadioModeChangeToMcc);
@@ -7818,6 +7888,33 @@ public class WifiMetrics {
         mSoftApConfigLimitationMetrics.maxClientSettingWhenReachHistogram.increment(maxClient);
     }
 
+    /**
+     * Note Softap client blocked due to the max client limitation of its band
+     */
+    public void noteSoftApClientBlockedByBandLimit() {
+        synchronized (mLock) {
+            mSoftApConfigLimitationMetrics.numClientBlockedByBandLimit++;
+        }
+    }
+
+    /**
+     * Note Softap client disconnected because it reconnected too often
+     */
+    public void noteSoftApClientBlockedByReconnectLimit() {
+        synchronized (mLock) {
+            mSoftApConfigLimitationMetrics.numClientBlockedByReconnectLimit++;
+        }
+    }
+
+    /**
+     * Note Softap client disconnected because it was idle for too long
+     */
+    public void noteSoftApClientDisconnectedByIdleTimeout() {
+        synchronized (mLock) {
+            mSoftApConfigLimitationMetrics.numClientDisconnectedByIdleTimeout++;
+        }
+    }
+
     /**
      * Increment number of connection with different BSSID between framework and firmware selection.
      */
@@ -8170,6 +8267,30 @@ public class WifiMetrics {
             }
         }
 
+        /**
+         * Indicate that a scan request was served from cached results without scanning. This
+         * does not affect the state of an ongoing scan.
+         * @param scanType See {@link ScanMetrics.ScanType}
+         * @param clientUid uid of the client which requested the scan
+         * @param workSource work source of the scan request
+         * @param countOfNetworksFound number of cached results delivered
+         */
+        public void logScanServedFromCache(@ScanType int scanType, int clientUid,
+                WorkSource workSource, int countOfNetworksFound) {
+            synchronized (mLock) {
+                if (DBG) {
+                    Log.d(TAG_SCANS, "logScanServedFromCache: found = " + countOfNetworksFound);
+                }
+
+                State state = new State();
+                state.mClientUid = clientUid;
+                state.mWorkSource = workSource;
+                state.mTimeStartMillis = mClock.getElapsedSinceBootMillis();
+                log(scanType, state, WifiStatsLog.WIFI_SCAN_REPORTED__RESULT__RESULT_SUCCESS,
+                        countOfNetworksFound);
+            }
+        }
+
         private void log(@ScanType int scanType, int result, int countNetworks) {
             State state = mActiveScanStates[scanType];
 
@@ -8177,7 +8298,10 @@ public class WifiMetrics {
                 if (DBG) Log.e(TAG_SCANS, "Wifi scan result log called with no prior start calls!");
                 return;
             }
+            log(scanType, state, result, countNetworks);
+        }
 
+        private void log(@ScanType int scanType, State state, int result, int countNetworks) {
             int type = WifiStatsLog.WIFI_SCAN_REPORTED__TYPE__TYPE_UNKNOWN;
             if (scanType == SCAN_TYPE_SINGLE) {
                 type = WifiStatsLog.WIFI_SCAN_REPORTED__TYPE__TYPE_SINGLE;
@@ -8358,6 +8482,69 @@ public class WifiMetrics {
         }
     }
 
+    /**
+     * Increment number of ANQP queries avoided by the ANQP request scheduling
+     */
+    public void incrementNumAnqpQueriesAvoided() {
+        synchronized (mLock) {
+            mWifiLogProto.numAnqpQueriesAvoided++;
+        }
+    }
+
+    /**
+     * Update the max number of ANQP requests waiting for a query slot
+     *
+     * @param queueDepth current number of ANQP requests waiting for a query slot
+     */
+    public void updateAnqpQueryQueueDepth(int queueDepth) {
+        synchronized (mLock) {
+            mWifiLogProto.maxAnqpQueryQueueDepth =
+                    Math.max(mWifiLogProto.maxAnqpQueryQueueDepth, queueDepth);
+        }
+    }
+
+    /**
+     * Log the time from the first ANQP query to an ESS to its first match to a Passpoint provider
+     *
+     * @param timeToFirstMatchMs time from the first ANQP query to the first match in ms
+     */
+    public void logPasspointTimeToFirstMatch(long timeToFirstMatchMs) {
+        synchronized (mLock) {
+            mWifiLogProto.numPasspointFirstMatches++;
+            mWifiLogProto.totalPasspointTimeToFirstMatchMs += timeToFirstMatchMs;
+        }
+    }
+
+    /**
+     * Increment number of times multicast filtering was started or stopped
+     */
+    public void incrementNumMulticastFilterTransitions() {
+        synchronized (mLock) {
+            mWifiLogProto.numMulticastFilterTransitions++;
+        }
+    }
+
+    /**
+     * Add the time multicast filtering was stopped because of multicast locks
+     *
+     * @param durationMs time in ms from the stop of the filtering to its restart
+     */
+    public void addMulticastEnabledDurationMs(long durationMs) {
+        synchronized (mLock) {
+            mWifiLogProto.totalMulticastEnabledDurationMs += durationMs;
+        }
+    }
+
+    /**
+     * Increment number of times multicast filtering was left stopped because a multicast lock was
+     * acquired within the debounce window
+     */
+    public void incrementNumMulticastFilterTogglesDebounced() {
+        synchronized (mLock) {
+            mWifiLogProto.numMulticastFilterTogglesDebounced++;
+        }
+    }
+
     /**
      * Increment number of number of Passpoint connections with a T&C URL
      */
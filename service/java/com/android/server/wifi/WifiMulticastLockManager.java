@@ -17,6 +17,7 @@
 package com.android.server.wifi;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.os.BatteryStatsManager;
 import android.os.Binder;
 import android.os.Handler;
@@ -25,12 +26,16 @@ import android.os.Looper;
 import android.os.RemoteException;
 import android.os.WorkSource;
 import android.util.Log;
+import android.util.Pair;
+import android.util.SparseIntArray;
 
 import com.android.server.wifi.proto.WifiStatsLog;
+import com.android.wifi.resources.R;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * WifiMulticastLockManager tracks holders of multicast locks and
@@ -38,13 +43,35 @@ import java.util.List;
  */
 public class WifiMulticastLockManager {
     private static final String TAG = "WifiMulticastLockManager";
-    private final List<Multicaster> mMulticasters = new ArrayList<>();
+    // Locks held, by (uid, tag). Locks of the same uid and tag are released most recent first.
+    private final Map<Pair<Integer, String>, ArrayDeque<Multicaster>> mMulticasters =
+            new HashMap<>();
+    private final SparseIntArray mNumLocksPerUid = new SparseIntArray();
+    private int mNumLocks = 0;
     private int mMulticastEnabled = 0;
     private int mMulticastDisabled = 0;
+    // Whether multicast filtering was last stopped on the primary, and since when. Only updated
+    // when the filter controller is actually called.
+    private boolean mFilteringStopped = false;
+    private long mFilteringStoppedSinceMs;
+    // Whether the filtering is to be started once the debounce window expires.
+    private boolean mStartFilteringPending = false;
+    private final Runnable mStartFilteringRunnable = () -> {
+        synchronized (mMulticasters) {
+            if (mStartFilteringPending) {
+                mStartFilteringPending = false;
+                startFilteringLocked();
+            }
+        }
+    };
     private final Handler mHandler;
     private boolean mVerboseLoggingEnabled = false;
     private final BatteryStatsManager mBatteryStats;
     private final ActiveModeWarden mActiveModeWarden;
+    private final Context mContext;
+    private final Clock mClock;
+    private final WifiMetrics mWifiMetrics;
+    private final int mFilterDebounceMillis;
 
     /** Delegate for handling state change events for multicast filtering. */
     public interface FilterController {
@@ -58,10 +85,18 @@ public class WifiMulticastLockManager {
     public WifiMulticastLockManager(
             ActiveModeWarden activeModeWarden,
             BatteryStatsManager batteryStats,
-            Looper looper) {
+            Looper looper,
+            Context context,
+            Clock clock,
+            WifiMetrics wifiMetrics) {
         mBatteryStats = batteryStats;
         mActiveModeWarden = activeModeWarden;
         mHandler = new Handler(looper);
+        mContext = context;
+        mClock = clock;
+        mWifiMetrics = wifiMetrics;
+        mFilterDebounceMillis = mContext.getResources().getInteger(
+                R.integer.config_wifiMulticastFilterDebounceMillis);
 
         mActiveModeWarden.registerPrimaryClientModeManagerChangedCallback(
                 new PrimaryClientModeManagerChangedCallback());
@@ -88,9 +123,13 @@ public class WifiMulticastLockManager {
             mHandler.post(() -> {
                 Log.e(TAG, "Multicaster binderDied");
                 synchronized (mMulticasters) {
-                    int i = mMulticasters.indexOf(this);
-                    if (i != -1) {
-                        removeMulticasterLocked(i, mUid, mTag);
+                    Pair<Integer, String> key = Pair.create(mUid, mTag);
+                    ArrayDeque<Multicaster> multicasters = mMulticasters.get(key);
+                    if (multicasters != null && multicasters.removeLastOccurrence(this)) {
+                        if (multicasters.isEmpty()) {
+                            mMulticasters.remove(key);
+                        }
+                        removeMulticasterLocked(this);
                     }
                 }
             });
@@ -116,10 +155,17 @@ public class WifiMulticastLockManager {
     protected void dump(PrintWriter pw) {
         pw.println("mMulticastEnabled " + mMulticastEnabled);
         pw.println("mMulticastDisabled " + mMulticastDisabled);
-        pw.println("Multicast Locks held:");
-        for (Multicaster l : mMulticasters) {
-            pw.print("    ");
-            pw.println(l);
+        synchronized (mMulticasters) {
+            pw.println("mFilteringStopped " + mFilteringStopped);
+            pw.println("mStartFilteringPending " + mStartFilteringPending);
+            pw.println("mNumLocksPerUid " + mNumLocksPerUid);
+            pw.println("Multicast Locks held:");
+            for (ArrayDeque<Multicaster> multicasters : mMulticasters.values()) {
+                for (Multicaster l : multicasters) {
+                    pw.print("    ");
+                    pw.println(l);
+                }
+            }
         }
     }
 
@@ -131,10 +177,9 @@ public class WifiMulticastLockManager {
     public void initializeFiltering() {
         synchronized (mMulticasters) {
             // if anybody had requested filters be off, leave off
-            if (mMulticasters.size() == 0) {
-                mActiveModeWarden.getPrimaryClientModeManager()
-                        .getMcastLockManagerFilterController()
-                        .startFilteringMulticastPackets();
+            if (mNumLocks == 0) {
+                cancelPendingStartFilteringLocked();
+                startFilteringLocked();
             }
         }
     }
@@ -147,14 +192,21 @@ public class WifiMulticastLockManager {
     public void acquireLock(IBinder binder, String tag) {
         synchronized (mMulticasters) {
             mMulticastEnabled++;
-            mMulticasters.add(new Multicaster(tag, binder));
+            Multicaster multicaster = new Multicaster(tag, binder);
+            mMulticasters.computeIfAbsent(Pair.create(multicaster.getUid(), tag),
+                    k -> new ArrayDeque<>()).addLast(multicaster);
+            mNumLocksPerUid.put(multicaster.getUid(),
+                    mNumLocksPerUid.get(multicaster.getUid()) + 1);
+            mNumLocks++;
+            if (cancelPendingStartFilteringLocked()) {
+                // The filtering was not started again after the last release.
+                mWifiMetrics.incrementNumMulticastFilterTogglesDebounced();
+            }
             // Note that we could call stopFilteringMulticastPackets only when
             // our new size == 1 (first call), but this function won't
             // be called often and by making the stopPacket call each
             // time we're less fragile and self-healing.
-            mActiveModeWarden.getPrimaryClientModeManager()
-                    .getMcastLockManagerFilterController()
-                    .stopFilteringMulticastPackets();
+            stopFilteringLocked();
         }
 
         int uid = Binder.getCallingUid();
@@ -171,27 +223,39 @@ public class WifiMulticastLockManager {
         int uid = Binder.getCallingUid();
         synchronized (mMulticasters) {
             mMulticastDisabled++;
-            int size = mMulticasters.size();
-            for (int i = size - 1; i >= 0; i--) {
-                Multicaster m = mMulticasters.get(i);
-                if ((m != null) && (m.getUid() == uid) && (m.getTag().equals(tag))) {
-                    removeMulticasterLocked(i, uid, tag);
-                    break;
-                }
+            Pair<Integer, String> key = Pair.create(uid, tag);
+            ArrayDeque<Multicaster> multicasters = mMulticasters.get(key);
+            if (multicasters == null) {
+                return;
+            }
+            Multicaster removed = multicasters.removeLast();
+            if (multicasters.isEmpty()) {
+                mMulticasters.remove(key);
             }
+            removeMulticasterLocked(removed);
         }
     }
 
-    private void removeMulticasterLocked(int i, int uid, String tag) {
-        Multicaster removed = mMulticasters.remove(i);
-
-        if (removed != null) {
-            removed.unlinkDeathRecipient();
+    private void removeMulticasterLocked(Multicaster removed) {
+        int uid = removed.getUid();
+        String tag = removed.getTag();
+        removed.unlinkDeathRecipient();
+        int numLocksOfUid = mNumLocksPerUid.get(uid) - 1;
+        if (numLocksOfUid > 0) {
+            mNumLocksPerUid.put(uid, numLocksOfUid);
+        } else {
+            mNumLocksPerUid.delete(uid);
         }
-        if (mMulticasters.size() == 0) {
-            mActiveModeWarden.getPrimaryClientModeManager()
-                    .getMcastLockManagerFilterController()
-                    .startFilteringMulticastPackets();
+        mNumLocks--;
+        if (mNumLocks == 0) {
+            if (mFilterDebounceMillis > 0) {
+                // Apps often release and acquire the lock again right away, only start
+                // filtering if no lock is acquired within the debounce window.
+                mStartFilteringPending = true;
+                mHandler.postDelayed(mStartFilteringRunnable, mFilterDebounceMillis);
+            } else {
+                startFilteringLocked();
+            }
         }
 
         final long ident = Binder.clearCallingIdentity();
@@ -202,10 +266,50 @@ public class WifiMulticastLockManager {
         Binder.restoreCallingIdentity(ident);
     }
 
-    /** Returns whether multicast should be allowed (filtering disabled). */
+    private void stopFilteringLocked() {
+        mActiveModeWarden.getPrimaryClientModeManager()
+                .getMcastLockManagerFilterController()
+                .stopFilteringMulticastPackets();
+        if (!mFilteringStopped) {
+            mFilteringStopped = true;
+            mFilteringStoppedSinceMs = mClock.getElapsedSinceBootMillis();
+            mWifiMetrics.incrementNumMulticastFilterTransitions();
+        }
+    }
+
+    private void startFilteringLocked() {
+        mActiveModeWarden.getPrimaryClientModeManager()
+                .getMcastLockManagerFilterController()
+                .startFilteringMulticastPackets();
+        if (mFilteringStopped) {
+            mFilteringStopped = false;
+            mWifiMetrics.incrementNumMulticastFilterTransitions();
+            mWifiMetrics.addMulticastEnabledDurationMs(
+                    mClock.getElapsedSinceBootMillis() - mFilteringStoppedSinceMs);
+        }
+    }
+
+    /**
+     * Cancel the start of the filtering scheduled at the end of the debounce window.
+     *
+     * @return true if it was pending.
+     */
+    private boolean cancelPendingStartFilteringLocked() {
+        if (!mStartFilteringPending) {
+            return false;
+        }
+        mStartFilteringPending = false;
+        mHandler.removeCallbacks(mStartFilteringRunnable);
+        return true;
+    }
+
+    /**
+     * Returns whether multicast is allowed (filtering disabled). The filtering stays disabled
+     * during the debounce window following the release of the last lock.
+     */
     public boolean isMulticastEnabled() {
         synchronized (mMulticasters) {
-            return mMulticasters.size() > 0;
+            return mFilteringStopped;
         }
     }
 
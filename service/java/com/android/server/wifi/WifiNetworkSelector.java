@@ -1240,6 +1240,7 @@ public class WifiNetworkSelector {
         ArrayMap<Integer, Integer> experimentNetworkSelections = new ArrayMap<>(); // for metrics
 
         int selectedNetworkId = WifiConfiguration.INVALID_NETWORK_ID;
+        MacAddress selectedBssid = null;
 
         // Run all the CandidateScorers
         boolean legacyOverrideWanted = true;
@@ -1259,6 +1260,7 @@ public class WifiNetworkSelector {
                 chooses = " chooses ";
                 legacyOverrideWanted = choice.userConnectChoiceOverride;
                 selectedNetworkId = networkId;
+                selectedBssid = choice.candidateKey == null ? null : choice.candidateKey.bssid;
                 updateChosenPasspointNetwork(choice);
             }
             String id = candidateScorer.getIdentifier();
@@ -1280,6 +1282,8 @@ public class WifiNetworkSelector {
                     selectedNetworkId == thisSelectedNetworkId,
                     groupedCandidates.size());
         }
+        mWifiInjector.getWifiEventJournal().logNetworkSelection(selectedNetworkId, selectedBssid,
+                candidates.size(), groupedCandidates.size());
 
         // Get a fresh copy of WifiConfiguration reflecting any scan result updates
         WifiConfiguration selectedNetwork =
@@ -1289,6 +1293,11 @@ public class WifiNetworkSelector {
         }
         if (selectedNetwork != null) {
             mLastNetworkSelectionTimeStamp = mClock.getElapsedSinceBootMillis();
+            if (selectedNetwork.enterpriseConfig != null
+                    && selectedNetwork.enterpriseConfig.isAuthenticationSimBased()) {
+                // Encrypt the identity ahead of the connection rather than when it is requested.
+                mWifiInjector.getWifiCarrierInfoManager().precomputeSimIdentity(selectedNetwork);
+            }
         }
         return selectedNetwork;
     }
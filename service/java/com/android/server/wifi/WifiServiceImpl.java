@@ -638,6 +638,8 @@ public class WifiServiceImpl extends BaseWifiService {
                     null,
                     new Handler(mWifiHandlerThread.getLooper()));
             updateLocationMode();
+            mWifiPermissionsUtil.enablePermissionDecisionCache(
+                    new Handler(mWifiHandlerThread.getLooper()));
 
             if (SdkLevel.isAtLeastT()) {
                 mContext.registerReceiver(
@@ -4837,8 +4839,14 @@ public class WifiServiceImpl extends BaseWifiService {
                 pw.println();
                 mLastCallerInfoManager.dump(pw);
                 pw.println();
+                mWifiPermissionsUtil.dump(pw);
+                pw.println();
+                mWifiInjector.getScanRequestProxy().dump(pw);
+                pw.println();
                 mWifiInjector.getLinkProbeManager().dump(fd, pw, args);
                 pw.println();
+                mWifiInjector.getWifiEventJournal().dump(fd, pw, args);
+                pw.println();
                 mWifiNative.dump(pw);
             }
         });
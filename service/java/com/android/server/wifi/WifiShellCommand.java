@@ -81,6 +81,7 @@ import android.telephony.PhysicalChannelConfig;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
@@ -99,6 +100,7 @@ import com.android.server.wifi.ClientMode.LinkProbeCallback;
 import com.android.server.wifi.coex.CoexManager;
 import com.android.server.wifi.coex.CoexUtils;
 import com.android.server.wifi.hotspot2.NetworkDetail;
+import com.android.server.wifi.proto.nano.WifiMetricsProto;
 import com.android.server.wifi.util.ApConfigUtil;
 import com.android.server.wifi.util.ArrayUtils;
 
@@ -192,6 +194,7 @@ public class WifiShellCommand extends BasicShellCommandHandler {
     private final @NonNull WifiDialogManager mWifiDialogManager;
     private final HalDeviceManager mHalDeviceManager;
     private final InterfaceConflictManager mInterfaceConflictManager;
+    private final WifiEventJournal mWifiEventJournal;
 
     private class SoftApCallbackProxy extends ISoftApCallback.Stub {
         private final PrintWriter mPrintWriter;
@@ -412,6 +415,7 @@ public class WifiShellCommand extends BasicShellCommandHandler {
         mWifiDialogManager = wifiInjector.getWifiDialogManager();
         mHalDeviceManager = wifiInjector.getHalDeviceManager();
         mInterfaceConflictManager = wifiInjector.getInterfaceConflictManager();
+        mWifiEventJournal = wifiInjector.getWifiEventJournal();
     }
 
     @Override
@@ -1269,6 +1273,16 @@ public class WifiShellCommand extends BasicShellCommandHandler {
                 case "stop-faking-scans":
                     mWifiNative.stopFakingScanDetails();
                     return 0;
+                case "get-event-journal": {
+                    boolean clear = "-c".equals(getNextOption());
+                    byte[] journal = WifiMetricsProto.WifiEventJournal.toByteArray(
+                            mWifiEventJournal.toProto());
+                    pw.println(Base64.encodeToString(journal, Base64.DEFAULT));
+                    if (clear) {
+                        mWifiEventJournal.clear();
+                    }
+                    return 0;
+                }
                 case "enable-scanning": {
                     boolean enabled = getNextArgRequiredTrueOrFalse("enabled", "disabled");
                     boolean hiddenEnabled = false;
@@ -2535,6 +2549,10 @@ public class WifiShellCommand extends BasicShellCommandHandler {
                 + "'add-fake-scan'), stop with 'stop-faking-scans'.");
         pw.println("  stop-faking-scans");
         pw.println("    Stop faking scan results - started with 'start-faking-scans'.");
+        pw.println("  get-event-journal [-c]");
+        pw.println("    Print the scan and connection event journal as a base64 encoded "
+                + "WifiEventJournal proto.");
+        pw.println("    -c - clear the journal after printing it.");
         pw.println("  add-fake-scan [-x] <ssid> <bssid> <capabilities> <frequency> <dbm>");
         pw.println("    Add a fake scan result to be used when enabled via `start-faking-scans'.");
         pw.println("    Example WPA2: add-fake-scan fakeWpa2 80:01:02:03:04:05 "
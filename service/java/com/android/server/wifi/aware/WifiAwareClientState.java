@@ -56,6 +56,8 @@ public class WifiAwareClientState {
     private final Context mContext;
     private final IWifiAwareEventCallback mCallback;
     private final SparseArray<WifiAwareDiscoverySessionState> mSessions = new SparseArray<>();
+    private final SparseArray<WifiAwareDiscoverySessionState> mSessionsByPubSubId =
+            new SparseArray<>();
 
     private final int mClientId;
     private ConfigRequest mConfigRequest;
@@ -110,6 +112,7 @@ public class WifiAwareClientState {
             mSessions.valueAt(i).terminate();
         }
         mSessions.clear();
+        mSessionsByPubSubId.clear();
         mConfigRequest = null;
         try {
             mCallback.onAttachTerminate();
@@ -150,22 +153,15 @@ public class WifiAwareClientState {
         return mAttributionSource;
     }
     /**
-     * Searches the discovery sessions of this client and returns the one
-     * corresponding to the publish/subscribe ID. Used on callbacks from HAL to
-     * map callbacks to the correct discovery session.
+     * Returns the discovery session of this client corresponding to the
+     * publish/subscribe ID. Used on callbacks from HAL to map callbacks to the
+     * correct discovery session.
      *
      * @param pubSubId The publish/subscribe match session ID.
      * @return Aware session corresponding to the requested ID.
      */
     public WifiAwareDiscoverySessionState getAwareSessionStateForPubSubId(int pubSubId) {
-        for (int i = 0; i < mSessions.size(); ++i) {
-            WifiAwareDiscoverySessionState session = mSessions.valueAt(i);
-            if (session.isPubSubIdSession(pubSubId)) {
-                return session;
-            }
-        }
-
-        return null;
+        return mSessionsByPubSubId.get(pubSubId);
     }
 
     /**
@@ -180,6 +176,7 @@ public class WifiAwareClientState {
         }
 
         mSessions.put(sessionId, session);
+        mSessionsByPubSubId.put(session.getPubSubId(), session);
     }
 
     /**
@@ -195,6 +192,7 @@ public class WifiAwareClientState {
             return;
         }
 
+        removePubSubIdIndex(mSessions.get(sessionId));
         mSessions.delete(sessionId);
     }
 
@@ -212,11 +210,18 @@ public class WifiAwareClientState {
         }
 
         session.terminate();
+        removePubSubIdIndex(session);
         mSessions.delete(sessionId);
 
         return session;
     }
 
+    private void removePubSubIdIndex(WifiAwareDiscoverySessionState session) {
+        if (mSessionsByPubSubId.get(session.getPubSubId()) == session) {
+            mSessionsByPubSubId.delete(session.getPubSubId());
+        }
+    }
+
     /**
      * Retrieve a session.
      *
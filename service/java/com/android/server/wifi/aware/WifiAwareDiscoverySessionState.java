@@ -34,6 +34,8 @@ import android.util.SparseArray;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Manages the state of a single Aware discovery session (publish or subscribe).
@@ -67,6 +69,16 @@ public class WifiAwareDiscoverySessionState {
         int mInstanceId;
         byte[] mMac;
 
+        // Last match delivered to the client - used to coalesce duplicate matches.
+        long mLastMatchTime;
+        byte[] mLastMatchServiceSpecificInfo;
+        byte[] mLastMatchFilter;
+        int mLastMatchRangingIndication;
+        int mLastMatchRangeMm;
+        int mLastMatchPeerCiphersuite;
+        byte[] mLastMatchScid;
+        boolean mMatchDelivered;
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder("instanceId [");
@@ -75,7 +87,36 @@ public class WifiAwareDiscoverySessionState {
         }
     }
 
+    /**
+     * Key of the peer table: a peer is identified by its instance ID and its discovery MAC address.
+     */
+    private static class PeerKey {
+        private final int mInstanceId;
+        private final byte[] mMac;
+
+        PeerKey(int instanceId, byte[] mac) {
+            mInstanceId = instanceId;
+            mMac = mac;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PeerKey)) return false;
+            PeerKey that = (PeerKey) o;
+            return mInstanceId == that.mInstanceId && Arrays.equals(mMac, that.mMac);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mInstanceId + Arrays.hashCode(mMac);
+        }
+    }
+
+    // keyed by peer ID
     private final SparseArray<PeerInfo> mPeerInfoByRequestorInstanceId = new SparseArray<>();
+    // peer ID keyed by (instance ID, MAC)
+    private final Map<PeerKey, Integer> mPeerIdByPeerKey = new HashMap<>();
 
     public WifiAwareDiscoverySessionState(WifiAwareNativeApi wifiAwareNativeApi, int sessionId,
             byte pubSubId, IWifiAwareDiscoverySessionCallback callback, boolean isPublishSession,
@@ -306,11 +347,38 @@ public class WifiAwareDiscoverySessionState {
      * @param rangeMm The range to the peer in mm (valid if rangingIndication specifies ingress
      * @param peerCiphersuite
      * @param scid
+     * @param nowMs The current time, from {@link com.android.server.wifi.Clock}.
+     * @param coalesceWindowMs A match identical to the last match delivered for the same peer
+     *            within this window is not propagated to the client. 0 disables coalescing.
+     * @return true if the match was propagated to the client, false if it was coalesced.
      */
-    public void onMatch(int requestorInstanceId, byte[] peerMac, byte[] serviceSpecificInfo,
+    public boolean onMatch(int requestorInstanceId, byte[] peerMac, byte[] serviceSpecificInfo,
             byte[] matchFilter, int rangingIndication, int rangeMm, int peerCiphersuite,
-            byte[] scid) {
+            byte[] scid, long nowMs, long coalesceWindowMs) {
         int peerId = getPeerIdOrAddIfNew(requestorInstanceId, peerMac);
+        PeerInfo peerInfo = mPeerInfoByRequestorInstanceId.get(peerId);
+
+        if (coalesceWindowMs > 0 && peerInfo.mMatchDelivered
+                && nowMs - peerInfo.mLastMatchTime < coalesceWindowMs
+                && rangingIndication == peerInfo.mLastMatchRangingIndication
+                && rangeMm == peerInfo.mLastMatchRangeMm
+                && peerCiphersuite == peerInfo.mLastMatchPeerCiphersuite
+                && Arrays.equals(scid, peerInfo.mLastMatchScid)
+                && Arrays.equals(serviceSpecificInfo, peerInfo.mLastMatchServiceSpecificInfo)
+                && Arrays.equals(matchFilter, peerInfo.mLastMatchFilter)) {
+            if (mDbg) {
+                Log.v(TAG, "onMatch: coalesced duplicate match for peerId=" + peerId);
+            }
+            return false;
+        }
+        peerInfo.mMatchDelivered = true;
+        peerInfo.mLastMatchTime = nowMs;
+        peerInfo.mLastMatchServiceSpecificInfo = serviceSpecificInfo;
+        peerInfo.mLastMatchFilter = matchFilter;
+        peerInfo.mLastMatchRangingIndication = rangingIndication;
+        peerInfo.mLastMatchRangeMm = rangeMm;
+        peerInfo.mLastMatchPeerCiphersuite = peerCiphersuite;
+        peerInfo.mLastMatchScid = scid;
 
         try {
             if (rangingIndication == 0) {
@@ -322,6 +390,7 @@ public class WifiAwareDiscoverySessionState {
         } catch (RemoteException e) {
             Log.w(TAG, "onMatch: RemoteException (FYI): " + e);
         }
+        return true;
     }
 
     /**
@@ -337,6 +406,7 @@ public class WifiAwareDiscoverySessionState {
             if (peerInfo.mInstanceId == requestorInstanceId) {
                 peerId = mPeerInfoByRequestorInstanceId.keyAt(i);
                 mPeerInfoByRequestorInstanceId.delete(peerId);
+                mPeerIdByPeerKey.remove(new PeerKey(peerInfo.mInstanceId, peerInfo.mMac));
                 break;
             }
         }
@@ -372,17 +442,16 @@ public class WifiAwareDiscoverySessionState {
     }
 
     private int getPeerIdOrAddIfNew(int requestorInstanceId, byte[] peerMac) {
-        for (int i = 0; i < mPeerInfoByRequestorInstanceId.size(); ++i) {
-            PeerInfo peerInfo = mPeerInfoByRequestorInstanceId.valueAt(i);
-            if (peerInfo.mInstanceId == requestorInstanceId && Arrays.equals(peerMac,
-                    peerInfo.mMac)) {
-                return mPeerInfoByRequestorInstanceId.keyAt(i);
-            }
+        PeerKey peerKey = new PeerKey(requestorInstanceId, peerMac);
+        Integer peerId = mPeerIdByPeerKey.get(peerKey);
+        if (peerId != null) {
+            return peerId;
         }
 
         int newPeerId = sNextPeerIdToBeAllocated++;
         PeerInfo newPeerInfo = new PeerInfo(requestorInstanceId, peerMac);
         mPeerInfoByRequestorInstanceId.put(newPeerId, newPeerInfo);
+        mPeerIdByPeerKey.put(peerKey, newPeerId);
 
         if (mDbg) {
             Log.v(TAG, "New peer info: peerId=" + newPeerId + ", peerInfo=" + newPeerInfo);
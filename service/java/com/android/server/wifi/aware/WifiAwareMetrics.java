@@ -137,6 +137,13 @@ public class WifiAwareMetrics {
     private SparseIntArray mHistogramNdpDuration = new SparseIntArray();
     private SparseIntArray mHistogramNdpRequestType = new SparseIntArray();
 
+    // follow-up message data
+    private SparseIntArray mHistogramMessageSendLatency = new SparseIntArray();
+    private int mNumMessagesSent = 0;
+    private long mNumMessageBytesSent = 0;
+    private int mNumMatchesCoalesced = 0;
+    private int mNumMatchesDropped = 0;
+
     public WifiAwareMetrics(Clock clock) {
         mClock = clock;
     }
@@ -496,6 +503,39 @@ public class WifiAwareMetrics {
         }
     }
 
+    /**
+     * Record the successful transmission of a follow-up message. The enqueue time is the time at
+     * which the message was queued for transmission by the app, from
+     * {@link Clock#getElapsedSinceBootMillis()}.
+     */
+    public void recordMessageSendSuccess(long enqueueTime, int messageLength) {
+        synchronized (mLock) {
+            MetricsUtils.addValueToLogHistogram(mClock.getElapsedSinceBootMillis() - enqueueTime,
+                    mHistogramMessageSendLatency, DURATION_LOG_HISTOGRAM);
+            mNumMessagesSent++;
+            mNumMessageBytesSent += messageLength;
+        }
+    }
+
+    /**
+     * Record a discovery match which duplicated a recent match of the same peer and was not
+     * delivered to the client.
+     */
+    public void recordMatchCoalesced() {
+        synchronized (mLock) {
+            mNumMatchesCoalesced++;
+        }
+    }
+
+    /**
+     * Record a discovery match which was dropped since its discovery session no longer exists.
+     */
+    public void recordMatchDropped() {
+        synchronized (mLock) {
+            mNumMatchesDropped++;
+        }
+    }
+
     /**
      * Consolidate all metrics into the proto.
      */
@@ -589,6 +629,14 @@ public class WifiAwareMetrics {
                     MetricsUtils.logHistogramToGenericBuckets(mHistogramNdpDuration,
                             DURATION_LOG_HISTOGRAM));
             log.histogramNdpRequestType = histogramToNanRequestProtoArray(mHistogramNdpRequestType);
+
+            log.histogramMessageSendLatencyMs = histogramToProtoArray(
+                    MetricsUtils.logHistogramToGenericBuckets(mHistogramMessageSendLatency,
+                            DURATION_LOG_HISTOGRAM));
+            log.numMessagesSent = mNumMessagesSent;
+            log.numMessageBytesSent = mNumMessageBytesSent;
+            log.numMatchesCoalesced = mNumMatchesCoalesced;
+            log.numMatchesDropped = mNumMatchesDropped;
         }
         return log;
     }
@@ -658,6 +706,12 @@ public class WifiAwareMetrics {
 
             mHistogramNdpDuration.clear();
             mHistogramNdpRequestType.clear();
+
+            mHistogramMessageSendLatency.clear();
+            mNumMessagesSent = 0;
+            mNumMessageBytesSent = 0;
+            mNumMatchesCoalesced = 0;
+            mNumMatchesDropped = 0;
         }
     }
 
@@ -798,6 +852,16 @@ public class WifiAwareMetrics {
                 pw.println("  " + mHistogramNdpRequestType.keyAt(i) + ": "
                         + mHistogramNdpRequestType.valueAt(i));
             }
+
+            pw.println("mHistogramMessageSendLatency:");
+            for (int i = 0; i < mHistogramMessageSendLatency.size(); ++i) {
+                pw.println("  " + mHistogramMessageSendLatency.keyAt(i) + ": "
+                        + mHistogramMessageSendLatency.valueAt(i));
+            }
+            pw.println("mNumMessagesSent:" + mNumMessagesSent);
+            pw.println("mNumMessageBytesSent:" + mNumMessageBytesSent);
+            pw.println("mNumMatchesCoalesced:" + mNumMatchesCoalesced);
+            pw.println("mNumMatchesDropped:" + mNumMatchesDropped);
         }
     }
 
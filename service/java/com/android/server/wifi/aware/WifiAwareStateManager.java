@@ -62,6 +62,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.MessageUtils;
@@ -205,6 +206,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     private static final String MESSAGE_BUNDLE_KEY_MESSAGE_DATA = "message_data";
     private static final String MESSAGE_BUNDLE_KEY_REQ_INSTANCE_ID = "req_instance_id";
     private static final String MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME = "message_queue_time";
+    private static final String MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME =
+            "message_host_queue_time";
     private static final String MESSAGE_BUNDLE_KEY_RETRY_COUNT = "retry_count";
     private static final String MESSAGE_BUNDLE_KEY_SUCCESS_FLAG = "success_flag";
     private static final String MESSAGE_BUNDLE_KEY_STATUS_CODE = "status_code";
@@ -242,6 +245,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
      */
     private Context mContext;
     private WifiAwareMetrics mAwareMetrics;
+    private Clock mClock;
     private WifiPermissionsUtil mWifiPermissionsUtil;
     private volatile Capabilities mCapabilities;
     private volatile Characteristics mCharacteristics = null;
@@ -255,6 +259,9 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     private final WifiInjector mWifiInjector;
 
     private final SparseArray<WifiAwareClientState> mClients = new SparseArray<>();
+    // client ID of the session last resolved for a publish/subscribe ID: a lookup hint which is
+    // validated on use
+    private final SparseIntArray mClientIdByPubSubId = new SparseIntArray();
     private ConfigRequest mCurrentAwareConfiguration = null;
     private boolean mCurrentIdentityNotification = false;
     private boolean mCurrentRangingEnabled = false;
@@ -299,6 +306,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
      */
     public static final String PARAM_ON_IDLE_DISABLE_AWARE = "on_idle_disable_aware";
     public static final int PARAM_ON_IDLE_DISABLE_AWARE_DEFAULT = 1; // 0 = false, 1 = true
+    public static final String PARAM_MATCH_COALESCE_WINDOW_MS = "match_coalesce_window_ms";
+    public static final int PARAM_MATCH_COALESCE_WINDOW_MS_DEFAULT = 0; // 0 = disabled
 
     private Map<String, Integer> mSettableParameters = new HashMap<>();
 
@@ -445,6 +454,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     @Override
     public void onReset() {
         mSettableParameters.put(PARAM_ON_IDLE_DISABLE_AWARE, PARAM_ON_IDLE_DISABLE_AWARE_DEFAULT);
+        mSettableParameters.put(PARAM_MATCH_COALESCE_WINDOW_MS,
+                PARAM_MATCH_COALESCE_WINDOW_MS_DEFAULT);
         if (mDataPathMgr != null) {
             mDataPathMgr.mAllowNdpResponderFromAnyOverride = false;
         }
@@ -480,6 +491,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
 
         mContext = context;
         mAwareMetrics = awareMetrics;
+        mClock = clock;
         mWifiPermissionsUtil = wifiPermissionsUtil;
         mInterfaceConflictMgr = interfaceConflictMgr;
         mSm = new WifiAwareStateMachine(TAG, looper);
@@ -681,17 +693,22 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         mSm.getHandler().post(() -> {
             if (VDBG) Log.v(TAG, "requestMacAddresses: uid=" + uid + ", peerIds=" + peerIds);
             Map<Integer, MacAddrMapping> peerIdToMacMap = new HashMap<>();
-            for (int i = 0; i < mClients.size(); ++i) {
+            // peer IDs are unique across sessions: stop once all of them are resolved
+            for (int i = 0; i < mClients.size() && peerIdToMacMap.size() < peerIds.length; ++i) {
                 WifiAwareClientState client = mClients.valueAt(i);
                 if (client.getUid() != uid) {
                     continue;
                 }
 
                 SparseArray<WifiAwareDiscoverySessionState> sessions = client.getSessions();
-                for (int j = 0; j < sessions.size(); ++j) {
+                for (int j = 0; j < sessions.size() && peerIdToMacMap.size() < peerIds.length;
+                        ++j) {
                     WifiAwareDiscoverySessionState session = sessions.valueAt(j);
 
                     for (int peerId : peerIds) {
+                        if (peerIdToMacMap.containsKey(peerId)) {
+                            continue;
+                        }
                         WifiAwareDiscoverySessionState.PeerInfo peerInfo = session.getPeerInfo(
                                 peerId);
                         if (peerInfo != null) {
@@ -1082,10 +1099,15 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
      * on-the-air. The firmware has limited queue depth. The host queues all messages and doles
      * them out to the firmware when possible. This command removes the next messages for
      * transmission from the host queue and attempts to send it through the firmware. The queues
-     * are inspected when the command is executed - not when the command is placed on the handler
-     * (i.e. not evaluated here).
+     * are inspected again when the command is executed. The command is only placed on the handler
+     * if there is a message which may be transmitted and no such command is pending, so that
+     * messages are submitted back-to-back without idle state machine round trips.
      */
     private void transmitNextMessage() {
+        if (mSm.mTransmitNextMessagePending || !mSm.canTransmitNextMessage()) {
+            return;
+        }
+        mSm.mTransmitNextMessagePending = true;
         Message msg = mSm.obtainMessage(MESSAGE_TYPE_COMMAND);
         msg.arg1 = COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE;
         mSm.sendMessage(msg);
@@ -1471,6 +1493,11 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         private boolean mSendQueueBlocked = false;
         private final SparseArray<Message> mHostQueuedSendMessages = new SparseArray<>();
         private final Map<Short, Message> mFwQueuedSendMessages = new LinkedHashMap<>();
+        // Sequence number of the last message transmitted for each client with queued messages,
+        // used to serve the clients in a round-robin fashion.
+        private final SparseIntArray mLastTransmitSeqByClient = new SparseIntArray();
+        private int mTransmitSequenceCounter = 0;
+        private boolean mTransmitNextMessagePending = false;
         private WakeupMessage mSendMessageTimeoutMessage = new WakeupMessage(mContext, getHandler(),
                 HAL_SEND_MESSAGE_TIMEOUT_TAG, MESSAGE_TYPE_SEND_MESSAGE_TIMEOUT);
 
@@ -1493,6 +1520,41 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             mSendQueueBlocked = false;
             mHostQueuedSendMessages.clear();
             mFwQueuedSendMessages.clear();
+            mLastTransmitSeqByClient.clear();
+            mTransmitNextMessagePending = false;
+        }
+
+        /**
+         * Returns true if a message is waiting in the host queue and the firmware queue has room
+         * for it. The firmware queue holds up to {@link Capabilities#maxQueuedTransmitMessages}
+         * messages (when reported) - each message queued in the firmware consumes a credit which
+         * is returned when its transmission completes.
+         */
+        boolean canTransmitNextMessage() {
+            if (mSendQueueBlocked || mHostQueuedSendMessages.size() == 0) {
+                return false;
+            }
+            return mCapabilities == null || mCapabilities.maxQueuedTransmitMessages <= 0
+                    || mFwQueuedSendMessages.size() < mCapabilities.maxQueuedTransmitMessages;
+        }
+
+        /**
+         * Returns the index in the host queue of the next message to transmit: the oldest message
+         * of the client served least recently. A client queuing many messages therefore does not
+         * delay the messages of the other clients.
+         */
+        private int getNextHostQueuedSendMessageIndex() {
+            int nextIndex = -1;
+            int nextLastTransmitSeq = Integer.MAX_VALUE;
+            for (int i = 0; i < mHostQueuedSendMessages.size(); ++i) {
+                int lastTransmitSeq = mLastTransmitSeqByClient.get(
+                        mHostQueuedSendMessages.valueAt(i).arg2, -1);
+                if (lastTransmitSeq < nextLastTransmitSeq) {
+                    nextIndex = i;
+                    nextLastTransmitSeq = lastTransmitSeq;
+                }
+            }
+            return nextIndex;
         }
 
         private class DefaultState extends State {
@@ -1974,31 +2036,39 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     sendMsg.copyFrom(msg);
                     sendMsg.getData().putInt(MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ,
                             mSendArrivalSequenceCounter);
+                    sendMsg.getData().putLong(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME,
+                            mClock.getElapsedSinceBootMillis());
                     mHostQueuedSendMessages.put(mSendArrivalSequenceCounter, sendMsg);
                     mSendArrivalSequenceCounter++;
                     waitForResponse = false;
 
-                    if (!mSendQueueBlocked) {
-                        transmitNextMessage();
-                    }
+                    transmitNextMessage();
 
                     break;
                 }
                 case COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE: {
-                    if (mSendQueueBlocked || mHostQueuedSendMessages.size() == 0) {
+                    mTransmitNextMessagePending = false;
+                    if (!canTransmitNextMessage()) {
                         if (VDBG) {
-                            Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - blocked or "
-                                    + "empty host queue");
+                            Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - blocked, "
+                                    + "empty host queue or full firmware queue");
                         }
                         waitForResponse = false;
                     } else {
+                        int index = getNextHostQueuedSendMessageIndex();
                         if (VDBG) {
                             Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - "
                                     + "sendArrivalSequenceCounter="
-                                    + mHostQueuedSendMessages.keyAt(0));
+                                    + mHostQueuedSendMessages.keyAt(index));
+                        }
+                        Message sendMessage = mHostQueuedSendMessages.valueAt(index);
+                        mHostQueuedSendMessages.removeAt(index);
+                        if (mHostQueuedSendMessages.size() == 0) {
+                            mLastTransmitSeqByClient.clear();
+                        } else {
+                            mLastTransmitSeqByClient.put(sendMessage.arg2,
+                                    mTransmitSequenceCounter++);
                         }
-                        Message sendMessage = mHostQueuedSendMessages.valueAt(0);
-                        mHostQueuedSendMessages.removeAt(0);
 
                         Bundle data = sendMessage.getData();
                         int clientId = sendMessage.arg2;
@@ -2157,9 +2227,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                             SystemClock.elapsedRealtime());
                     mFwQueuedSendMessages.put(mCurrentTransactionId, sentMessage);
                     updateSendMessageTimeout();
-                    if (!mSendQueueBlocked) {
-                        transmitNextMessage();
-                    }
+                    transmitNextMessage();
 
                     if (VDBG) {
                         Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_SUCCESS - arrivalSeq="
@@ -2189,9 +2257,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                         Message sentMessage = mCurrentCommand.getData().getParcelable(
                                 MESSAGE_BUNDLE_KEY_SENT_MESSAGE);
                         onMessageSendFailLocal(sentMessage, NanStatusType.INTERNAL_FAILURE);
-                        if (!mSendQueueBlocked) {
-                            transmitNextMessage();
-                        }
+                        transmitNextMessage();
                     }
                     break;
                 }
@@ -2467,6 +2533,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             pw.println("  mCurrentCommand: " + mCurrentCommand);
             pw.println("  mCurrentTransaction: " + mCurrentTransactionId);
             pw.println("  mSendQueueBlocked: " + mSendQueueBlocked);
+            pw.println("  mTransmitNextMessagePending: " + mTransmitNextMessagePending);
             pw.println("  mSendArrivalSequenceCounter: " + mSendArrivalSequenceCounter);
             pw.println("  mHostQueuedSendMessages: [" + mHostQueuedSendMessages + "]");
             pw.println("  mFwQueuedSendMessages: [" + mFwQueuedSendMessages + "]");
@@ -3273,6 +3340,10 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         } catch (RemoteException e) {
             Log.w(TAG, "onMessageSendSuccessLocal: RemoteException (FYI): " + e);
         }
+        byte[] message = completedCommand.getData().getByteArray(MESSAGE_BUNDLE_KEY_MESSAGE);
+        mAwareMetrics.recordMessageSendSuccess(completedCommand.getData().getLong(
+                MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME),
+                message == null ? 0 : message.length);
     }
 
     private void onMessageSendFailLocal(Message failedCommand, int reason) {
@@ -3442,14 +3513,19 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                 getClientSessionForPubSubId(pubSubId);
         if (data == null) {
             Log.e(TAG, "onMatch: no session found for pubSubId=" + pubSubId);
+            mAwareMetrics.recordMatchDropped();
             return;
         }
 
+        if (!data.second.onMatch(requestorInstanceId, peerMac, serviceSpecificInfo, matchFilter,
+                rangingIndication, rangeMm, cipherSuite, scid, mClock.getElapsedSinceBootMillis(),
+                mSettableParameters.get(PARAM_MATCH_COALESCE_WINDOW_MS))) {
+            mAwareMetrics.recordMatchCoalesced();
+            return;
+        }
         if (data.second.isRangingEnabled()) {
             mAwareMetrics.recordMatchIndicationForRangeEnabledSubscribe(rangingIndication != 0);
         }
-        data.second.onMatch(requestorInstanceId, peerMac, serviceSpecificInfo, matchFilter,
-                rangingIndication, rangeMm, cipherSuite, scid);
     }
 
     private void onMatchExpiredLocal(int pubSubId, int requestorInstanceId) {
@@ -3538,6 +3614,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         mAwareMetrics.recordDisableAware();
 
         mClients.clear();
+        mClientIdByPubSubId.clear();
         mCurrentAwareConfiguration = null;
         mSm.onAwareDownCleanupSendQueueState();
         mDataPathMgr.onAwareDownCleanupDataPaths();
@@ -3552,11 +3629,23 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
 
     private Pair<WifiAwareClientState, WifiAwareDiscoverySessionState> getClientSessionForPubSubId(
             int pubSubId) {
+        int hintIndex = mClientIdByPubSubId.indexOfKey(pubSubId);
+        if (hintIndex >= 0) {
+            WifiAwareClientState client = mClients.get(mClientIdByPubSubId.valueAt(hintIndex));
+            WifiAwareDiscoverySessionState session =
+                    client == null ? null : client.getAwareSessionStateForPubSubId(pubSubId);
+            if (session != null) {
+                return new Pair<>(client, session);
+            }
+            mClientIdByPubSubId.removeAt(hintIndex);
+        }
+
         for (int i = 0; i < mClients.size(); ++i) {
             WifiAwareClientState client = mClients.valueAt(i);
             WifiAwareDiscoverySessionState session = client.getAwareSessionStateForPubSubId(
                     pubSubId);
             if (session != null) {
+                mClientIdByPubSubId.put(pubSubId, client.getClientId());
                 return new Pair<>(client, session);
             }
         }
@@ -81,9 +81,9 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -269,6 +269,33 @@ public class CoexManager {
     @NonNull
     private final SparseArray<Entry> mNrTableEntriesByBand = new SparseArray<>();
 
+    // Unsafe channels computed for the recently seen cell channels, and for the recently seen
+    // pairs of cell channels causing intermod interference, least recently used first.
+    private static final int MAX_CACHED_CELL_CHANNEL_RESULTS = 64;
+    @NonNull
+    private final Map<CoexUtils.CoexCellChannel, CellChannelResult> mCellChannelResults =
+            new LinkedHashMap<CoexUtils.CoexCellChannel, CellChannelResult>(16, 0.75f, true) {
+                @java.lang.Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<CoexUtils.CoexCellChannel, CellChannelResult> eldest) {
+                    return size() > MAX_CACHED_CELL_CHANNEL_RESULTS;
+                }
+            };
+    @NonNull
+    private final Map<Pair<CoexUtils.CoexCellChannel, CoexUtils.CoexCellChannel>,
+            CoexUnsafeChannelTable> mIntermodResults = new LinkedHashMap<Pair<
+                    CoexUtils.CoexCellChannel, CoexUtils.CoexCellChannel>,
+                    CoexUnsafeChannelTable>(16, 0.75f, true) {
+                @java.lang.Override
+                protected boolean removeEldestEntry(Map.Entry<Pair<CoexUtils.CoexCellChannel,
+                        CoexUtils.CoexCellChannel>, CoexUnsafeChannelTable> eldest) {
+                    return size() > MAX_CACHED_CELL_CHANNEL_RESULTS;
+                }
+            };
+    private boolean mCachedCoexForGpsL1 = false;
+    private int mCachedGpsL1ThresholdKhz = 0;
+    private int mNumCellChannelResultsComputed = 0;
+
     @NonNull
     private final Set<CoexListener> mListeners = new HashSet<>();
     @NonNull
@@ -454,6 +481,22 @@ public class CoexManager {
         void onCoexUnsafeChannelsChanged();
     }
 
+    /**
+     * Unsafe channels and restrictions caused by a single cell channel, which only depend on the
+     * cell channel, the coex table, the carrier configs and the GPS L1 configs.
+     */
+    private static class CellChannelResult {
+        public final CoexUnsafeChannelTable unsafeChannels = new CoexUnsafeChannelTable();
+        public int default2gChannel = Integer.MAX_VALUE;
+        public int default5gChannel = Integer.MAX_VALUE;
+        public int coexRestrictions = 0;
+        public int powerCapDbm = POWER_CAP_NONE;
+        // Params of the intermod interference of this cell channel uplink with the downlink of
+        // each cell channel, computed for each pair of cell channels.
+        public IntermodParams intermodParams2g;
+        public IntermodParams intermodParams5g;
+    }
+
     private void updateCoexUnsafeChannels(@NonNull List<CoexUtils.CoexCellChannel> cellChannels) {
         if (cellChannels == null) {
             Log.e(TAG, "updateCoexUnsafeChannels called with null cell channel list");
@@ -462,328 +505,356 @@ public class CoexManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "updateCoexUnsafeChannels called with cell channels: " + cellChannels);
         }
-        int numUnsafe2gChannels = 0;
-        int numUnsafe5gChannels = 0;
+        final Resources res = mContext.getResources();
+        final boolean coexForGpsL1 = res.getBoolean(R.bool.config_wifiCoexForGpsL1);
+        final int gpsL1ThresholdKhz = coexForGpsL1
+                ? res.getInteger(R.integer.config_wifiCoexGpsL1ThresholdKhz) : 0;
+        if (coexForGpsL1 != mCachedCoexForGpsL1
+                || gpsL1ThresholdKhz != mCachedGpsL1ThresholdKhz) {
+            clearCellChannelResults();
+            mCachedCoexForGpsL1 = coexForGpsL1;
+            mCachedGpsL1ThresholdKhz = gpsL1ThresholdKhz;
+        }
         int default2gChannel = Integer.MAX_VALUE;
         int default5gChannel = Integer.MAX_VALUE;
         int coexRestrictions = 0;
-        Map<Pair<Integer, Integer>, CoexUnsafeChannel> coexUnsafeChannelsByBandChannelPair =
-                new HashMap<>();
-        // Gather all of the CoexUnsafeChannels calculated from each cell channel.
+        final CoexUnsafeChannelTable unsafeChannels = new CoexUnsafeChannelTable();
+        // Merge the CoexUnsafeChannels calculated from each cell channel. If there is more than
+        // one CoexUnsafeChannel for the same band and channel, keep the lower power cap.
         for (CoexUtils.CoexCellChannel cellChannel : cellChannels) {
-            final Entry entry;
-            switch (cellChannel.getRat()) {
-                case NETWORK_TYPE_LTE:
-                    entry = mLteTableEntriesByBand.get(cellChannel.getBand());
-                    break;
-                case NETWORK_TYPE_NR:
-                    entry = mNrTableEntriesByBand.get(cellChannel.getBand());
-                    break;
-                default:
-                    entry = null;
+            CellChannelResult result = mCellChannelResults.get(cellChannel);
+            if (result == null) {
+                result = computeCellChannelResult(cellChannel, coexForGpsL1, gpsL1ThresholdKhz);
+                mCellChannelResults.put(cellChannel, result);
+                mNumCellChannelResultsComputed++;
             }
-            final int downlinkFreqKhz = cellChannel.getDownlinkFreqKhz();
-            final int downlinkBandwidthKhz = cellChannel.getDownlinkBandwidthKhz();
-            final int uplinkFreqKhz = cellChannel.getUplinkFreqKhz();
-            final int uplinkBandwidthKhz = cellChannel.getUplinkBandwidthKhz();
-            final List<CoexUnsafeChannel> currentBandUnsafeChannels = new ArrayList<>();
-            if (entry != null) {
-                final int powerCapDbm;
-                if (entry.hasPowerCapDbm()) {
-                    powerCapDbm = entry.getPowerCapDbm();
-                    if (mVerboseLoggingEnabled) {
-                        Log.v(TAG, cellChannel + " sets wifi power cap " + powerCapDbm);
+            unsafeChannels.addAll(result.unsafeChannels);
+            if (result.intermodParams2g != null || result.intermodParams5g != null) {
+                for (CoexUtils.CoexCellChannel victimCellChannel : cellChannels) {
+                    if (victimCellChannel.getDownlinkFreqKhz() >= 0
+                            && victimCellChannel.getDownlinkBandwidthKhz() > 0) {
+                        unsafeChannels.addAll(
+                                getIntermodResult(cellChannel, result, victimCellChannel));
                     }
-                } else {
-                    powerCapDbm = POWER_CAP_NONE;
                 }
-                final Params params = entry.getParams();
-                final Override override = entry.getOverride();
-                if (params != null) {
-                    // Add all of the CoexUnsafeChannels calculated with the given parameters.
-                    final NeighborThresholds neighborThresholds = params.getNeighborThresholds();
-                    final HarmonicParams harmonicParams2g = params.getHarmonicParams2g();
-                    final HarmonicParams harmonicParams5g = params.getHarmonicParams5g();
-                    final IntermodParams intermodParams2g = params.getIntermodParams2g();
-                    final IntermodParams intermodParams5g = params.getIntermodParams2g();
-                    final DefaultChannels defaultChannels = params.getDefaultChannels();
-                    // Calculate interference from cell downlink.
-                    if (downlinkFreqKhz >= 0 && downlinkBandwidthKhz > 0) {
-                        if (neighborThresholds != null && neighborThresholds.hasCellVictimMhz()) {
-                            final List<CoexUnsafeChannel> neighboringChannels =
-                                    getNeighboringCoexUnsafeChannels(
-                                            downlinkFreqKhz,
-                                            downlinkBandwidthKhz,
-                                            neighborThresholds.getCellVictimMhz() * 1000,
-                                            powerCapDbm);
-                            if (!neighboringChannels.isEmpty()) {
-                                if (mVerboseLoggingEnabled) {
-                                    Log.v(TAG, cellChannel + " is neighboring victim of "
-                                            + neighboringChannels);
-                                }
-                                currentBandUnsafeChannels.addAll(neighboringChannels);
-                            }
-                        }
-                    }
-                    // Calculate interference from cell uplink
-                    if (uplinkFreqKhz >= 0 && uplinkBandwidthKhz > 0) {
-                        if (neighborThresholds != null && neighborThresholds.hasWifiVictimMhz()) {
-                            final List<CoexUnsafeChannel> neighboringChannels =
-                                    getNeighboringCoexUnsafeChannels(
-                                            uplinkFreqKhz,
-                                            uplinkBandwidthKhz,
-                                            neighborThresholds.getWifiVictimMhz() * 1000,
-                                            powerCapDbm);
-                            if (!neighboringChannels.isEmpty()) {
-                                if (mVerboseLoggingEnabled) {
-                                    Log.v(TAG, cellChannel + " is neighboring aggressor to "
-                                            + neighboringChannels);
-                                }
-                                currentBandUnsafeChannels.addAll(neighboringChannels);
-                            }
-                        }
-                        if (harmonicParams2g != null) {
-                            final List<CoexUnsafeChannel> harmonicChannels2g =
-                                    get2gHarmonicCoexUnsafeChannels(
-                                            uplinkFreqKhz,
-                                            uplinkBandwidthKhz,
-                                            harmonicParams2g.getN(),
-                                            harmonicParams2g.getOverlap(),
-                                            powerCapDbm);
-                            if (!harmonicChannels2g.isEmpty()) {
-                                if (mVerboseLoggingEnabled) {
-                                    Log.v(TAG, cellChannel + " has harmonic interference with "
-                                            + harmonicChannels2g);
-                                }
-                                currentBandUnsafeChannels.addAll(harmonicChannels2g);
-                            }
-                        }
-                        if (harmonicParams5g != null) {
-                            final List<CoexUnsafeChannel> harmonicChannels5g =
-                                    get5gHarmonicCoexUnsafeChannels(
-                                            uplinkFreqKhz,
-                                            uplinkBandwidthKhz,
-                                            harmonicParams5g.getN(),
-                                            harmonicParams5g.getOverlap(),
-                                            powerCapDbm);
-                            if (!harmonicChannels5g.isEmpty()) {
-                                if (mVerboseLoggingEnabled) {
-                                    Log.v(TAG, cellChannel + " has harmonic interference with "
-                                            + harmonicChannels5g);
-                                }
-                                currentBandUnsafeChannels.addAll(harmonicChannels5g);
-                            }
-                        }
+            }
+            // Collect the lowest number default channel for each band to extract from
+            // calculated set of CoexUnsafeChannels later.
+            default2gChannel = Math.min(default2gChannel, result.default2gChannel);
+            default5gChannel = Math.min(default5gChannel, result.default5gChannel);
+            coexRestrictions |= result.coexRestrictions;
+        }
+        // Omit the default channel from each band if the entire band is unsafe and there are
+        // no coex restrictions set.
+        if (coexRestrictions == 0) {
+            if (unsafeChannels.size(WIFI_BAND_24_GHZ) == NUM_24_GHZ_CHANNELS) {
+                if (mVerboseLoggingEnabled) {
+                    Log.v(TAG, "Omitting default 2g channel " + default2gChannel
+                            + " from unsafe set.");
+                }
+                unsafeChannels.remove(WIFI_BAND_24_GHZ, default2gChannel);
+            }
+            if (unsafeChannels.size(WIFI_BAND_5_GHZ) == CHANNEL_SET_5_GHZ.size()) {
+                if (mVerboseLoggingEnabled) {
+                    Log.v(TAG, "Omitting default 5g channel " + default5gChannel
+                            + " from unsafe set.");
+                }
+                unsafeChannels.remove(WIFI_BAND_5_GHZ, default5gChannel);
+            }
+        }
+        setCoexUnsafeChannels(unsafeChannels.toList(), coexRestrictions);
+    }
 
-                        if (intermodParams2g != null) {
-                            for (CoexUtils.CoexCellChannel victimCellChannel : cellChannels) {
-                                if (victimCellChannel.getDownlinkFreqKhz() >= 0
-                                        && victimCellChannel.getDownlinkBandwidthKhz() > 0) {
-                                    final List<CoexUnsafeChannel> intermodChannels2g =
-                                            getIntermodCoexUnsafeChannels(
-                                                    uplinkFreqKhz,
-                                                    uplinkBandwidthKhz,
-                                                    victimCellChannel.getDownlinkFreqKhz(),
-                                                    victimCellChannel.getDownlinkBandwidthKhz(),
-                                                    intermodParams2g.getN(),
-                                                    intermodParams2g.getM(),
-                                                    intermodParams2g.getOverlap(),
-                                                    WIFI_BAND_24_GHZ,
-                                                    powerCapDbm);
-                                    if (!intermodChannels2g.isEmpty()) {
-                                        if (mVerboseLoggingEnabled) {
-                                            Log.v(TAG, cellChannel + " and " + intermodChannels2g
-                                                    + " have intermod interference on "
-                                                    + victimCellChannel);
-                                        }
-                                        currentBandUnsafeChannels.addAll(intermodChannels2g);
-                                    }
-                                }
-                            }
-                        }
-                        if (intermodParams5g != null) {
-                            for (CoexUtils.CoexCellChannel victimCellChannel : cellChannels) {
-                                if (victimCellChannel.getDownlinkFreqKhz() >= 0
-                                        && victimCellChannel.getDownlinkBandwidthKhz() > 0) {
-                                    final List<CoexUnsafeChannel> intermodChannels5g =
-                                            getIntermodCoexUnsafeChannels(
-                                                    uplinkFreqKhz,
-                                                    uplinkBandwidthKhz,
-                                                    victimCellChannel.getDownlinkFreqKhz(),
-                                                    victimCellChannel.getDownlinkBandwidthKhz(),
-                                                    intermodParams5g.getN(),
-                                                    intermodParams5g.getM(),
-                                                    intermodParams5g.getOverlap(),
-                                                    WIFI_BAND_5_GHZ,
-                                                    powerCapDbm);
-                                    if (!intermodChannels5g.isEmpty()) {
-                                        if (mVerboseLoggingEnabled) {
-                                            Log.v(TAG, cellChannel + " and " + intermodChannels5g
-                                                    + " have intermod interference on "
-                                                    + victimCellChannel);
-                                        }
-                                        currentBandUnsafeChannels.addAll(intermodChannels5g);
-                                    }
-                                }
+    /**
+     * Returns the table entry of the band of a cell channel, or null if there is none.
+     */
+    @Nullable
+    private Entry getTableEntry(@NonNull CoexUtils.CoexCellChannel cellChannel) {
+        switch (cellChannel.getRat()) {
+            case NETWORK_TYPE_LTE:
+                return mLteTableEntriesByBand.get(cellChannel.getBand());
+            case NETWORK_TYPE_NR:
+                return mNrTableEntriesByBand.get(cellChannel.getBand());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Computes the unsafe channels and restrictions caused by a single cell channel, except for
+     * the intermod interference which depends on the other cell channels.
+     */
+    @NonNull
+    private CellChannelResult computeCellChannelResult(
+            @NonNull CoexUtils.CoexCellChannel cellChannel, boolean coexForGpsL1,
+            int gpsL1ThresholdKhz) {
+        final CellChannelResult result = new CellChannelResult();
+        final CoexUnsafeChannelTable currentBandUnsafeChannels = result.unsafeChannels;
+        final Entry entry = getTableEntry(cellChannel);
+        final int downlinkFreqKhz = cellChannel.getDownlinkFreqKhz();
+        final int downlinkBandwidthKhz = cellChannel.getDownlinkBandwidthKhz();
+        final int uplinkFreqKhz = cellChannel.getUplinkFreqKhz();
+        final int uplinkBandwidthKhz = cellChannel.getUplinkBandwidthKhz();
+        if (entry != null) {
+            final int powerCapDbm;
+            if (entry.hasPowerCapDbm()) {
+                powerCapDbm = entry.getPowerCapDbm();
+                if (mVerboseLoggingEnabled) {
+                    Log.v(TAG, cellChannel + " sets wifi power cap " + powerCapDbm);
+                }
+            } else {
+                powerCapDbm = POWER_CAP_NONE;
+            }
+            result.powerCapDbm = powerCapDbm;
+            final Params params = entry.getParams();
+            final Override override = entry.getOverride();
+            if (params != null) {
+                // Add all of the CoexUnsafeChannels calculated with the given parameters.
+                final NeighborThresholds neighborThresholds = params.getNeighborThresholds();
+                final HarmonicParams harmonicParams2g = params.getHarmonicParams2g();
+                final HarmonicParams harmonicParams5g = params.getHarmonicParams5g();
+                final IntermodParams intermodParams2g = params.getIntermodParams2g();
+                final IntermodParams intermodParams5g = params.getIntermodParams5g();
+                final DefaultChannels defaultChannels = params.getDefaultChannels();
+                // Calculate interference from cell downlink.
+                if (downlinkFreqKhz >= 0 && downlinkBandwidthKhz > 0) {
+                    if (neighborThresholds != null && neighborThresholds.hasCellVictimMhz()) {
+                        final List<CoexUnsafeChannel> neighboringChannels =
+                                getNeighboringCoexUnsafeChannels(
+                                        downlinkFreqKhz,
+                                        downlinkBandwidthKhz,
+                                        neighborThresholds.getCellVictimMhz() * 1000,
+                                        powerCapDbm);
+                        if (!neighboringChannels.isEmpty()) {
+                            if (mVerboseLoggingEnabled) {
+                                Log.v(TAG, cellChannel + " is neighboring victim of "
+                                        + neighboringChannels);
                             }
+                            currentBandUnsafeChannels.addAll(neighboringChannels);
                         }
                     }
-                    // Collect the lowest number default channel for each band to extract from
-                    // calculated set of CoexUnsafeChannels later.
-                    if (defaultChannels != null) {
-                        if (defaultChannels.hasDefault2g()) {
-                            int channel = defaultChannels.getDefault2g();
-                            if (channel < default2gChannel) {
-                                default2gChannel = channel;
-                            }
-                        }
-                        if (defaultChannels.hasDefault5g()) {
-                            int channel = defaultChannels.getDefault5g();
-                            if (channel < default5gChannel) {
-                                default5gChannel = channel;
+                }
+                // Calculate interference from cell uplink
+                if (uplinkFreqKhz >= 0 && uplinkBandwidthKhz > 0) {
+                    if (neighborThresholds != null && neighborThresholds.hasWifiVictimMhz()) {
+                        final List<CoexUnsafeChannel> neighboringChannels =
+                                getNeighboringCoexUnsafeChannels(
+                                        uplinkFreqKhz,
+                                        uplinkBandwidthKhz,
+                                        neighborThresholds.getWifiVictimMhz() * 1000,
+                                        powerCapDbm);
+                        if (!neighboringChannels.isEmpty()) {
+                            if (mVerboseLoggingEnabled) {
+                                Log.v(TAG, cellChannel + " is neighboring aggressor to "
+                                        + neighboringChannels);
                             }
+                            currentBandUnsafeChannels.addAll(neighboringChannels);
                         }
                     }
-                } else if (override != null) {
-                    // Add all of the CoexUnsafeChannels defined by the override lists.
-                    final Override2g override2g = override.getOverride2g();
-                    if (override2g != null) {
-                        final List<Integer> channelList2g = override2g.getChannel();
-                        for (OverrideCategory2g category : override2g.getCategory()) {
-                            if (OverrideCategory2g.all.equals(category)) {
-                                for (int i = 1; i <= 14; i++) {
-                                    channelList2g.add(i);
-                                }
-                            }
-                        }
-                        if (!channelList2g.isEmpty()) {
+                    if (harmonicParams2g != null) {
+                        final List<CoexUnsafeChannel> harmonicChannels2g =
+                                get2gHarmonicCoexUnsafeChannels(
+                                        uplinkFreqKhz,
+                                        uplinkBandwidthKhz,
+                                        harmonicParams2g.getN(),
+                                        harmonicParams2g.getOverlap(),
+                                        powerCapDbm);
+                        if (!harmonicChannels2g.isEmpty()) {
                             if (mVerboseLoggingEnabled) {
-                                Log.v(TAG, cellChannel + " sets override 2g channels "
-                                        + channelList2g);
-                            }
-                            for (int channel : channelList2g) {
-                                currentBandUnsafeChannels.add(new CoexUnsafeChannel(
-                                        WIFI_BAND_24_GHZ, channel, powerCapDbm));
+                                Log.v(TAG, cellChannel + " has harmonic interference with "
+                                        + harmonicChannels2g);
                             }
+                            currentBandUnsafeChannels.addAll(harmonicChannels2g);
                         }
                     }
-                    final Override5g override5g = override.getOverride5g();
-                    if (override5g != null) {
-                        final List<Integer> channelList5g = override5g.getChannel();
-                        for (OverrideCategory5g category : override5g.getCategory()) {
-                            if (OverrideCategory5g._20Mhz.equals(category)) {
-                                channelList5g.addAll(CHANNEL_SET_5_GHZ_20_MHZ);
-                            } else if (OverrideCategory5g._40Mhz.equals(category)) {
-                                channelList5g.addAll(CHANNEL_SET_5_GHZ_40_MHZ);
-                            } else if (OverrideCategory5g._80Mhz.equals(category)) {
-                                channelList5g.addAll(CHANNEL_SET_5_GHZ_80_MHZ);
-                            } else if (OverrideCategory5g._160Mhz.equals(category)) {
-                                channelList5g.addAll(CHANNEL_SET_5_GHZ_160_MHZ);
-                            } else if (OverrideCategory5g.all.equals(category)) {
-                                channelList5g.addAll(CHANNEL_SET_5_GHZ);
-                            }
-                        }
-                        if (!channelList5g.isEmpty()) {
+                    if (harmonicParams5g != null) {
+                        final List<CoexUnsafeChannel> harmonicChannels5g =
+                                get5gHarmonicCoexUnsafeChannels(
+                                        uplinkFreqKhz,
+                                        uplinkBandwidthKhz,
+                                        harmonicParams5g.getN(),
+                                        harmonicParams5g.getOverlap(),
+                                        powerCapDbm);
+                        if (!harmonicChannels5g.isEmpty()) {
                             if (mVerboseLoggingEnabled) {
-                                Log.v(TAG, cellChannel + " sets override 5g channels "
-                                        + channelList5g);
-                            }
-                            for (int channel : channelList5g) {
-                                currentBandUnsafeChannels.add(new CoexUnsafeChannel(
-                                        WIFI_BAND_5_GHZ, channel, powerCapDbm));
+                                Log.v(TAG, cellChannel + " has harmonic interference with "
+                                        + harmonicChannels5g);
                             }
+                            currentBandUnsafeChannels.addAll(harmonicChannels5g);
                         }
                     }
+                    result.intermodParams2g = intermodParams2g;
+                    result.intermodParams5g = intermodParams5g;
                 }
-            }
-            // Set coex restrictions for LAA based on carrier config values.
-            if (cellChannel.getRat() == NETWORK_TYPE_LTE
-                    && cellChannel.getBand() == AccessNetworkConstants.EutranBand.BAND_46) {
-                final boolean avoid5gSoftAp =
-                        mAvoid5gSoftApForLaaPerSubId.get(cellChannel.getSubId());
-                final boolean avoid5gWifiDirect =
-                        mAvoid5gWifiDirectForLaaPerSubId.get(cellChannel.getSubId());
-                if (avoid5gSoftAp || avoid5gWifiDirect) {
-                    for (int channel : CHANNEL_SET_5_GHZ) {
-                        currentBandUnsafeChannels.add(
-                                new CoexUnsafeChannel(WIFI_BAND_5_GHZ, channel));
+                if (defaultChannels != null) {
+                    if (defaultChannels.hasDefault2g()) {
+                        result.default2gChannel = defaultChannels.getDefault2g();
+                    }
+                    if (defaultChannels.hasDefault5g()) {
+                        result.default5gChannel = defaultChannels.getDefault5g();
+                    }
+                }
+            } else if (override != null) {
+                // Add all of the CoexUnsafeChannels defined by the override lists. The lists of
+                // the table entry are copied so that the categories are not added to them.
+                final Override2g override2g = override.getOverride2g();
+                if (override2g != null) {
+                    final List<Integer> channelList2g = new ArrayList<>(override2g.getChannel());
+                    for (OverrideCategory2g category : override2g.getCategory()) {
+                        if (OverrideCategory2g.all.equals(category)) {
+                            for (int i = 1; i <= 14; i++) {
+                                channelList2g.add(i);
+                            }
+                        }
                     }
-                    if (avoid5gSoftAp) {
+                    if (!channelList2g.isEmpty()) {
                         if (mVerboseLoggingEnabled) {
-                            Log.v(TAG, "Avoiding 5g softap due to LAA channel " + cellChannel);
+                            Log.v(TAG, cellChannel + " sets override 2g channels "
+                                    + channelList2g);
+                        }
+                        for (int channel : channelList2g) {
+                            currentBandUnsafeChannels.add(
+                                    WIFI_BAND_24_GHZ, channel, powerCapDbm);
+                        }
+                    }
+                }
+                final Override5g override5g = override.getOverride5g();
+                if (override5g != null) {
+                    final List<Integer> channelList5g = new ArrayList<>(override5g.getChannel());
+                    for (OverrideCategory5g category : override5g.getCategory()) {
+                        if (OverrideCategory5g._20Mhz.equals(category)) {
+                            channelList5g.addAll(CHANNEL_SET_5_GHZ_20_MHZ);
+                        } else if (OverrideCategory5g._40Mhz.equals(category)) {
+                            channelList5g.addAll(CHANNEL_SET_5_GHZ_40_MHZ);
+                        } else if (OverrideCategory5g._80Mhz.equals(category)) {
+                            channelList5g.addAll(CHANNEL_SET_5_GHZ_80_MHZ);
+                        } else if (OverrideCategory5g._160Mhz.equals(category)) {
+                            channelList5g.addAll(CHANNEL_SET_5_GHZ_160_MHZ);
+                        } else if (OverrideCategory5g.all.equals(category)) {
+                            channelList5g.addAll(CHANNEL_SET_5_GHZ);
                         }
-                        coexRestrictions |= COEX_RESTRICTION_SOFTAP;
                     }
-                    if (avoid5gWifiDirect) {
+                    if (!channelList5g.isEmpty()) {
                         if (mVerboseLoggingEnabled) {
-                            Log.v(TAG, "Avoiding 5g wifi direct due to LAA channel " + cellChannel);
+                            Log.v(TAG, cellChannel + " sets override 5g channels "
+                                    + channelList5g);
+                        }
+                        for (int channel : channelList5g) {
+                            currentBandUnsafeChannels.add(WIFI_BAND_5_GHZ, channel, powerCapDbm);
                         }
-                        coexRestrictions |= COEX_RESTRICTION_WIFI_DIRECT;
                     }
                 }
             }
-            // Add all of the CoexUnsafeChannels that cause intermod on GPS L1 with the current
-            // uplink cell channels.
-            Resources res = mContext.getResources();
-            if (res.getBoolean(R.bool.config_wifiCoexForGpsL1)) {
-                if (uplinkFreqKhz >= 0 && uplinkBandwidthKhz >= 0) {
-                    currentBandUnsafeChannels.addAll(getCoexUnsafeChannelsForGpsL1(
-                            uplinkFreqKhz, uplinkBandwidthKhz,
-                            res.getInteger(R.integer.config_wifiCoexGpsL1ThresholdKhz)));
+        }
+        // Set coex restrictions for LAA based on carrier config values.
+        if (cellChannel.getRat() == NETWORK_TYPE_LTE
+                && cellChannel.getBand() == AccessNetworkConstants.EutranBand.BAND_46) {
+            final boolean avoid5gSoftAp =
+                    mAvoid5gSoftApForLaaPerSubId.get(cellChannel.getSubId());
+            final boolean avoid5gWifiDirect =
+                    mAvoid5gWifiDirectForLaaPerSubId.get(cellChannel.getSubId());
+            if (avoid5gSoftAp || avoid5gWifiDirect) {
+                for (int channel : CHANNEL_SET_5_GHZ) {
+                    currentBandUnsafeChannels.add(WIFI_BAND_5_GHZ, channel, POWER_CAP_NONE);
                 }
-            }
-            // Add all of the CoexUnsafeChannels calculated from this cell channel to the total.
-            // If the total already contains a CoexUnsafeChannel for the same band and channel,
-            // keep the one that has the lower power cap.
-            for (CoexUnsafeChannel unsafeChannel : currentBandUnsafeChannels) {
-                final int band = unsafeChannel.getBand();
-                final int channel = unsafeChannel.getChannel();
-                final Pair<Integer, Integer> bandChannelPair = new Pair<>(band, channel);
-                final CoexUnsafeChannel existingUnsafeChannel =
-                        coexUnsafeChannelsByBandChannelPair.get(bandChannelPair);
-                if (existingUnsafeChannel != null) {
-                    if (unsafeChannel.getPowerCapDbm() == POWER_CAP_NONE) {
-                        continue;
-                    }
-                    final int existingPowerCapDbm = existingUnsafeChannel.getPowerCapDbm();
-                    if (existingPowerCapDbm != POWER_CAP_NONE
-                            && existingPowerCapDbm < unsafeChannel.getPowerCapDbm()) {
-                        continue;
+                if (avoid5gSoftAp) {
+                    if (mVerboseLoggingEnabled) {
+                        Log.v(TAG, "Avoiding 5g softap due to LAA channel " + cellChannel);
                     }
-                } else {
-                    // Count the number of unsafe channels for each band to determine if we need to
-                    // remove the default channels before returning.
-                    if (band == WIFI_BAND_24_GHZ) {
-                        numUnsafe2gChannels++;
-                    } else if (band == WIFI_BAND_5_GHZ) {
-                        numUnsafe5gChannels++;
+                    result.coexRestrictions |= COEX_RESTRICTION_SOFTAP;
+                }
+                if (avoid5gWifiDirect) {
+                    if (mVerboseLoggingEnabled) {
+                        Log.v(TAG, "Avoiding 5g wifi direct due to LAA channel " + cellChannel);
                     }
+                    result.coexRestrictions |= COEX_RESTRICTION_WIFI_DIRECT;
                 }
-                coexUnsafeChannelsByBandChannelPair.put(bandChannelPair, unsafeChannel);
             }
         }
-        // Omit the default channel from each band if the entire band is unsafe and there are
-        // no coex restrictions set.
-        if (coexRestrictions == 0) {
-            if (numUnsafe2gChannels == NUM_24_GHZ_CHANNELS) {
+        // Add all of the CoexUnsafeChannels that cause intermod on GPS L1 with the current
+        // uplink cell channels.
+        if (coexForGpsL1) {
+            if (uplinkFreqKhz >= 0 && uplinkBandwidthKhz >= 0) {
+                currentBandUnsafeChannels.addAll(getCoexUnsafeChannelsForGpsL1(
+                        uplinkFreqKhz, uplinkBandwidthKhz, gpsL1ThresholdKhz));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the unsafe channels caused by the intermod interference of the uplink of a cell
+     * channel on the downlink of a victim cell channel.
+     */
+    @NonNull
+    private CoexUnsafeChannelTable getIntermodResult(
+            @NonNull CoexUtils.CoexCellChannel cellChannel, @NonNull CellChannelResult result,
+            @NonNull CoexUtils.CoexCellChannel victimCellChannel) {
+        final Pair<CoexUtils.CoexCellChannel, CoexUtils.CoexCellChannel> key =
+                new Pair<>(cellChannel, victimCellChannel);
+        CoexUnsafeChannelTable intermodChannels = mIntermodResults.get(key);
+        if (intermodChannels != null) {
+            return intermodChannels;
+        }
+        intermodChannels = new CoexUnsafeChannelTable();
+        if (result.intermodParams2g != null) {
+            final List<CoexUnsafeChannel> intermodChannels2g = getIntermodCoexUnsafeChannels(
+                    cellChannel.getUplinkFreqKhz(),
+                    cellChannel.getUplinkBandwidthKhz(),
+                    victimCellChannel.getDownlinkFreqKhz(),
+                    victimCellChannel.getDownlinkBandwidthKhz(),
+                    result.intermodParams2g.getN(),
+                    result.intermodParams2g.getM(),
+                    result.intermodParams2g.getOverlap(),
+                    WIFI_BAND_24_GHZ,
+                    result.powerCapDbm);
+            if (!intermodChannels2g.isEmpty()) {
                 if (mVerboseLoggingEnabled) {
-                    Log.v(TAG, "Omitting default 2g channel " + default2gChannel
-                            + " from unsafe set.");
+                    Log.v(TAG, cellChannel + " and " + intermodChannels2g
+                            + " have intermod interference on " + victimCellChannel);
                 }
-                coexUnsafeChannelsByBandChannelPair.remove(
-                        new Pair<>(WIFI_BAND_24_GHZ, default2gChannel));
+                intermodChannels.addAll(intermodChannels2g);
             }
-            if (numUnsafe5gChannels == CHANNEL_SET_5_GHZ.size()) {
+        }
+        if (result.intermodParams5g != null) {
+            final List<CoexUnsafeChannel> intermodChannels5g = getIntermodCoexUnsafeChannels(
+                    cellChannel.getUplinkFreqKhz(),
+                    cellChannel.getUplinkBandwidthKhz(),
+                    victimCellChannel.getDownlinkFreqKhz(),
+                    victimCellChannel.getDownlinkBandwidthKhz(),
+                    result.intermodParams5g.getN(),
+                    result.intermodParams5g.getM(),
+                    result.intermodParams5g.getOverlap(),
+                    WIFI_BAND_5_GHZ,
+                    result.powerCapDbm);
+            if (!intermodChannels5g.isEmpty()) {
                 if (mVerboseLoggingEnabled) {
-                    Log.v(TAG, "Omitting default 5g channel " + default5gChannel
-                            + " from unsafe set.");
+                    Log.v(TAG, cellChannel + " and " + intermodChannels5g
+                            + " have intermod interference on " + victimCellChannel);
                 }
-                coexUnsafeChannelsByBandChannelPair.remove(
-                        new Pair<>(WIFI_BAND_5_GHZ, default5gChannel));
+                intermodChannels.addAll(intermodChannels5g);
             }
         }
-        setCoexUnsafeChannels(
-                new ArrayList<>(coexUnsafeChannelsByBandChannelPair.values()), coexRestrictions);
+        mIntermodResults.put(key, intermodChannels);
+        return intermodChannels;
+    }
+
+    /**
+     * Returns the number of times the unsafe channels of a cell channel were computed rather than
+     * taken from the cache.
+     */
+    @VisibleForTesting
+    int getNumCellChannelResultsComputed() {
+        return mNumCellChannelResultsComputed;
+    }
+
+    /**
+     * Clears the unsafe channels computed for each cell channel. Needs to be called whenever an
+     * input of the computation other than the cell channels changes.
+     */
+    private void clearCellChannelResults() {
+        mCellChannelResults.clear();
+        mIntermodResults.clear();
     }
 
     /**
@@ -806,8 +877,12 @@ public class CoexManager {
                 }
             }
         }
-        return !mAvoid5gSoftApForLaaPerSubId.equals(oldAvoid5gSoftAp)
-                || !mAvoid5gWifiDirectForLaaPerSubId.equals(oldAvoid5gWifiDirect);
+        if (!mAvoid5gSoftApForLaaPerSubId.equals(oldAvoid5gSoftAp)
+                || !mAvoid5gWifiDirectForLaaPerSubId.equals(oldAvoid5gWifiDirect)) {
+            clearCellChannelResults();
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -826,6 +901,7 @@ public class CoexManager {
         try (InputStream str = new BufferedInputStream(new FileInputStream(file))) {
             mLteTableEntriesByBand.clear();
             mNrTableEntriesByBand.clear();
+            clearCellChannelResults();
             for (Entry entry : XmlParser.readTable(str).getEntry()) {
                 if (RatType.LTE.equals(entry.getRat())) {
                     mLteTableEntriesByBand.put(entry.getBand(), entry);
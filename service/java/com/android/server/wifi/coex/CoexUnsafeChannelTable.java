@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.coex;
+
+import static android.net.wifi.WifiScanner.WIFI_BAND_24_GHZ;
+import static android.net.wifi.WifiScanner.WIFI_BAND_5_GHZ;
+
+import android.annotation.NonNull;
+import android.net.wifi.CoexUnsafeChannel;
+import android.net.wifi.WifiAnnotations;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact set of unsafe Wi-Fi channels, holding the power cap of each unsafe channel of the
+ * 2.4GHz and 5GHz bands in an array indexed by channel number.
+ *
+ * Adding a channel which is already unsafe keeps the lowest power cap, where a power cap beats
+ * {@link CoexUnsafeChannel#POWER_CAP_NONE}.
+ */
+@RequiresApi(Build.VERSION_CODES.S)
+public class CoexUnsafeChannelTable {
+    private static final String TAG = "CoexUnsafeChannelTable";
+
+    // Channel numbers are 8 bit values.
+    private static final int NUM_CHANNELS = 256;
+    // Marks a channel which is not unsafe.
+    private static final int SAFE = Integer.MIN_VALUE;
+
+    private final int[] mPowerCaps2g = new int[NUM_CHANNELS];
+    private final int[] mPowerCaps5g = new int[NUM_CHANNELS];
+    private int mNumChannels2g = 0;
+    private int mNumChannels5g = 0;
+
+    public CoexUnsafeChannelTable() {
+        Arrays.fill(mPowerCaps2g, SAFE);
+        Arrays.fill(mPowerCaps5g, SAFE);
+    }
+
+    /**
+     * Mark a channel as unsafe with the given power cap.
+     */
+    public void add(@WifiAnnotations.WifiBandBasic int band, int channel, int powerCapDbm) {
+        final int[] powerCaps = getPowerCaps(band);
+        if (powerCaps == null || channel < 0 || channel >= NUM_CHANNELS) {
+            Log.e(TAG, "Ignoring invalid unsafe channel " + channel + " on band " + band);
+            return;
+        }
+        if (powerCaps[channel] == SAFE) {
+            powerCaps[channel] = powerCapDbm;
+            if (band == WIFI_BAND_24_GHZ) {
+                mNumChannels2g++;
+            } else {
+                mNumChannels5g++;
+            }
+        } else if (powerCapDbm < powerCaps[channel]) {
+            powerCaps[channel] = powerCapDbm;
+        }
+    }
+
+    /**
+     * Mark each of the given channels as unsafe.
+     */
+    public void addAll(@NonNull List<CoexUnsafeChannel> unsafeChannels) {
+        for (CoexUnsafeChannel unsafeChannel : unsafeChannels) {
+            add(unsafeChannel.getBand(), unsafeChannel.getChannel(),
+                    unsafeChannel.getPowerCapDbm());
+        }
+    }
+
+    /**
+     * Mark each of the unsafe channels of another table as unsafe.
+     */
+    public void addAll(@NonNull CoexUnsafeChannelTable other) {
+        if (other.mNumChannels2g > 0) {
+            for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+                if (other.mPowerCaps2g[channel] != SAFE) {
+                    add(WIFI_BAND_24_GHZ, channel, other.mPowerCaps2g[channel]);
+                }
+            }
+        }
+        if (other.mNumChannels5g > 0) {
+            for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+                if (other.mPowerCaps5g[channel] != SAFE) {
+                    add(WIFI_BAND_5_GHZ, channel, other.mPowerCaps5g[channel]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark a channel as safe.
+     */
+    public void remove(@WifiAnnotations.WifiBandBasic int band, int channel) {
+        final int[] powerCaps = getPowerCaps(band);
+        if (powerCaps == null || channel < 0 || channel >= NUM_CHANNELS
+                || powerCaps[channel] == SAFE) {
+            return;
+        }
+        powerCaps[channel] = SAFE;
+        if (band == WIFI_BAND_24_GHZ) {
+            mNumChannels2g--;
+        } else {
+            mNumChannels5g--;
+        }
+    }
+
+    /**
+     * Returns the number of unsafe channels of a band.
+     */
+    public int size(@WifiAnnotations.WifiBandBasic int band) {
+        if (band == WIFI_BAND_24_GHZ) {
+            return mNumChannels2g;
+        } else if (band == WIFI_BAND_5_GHZ) {
+            return mNumChannels5g;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns true if there is no unsafe channel.
+     */
+    public boolean isEmpty() {
+        return mNumChannels2g == 0 && mNumChannels5g == 0;
+    }
+
+    /**
+     * Returns the unsafe channels as a list of {@link CoexUnsafeChannel}.
+     */
+    @NonNull
+    public List<CoexUnsafeChannel> toList() {
+        final List<CoexUnsafeChannel> unsafeChannels =
+                new ArrayList<>(mNumChannels2g + mNumChannels5g);
+        for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+            if (mPowerCaps2g[channel] != SAFE) {
+                unsafeChannels.add(
+                        new CoexUnsafeChannel(WIFI_BAND_24_GHZ, channel, mPowerCaps2g[channel]));
+            }
+        }
+        for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+            if (mPowerCaps5g[channel] != SAFE) {
+                unsafeChannels.add(
+                        new CoexUnsafeChannel(WIFI_BAND_5_GHZ, channel, mPowerCaps5g[channel]));
+            }
+        }
+        return unsafeChannels;
+    }
+
+    private int[] getPowerCaps(@WifiAnnotations.WifiBandBasic int band) {
+        if (band == WIFI_BAND_24_GHZ) {
+            return mPowerCaps2g;
+        } else if (band == WIFI_BAND_5_GHZ) {
+            return mPowerCaps5g;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
@@ -16,16 +16,23 @@
 
 package com.android.server.wifi.hotspot2;
 
+import android.content.Context;
+import android.os.Handler;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.wifi.Clock;
+import com.android.server.wifi.WifiMetrics;
 import com.android.server.wifi.hotspot2.anqp.Constants;
+import com.android.wifi.resources.R;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,12 +40,26 @@ import java.util.Map;
  * Class for managing sending of ANQP requests.  This manager will ignore ANQP requests for a
  * period of time (hold off time) to a specified AP if the previous request to that AP goes
  * unanswered or failed.  The hold off time will increase exponentially until the max is reached.
+ *
+ * The number of queries in flight is capped by the overlay
+ * config_wifiPasspointAnqpMaxInFlightQueries.  Requests received while the cap is reached are
+ * queued, one per ESS ({@link ANQPNetworkKey}), and sent when a query completes or times out,
+ * preferring the APs which could be matched by an installed provider and then the strongest APs.
+ * The queue is capped by the overlay config_wifiPasspointAnqpMaxQueuedRequests, the requests with
+ * the lowest priority are dropped first.  Requests to an ESS which already has a query in flight
+ * are dropped.
  */
 public class ANQPRequestManager {
     private static final String TAG = "ANQPRequestManager";
 
     private final PasspointEventHandler mPasspointHandler;
     private final Clock mClock;
+    private final WifiMetrics mWifiMetrics;
+    private final Handler mWifiHandler;
+    private final int mMaxInFlightQueries;
+    private final int mMaxQueuedRequests;
+    private final Runnable mSendQueuedRequestsRunnable =
+            () -> sendQueuedRequests(mClock.getElapsedSinceBootMillis());
 
     /**
      * List of pending ANQP request associated with an AP (BSSID).
@@ -52,6 +73,23 @@ public class ANQPRequestManager {
      */
     private final Map<Long, HoldOffInfo> mHoldOffInfo;
 
+    /**
+     * Requests waiting for a query slot, at most one per ESS.
+     */
+    private final Map<ANQPNetworkKey, QueuedRequest> mQueuedRequests = new HashMap<>();
+
+    /**
+     * Time stamp in milliseconds of the first query sent to each ESS which has not been matched
+     * to a provider yet.  Bounded to {@link #MAX_TRACKED_FIRST_QUERIES} entries.
+     */
+    private final Map<ANQPNetworkKey, Long> mFirstQueryTimes =
+            new LinkedHashMap<ANQPNetworkKey, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ANQPNetworkKey, Long> eldest) {
+                    return size() > MAX_TRACKED_FIRST_QUERIES;
+                }
+            };
+
     /**
      * Minimum number of milliseconds to wait for before attempting ANQP queries to the same AP
      * after previous request goes unanswered or failed.
@@ -68,6 +106,21 @@ public class ANQPRequestManager {
     @VisibleForTesting
     public static final int MAX_HOLDOFF_COUNT = 6;
 
+    /**
+     * Max number of milliseconds a request waits for a query slot before it is dropped.  The AP
+     * will be requested again if it is still in the scan results.
+     */
+    @VisibleForTesting
+    public static final int MAX_QUEUED_REQUEST_AGE_MILLISECONDS = 30000;
+
+    /**
+     * Number of milliseconds after which an unanswered query no longer counts as in flight.
+     */
+    @VisibleForTesting
+    public static final int QUERY_TIMEOUT_MILLISECONDS = 5000;
+
+    private static final int MAX_TRACKED_FIRST_QUERIES = 256;
+
     private static final List<Constants.ANQPElementType> R1_ANQP_BASE_SET = Arrays.asList(
             Constants.ANQPElementType.ANQPVenueName,
             Constants.ANQPElementType.ANQPIPAddrAvailability,
@@ -81,6 +134,17 @@ public class ANQPRequestManager {
     private static final List<Constants.ANQPElementType> R2_ANQP_BASE_SET = Arrays.asList(
             Constants.ANQPElementType.HSOSUProviders);
 
+    // Element sets of the requests, built once for each combination of the Roaming Consortium
+    // OI flag and the Hotspot 2.0 release.
+    private static final List<Constants.ANQPElementType> R1_ANQP_SET =
+            buildRequestElementIDs(false, NetworkDetail.HSRelease.R1);
+    private static final List<Constants.ANQPElementType> R1_ANQP_SET_WITH_RC =
+            buildRequestElementIDs(true, NetworkDetail.HSRelease.R1);
+    private static final List<Constants.ANQPElementType> R2_ANQP_SET =
+            buildRequestElementIDs(false, NetworkDetail.HSRelease.R2);
+    private static final List<Constants.ANQPElementType> R2_ANQP_SET_WITH_RC =
+            buildRequestElementIDs(true, NetworkDetail.HSRelease.R2);
+
     /**
      * Class to keep track of AP status for ANQP requests.
      */
@@ -94,11 +158,58 @@ public class ANQPRequestManager {
          * corresponding AP.
          */
         public long holdOffExpirationTime;
+        /**
+         * The time stamp in milliseconds when the last ANQP request was sent to the
+         * corresponding AP.
+         */
+        public long lastQueryTime;
     }
 
-    public ANQPRequestManager(PasspointEventHandler handler, Clock clock) {
+    /**
+     * Request waiting for a query slot.
+     */
+    private static class QueuedRequest {
+        public final long bssid;
+        public final ANQPNetworkKey anqpNetworkKey;
+        public final boolean rcOIs;
+        public final NetworkDetail.HSRelease hsReleaseVer;
+        public final int rssi;
+        public final boolean mayMatchProvider;
+        public final long queuedTime;
+
+        QueuedRequest(long bssid, ANQPNetworkKey anqpNetworkKey, boolean rcOIs,
+                NetworkDetail.HSRelease hsReleaseVer, int rssi, boolean mayMatchProvider,
+                long queuedTime) {
+            this.bssid = bssid;
+            this.anqpNetworkKey = anqpNetworkKey;
+            this.rcOIs = rcOIs;
+            this.hsReleaseVer = hsReleaseVer;
+            this.rssi = rssi;
+            this.mayMatchProvider = mayMatchProvider;
+            this.queuedTime = queuedTime;
+        }
+
+        /**
+         * Return true if this request should be sent before the given one.
+         */
+        boolean hasPriorityOver(QueuedRequest other) {
+            if (mayMatchProvider != other.mayMatchProvider) {
+                return mayMatchProvider;
+            }
+            return rssi > other.rssi;
+        }
+    }
+
+    public ANQPRequestManager(PasspointEventHandler handler, Clock clock,
+            WifiMetrics wifiMetrics, Context context, Handler wifiHandler) {
         mPasspointHandler = handler;
         mClock = clock;
+        mWifiMetrics = wifiMetrics;
+        mWifiHandler = wifiHandler;
+        mMaxInFlightQueries = context.getResources().getInteger(
+                R.integer.config_wifiPasspointAnqpMaxInFlightQueries);
+        mMaxQueuedRequests = context.getResources().getInteger(
+                R.integer.config_wifiPasspointAnqpMaxQueuedRequests);
         mPendingQueries = new HashMap<>();
         mHoldOffInfo = new HashMap<>();
     }
@@ -119,11 +230,51 @@ public class ANQPRequestManager {
      */
     public boolean requestANQPElements(long bssid, ANQPNetworkKey anqpNetworkKey, boolean rcOIs,
             NetworkDetail.HSRelease hsReleaseVer) {
+        return requestANQPElements(bssid, anqpNetworkKey, rcOIs, hsReleaseVer, Integer.MIN_VALUE,
+                false);
+    }
+
+    /**
+     * Request ANQP elements from the specified AP, see
+     * {@link #requestANQPElements(long, ANQPNetworkKey, boolean, NetworkDetail.HSRelease)}.
+     * When the number of queries in flight is at its max, the request is queued and sent later
+     * according to its priority.
+     *
+     * @param bssid The BSSID of the AP
+     * @param anqpNetworkKey The unique network key associated with this request
+     * @param rcOIs Flag indicating the inclusion of roaming consortium OIs
+     * @param hsReleaseVer Indicates Hotspot 2.0 Release version
+     * @param rssi The RSSI of the AP, used to prioritize queued requests
+     * @param mayMatchProvider Flag indicating that an installed provider could match the AP based
+     *              on its information elements, used to prioritize queued requests
+     * @return true if a request was sent successfully
+     */
+    public boolean requestANQPElements(long bssid, ANQPNetworkKey anqpNetworkKey, boolean rcOIs,
+            NetworkDetail.HSRelease hsReleaseVer, int rssi, boolean mayMatchProvider) {
         // Check if we are allow to send the request now.
         if (!canSendRequestNow(bssid)) {
             return false;
         }
 
+        long currentTime = mClock.getElapsedSinceBootMillis();
+        // Another AP of the same ESS is being queried, its response will be shared.
+        if (isQueryInFlight(anqpNetworkKey, currentTime)) {
+            mWifiMetrics.incrementNumAnqpQueriesAvoided();
+            return false;
+        }
+
+        // Use the slots freed by the queries whose hold off time is up first.
+        sendQueuedRequests(currentTime);
+        if (getNumQueriesInFlight(currentTime) >= mMaxInFlightQueries) {
+            queueRequest(new QueuedRequest(bssid, anqpNetworkKey, rcOIs, hsReleaseVer, rssi,
+                    mayMatchProvider, currentTime));
+            return false;
+        }
+        return sendRequest(bssid, anqpNetworkKey, rcOIs, hsReleaseVer);
+    }
+
+    private boolean sendRequest(long bssid, ANQPNetworkKey anqpNetworkKey, boolean rcOIs,
+            NetworkDetail.HSRelease hsReleaseVer) {
         // No need to hold off future requests for send failures.
         if (!mPasspointHandler.requestANQP(bssid, getRequestElementIDs(rcOIs, hsReleaseVer))) {
             return false;
@@ -134,9 +285,127 @@ public class ANQPRequestManager {
         updateHoldOffInfo(bssid);
 
         mPendingQueries.put(bssid, anqpNetworkKey);
+        if (!mFirstQueryTimes.containsKey(anqpNetworkKey)) {
+            mFirstQueryTimes.put(anqpNetworkKey, mClock.getElapsedSinceBootMillis());
+        }
         return true;
     }
 
+    /**
+     * Queue a request until a query slot is available.  Only the request with the highest
+     * priority is kept for each ESS, and the request with the lowest priority is dropped when the
+     * queue is full.
+     */
+    private void queueRequest(QueuedRequest request) {
+        QueuedRequest queuedRequest = mQueuedRequests.get(request.anqpNetworkKey);
+        if (queuedRequest != null) {
+            mWifiMetrics.incrementNumAnqpQueriesAvoided();
+            if (queuedRequest.hasPriorityOver(request)) {
+                return;
+            }
+        } else if (mQueuedRequests.size() >= mMaxQueuedRequests) {
+            mWifiMetrics.incrementNumAnqpQueriesAvoided();
+            QueuedRequest worstRequest = null;
+            for (QueuedRequest other : mQueuedRequests.values()) {
+                if (worstRequest == null || worstRequest.hasPriorityOver(other)) {
+                    worstRequest = other;
+                }
+            }
+            if (worstRequest == null || !request.hasPriorityOver(worstRequest)) {
+                return;
+            }
+            mQueuedRequests.remove(worstRequest.anqpNetworkKey);
+        }
+        mQueuedRequests.put(request.anqpNetworkKey, request);
+        mWifiMetrics.updateAnqpQueryQueueDepth(mQueuedRequests.size());
+        scheduleSendQueuedRequests(request.queuedTime);
+    }
+
+    /**
+     * Send the queued requests with the highest priority while query slots are available.
+     * Requests which waited for too long are dropped.
+     */
+    private void sendQueuedRequests(long currentTime) {
+        Iterator<QueuedRequest> iter = mQueuedRequests.values().iterator();
+        while (iter.hasNext()) {
+            QueuedRequest request = iter.next();
+            if (currentTime - request.queuedTime > MAX_QUEUED_REQUEST_AGE_MILLISECONDS) {
+                iter.remove();
+                mWifiMetrics.incrementNumAnqpQueriesAvoided();
+            }
+        }
+        int numQueriesInFlight = getNumQueriesInFlight(currentTime);
+        while (numQueriesInFlight < mMaxInFlightQueries && !mQueuedRequests.isEmpty()) {
+            QueuedRequest bestRequest = null;
+            for (QueuedRequest request : mQueuedRequests.values()) {
+                if (bestRequest == null || request.hasPriorityOver(bestRequest)) {
+                    bestRequest = request;
+                }
+            }
+            mQueuedRequests.remove(bestRequest.anqpNetworkKey);
+            if (!canSendRequestNow(bestRequest.bssid)
+                    || isQueryInFlight(bestRequest.anqpNetworkKey, currentTime)) {
+                continue;
+            }
+            if (sendRequest(bestRequest.bssid, bestRequest.anqpNetworkKey, bestRequest.rcOIs,
+                    bestRequest.hsReleaseVer)) {
+                numQueriesInFlight++;
+            }
+        }
+        scheduleSendQueuedRequests(currentTime);
+    }
+
+    /**
+     * Schedule the queued requests to be sent when the first query in flight times out, so that
+     * the queue is drained even if no query completes and no new request is received.
+     */
+    private void scheduleSendQueuedRequests(long currentTime) {
+        mWifiHandler.removeCallbacks(mSendQueuedRequestsRunnable);
+        if (mQueuedRequests.isEmpty()) {
+            return;
+        }
+        long firstTimeoutTime = Long.MAX_VALUE;
+        for (long bssid : mPendingQueries.keySet()) {
+            HoldOffInfo info = mHoldOffInfo.get(bssid);
+            if (info != null && isQueryInFlight(bssid, currentTime)) {
+                firstTimeoutTime = Math.min(firstTimeoutTime,
+                        info.lastQueryTime + QUERY_TIMEOUT_MILLISECONDS);
+            }
+        }
+        if (firstTimeoutTime == Long.MAX_VALUE) {
+            return;
+        }
+        mWifiHandler.postDelayed(mSendQueuedRequestsRunnable, firstTimeoutTime - currentTime);
+    }
+
+    /**
+     * Check if a query is in flight to any AP of the given ESS.
+     */
+    private boolean isQueryInFlight(ANQPNetworkKey anqpNetworkKey, long currentTime) {
+        for (Map.Entry<Long, ANQPNetworkKey> pendingQuery : mPendingQueries.entrySet()) {
+            if (anqpNetworkKey.equals(pendingQuery.getValue())
+                    && isQueryInFlight(pendingQuery.getKey(), currentTime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isQueryInFlight(long bssid, long currentTime) {
+        HoldOffInfo info = mHoldOffInfo.get(bssid);
+        return info != null && currentTime - info.lastQueryTime < QUERY_TIMEOUT_MILLISECONDS;
+    }
+
+    private int getNumQueriesInFlight(long currentTime) {
+        int numQueriesInFlight = 0;
+        for (long bssid : mPendingQueries.keySet()) {
+            if (isQueryInFlight(bssid, currentTime)) {
+                numQueriesInFlight++;
+            }
+        }
+        return numQueriesInFlight;
+    }
+
     /**
      * Request Venue URL ANQP-element from the specified AP post connection.
      *
@@ -165,7 +434,24 @@ public class ANQPRequestManager {
             // Query succeeded.  No need to hold off request to the given AP.
             mHoldOffInfo.remove(bssid);
         }
-        return mPendingQueries.remove(bssid);
+        ANQPNetworkKey anqpNetworkKey = mPendingQueries.remove(bssid);
+        sendQueuedRequests(mClock.getElapsedSinceBootMillis());
+        return anqpNetworkKey;
+    }
+
+    /**
+     * Notification that a provider was matched to the given ESS using the ANQP elements
+     * received.  Used to track the time from the first query to the ESS to its first match.
+     *
+     * @param anqpNetworkKey The unique network key of the ESS
+     */
+    public void onProviderMatched(ANQPNetworkKey anqpNetworkKey) {
+        Long firstQueryTime = mFirstQueryTimes.remove(anqpNetworkKey);
+        if (firstQueryTime == null) {
+            return;
+        }
+        mWifiMetrics.logPasspointTimeToFirstMatch(
+                mClock.getElapsedSinceBootMillis() - firstQueryTime);
     }
 
     /**
@@ -198,7 +484,8 @@ public class ANQPRequestManager {
             info = new HoldOffInfo();
             mHoldOffInfo.put(bssid, info);
         }
-        info.holdOffExpirationTime = mClock.getElapsedSinceBootMillis()
+        info.lastQueryTime = mClock.getElapsedSinceBootMillis();
+        info.holdOffExpirationTime = info.lastQueryTime
                 + BASE_HOLDOFF_TIME_MILLISECONDS * (1 << info.holdOffCount);
         if (info.holdOffCount < MAX_HOLDOFF_COUNT) {
             info.holdOffCount++;
@@ -215,6 +502,14 @@ public class ANQPRequestManager {
      */
     private static List<Constants.ANQPElementType> getRequestElementIDs(boolean rcOIs,
             NetworkDetail.HSRelease hsRelease) {
+        if (hsRelease == NetworkDetail.HSRelease.R1) {
+            return rcOIs ? R1_ANQP_SET_WITH_RC : R1_ANQP_SET;
+        }
+        return rcOIs ? R2_ANQP_SET_WITH_RC : R2_ANQP_SET;
+    }
+
+    private static List<Constants.ANQPElementType> buildRequestElementIDs(boolean rcOIs,
+            NetworkDetail.HSRelease hsRelease) {
         List<Constants.ANQPElementType> requestList = new ArrayList<>();
         requestList.addAll(R1_ANQP_BASE_SET);
         if (rcOIs) {
@@ -223,14 +518,14 @@ public class ANQPRequestManager {
 
         if (hsRelease == NetworkDetail.HSRelease.R1) {
             // Return R1 ANQP request list
-            return requestList;
+            return Collections.unmodifiableList(requestList);
         }
 
         requestList.addAll(R2_ANQP_BASE_SET);
 
         // Return R2+ ANQP request list. This also includes the Unknown version, which may imply
         // a future version.
-        return requestList;
+        return Collections.unmodifiableList(requestList);
     }
 
     /**
@@ -248,6 +543,9 @@ public class ANQPRequestManager {
                     + (holdOffInfo.getValue().holdOffExpirationTime
                     - mClock.getElapsedSinceBootMillis()) / 1000 + " seconds");
         }
+        pw.println("Queries in flight: "
+                + getNumQueriesInFlight(mClock.getElapsedSinceBootMillis()));
+        pw.println("Queued requests: " + mQueuedRequests.size());
         pw.println("ANQPRequestManager - End ---");
     }
 
@@ -257,5 +555,8 @@ public class ANQPRequestManager {
     public void clear() {
         mPendingQueries.clear();
         mHoldOffInfo.clear();
+        mQueuedRequests.clear();
+        mFirstQueryTimes.clear();
+        mWifiHandler.removeCallbacks(mSendQueuedRequestsRunnable);
     }
 }
@@ -125,6 +125,7 @@ public class PasspointManager {
     private final PasspointObjectFactory mObjectFactory;
 
     private final Map<String, PasspointProvider> mProviders;
+    private final PasspointProviderIndex mProviderMatchIndex;
     private final AnqpCache mAnqpCache;
     private final ANQPRequestManager mAnqpRequestManager;
     private final WifiConfigManager mWifiConfigManager;
@@ -213,9 +214,11 @@ public class PasspointManager {
         @Override
         public void setProviders(List<PasspointProvider> providers) {
             mProviders.clear();
+            mProviderMatchIndex.clear();
             for (PasspointProvider provider : providers) {
                 provider.enableVerboseLogging(mVerboseLoggingEnabled);
                 mProviders.put(provider.getConfig().getUniqueId(), provider);
+                mProviderMatchIndex.addProvider(provider);
                 if (provider.getPackageName() != null) {
                     startTrackingAppOpsChange(provider.getPackageName(),
                             provider.getCreatorUid());
@@ -370,8 +373,10 @@ public class PasspointManager {
         mKeyStore = keyStore;
         mObjectFactory = objectFactory;
         mProviders = new HashMap<>();
+        mProviderMatchIndex = objectFactory.makePasspointProviderIndex();
         mAnqpCache = objectFactory.makeAnqpCache(clock);
-        mAnqpRequestManager = objectFactory.makeANQPRequestManager(mPasspointEventHandler, clock);
+        mAnqpRequestManager = objectFactory.makeANQPRequestManager(mPasspointEventHandler, clock,
+                wifiMetrics, context, handler);
         mWifiConfigManager = wifiConfigManager;
         mWifiMetrics = wifiMetrics;
         mProviderIndex = 0;
@@ -551,6 +556,7 @@ public class PasspointManager {
                     + " and unique ID: " + config.getUniqueId());
             old.uninstallCertsAndKeys();
             mProviders.remove(config.getUniqueId());
+            mProviderMatchIndex.removeProvider(old);
             // Keep the user connect choice and AnonymousIdentity
             newProvider.setUserConnectChoice(old.getConnectChoice(), old.getConnectChoiceRssi());
             newProvider.setAnonymousIdentity(old.getAnonymousIdentity());
@@ -566,6 +572,7 @@ public class PasspointManager {
         }
         newProvider.enableVerboseLogging(mVerboseLoggingEnabled);
         mProviders.put(config.getUniqueId(), newProvider);
+        mProviderMatchIndex.addProvider(newProvider);
         if (!isFromSuggestion) {
             // Suggestions will be handled by the WifiNetworkSuggestionsManager
             mWifiConfigManager.saveToStore(true /* forceWrite */);
@@ -616,6 +623,7 @@ public class PasspointManager {
         }
         String uniqueId = provider.getConfig().getUniqueId();
         mProviders.remove(uniqueId);
+        mProviderMatchIndex.removeProvider(provider);
         mWifiConfigManager.removeConnectChoiceFromAllNetworks(uniqueId);
         if (!provider.isFromSuggestion()) {
             // Suggestions will be handled by the WifiNetworkSuggestionsManager
@@ -912,18 +920,30 @@ public class PasspointManager {
         ANQPData anqpEntry = mAnqpCache.getEntry(anqpKey);
         if (anqpEntry == null) {
             if (anqpRequestAllowed) {
+                // Prioritize the APs advertising an OI of an installed provider.
+                boolean mayMatchProvider = !mProviderMatchIndex.getCandidateProviders(
+                        Collections.emptyMap(), roamingConsortium).isEmpty();
                 mAnqpRequestManager.requestANQPElements(bssid, anqpKey,
-                        roamingConsortium.anqpOICount > 0, vsa.hsRelease);
+                        roamingConsortium.anqpOICount > 0, vsa.hsRelease, scanResult.level,
+                        mayMatchProvider);
             }
             Log.d(TAG, "ANQP entry not found for: " + anqpKey);
             return allMatches;
         }
+        // Only run the full match on the providers which could match the ANQP elements or the
+        // Roaming Consortium IE of the AP.
+        Set<PasspointProvider> candidateProviders = mProviderMatchIndex.getCandidateProviders(
+                anqpEntry.getElements(), roamingConsortium);
         boolean anyProviderUpdated = false;
         for (Map.Entry<String, PasspointProvider> entry : mProviders.entrySet()) {
             PasspointProvider provider = entry.getValue();
             if (provider.tryUpdateCarrierId()) {
                 anyProviderUpdated = true;
             }
+            if (!candidateProviders.contains(provider)) {
+                provider.onMatchSkipped();
+                continue;
+            }
             if (mVerboseLoggingEnabled) {
                 Log.d(TAG, "Matching provider " + provider.getConfig().getHomeSp().getFqdn()
                         + " with "
@@ -940,6 +960,7 @@ public class PasspointManager {
             mWifiConfigManager.saveToStore(true);
         }
         if (allMatches.size() != 0) {
+            mAnqpRequestManager.onProviderMatched(anqpKey);
             for (Pair<PasspointProvider, PasspointMatch> match : allMatches) {
                 Log.d(TAG, String.format("Matched %s to %s as %s", scanResult.SSID,
                         match.first.getConfig().getHomeSp().getFqdn(),
@@ -1265,6 +1286,14 @@ public class PasspointManager {
             pw.println(entry.getValue());
         }
         pw.println("PasspointManager - Providers End ---");
+        long matchCacheHits = 0;
+        long matchCacheMisses = 0;
+        for (PasspointProvider provider : mProviders.values()) {
+            matchCacheHits += provider.getMatchCacheHitCount();
+            matchCacheMisses += provider.getMatchCacheMissCount();
+        }
+        pw.println("PasspointManager - Provider match cache hits: " + matchCacheHits
+                + " misses: " + matchCacheMisses);
         pw.println("PasspointManager - Next provider ID to be assigned " + mProviderIndex);
         mAnqpCache.dump(pw);
         mAnqpRequestManager.dump(pw);
@@ -1317,6 +1346,7 @@ public class PasspointManager {
                 enterpriseConfig.getClientCertificateAlias(), null, false, false, mClock);
         provider.enableVerboseLogging(mVerboseLoggingEnabled);
         mProviders.put(passpointConfig.getUniqueId(), provider);
+        mProviderMatchIndex.addProvider(provider);
         return true;
     }
 
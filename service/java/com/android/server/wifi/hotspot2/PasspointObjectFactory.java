@@ -18,6 +18,7 @@ package com.android.server.wifi.hotspot2;
 
 import android.content.Context;
 import android.net.wifi.hotspot2.PasspointConfiguration;
+import android.os.Handler;
 
 import com.android.server.wifi.Clock;
 import com.android.server.wifi.WifiCarrierInfoManager;
@@ -106,15 +107,28 @@ public class PasspointObjectFactory{
         return new AnqpCache(clock);
     }
 
+    /**
+     * Create a PasspointProviderIndex instance.
+     *
+     * @return {@link PasspointProviderIndex}
+     */
+    public PasspointProviderIndex makePasspointProviderIndex() {
+        return new PasspointProviderIndex();
+    }
+
     /**
      * Create an instance of {@link ANQPRequestManager}.
      *
      * @param handler Instance of {@link PasspointEventHandler}
      * @param clock Instance of {@link Clock}
+     * @param wifiMetrics Instance of {@link WifiMetrics}
+     * @param context Instance of {@link Context}
+     * @param wifiHandler Instance of the wifi {@link Handler}
      * @return {@link ANQPRequestManager}
      */
-    public ANQPRequestManager makeANQPRequestManager(PasspointEventHandler handler, Clock clock) {
-        return new ANQPRequestManager(handler, clock);
+    public ANQPRequestManager makeANQPRequestManager(PasspointEventHandler handler, Clock clock,
+            WifiMetrics wifiMetrics, Context context, Handler wifiHandler) {
+        return new ANQPRequestManager(handler, clock, wifiMetrics, context, wifiHandler);
     }
 
     /**
@@ -37,6 +37,7 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.Pair;
 
 import com.android.modules.utils.build.SdkLevel;
@@ -86,6 +87,7 @@ public class PasspointProvider {
 
     private static final String SYSTEM_CA_STORE_PATH = "/system/etc/security/cacerts";
     private static final long MAX_RCOI_ENTRY_LIFETIME_MS = 600_000; // 10 minutes
+    private static final int MAX_MATCH_CACHE_SIZE = 32;
 
     private final PasspointConfiguration mConfig;
     private final WifiKeyStore mKeyStore;
@@ -128,6 +130,62 @@ public class PasspointProvider {
     // used later when connecting to an RCOI-based Passpoint network.
     private final Map<String, Pair<Long, Long>> mRcoiMatchForNetwork = new HashMap<>();
 
+    /**
+     * Key of a memoized match result, made of the inputs of the match: the ANQP elements which
+     * are matched against the provider, the Roaming Consortium OIs advertised in the AP's IE and
+     * the IMSI of the SIM card matching the credential. All the BSSIDs of an ESS sharing an ANQP
+     * entry map to the same key.
+     */
+    private static class MatchCacheKey {
+        private final ANQPElement mDomainName;
+        private final ANQPElement mRoamingConsortium;
+        private final ANQPElement mNaiRealm;
+        private final ANQPElement mThreeGppNetwork;
+        private final long[] mRoamingConsortiumsFromAp;
+        private final String mMatchingSimImsi;
+
+        MatchCacheKey(Map<ANQPElementType, ANQPElement> anqpElements,
+                RoamingConsortium roamingConsortiumFromAp, String matchingSimImsi) {
+            mDomainName = anqpElements.get(ANQPElementType.ANQPDomName);
+            mRoamingConsortium = anqpElements.get(ANQPElementType.ANQPRoamingConsortium);
+            mNaiRealm = anqpElements.get(ANQPElementType.ANQPNAIRealm);
+            mThreeGppNetwork = anqpElements.get(ANQPElementType.ANQP3GPPNetwork);
+            mRoamingConsortiumsFromAp = roamingConsortiumFromAp == null
+                    ? null : roamingConsortiumFromAp.getRoamingConsortiums();
+            mMatchingSimImsi = matchingSimImsi;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (this == thatObject) {
+                return true;
+            }
+            if (!(thatObject instanceof MatchCacheKey)) {
+                return false;
+            }
+            MatchCacheKey that = (MatchCacheKey) thatObject;
+            return Objects.equals(mDomainName, that.mDomainName)
+                    && Objects.equals(mRoamingConsortium, that.mRoamingConsortium)
+                    && Objects.equals(mNaiRealm, that.mNaiRealm)
+                    && Objects.equals(mThreeGppNetwork, that.mThreeGppNetwork)
+                    && Arrays.equals(mRoamingConsortiumsFromAp, that.mRoamingConsortiumsFromAp)
+                    && TextUtils.equals(mMatchingSimImsi, that.mMatchingSimImsi);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDomainName, mRoamingConsortium, mNaiRealm, mThreeGppNetwork,
+                    Arrays.hashCode(mRoamingConsortiumsFromAp), mMatchingSimImsi);
+        }
+    }
+
+    // Memoized results of matching ANQP elements and Roaming Consortium IEs, as pairs of the
+    // match status and the matched RCOI (0 if the match is not RCOI based).
+    private final LruCache<MatchCacheKey, Pair<PasspointMatch, Long>> mMatchCache =
+            new LruCache<>(MAX_MATCH_CACHE_SIZE);
+    private long mMatchCacheHitCount = 0;
+    private long mMatchCacheMissCount = 0;
+
     public PasspointProvider(PasspointConfiguration config, WifiKeyStore keyStore,
             WifiCarrierInfoManager wifiCarrierInfoManager, long providerId, int creatorUid,
             String packageName, boolean isFromSuggestion, Clock clock) {
@@ -391,7 +449,12 @@ public class PasspointProvider {
      * @return true if the carrier ID is updated, otherwise false.
      */
     public boolean tryUpdateCarrierId() {
-        return mWifiCarrierInfoManager.tryUpdateCarrierIdForPasspoint(mConfig);
+        boolean updated = mWifiCarrierInfoManager.tryUpdateCarrierIdForPasspoint(mConfig);
+        if (updated) {
+            // The SIM card matching the credential may have changed.
+            mMatchCache.evictAll();
+        }
+        return updated;
     }
 
     private @Nullable String getMatchingSimImsi() {
@@ -450,10 +513,56 @@ public class PasspointProvider {
             }
         }
 
+        // The rest of the match does not depend on the BSSID, so it is memoized across the
+        // BSSIDs of an ESS.
+        MatchCacheKey key = new MatchCacheKey(anqpElements, roamingConsortiumFromAp,
+                matchingSimImsi);
+        Pair<PasspointMatch, Long> matchAndRcoi = mMatchCache.get(key);
+        if (matchAndRcoi == null) {
+            mMatchCacheMissCount++;
+            matchAndRcoi = matchAnqpElements(anqpElements, roamingConsortiumFromAp,
+                    matchingSimImsi);
+            mMatchCache.put(key, matchAndRcoi);
+        } else {
+            mMatchCacheHitCount++;
+            if (mVerboseLoggingEnabled) {
+                Log.d(TAG, "Memoized match: " + matchAndRcoi.first);
+            }
+        }
+        if (matchAndRcoi.second != 0) {
+            addMatchedRcoi(scanResult, matchAndRcoi.second);
+        }
+        return matchAndRcoi.first;
+    }
+
+    /**
+     * Update the state which {@link #match} keeps up to date when the provider is not matched
+     * against an AP, because it cannot match it: expire the old matched RCOIs, and refresh the
+     * best guess carrier ID of a SIM credential.
+     */
+    public void onMatchSkipped() {
+        sweepMatchedRcoiMap();
+        if (mConfig.getCredential().getSimCredential() != null) {
+            getMatchingSimImsi();
+        }
+    }
+
+    /**
+     * Match the ANQP elements and the Roaming Consortium IE of an AP against this provider.
+     *
+     * @param anqpElements ANQP elements from the AP
+     * @param roamingConsortiumFromAp Roaming Consortium information element from the AP
+     * @param matchingSimImsi IMSI of the SIM card matching the credential, if any
+     * @return pair of the match status and the matched RCOI, 0 if the match is not RCOI based
+     */
+    private Pair<PasspointMatch, Long> matchAnqpElements(
+            Map<ANQPElementType, ANQPElement> anqpElements,
+            RoamingConsortium roamingConsortiumFromAp, String matchingSimImsi) {
         // Match FQDN for Home provider or RCOI(s) for Roaming provider
         // For SIM credential, the FQDN is in the format of wlan.mnc*.mcc*.3gppnetwork.org
-        PasspointMatch providerMatch = matchFqdnAndRcoi(anqpElements, roamingConsortiumFromAp,
-                matchingSimImsi, scanResult);
+        Pair<PasspointMatch, Long> fqdnAndRcoiMatch = matchFqdnAndRcoi(anqpElements,
+                roamingConsortiumFromAp, matchingSimImsi);
+        PasspointMatch providerMatch = fqdnAndRcoiMatch.first;
 
         // 3GPP Network matching
         if (providerMatch == PasspointMatch.None && ANQPMatcher.matchThreeGPPNetwork(
@@ -463,7 +572,7 @@ public class PasspointProvider {
                 Log.d(TAG, "Final RoamingProvider match with "
                         + anqpElements.get(ANQPElementType.ANQP3GPPNetwork));
             }
-            return PasspointMatch.RoamingProvider;
+            return Pair.create(PasspointMatch.RoamingProvider, 0L);
         }
 
         // Perform NAI Realm matching
@@ -476,7 +585,7 @@ public class PasspointProvider {
             if (mVerboseLoggingEnabled) {
                 Log.d(TAG, "No NAI realm match, final match: " + providerMatch);
             }
-            return providerMatch;
+            return fqdnAndRcoiMatch;
         }
 
         if (mVerboseLoggingEnabled) {
@@ -486,13 +595,27 @@ public class PasspointProvider {
         // Promote the provider match to RoamingProvider if provider match is not found, but NAI
         // realm is matched.
         if (providerMatch == PasspointMatch.None) {
-            providerMatch = PasspointMatch.RoamingProvider;
+            fqdnAndRcoiMatch = Pair.create(PasspointMatch.RoamingProvider, 0L);
         }
 
         if (mVerboseLoggingEnabled) {
-            Log.d(TAG, "Final match: " + providerMatch);
+            Log.d(TAG, "Final match: " + fqdnAndRcoiMatch.first);
         }
-        return providerMatch;
+        return fqdnAndRcoiMatch;
+    }
+
+    /**
+     * Number of matches served from the memoized match results.
+     */
+    public long getMatchCacheHitCount() {
+        return mMatchCacheHitCount;
+    }
+
+    /**
+     * Number of matches which could not be served from the memoized match results.
+     */
+    public long getMatchCacheMissCount() {
+        return mMatchCacheMissCount;
     }
 
     /**
@@ -849,12 +972,12 @@ public class PasspointProvider {
      * @param roamingConsortiumFromAp Roaming Consortium information element from the AP
      * @param matchingSIMImsi         Installed SIM IMSI that matches the SIM credential ANQP
      *                                element
-     * @param scanResult              The relevant scan result
-     * @return {@link PasspointMatch}
+     * @return pair of {@link PasspointMatch} and the matched RCOI, 0 if the match is not RCOI
+     *         based
      */
-    private PasspointMatch matchFqdnAndRcoi(Map<ANQPElementType, ANQPElement> anqpElements,
-            RoamingConsortium roamingConsortiumFromAp, String matchingSIMImsi,
-            ScanResult scanResult) {
+    private Pair<PasspointMatch, Long> matchFqdnAndRcoi(
+            Map<ANQPElementType, ANQPElement> anqpElements,
+            RoamingConsortium roamingConsortiumFromAp, String matchingSIMImsi) {
         // Domain name matching.
         if (ANQPMatcher.matchDomainName(
                 (DomainNameElement) anqpElements.get(ANQPElementType.ANQPDomName),
@@ -863,7 +986,7 @@ public class PasspointProvider {
                 Log.d(TAG, "Domain name " + mConfig.getHomeSp().getFqdn()
                         + " match: HomeProvider");
             }
-            return PasspointMatch.HomeProvider;
+            return Pair.create(PasspointMatch.HomeProvider, 0L);
         }
 
         // Other Home Partners matching.
@@ -876,7 +999,7 @@ public class PasspointProvider {
                         Log.d(TAG, "Other Home Partner " + otherHomePartner
                                 + " match: HomeProvider");
                     }
-                    return PasspointMatch.HomeProvider;
+                    return Pair.create(PasspointMatch.HomeProvider, 0L);
                 }
             }
         }
@@ -892,7 +1015,7 @@ public class PasspointProvider {
                 if (mVerboseLoggingEnabled) {
                     Log.d(TAG, "All HomeOI RCOI match: HomeProvider");
                 }
-                return PasspointMatch.HomeProvider;
+                return Pair.create(PasspointMatch.HomeProvider, 0L);
             }
         } else if (mConfig.getHomeSp().getMatchAnyOis() != null) {
             // Ensure that any HomeOI whose corresponding HomeOIRequired value is false shall match
@@ -904,7 +1027,7 @@ public class PasspointProvider {
                 if (mVerboseLoggingEnabled) {
                     Log.d(TAG, "Any HomeOI RCOI match: HomeProvider");
                 }
-                return PasspointMatch.HomeProvider;
+                return Pair.create(PasspointMatch.HomeProvider, 0L);
             }
         }
 
@@ -917,14 +1040,13 @@ public class PasspointProvider {
                 Log.d(TAG, String.format("RCOI match: RoamingProvider, selected RCOI = 0x%x",
                         matchedRcoi));
             }
-            addMatchedRcoi(scanResult, matchedRcoi);
-            return PasspointMatch.RoamingProvider;
+            return Pair.create(PasspointMatch.RoamingProvider, matchedRcoi);
         }
 
         if (mVerboseLoggingEnabled) {
             Log.d(TAG, "No domain name or RCOI match");
         }
-        return PasspointMatch.None;
+        return Pair.create(PasspointMatch.None, 0L);
     }
 
     /**
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.hotspot2;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.wifi.hotspot2.PasspointConfiguration;
+import android.net.wifi.hotspot2.pps.Credential;
+import android.net.wifi.hotspot2.pps.HomeSp;
+import android.text.TextUtils;
+
+import com.android.server.wifi.IMSIParameter;
+import com.android.server.wifi.hotspot2.anqp.ANQPElement;
+import com.android.server.wifi.hotspot2.anqp.CellularNetwork;
+import com.android.server.wifi.hotspot2.anqp.Constants.ANQPElementType;
+import com.android.server.wifi.hotspot2.anqp.DomainNameElement;
+import com.android.server.wifi.hotspot2.anqp.NAIRealmData;
+import com.android.server.wifi.hotspot2.anqp.NAIRealmElement;
+import com.android.server.wifi.hotspot2.anqp.RoamingConsortiumElement;
+import com.android.server.wifi.hotspot2.anqp.ThreeGPPNetworkElement;
+import com.android.server.wifi.util.InformationElementUtil.RoamingConsortium;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the installed Passpoint providers by the keys that an AP must advertise for
+ * {@link PasspointProvider#match} to succeed:
+ * - FQDN and Other Home Partner domains, matched against the ANQP Domain Name element.
+ * - Home OIs and Roaming Consortium OIs, matched against the ANQP Roaming Consortium element
+ *   and the Roaming Consortium IE.
+ * - Credential realm, matched against the ANQP NAI Realm element.
+ * - MCC-MNC of the SIM credential IMSI, matched against the ANQP 3GPP Network element and the
+ *   3GPP domains in the ANQP Domain Name element.
+ *
+ * The candidates returned for an AP are a superset of the providers that would match it, so
+ * the caller is still expected to run {@link PasspointProvider#match} on each of them.
+ *
+ * Note: This class is not thread safe and is expected to only be used from the main Wi-Fi
+ * thread.
+ */
+public class PasspointProviderIndex {
+    /**
+     * Label tree of domain names, similar to the one used by {@link DomainMatcher}. Each label
+     * holds the providers whose domain ends at that label.
+     */
+    private static class Label {
+        private final Map<String, Label> mSubDomains = new HashMap<>();
+        private final Set<PasspointProvider> mProviders = newProviderSet();
+
+        void addDomain(Iterator<String> labels, PasspointProvider provider) {
+            if (!labels.hasNext()) {
+                mProviders.add(provider);
+                return;
+            }
+            String labelName = labels.next();
+            Label subLabel = mSubDomains.get(labelName);
+            if (subLabel == null) {
+                subLabel = new Label();
+                mSubDomains.put(labelName, subLabel);
+            }
+            subLabel.addDomain(labels, provider);
+        }
+
+        /**
+         * Remove the provider from the given domain, pruning labels which become empty.
+         *
+         * @return true if this label no longer holds any provider or sub-domain.
+         */
+        boolean removeDomain(Iterator<String> labels, PasspointProvider provider) {
+            if (!labels.hasNext()) {
+                mProviders.remove(provider);
+            } else {
+                String labelName = labels.next();
+                Label subLabel = mSubDomains.get(labelName);
+                if (subLabel != null && subLabel.removeDomain(labels, provider)) {
+                    mSubDomains.remove(labelName);
+                }
+            }
+            return mProviders.isEmpty() && mSubDomains.isEmpty();
+        }
+
+        /**
+         * Add the providers of every domain which the given domain is the same as, or a
+         * sub-domain of, to |out|.
+         */
+        void getProvidersForSubDomain(List<String> domainLabels, Set<PasspointProvider> out) {
+            Label label = this;
+            for (String labelString : domainLabels) {
+                label = label.mSubDomains.get(labelString);
+                if (label == null) {
+                    return;
+                }
+                out.addAll(label.mProviders);
+            }
+        }
+    }
+
+    /**
+     * Keys under which a provider was indexed, kept so that the provider can be removed even if
+     * its configuration is modified afterwards.
+     */
+    private static class IndexKeys {
+        final List<String> domains = new ArrayList<>();
+        final List<String> realms = new ArrayList<>();
+        final Set<Long> ois = new HashSet<>();
+        final Set<String> mccMncs = new HashSet<>();
+    }
+
+    private final Label mDomainRoot = new Label();
+    private final Label mRealmRoot = new Label();
+    private final Map<Long, Set<PasspointProvider>> mProvidersByOi = new HashMap<>();
+    private final Map<String, Set<PasspointProvider>> mProvidersByMccMnc = new HashMap<>();
+    private final Map<PasspointProvider, IndexKeys> mIndexKeys = new IdentityHashMap<>();
+
+    /**
+     * Add a provider to the index. A provider which is already indexed is re-indexed.
+     */
+    public void addProvider(@NonNull PasspointProvider provider) {
+        removeProvider(provider);
+        IndexKeys keys = buildIndexKeys(provider.getConfig());
+        for (String domain : keys.domains) {
+            mDomainRoot.addDomain(Utils.splitDomain(domain).iterator(), provider);
+        }
+        for (String realm : keys.realms) {
+            mRealmRoot.addDomain(Utils.splitDomain(realm).iterator(), provider);
+        }
+        for (long oi : keys.ois) {
+            mProvidersByOi.computeIfAbsent(oi, k -> newProviderSet()).add(provider);
+        }
+        for (String mccMnc : keys.mccMncs) {
+            mProvidersByMccMnc.computeIfAbsent(mccMnc, k -> newProviderSet()).add(provider);
+        }
+        mIndexKeys.put(provider, keys);
+    }
+
+    /**
+     * Remove a provider from the index.
+     */
+    public void removeProvider(@NonNull PasspointProvider provider) {
+        IndexKeys keys = mIndexKeys.remove(provider);
+        if (keys == null) {
+            return;
+        }
+        for (String domain : keys.domains) {
+            mDomainRoot.removeDomain(Utils.splitDomain(domain).iterator(), provider);
+        }
+        for (String realm : keys.realms) {
+            mRealmRoot.removeDomain(Utils.splitDomain(realm).iterator(), provider);
+        }
+        for (long oi : keys.ois) {
+            removeFromBucket(mProvidersByOi, oi, provider);
+        }
+        for (String mccMnc : keys.mccMncs) {
+            removeFromBucket(mProvidersByMccMnc, mccMnc, provider);
+        }
+    }
+
+    /**
+     * Remove all the providers from the index.
+     */
+    public void clear() {
+        mDomainRoot.mSubDomains.clear();
+        mDomainRoot.mProviders.clear();
+        mRealmRoot.mSubDomains.clear();
+        mRealmRoot.mProviders.clear();
+        mProvidersByOi.clear();
+        mProvidersByMccMnc.clear();
+        mIndexKeys.clear();
+    }
+
+    /**
+     * Return the providers which could match an AP advertising the given ANQP elements and
+     * Roaming Consortium IE. Providers which are not returned are guaranteed to not match the AP.
+     *
+     * @param anqpElements ANQP elements of the AP
+     * @param roamingConsortiumFromAp Roaming Consortium IE of the AP
+     * @return set of candidate providers, compared by identity
+     */
+    public @NonNull Set<PasspointProvider> getCandidateProviders(
+            @NonNull Map<ANQPElementType, ANQPElement> anqpElements,
+            @Nullable RoamingConsortium roamingConsortiumFromAp) {
+        Set<PasspointProvider> candidates = newProviderSet();
+
+        DomainNameElement domainNameElement =
+                (DomainNameElement) anqpElements.get(ANQPElementType.ANQPDomName);
+        if (domainNameElement != null) {
+            for (String domain : domainNameElement.getDomains()) {
+                if (TextUtils.isEmpty(domain)) continue;
+                List<String> labels = Utils.splitDomain(domain);
+                mDomainRoot.getProvidersForSubDomain(labels, candidates);
+                addBucket(mProvidersByMccMnc, Utils.getMccMnc(labels), candidates);
+            }
+        }
+
+        RoamingConsortiumElement roamingConsortiumElement =
+                (RoamingConsortiumElement) anqpElements.get(ANQPElementType.ANQPRoamingConsortium);
+        if (roamingConsortiumElement != null) {
+            for (long oi : roamingConsortiumElement.getOIs()) {
+                addBucket(mProvidersByOi, oi, candidates);
+            }
+        }
+        if (roamingConsortiumFromAp != null
+                && roamingConsortiumFromAp.getRoamingConsortiums() != null) {
+            for (long oi : roamingConsortiumFromAp.getRoamingConsortiums()) {
+                addBucket(mProvidersByOi, oi, candidates);
+            }
+        }
+
+        NAIRealmElement naiRealmElement =
+                (NAIRealmElement) anqpElements.get(ANQPElementType.ANQPNAIRealm);
+        if (naiRealmElement != null) {
+            for (NAIRealmData realmData : naiRealmElement.getRealmDataList()) {
+                for (String realm : realmData.getRealms()) {
+                    if (TextUtils.isEmpty(realm)) continue;
+                    mRealmRoot.getProvidersForSubDomain(Utils.splitDomain(realm), candidates);
+                }
+            }
+        }
+
+        ThreeGPPNetworkElement threeGppNetworkElement =
+                (ThreeGPPNetworkElement) anqpElements.get(ANQPElementType.ANQP3GPPNetwork);
+        if (threeGppNetworkElement != null) {
+            for (CellularNetwork network : threeGppNetworkElement.getNetworks()) {
+                for (String plmn : network.getPlmns()) {
+                    addBucket(mProvidersByMccMnc, plmn, candidates);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Number of providers in the index.
+     */
+    public int size() {
+        return mIndexKeys.size();
+    }
+
+    /**
+     * Providers are tracked by identity, since their hash code depends on their mutable
+     * configuration.
+     */
+    private static Set<PasspointProvider> newProviderSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private static IndexKeys buildIndexKeys(PasspointConfiguration config) {
+        IndexKeys keys = new IndexKeys();
+        HomeSp homeSp = config.getHomeSp();
+        if (homeSp != null) {
+            if (!TextUtils.isEmpty(homeSp.getFqdn())) {
+                keys.domains.add(homeSp.getFqdn());
+            }
+            if (homeSp.getOtherHomePartners() != null) {
+                for (String otherHomePartner : homeSp.getOtherHomePartners()) {
+                    if (!TextUtils.isEmpty(otherHomePartner)) {
+                        keys.domains.add(otherHomePartner);
+                    }
+                }
+            }
+            addOis(homeSp.getMatchAllOis(), keys.ois);
+            addOis(homeSp.getMatchAnyOis(), keys.ois);
+            addOis(homeSp.getRoamingConsortiumOis(), keys.ois);
+        }
+        Credential credential = config.getCredential();
+        if (credential != null) {
+            if (!TextUtils.isEmpty(credential.getRealm())) {
+                keys.realms.add(credential.getRealm());
+            }
+            if (credential.getSimCredential() != null) {
+                IMSIParameter imsiParameter =
+                        IMSIParameter.build(credential.getSimCredential().getImsi());
+                if (imsiParameter != null) {
+                    addMccMncs(imsiParameter.toString(), imsiParameter.isFullImsi(),
+                            keys.mccMncs);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static void addOis(@Nullable long[] ois, Set<Long> out) {
+        if (ois == null) return;
+        for (long oi : ois) {
+            out.add(oi);
+        }
+    }
+
+    /**
+     * Add the MCC-MNC strings which {@link IMSIParameter#matchesMccMnc} accepts for the given
+     * IMSI parameter: both the 5 and 6 digit prefixes of a full IMSI, or the prefix itself.
+     */
+    private static void addMccMncs(String imsi, boolean isFullImsi, Set<String> out) {
+        if (!isFullImsi) {
+            // Strip the trailing '*' of the prefix.
+            out.add(imsi.substring(0, imsi.length() - 1));
+            return;
+        }
+        if (imsi.length() >= IMSIParameter.MCC_MNC_LENGTH_5) {
+            out.add(imsi.substring(0, IMSIParameter.MCC_MNC_LENGTH_5));
+        }
+        if (imsi.length() >= IMSIParameter.MCC_MNC_LENGTH_6) {
+            out.add(imsi.substring(0, IMSIParameter.MCC_MNC_LENGTH_6));
+        }
+    }
+
+    private static <K> void addBucket(Map<K, Set<PasspointProvider>> buckets, @Nullable K key,
+            Set<PasspointProvider> out) {
+        if (key == null) return;
+        Set<PasspointProvider> bucket = buckets.get(key);
+        if (bucket != null) {
+            out.addAll(bucket);
+        }
+    }
+
+    private static <K> void removeFromBucket(Map<K, Set<PasspointProvider>> buckets, K key,
+            PasspointProvider provider) {
+        Set<PasspointProvider> bucket = buckets.get(key);
+        if (bucket == null) return;
+        bucket.remove(provider);
+        if (bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+    }
+}
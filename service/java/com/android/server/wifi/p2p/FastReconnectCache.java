@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the parameters of the last successful connection with each peer, used to reconnect
+ * to a peer without going through a full discovery and negotiation again.
+ *
+ * The credentials of a persistent group are kept by the supplicant, so an entry only refers to
+ * them by network id and network name.
+ */
+public class FastReconnectCache {
+    private static final int MAX_ENTRIES = 32;
+
+    /**
+     * Parameters of a successful connection with a peer.
+     */
+    public static class Entry {
+        public final String deviceAddress;
+        // Operating frequency of the group in MHz.
+        public final int frequency;
+        // GO intent requested for the connection.
+        public final int groupOwnerIntent;
+        // Whether the peer was the group owner.
+        public final boolean isPeerGroupOwner;
+        // Network id and network name of the persistent group, or -1 and null if the group was
+        // not persistent.
+        public final int netId;
+        public final String networkName;
+        public final long timestampMs;
+
+        public Entry(@NonNull String deviceAddress, int frequency, int groupOwnerIntent,
+                boolean isPeerGroupOwner, int netId, @Nullable String networkName,
+                long timestampMs) {
+            this.deviceAddress = deviceAddress;
+            this.frequency = frequency;
+            this.groupOwnerIntent = groupOwnerIntent;
+            this.isPeerGroupOwner = isPeerGroupOwner;
+            this.netId = netId;
+            this.networkName = networkName;
+            this.timestampMs = timestampMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{deviceAddress=" + deviceAddress
+                    + ", frequency=" + frequency
+                    + ", groupOwnerIntent=" + groupOwnerIntent
+                    + ", isPeerGroupOwner=" + isPeerGroupOwner
+                    + ", netId=" + netId
+                    + ", networkName=" + networkName
+                    + ", timestampMs=" + timestampMs + "}";
+        }
+    }
+
+    // Entries keyed by device address, least recently connected first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Record a successful connection, replacing the previous entry of the peer.
+     */
+    public void put(@NonNull Entry entry) {
+        // Re-insert to move the entry to the most recent position.
+        mEntries.remove(entry.deviceAddress);
+        mEntries.put(entry.deviceAddress, entry);
+    }
+
+    /**
+     * Return the entry of a peer if it is not older than the given age. Expired entries are
+     * dropped.
+     *
+     * @param deviceAddress the device address of the peer.
+     * @param nowMs the current time.
+     * @param maxAgeMs the maximum age of the entry.
+     */
+    public @Nullable Entry get(@Nullable String deviceAddress, long nowMs, long maxAgeMs) {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (nowMs - it.next().timestampMs > maxAgeMs) {
+                it.remove();
+            }
+        }
+        if (deviceAddress == null) return null;
+        return mEntries.get(deviceAddress);
+    }
+
+    /**
+     * Remove the entry of a peer.
+     */
+    public void remove(@Nullable String deviceAddress) {
+        if (deviceAddress == null) return;
+        mEntries.remove(deviceAddress);
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Dump the state of the cache.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("FastReconnectCache:");
+        for (Entry entry : mEntries.values()) {
+            pw.println("  " + entry);
+        }
+    }
+}
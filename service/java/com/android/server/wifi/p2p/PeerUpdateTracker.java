@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import android.annotation.NonNull;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+import android.net.wifi.p2p.WifiP2pWfdInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Track the peer list last reported to the clients and compute the changes since then.
+ */
+public class PeerUpdateTracker {
+    /**
+     * Changes of the peer list between two snapshots.
+     */
+    public static class Delta {
+        public final ArrayList<WifiP2pDevice> addedPeers = new ArrayList<>();
+        public final ArrayList<WifiP2pDevice> updatedPeers = new ArrayList<>();
+        public final ArrayList<WifiP2pDevice> removedPeers = new ArrayList<>();
+
+        /** Return true if the peer list did not change. */
+        public boolean isEmpty() {
+            return addedPeers.isEmpty() && updatedPeers.isEmpty() && removedPeers.isEmpty();
+        }
+    }
+
+    // Copies of the peers in the last snapshot, keyed by device address.
+    private final Map<String, WifiP2pDevice> mSnapshot = new HashMap<>();
+
+    /**
+     * Compare the peer list with the last snapshot and make it the new snapshot.
+     *
+     * @param peers the current peer list.
+     * @return the changes since the last snapshot.
+     */
+    public @NonNull Delta update(@NonNull WifiP2pDeviceList peers) {
+        Delta delta = new Delta();
+        Map<String, WifiP2pDevice> previous = new HashMap<>(mSnapshot);
+        for (WifiP2pDevice device : peers.getDeviceList()) {
+            WifiP2pDevice old = previous.remove(device.deviceAddress);
+            if (old != null && !isChanged(old, device)) continue;
+            WifiP2pDevice copy = new WifiP2pDevice(device);
+            mSnapshot.put(device.deviceAddress, copy);
+            if (old == null) {
+                delta.addedPeers.add(copy);
+            } else {
+                delta.updatedPeers.add(copy);
+            }
+        }
+        for (WifiP2pDevice device : previous.values()) {
+            mSnapshot.remove(device.deviceAddress);
+            delta.removedPeers.add(device);
+        }
+        return delta;
+    }
+
+    /**
+     * Return a copy of the peers in the last snapshot.
+     */
+    public @NonNull ArrayList<WifiP2pDevice> getSnapshot() {
+        return new ArrayList<>(mSnapshot.values());
+    }
+
+    /**
+     * Return the number of peers in the last snapshot.
+     */
+    public int size() {
+        return mSnapshot.size();
+    }
+
+    private static boolean isChanged(WifiP2pDevice a, WifiP2pDevice b) {
+        return a.status != b.status
+                || a.wpsConfigMethodsSupported != b.wpsConfigMethodsSupported
+                || a.deviceCapability != b.deviceCapability
+                || a.groupCapability != b.groupCapability
+                || !Objects.equals(a.deviceName, b.deviceName)
+                || !Objects.equals(a.primaryDeviceType, b.primaryDeviceType)
+                || !Objects.equals(a.secondaryDeviceType, b.secondaryDeviceType)
+                || !isSameWfdInfo(a.wfdInfo, b.wfdInfo)
+                || !Objects.equals(a.getVendorElements(), b.getVendorElements());
+    }
+
+    private static boolean isSameWfdInfo(WifiP2pWfdInfo a, WifiP2pWfdInfo b) {
+        if (a == null || b == null) return a == b;
+        return a.isEnabled() == b.isEnabled()
+                && a.getDeviceInfo() == b.getDeviceInfo()
+                && a.getControlPort() == b.getControlPort()
+                && a.getMaxThroughput() == b.getMaxThroughput()
+                && a.getR2DeviceInfo() == b.getR2DeviceInfo();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import android.annotation.NonNull;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceResponse;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.util.ArraySet;
+import android.util.Pair;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the Wi-Fi Direct service discovery requests of all clients and cache of the
+ * responses received from the peers.
+ *
+ * Clients issuing an equal request share one transaction id, so the request is only sent once
+ * to the peers and each response is matched to the interested clients with a single look-up.
+ * Responses are cached by (peer, request) so that a new discovery can be answered from fresh
+ * data while the peers are queried again.
+ */
+public class ServiceDiscoveryStore {
+    private static final int MAX_CACHED_RESPONSES = 256;
+
+    private static class RequestEntry {
+        final WifiP2pServiceRequest mRequest;
+        final int mTransactionId;
+        final Set<Messenger> mClients = new ArraySet<>();
+
+        RequestEntry(WifiP2pServiceRequest request, int transactionId) {
+            mRequest = request;
+            mTransactionId = transactionId;
+        }
+    }
+
+    private static class CachedResponses {
+        final long mTimestampMs;
+        final List<WifiP2pServiceResponse> mResponses = new ArrayList<>();
+
+        CachedResponses(long timestampMs) {
+            mTimestampMs = timestampMs;
+        }
+    }
+
+    // Distinct requests, keyed by the request itself which ignores the transaction id.
+    private final Map<WifiP2pServiceRequest, RequestEntry> mRequests = new HashMap<>();
+    private final SparseArray<RequestEntry> mRequestsByTransactionId = new SparseArray<>();
+
+    // Responses keyed by (peer device address, request), least recently received first.
+    private final LinkedHashMap<Pair<String, WifiP2pServiceRequest>, CachedResponses>
+            mResponses = new LinkedHashMap<Pair<String, WifiP2pServiceRequest>,
+                    CachedResponses>() {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Pair<String, WifiP2pServiceRequest>, CachedResponses> eldest) {
+                    return size() > MAX_CACHED_RESPONSES;
+                }
+            };
+
+    /**
+     * Return the transaction id shared by the clients which issued a request equal to the given
+     * one, or 0 if there is none.
+     */
+    public int getTransactionId(@NonNull WifiP2pServiceRequest request) {
+        RequestEntry entry = mRequests.get(request);
+        return entry == null ? 0 : entry.mTransactionId;
+    }
+
+    /**
+     * Return true if the transaction id is used by a request.
+     */
+    public boolean isTransactionIdInUse(int transactionId) {
+        return mRequestsByTransactionId.contains(transactionId);
+    }
+
+    /**
+     * Add a request of a client.
+     *
+     * @param client the client.
+     * @param request the request.
+     * @param transactionId the id returned by {@link #getTransactionId(WifiP2pServiceRequest)}
+     *        if it is not 0, or else an id which is not in use.
+     */
+    public void addRequest(@NonNull Messenger client, @NonNull WifiP2pServiceRequest request,
+            int transactionId) {
+        RequestEntry entry = mRequests.get(request);
+        if (entry == null) {
+            entry = new RequestEntry(request, transactionId);
+            mRequests.put(request, entry);
+            mRequestsByTransactionId.put(transactionId, entry);
+        }
+        entry.mClients.add(client);
+    }
+
+    /**
+     * Remove a request of a client.
+     */
+    public void removeRequest(@NonNull Messenger client, @NonNull WifiP2pServiceRequest request) {
+        RequestEntry entry = mRequests.get(request);
+        if (entry == null) return;
+        entry.mClients.remove(client);
+        if (entry.mClients.isEmpty()) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * Remove all the requests of a client.
+     */
+    public void removeClient(@NonNull Messenger client) {
+        Iterator<RequestEntry> it = mRequests.values().iterator();
+        while (it.hasNext()) {
+            RequestEntry entry = it.next();
+            entry.mClients.remove(client);
+            if (entry.mClients.isEmpty()) {
+                it.remove();
+                mRequestsByTransactionId.remove(entry.mTransactionId);
+            }
+        }
+    }
+
+    private void removeEntry(RequestEntry entry) {
+        mRequests.remove(entry.mRequest);
+        mRequestsByTransactionId.remove(entry.mTransactionId);
+    }
+
+    /**
+     * Return the distinct requests of all clients.
+     */
+    public @NonNull List<WifiP2pServiceRequest> getRequests() {
+        List<WifiP2pServiceRequest> requests = new ArrayList<>(mRequests.size());
+        for (RequestEntry entry : mRequests.values()) {
+            requests.add(entry.mRequest);
+        }
+        return requests;
+    }
+
+    /**
+     * Return the clients interested in the responses with the given transaction id.
+     */
+    public @NonNull Set<Messenger> getClients(int transactionId) {
+        RequestEntry entry = mRequestsByTransactionId.get(transactionId);
+        if (entry == null) return Collections.emptySet();
+        return new ArraySet<>(entry.mClients);
+    }
+
+    /**
+     * Cache the successful responses received in a single service discovery response event.
+     * They replace the responses previously received from the same peer for the same request.
+     *
+     * @param responses the responses, with the source device set to the responding peer.
+     * @param nowMs the current time.
+     */
+    public void putResponses(@NonNull List<WifiP2pServiceResponse> responses, long nowMs) {
+        Map<Pair<String, WifiP2pServiceRequest>, CachedResponses> received = new HashMap<>();
+        for (WifiP2pServiceResponse resp : responses) {
+            if (resp.getStatus() != WifiP2pServiceResponse.Status.SUCCESS) continue;
+            if (resp.getSrcDevice() == null || resp.getSrcDevice().deviceAddress == null) continue;
+            RequestEntry entry = mRequestsByTransactionId.get(resp.getTransactionId());
+            if (entry == null) continue;
+            Pair<String, WifiP2pServiceRequest> key =
+                    new Pair<>(resp.getSrcDevice().deviceAddress, entry.mRequest);
+            CachedResponses cached = received.get(key);
+            if (cached == null) {
+                cached = new CachedResponses(nowMs);
+                received.put(key, cached);
+            }
+            cached.mResponses.add(resp);
+        }
+        for (Map.Entry<Pair<String, WifiP2pServiceRequest>, CachedResponses> e
+                : received.entrySet()) {
+            // Re-insert to move the entry to the most recent position.
+            mResponses.remove(e.getKey());
+            mResponses.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Return copies of the cached responses to a request which were received from a peer still
+     * in the peer list within the given age. Expired responses are dropped.
+     *
+     * @param request the request.
+     * @param peers the current peer list, used to update the source device of the responses.
+     * @param nowMs the current time.
+     * @param maxAgeMs the maximum age of the responses.
+     */
+    public @NonNull List<WifiP2pServiceResponse> getFreshResponses(
+            @NonNull WifiP2pServiceRequest request, @NonNull WifiP2pDeviceList peers,
+            long nowMs, long maxAgeMs) {
+        List<WifiP2pServiceResponse> responses = new ArrayList<>();
+        Iterator<Map.Entry<Pair<String, WifiP2pServiceRequest>, CachedResponses>> it =
+                mResponses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Pair<String, WifiP2pServiceRequest>, CachedResponses> e = it.next();
+            if (nowMs - e.getValue().mTimestampMs > maxAgeMs) {
+                it.remove();
+                continue;
+            }
+            if (!request.equals(e.getKey().second)) continue;
+            WifiP2pDevice peer = peers.get(e.getKey().first);
+            if (peer == null) continue;
+            for (WifiP2pServiceResponse resp : e.getValue().mResponses) {
+                responses.add(copyResponse(resp, peer));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Return a copy of a cached response with the given source device, so that the cached
+     * response is not modified while it may still be in use by a client.
+     */
+    private static WifiP2pServiceResponse copyResponse(@NonNull WifiP2pServiceResponse resp,
+            @NonNull WifiP2pDevice srcDevice) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            resp.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            WifiP2pServiceResponse copy = WifiP2pServiceResponse.CREATOR.createFromParcel(parcel);
+            copy.setSrcDevice(srcDevice);
+            return copy;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Drop all the cached responses.
+     */
+    public void clearResponses() {
+        mResponses.clear();
+    }
+
+    /**
+     * Dump the state of the store.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("ServiceDiscoveryStore:");
+        pw.println("  mRequests.size()=" + mRequests.size());
+        pw.println("  mResponses.size()=" + mResponses.size());
+    }
+}
@@ -45,6 +45,17 @@ public class WifiP2pMetrics {
 
     private static final int MAX_CONNECTION_EVENTS = 256;
     private static final int MAX_GROUP_EVENTS = 256;
+    // A peer scan older than the discovery timeout is not part of the connection.
+    private static final long MAX_DISCOVERY_DURATION_MS = 120_000;
+
+    /** Provision discovery phase of a connection. */
+    public static final int CONNECTION_PHASE_PROVISION_DISCOVERY = 0;
+    /** GO negotiation or invitation phase of a connection. */
+    public static final int CONNECTION_PHASE_GROUP_NEGOTIATION = 1;
+    /** Group formation phase of a connection, i.e. WPS and the 4-way handshake. */
+    public static final int CONNECTION_PHASE_GROUP_FORMATION = 2;
+    /** IP provisioning phase of a connection. */
+    public static final int CONNECTION_PHASE_IP_PROVISIONING = 3;
 
     private Clock mClock;
     private final Object mLock = new Object();
@@ -74,6 +85,22 @@ public class WifiP2pMetrics {
      */
     private long mCurrentConnectionEventStartTime;
 
+    /**
+     * The end time of the last phase of the latest connection attempt
+     */
+    private long mCurrentConnectionPhaseStartTime;
+
+    /**
+     * The latest successful connection attempt still waiting for IP provisioning, which completes
+     * after the group is started on a group client.
+     */
+    private P2pConnectionEvent mIpProvisioningConnectionEvent;
+
+    /**
+     * The start time of the latest peer scan, or -1 if there was none.
+     */
+    private long mLastPeerScanStartTime = -1;
+
     /**
      * Group Session information that gets logged for every formed group.
      */
@@ -219,6 +246,16 @@ public class WifiP2pMetrics {
                 }
                 sb.append(", durationTakenToConnectMillis=");
                 sb.append(event.durationTakenToConnectMillis);
+                sb.append(", durationDiscoveryMillis=");
+                sb.append(event.durationDiscoveryMillis);
+                sb.append(", durationProvisionDiscoveryMillis=");
+                sb.append(event.durationProvisionDiscoveryMillis);
+                sb.append(", durationGroupNegotiationMillis=");
+                sb.append(event.durationGroupNegotiationMillis);
+                sb.append(", durationGroupFormationMillis=");
+                sb.append(event.durationGroupFormationMillis);
+                sb.append(", durationIpProvisioningMillis=");
+                sb.append(event.durationIpProvisioningMillis);
                 sb.append(", groupRole=");
                 switch (event.groupRole) {
                     case GroupEvent.GROUP_OWNER:
@@ -307,6 +344,8 @@ public class WifiP2pMetrics {
                     + mWifiP2pStatsProto.numTotalPeerScans);
             pw.println("mWifiP2pStatsProto.numTotalServiceScans="
                     + mWifiP2pStatsProto.numTotalServiceScans);
+            pw.println("mWifiP2pStatsProto.numPeersChangedBroadcastsSaved="
+                    + mWifiP2pStatsProto.numPeersChangedBroadcastsSaved);
         }
     }
 
@@ -314,6 +353,7 @@ public class WifiP2pMetrics {
     public void incrementPeerScans() {
         synchronized (mLock) {
             mWifiP2pStatsProto.numTotalPeerScans++;
+            mLastPeerScanStartTime = mClock.getElapsedSinceBootMillis();
         }
     }
 
@@ -324,6 +364,13 @@ public class WifiP2pMetrics {
         }
     }
 
+    /** Increment number of peer list change notifications saved by coalescing */
+    public void incrementPeersChangedBroadcastsSaved() {
+        synchronized (mLock) {
+            mWifiP2pStatsProto.numPeersChangedBroadcastsSaved++;
+        }
+    }
+
     /** Set the number of saved persistent group */
     public void updatePersistentGroup(WifiP2pGroupList groups) {
         synchronized (mLock) {
@@ -352,6 +399,8 @@ public class WifiP2pMetrics {
                 mConnectionEventList.remove(0);
             }
             mCurrentConnectionEventStartTime = mClock.getElapsedSinceBootMillis();
+            mCurrentConnectionPhaseStartTime = mCurrentConnectionEventStartTime;
+            mIpProvisioningConnectionEvent = null;
 
             mCurrentConnectionEvent = new P2pConnectionEvent();
             mCurrentConnectionEvent.startTimeMillis = mClock.getWallClockMillis();
@@ -360,6 +409,11 @@ public class WifiP2pMetrics {
             if (config != null) {
                 mCurrentConnectionEvent.wpsMethod = config.wps.setup;
             }
+            if (mLastPeerScanStartTime >= 0 && mCurrentConnectionEventStartTime
+                    - mLastPeerScanStartTime <= MAX_DISCOVERY_DURATION_MS) {
+                mCurrentConnectionEvent.durationDiscoveryMillis = (int)
+                        (mCurrentConnectionEventStartTime - mLastPeerScanStartTime);
+            }
 
             mConnectionEventList.add(mCurrentConnectionEvent);
         }
@@ -393,10 +447,51 @@ public class WifiP2pMetrics {
                     mCurrentConnectionEvent.durationTakenToConnectMillis / 200,
                     convertFailureCode(failure),
                     convertGroupRole(mCurrentConnectionEvent.groupRole));
+            mIpProvisioningConnectionEvent =
+                    failure == P2pConnectionEvent.CLF_NONE ? mCurrentConnectionEvent : null;
             mCurrentConnectionEvent = null;
         }
     }
 
+    /**
+     * Record the duration of a phase of the current connection attempt, i.e. the time since the
+     * previous phase ended or the connection attempt started. The IP provisioning phase may end
+     * after the connection event, in which case it is recorded in the last successful one.
+     *
+     * @param phase one of the CONNECTION_PHASE_* constants.
+     */
+    public void endConnectionPhase(int phase) {
+        synchronized (mLock) {
+            P2pConnectionEvent event = mCurrentConnectionEvent;
+            if (event == null && phase == CONNECTION_PHASE_IP_PROVISIONING) {
+                event = mIpProvisioningConnectionEvent;
+            }
+            if (event == null) return;
+
+            long now = mClock.getElapsedSinceBootMillis();
+            int duration = (int) (now - mCurrentConnectionPhaseStartTime);
+            mCurrentConnectionPhaseStartTime = now;
+            switch (phase) {
+                case CONNECTION_PHASE_PROVISION_DISCOVERY:
+                    event.durationProvisionDiscoveryMillis = duration;
+                    break;
+                case CONNECTION_PHASE_GROUP_NEGOTIATION:
+                    event.durationGroupNegotiationMillis = duration;
+                    break;
+                case CONNECTION_PHASE_GROUP_FORMATION:
+                    event.durationGroupFormationMillis = duration;
+                    break;
+                case CONNECTION_PHASE_IP_PROVISIONING:
+                    event.durationIpProvisioningMillis = duration;
+                    mIpProvisioningConnectionEvent = null;
+                    break;
+                default:
+                    Log.e(TAG, "Unknown connection phase " + phase);
+                    break;
+            }
+        }
+    }
+
     private int convertConnectionType(int connectionType) {
         switch (connectionType) {
             case P2pConnectionEvent.CONNECTION_FRESH:
@@ -548,6 +643,7 @@ public class WifiP2pMetrics {
                 Log.e(TAG, "No current group!");
             }
             mCurrentGroupEvent = null;
+            mIpProvisioningConnectionEvent = null;
         }
     }
 
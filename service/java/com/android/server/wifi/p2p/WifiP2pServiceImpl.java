@@ -240,6 +240,9 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
     // Set a two minute discover timeout to avoid STA scans from being blocked
     private static final int DISCOVER_TIMEOUT_S = 120;
 
+    // The Wi-Fi p2p spec says service transaction id should be 1 byte and non-zero.
+    private static final int MAX_SERVICE_TRANSACTION_ID = 255;
+
     // Idle time after a peer is gone when the group is torn down
     private static final int GROUP_IDLE_TIME_S = 10;
 
@@ -552,6 +555,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 case WifiP2pManager.REMOVE_EXTERNAL_APPROVER:
                 case WifiP2pManager.SET_CONNECTION_REQUEST_RESULT:
                 case WifiP2pManager.SET_VENDOR_ELEMENTS:
+                case WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER:
                     mP2pStateMachine.sendMessage(Message.obtain(msg));
                     break;
                 default:
@@ -1015,6 +1019,23 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         private final WifiP2pDeviceList mPeers = new WifiP2pDeviceList();
         private String mInterfaceName;
 
+        // Service discovery requests of all clients and responses received from the peers.
+        private final ServiceDiscoveryStore mServiceDiscoveryStore = new ServiceDiscoveryStore();
+
+        // Parameters of the last successful connection with each peer.
+        private final FastReconnectCache mFastReconnectCache = new FastReconnectCache();
+
+        // The peer list last reported to the clients.
+        private final PeerUpdateTracker mPeerUpdateTracker = new PeerUpdateTracker();
+        // Time of the last peer list change notification, or -1 if none was sent yet.
+        private long mLastPeersChangedTimeMs = -1;
+        // Whether a coalesced peer list change notification is scheduled.
+        private boolean mPeersChangedPending = false;
+        private final Runnable mPeersChangedRunnable = () -> {
+            mPeersChangedPending = false;
+            notifyPeersChanged(false);
+        };
+
         private List<CoexUnsafeChannel> mCoexUnsafeChannels = new ArrayList<>();
         private int mUserListenChannel = 0;
         private int mUserOperatingChannel = 0;
@@ -1307,6 +1328,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                     return "WifiP2pManager.SET_CHANNEL";
                 case WifiP2pManager.SET_DEVICE_NAME:
                     return "WifiP2pManager.SET_DEVICE_NAME";
+                case WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER:
+                    return "WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER";
                 case WifiP2pManager.SET_ONGOING_PEER_CONFIG:
                     return "WifiP2pManager.SET_ONGOING_PEER_CONFIG";
                 case WifiP2pManager.SET_WFD_INFO:
@@ -1534,6 +1557,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 case WifiP2pManager.ADD_EXTERNAL_APPROVER:
                 case WifiP2pManager.REMOVE_EXTERNAL_APPROVER:
                 case WifiP2pManager.SET_CONNECTION_REQUEST_RESULT:
+                case WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER:
                 // These commands could be cached and executed on activating P2P.
                 case WifiP2pManager.SET_DEVICE_NAME:
                 case WifiP2pManager.SET_VENDOR_ELEMENTS:
@@ -1703,6 +1727,41 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                                                 WifiP2pManager.EXTRA_PARAM_KEY_BUNDLE),
                                         message.obj));
                         break;
+                    case WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER: {
+                        if (message.arg1 == 0) {
+                            ClientInfo clientInfo = getClientInfo(message.replyTo, false);
+                            if (clientInfo != null) {
+                                clientInfo.mPeerListChangedListenerEnabled = false;
+                            }
+                            break;
+                        }
+                        String packageName = getCallingPkgName(message.sendingUid,
+                                message.replyTo);
+                        String featureId = getCallingFeatureId(message.sendingUid,
+                                message.replyTo);
+                        Bundle extras = message.getData().getBundle(
+                                WifiP2pManager.EXTRA_PARAM_KEY_BUNDLE);
+                        if (packageName == null || !checkPeersPermission(packageName,
+                                featureId, message.sendingUid, extras, message.obj)) {
+                            loge("SET_PEER_LIST_CHANGED_LISTENER: permission denied");
+                            break;
+                        }
+                        ClientInfo clientInfo = getClientInfo(message.replyTo, true);
+                        clientInfo.mPeerListChangedListenerEnabled = true;
+                        // Kept to check the permissions again before each notification.
+                        clientInfo.mPeerListChangedListenerPackageName = packageName;
+                        clientInfo.mPeerListChangedListenerFeatureId = featureId;
+                        clientInfo.mPeerListChangedListenerUid = message.sendingUid;
+                        clientInfo.mPeerListChangedListenerExtras = extras;
+                        clientInfo.mPeerListChangedListenerAttributionSource = message.obj;
+                        // Report the peers known so far, the following deltas apply to them.
+                        if (mPeerUpdateTracker.size() > 0) {
+                            PeerUpdateTracker.Delta delta = new PeerUpdateTracker.Delta();
+                            delta.addedPeers.addAll(mPeerUpdateTracker.getSnapshot());
+                            sendPeerListChanged(clientInfo, delta);
+                        }
+                        break;
+                    }
                     case WifiP2pManager.REQUEST_CONNECTION_INFO:
                         replyToMessage(message, WifiP2pManager.RESPONSE_CONNECTION_INFO,
                                 new WifiP2pInfo(mWifiP2pInfo));
@@ -2276,6 +2335,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         if (clientInfo != null) {
                             logd("Remove client - " + clientInfo.mPackageName);
                         }
+                        if (m != null) mServiceDiscoveryStore.removeClient(m);
                         detachExternalApproverFromClient(b);
                         break;
                     }
@@ -2518,6 +2578,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                             sendP2pDiscoveryChangedBroadcast(true);
                             mWifiP2pMetrics.incrementServiceScans();
                             replyToMessage(message, WifiP2pManager.DISCOVER_SERVICES_SUCCEEDED);
+                            sendCachedServiceResponses(message.replyTo);
                         } else {
                             replyToMessage(message, WifiP2pManager.DISCOVER_SERVICES_FAILED,
                                     WifiP2pManager.ERROR);
@@ -2620,6 +2681,10 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         }
                         List<WifiP2pServiceResponse> sdRespList =
                                 (List<WifiP2pServiceResponse>) message.obj;
+                        if (getServiceResponseCacheTtlMs() > 0) {
+                            mServiceDiscoveryStore.putResponses(sdRespList,
+                                    mClock.getElapsedSinceBootMillis());
+                        }
                         for (WifiP2pServiceResponse resp : sdRespList) {
                             WifiP2pDevice dev =
                                     mPeers.get(resp.getSrcDevice().deviceAddress);
@@ -2738,6 +2803,13 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             @Override
             public void exit() {
                 sendP2pDiscoveryChangedBroadcast(false);
+                // Send the coalesced peer list changes now, e.g. the peers cleared on disable.
+                if (mPeersChangedPending) {
+                    getHandler().removeCallbacks(mPeersChangedRunnable);
+                    mPeersChangedPending = false;
+                    notifyPeersChanged(false);
+                }
+                mLastPeersChangedTimeMs = -1;
                 mUserListenChannel = 0;
                 mUserOperatingChannel = 0;
                 mCoexUnsafeChannels.clear();
@@ -2811,7 +2883,10 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                                 replyToMessage(message, WifiP2pManager.CONNECT_FAILED);
                             }
                         } else {
-                            if (isConfigInvalid(config)) {
+                            // A peer which is out of the peer list can still be reconnected
+                            // to if its persistent group can be joined directly.
+                            if (isConfigInvalid(config)
+                                    && getFastReconnectNetworkId(config) < 0) {
                                 loge("Dropping connect request " + config);
                                 isConnectFailed = true;
                                 replyToMessage(message, WifiP2pManager.CONNECT_FAILED);
@@ -2823,6 +2898,10 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                                             P2pConnectionEvent.CONNECTION_REINVOKE,
                                             config, GroupEvent.GROUP_UNKNOWN);
                                     transitionTo(mGroupNegotiationState);
+                                } else if (isConfigInvalid(config)) {
+                                    loge("Cannot reconnect to " + config.deviceAddress);
+                                    isConnectFailed = true;
+                                    replyToMessage(message, WifiP2pManager.CONNECT_FAILED);
                                 } else {
                                     mWifiP2pMetrics.startConnectionEvent(
                                             P2pConnectionEvent.CONNECTION_FRESH,
@@ -3370,6 +3449,12 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 mWifiNative.p2pProvisionDiscovery(mSavedPeerConfig);
             }
 
+            @Override
+            public void exit() {
+                mWifiP2pMetrics.endConnectionPhase(
+                        WifiP2pMetrics.CONNECTION_PHASE_PROVISION_DISCOVERY);
+            }
+
             @Override
             public boolean processMessage(Message message) {
                 if (isVerboseLoggingEnabled()) logd(getName() + message.toString());
@@ -3477,9 +3562,13 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             public boolean processMessage(Message message) {
                 if (isVerboseLoggingEnabled()) logd(getName() + message.toString());
                 switch (message.what) {
-                    // We ignore these right now, since we get a GROUP_STARTED notification
-                    // afterwards
                     case WifiP2pMonitor.P2P_GO_NEGOTIATION_SUCCESS_EVENT:
+                        if (isVerboseLoggingEnabled()) logd(getName() + " go success");
+                        mWifiP2pMetrics.endConnectionPhase(
+                                WifiP2pMetrics.CONNECTION_PHASE_GROUP_NEGOTIATION);
+                        break;
+                    // We ignore this right now, since we get a GROUP_STARTED notification
+                    // afterwards
                     case WifiP2pMonitor.P2P_GROUP_FORMATION_SUCCESS_EVENT:
                         if (isVerboseLoggingEnabled()) logd(getName() + " go success");
                         break;
@@ -3490,6 +3579,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         }
                         mGroup = (WifiP2pGroup) message.obj;
                         if (isVerboseLoggingEnabled()) logd(getName() + " group started");
+                        mWifiP2pMetrics.endConnectionPhase(
+                                WifiP2pMetrics.CONNECTION_PHASE_GROUP_FORMATION);
                         if (mGroup.isGroupOwner()
                                 && EMPTY_DEVICE_ADDRESS.equals(mGroup.getOwner().deviceAddress)) {
                             // wpa_supplicant doesn't set own device address to go_dev_addr.
@@ -3559,6 +3650,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         if (!interfaces.contains(mGroup.getInterface())) break;
 
                         Log.d(TAG, "tether " + mGroup.getInterface() + " ready");
+                        mWifiP2pMetrics.endConnectionPhase(
+                                WifiP2pMetrics.CONNECTION_PHASE_IP_PROVISIONING);
                         transitionTo(mGroupCreatedState);
                         break;
                     case WifiP2pMonitor.P2P_GO_NEGOTIATION_FAILURE_EVENT:
@@ -3590,12 +3683,15 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         if (status == P2pStatus.SUCCESS) {
                             // invocation was succeeded.
                             // wait P2P_GROUP_STARTED_EVENT.
+                            mWifiP2pMetrics.endConnectionPhase(
+                                    WifiP2pMetrics.CONNECTION_PHASE_GROUP_NEGOTIATION);
                             break;
                         }
                         loge("Invitation result " + status);
                         if (status == P2pStatus.UNKNOWN_P2P_GROUP) {
                             // target device has already removed the credential.
                             // So, remove this credential accordingly.
+                            mFastReconnectCache.remove(mSavedPeerConfig.deviceAddress);
                             int netId = mSavedPeerConfig.netId;
                             if (netId >= 0) {
                                 if (isVerboseLoggingEnabled()) {
@@ -3793,6 +3889,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             @Override
             public void enter() {
                 if (isVerboseLoggingEnabled()) logd(getName());
+                updateFastReconnectCache();
                 // Once connected, peer config details are invalid
                 mSavedPeerConfig.invalidate();
                 mDetailedState = NetworkInfo.DetailedState.CONNECTED;
@@ -3911,6 +4008,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         if (isVerboseLoggingEnabled()) {
                             logd("mDhcpResultsParcelable: " + mDhcpResultsParcelable);
                         }
+                        mWifiP2pMetrics.endConnectionPhase(
+                                WifiP2pMetrics.CONNECTION_PHASE_IP_PROVISIONING);
                         setWifiP2pInfoOnGroupFormation(mDhcpResultsParcelable.serverAddress);
                         try {
                             final String ifname = mGroup.getInterface();
@@ -4284,6 +4383,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             pw.println("mGroup " + mGroup);
             pw.println("mSavedPeerConfig " + mSavedPeerConfig);
             pw.println("mGroups" + mGroups);
+            mServiceDiscoveryStore.dump(pw);
+            mFastReconnectCache.dump(pw);
             pw.println();
         }
 
@@ -4357,13 +4458,94 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             sendBroadcastMultiplePermissions(intent);
         }
 
+        /**
+         * Notify the clients that the peer list changed.
+         *
+         * Changes within config_wifiP2pPeerUpdateCoalesceWindowMs of the last notification are
+         * coalesced into a single notification at the end of the window. The broadcast is then
+         * skipped if the peer list did not actually change.
+         */
         private void sendPeersChangedBroadcast() {
+            int coalesceWindowMs = mContext.getResources().getInteger(
+                    R.integer.config_wifiP2pPeerUpdateCoalesceWindowMs);
+            if (coalesceWindowMs <= 0) {
+                notifyPeersChanged(true);
+                return;
+            }
+            if (mPeersChangedPending) {
+                mWifiP2pMetrics.incrementPeersChangedBroadcastsSaved();
+                return;
+            }
+            long delayMs = mLastPeersChangedTimeMs < 0 ? 0 : mLastPeersChangedTimeMs
+                    + coalesceWindowMs - mClock.getElapsedSinceBootMillis();
+            if (delayMs <= 0) {
+                notifyPeersChanged(false);
+                return;
+            }
+            mPeersChangedPending = true;
+            getHandler().postDelayed(mPeersChangedRunnable, delayMs);
+        }
+
+        private void notifyPeersChanged(boolean alwaysBroadcast) {
+            mLastPeersChangedTimeMs = mClock.getElapsedSinceBootMillis();
+            PeerUpdateTracker.Delta delta = mPeerUpdateTracker.update(mPeers);
+            if (!delta.isEmpty()) {
+                List<Messenger> deadClients = new ArrayList<>();
+                for (ClientInfo c : mClientInfoList.values()) {
+                    if (!c.mPeerListChangedListenerEnabled) continue;
+                    if (!checkPeersPermission(c.mPeerListChangedListenerPackageName,
+                            c.mPeerListChangedListenerFeatureId, c.mPeerListChangedListenerUid,
+                            c.mPeerListChangedListenerExtras,
+                            c.mPeerListChangedListenerAttributionSource)) {
+                        loge("Peer list changed listener of "
+                                + c.mPeerListChangedListenerPackageName
+                                + " removed: permission denied");
+                        c.mPeerListChangedListenerEnabled = false;
+                        continue;
+                    }
+                    if (!sendPeerListChanged(c, delta)) {
+                        deadClients.add(c.mMessenger);
+                    }
+                }
+                for (Messenger m : deadClients) {
+                    clearClientInfo(m);
+                }
+            } else if (!alwaysBroadcast) {
+                mWifiP2pMetrics.incrementPeersChangedBroadcastsSaved();
+                return;
+            }
             final Intent intent = new Intent(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
             intent.putExtra(WifiP2pManager.EXTRA_P2P_DEVICE_LIST, new WifiP2pDeviceList(mPeers));
             intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
             sendBroadcastMultiplePermissions(intent);
         }
 
+        /**
+         * Send the peer list changes to the WifiP2pManager.Channel of the client.
+         *
+         * @return false if the client is dead.
+         */
+        private boolean sendPeerListChanged(ClientInfo clientInfo, PeerUpdateTracker.Delta delta) {
+            if (clientInfo.mMessenger == null) return true;
+            Bundle bundle = new Bundle();
+            bundle.putParcelableArrayList(WifiP2pManager.EXTRA_PARAM_KEY_ADDED_PEERS,
+                    delta.addedPeers);
+            bundle.putParcelableArrayList(WifiP2pManager.EXTRA_PARAM_KEY_UPDATED_PEERS,
+                    delta.updatedPeers);
+            bundle.putParcelableArrayList(WifiP2pManager.EXTRA_PARAM_KEY_REMOVED_PEERS,
+                    delta.removedPeers);
+            Message msg = Message.obtain();
+            msg.what = WifiP2pManager.PEER_LIST_CHANGED;
+            msg.obj = bundle;
+            try {
+                clientInfo.mMessenger.send(msg);
+            } catch (RemoteException e) {
+                if (isVerboseLoggingEnabled()) logd("detect dead channel");
+                return false;
+            }
+            return true;
+        }
+
         private void sendP2pConnectionChangedBroadcast() {
             if (isVerboseLoggingEnabled()) logd("sending p2p connection changed broadcast");
             Intent intent = new Intent(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
@@ -5060,6 +5242,13 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             }
             WifiP2pDevice dev = fetchCurrentDeviceDetails(config);
             if (dev == null) {
+                // The peer is not in the peer list, but its persistent group can still be
+                // joined if it was the group owner of the last connection.
+                int netId = isInvited ? -1 : getFastReconnectNetworkId(config);
+                if (netId >= 0) {
+                    if (isVerboseLoggingEnabled()) logd("fast reconnect with netId " + netId);
+                    return mWifiNative.p2pGroupAdd(netId);
+                }
                 Log.e(TAG, "Invalid device");
                 return false;
             }
@@ -5127,6 +5316,55 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             return false;
         }
 
+        private long getFastReconnectCacheTtlMs() {
+            return mContext.getResources().getInteger(
+                    R.integer.config_wifiP2pFastReconnectCacheTtlMs);
+        }
+
+        /**
+         * Record the parameters of the connection which has just completed, so the peer can be
+         * reconnected to quickly.
+         */
+        private void updateFastReconnectCache() {
+            if (getFastReconnectCacheTtlMs() <= 0) return;
+            if (mAutonomousGroup || mGroup == null) return;
+            boolean isPeerGroupOwner = !mGroup.isGroupOwner();
+            String deviceAddress = isPeerGroupOwner
+                    ? mGroup.getOwner().deviceAddress : mSavedPeerConfig.deviceAddress;
+            if (TextUtils.isEmpty(deviceAddress)
+                    || EMPTY_DEVICE_ADDRESS.equals(deviceAddress)) {
+                return;
+            }
+            int netId = mGroup.getNetworkId() >= 0 ? mGroup.getNetworkId() : -1;
+            mFastReconnectCache.put(new FastReconnectCache.Entry(deviceAddress,
+                    mGroup.getFrequency(), mSavedPeerConfig.groupOwnerIntent, isPeerGroupOwner,
+                    netId, netId >= 0 ? mGroup.getNetworkName() : null,
+                    mClock.getElapsedSinceBootMillis()));
+        }
+
+        private FastReconnectCache.Entry getFastReconnectEntry(WifiP2pConfig config) {
+            long ttlMs = getFastReconnectCacheTtlMs();
+            if (ttlMs <= 0 || config == null) return null;
+            return mFastReconnectCache.get(config.deviceAddress,
+                    mClock.getElapsedSinceBootMillis(), ttlMs);
+        }
+
+        /**
+         * Return the network id of the persistent group owned by the peer which was joined in
+         * the last connection with it, or -1 if it cannot be joined directly.
+         */
+        private int getFastReconnectNetworkId(WifiP2pConfig config) {
+            FastReconnectCache.Entry entry = getFastReconnectEntry(config);
+            if (entry == null || !entry.isPeerGroupOwner || entry.netId < 0) return -1;
+            if (config.netId >= 0 && config.netId != entry.netId) return -1;
+            // The group may have been removed or replaced since.
+            if (mGroups.getNetworkId(entry.deviceAddress, entry.networkName) != entry.netId) {
+                mFastReconnectCache.remove(entry.deviceAddress);
+                return -1;
+            }
+            return entry.netId;
+        }
+
         /**
          * Return the network id of the group owner profile which has the p2p client with
          * the specified device address in it's client list.
@@ -5374,6 +5612,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             mWifiNative.p2pServiceFlush();
             mServiceTransactionId = 0;
             mServiceDiscReqId = null;
+            mServiceDiscoveryStore.clearResponses();
 
             if (null != mThisDevice.wfdInfo) {
                 setWfdInfo(mThisDevice.wfdInfo);
@@ -5558,15 +5797,9 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         private boolean updateSupplicantServiceRequest() {
             clearSupplicantServiceRequest();
             StringBuffer sb = new StringBuffer();
-            for (ClientInfo c: mClientInfoList.values()) {
-                int key;
-                WifiP2pServiceRequest req;
-                for (int i = 0; i < c.mReqList.size(); i++) {
-                    req = c.mReqList.valueAt(i);
-                    if (req != null) {
-                        sb.append(req.getSupplicantQuery());
-                    }
-                }
+            // Requests shared by several clients are only queried once.
+            for (WifiP2pServiceRequest req : mServiceDiscoveryStore.getRequests()) {
+                sb.append(req.getSupplicantQuery());
             }
             if (sb.length() == 0) {
                 return false;
@@ -5603,11 +5836,27 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 return false;
             }
 
-            ++mServiceTransactionId;
-            // The Wi-Fi p2p spec says transaction id should be 1 byte and non-zero.
-            if (mServiceTransactionId == 256) mServiceTransactionId = 1;
-            req.setTransactionId((mServiceTransactionId));
-            clientInfo.mReqList.put(mServiceTransactionId, req);
+            // Share the transaction id of an equal request issued by another client.
+            int transactionId = mServiceDiscoveryStore.getTransactionId(req);
+            if (transactionId == 0) {
+                for (int i = 0; i < MAX_SERVICE_TRANSACTION_ID; i++) {
+                    ++mServiceTransactionId;
+                    if (mServiceTransactionId > MAX_SERVICE_TRANSACTION_ID) {
+                        mServiceTransactionId = 1;
+                    }
+                    if (!mServiceDiscoveryStore.isTransactionIdInUse(mServiceTransactionId)) {
+                        transactionId = mServiceTransactionId;
+                        break;
+                    }
+                }
+                if (transactionId == 0) {
+                    Log.e(TAG, "No transaction id available for the service request");
+                    return false;
+                }
+            }
+            req.setTransactionId(transactionId);
+            mServiceDiscoveryStore.addRequest(m, req, transactionId);
+            clientInfo.mReqList.put(transactionId, req);
             if (mServiceDiscReqId == null) {
                 return true;
             }
@@ -5631,6 +5880,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 if (req.equals(clientInfo.mReqList.valueAt(i))) {
                     removed = true;
                     clientInfo.mReqList.removeAt(i);
+                    mServiceDiscoveryStore.removeRequest(m, req);
                     break;
                 }
             }
@@ -5660,6 +5910,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             }
 
             clientInfo.mReqList.clear();
+            mServiceDiscoveryStore.removeClient(m);
 
             if (mServiceDiscReqId == null) {
                 return;
@@ -5747,28 +5998,58 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 Log.e(TAG, "sendServiceResponse with null response");
                 return;
             }
-            for (ClientInfo c : mClientInfoList.values()) {
-                WifiP2pServiceRequest req = c.mReqList.get(resp.getTransactionId());
-                if (req != null) {
-                    Message msg = Message.obtain();
-                    msg.what = WifiP2pManager.RESPONSE_SERVICE;
-                    msg.arg1 = 0;
-                    msg.arg2 = 0;
-                    msg.obj = resp;
-                    if (c.mMessenger == null) {
-                        continue;
-                    }
-                    try {
-                        c.mMessenger.send(msg);
-                    } catch (RemoteException e) {
-                        if (isVerboseLoggingEnabled()) logd("detect dead channel");
-                        clearClientInfo(c.mMessenger);
+            for (Messenger m : mServiceDiscoveryStore.getClients(resp.getTransactionId())) {
+                if (!sendServiceResponse(m, resp)) {
+                    clearClientInfo(m);
+                }
+            }
+        }
+
+        /**
+         * Send the service response to the WifiP2pManager.Channel of a client.
+         * @return false if the client is dead.
+         */
+        private boolean sendServiceResponse(Messenger m, WifiP2pServiceResponse resp) {
+            Message msg = Message.obtain();
+            msg.what = WifiP2pManager.RESPONSE_SERVICE;
+            msg.arg1 = 0;
+            msg.arg2 = 0;
+            msg.obj = resp;
+            try {
+                m.send(msg);
+            } catch (RemoteException e) {
+                if (isVerboseLoggingEnabled()) logd("detect dead channel");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Send the cached responses to the service discovery requests of a client, which were
+         * received within config_wifiP2pServiceResponseCacheTtlMs.
+         */
+        private void sendCachedServiceResponses(Messenger m) {
+            long ttlMs = getServiceResponseCacheTtlMs();
+            if (ttlMs <= 0) return;
+            ClientInfo clientInfo = getClientInfo(m, false);
+            if (clientInfo == null) return;
+            long nowMs = mClock.getElapsedSinceBootMillis();
+            for (int i = 0; i < clientInfo.mReqList.size(); i++) {
+                for (WifiP2pServiceResponse resp : mServiceDiscoveryStore.getFreshResponses(
+                        clientInfo.mReqList.valueAt(i), mPeers, nowMs, ttlMs)) {
+                    if (!sendServiceResponse(m, resp)) {
+                        clearClientInfo(m);
                         return;
                     }
                 }
             }
         }
 
+        private long getServiceResponseCacheTtlMs() {
+            return mContext.getResources().getInteger(
+                    R.integer.config_wifiP2pServiceResponseCacheTtlMs);
+        }
+
         /**
          * We don't get notifications of clients that have gone away.
          * We detect this actively when services are added and throw
@@ -5830,21 +6111,26 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 Bundle extras, Object attributionSource) {
             // getPeers() is guaranteed to be invoked after Wifi Service is up
             // This ensures getInstance() will return a non-null object now
-            boolean hasPermission = false;
-            if (isPlatformOrTargetSdkLessThanT(pkgName, uid)) {
-                hasPermission = mWifiPermissionsUtil.checkCanAccessWifiDirect(
-                        pkgName, featureId, uid, true);
-            } else {
-                hasPermission = checkNearbyDevicesPermission(uid, pkgName,
-                        extras, "getPeers", attributionSource);
-            }
-            if (hasPermission) {
+            if (checkPeersPermission(pkgName, featureId, uid, extras, attributionSource)) {
                 return new WifiP2pDeviceList(mPeers);
             } else {
                 return new WifiP2pDeviceList();
             }
         }
 
+        /**
+         * Check whether the caller is allowed to get the P2p Peers.
+         */
+        private boolean checkPeersPermission(String pkgName, @Nullable String featureId, int uid,
+                Bundle extras, Object attributionSource) {
+            if (isPlatformOrTargetSdkLessThanT(pkgName, uid)) {
+                return mWifiPermissionsUtil.checkCanAccessWifiDirect(
+                        pkgName, featureId, uid, true);
+            }
+            return checkNearbyDevicesPermission(uid, pkgName,
+                    extras, "getPeers", attributionSource);
+        }
+
         private void setPendingFactoryReset(boolean pending) {
             mSettingsConfigStore.put(WIFI_P2P_PENDING_FACTORY_RESET, pending);
         }
@@ -6254,6 +6540,16 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         // A local service information list.
         private List<WifiP2pServiceInfo> mServList;
 
+        // Whether the peer list changes are sent to the client.
+        private boolean mPeerListChangedListenerEnabled;
+        // The caller which set the peer list changed listener, whose permissions are checked
+        // again before each notification.
+        private String mPeerListChangedListenerPackageName;
+        private @Nullable String mPeerListChangedListenerFeatureId;
+        private int mPeerListChangedListenerUid;
+        private @Nullable Bundle mPeerListChangedListenerExtras;
+        private @Nullable Object mPeerListChangedListenerAttributionSource;
+
         private ClientInfo(Messenger m) {
             mMessenger = m;
             mPackageName = null;
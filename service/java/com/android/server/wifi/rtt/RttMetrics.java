@@ -90,6 +90,11 @@ public class RttMetrics {
     private SparseIntArray mOverallStatusHistogram = new SparseIntArray();
     private SparseIntArray mMeasurementDurationApOnlyHistogram = new SparseIntArray();
     private SparseIntArray mMeasurementDurationWithAwareHistogram = new SparseIntArray();
+    private int mNumAggregatedRequests = 0;
+    private int mNumDeduplicatedPeers = 0;
+    private SparseIntArray mAggregatedMeasurementDurationHistogram = new SparseIntArray();
+    private long mAggregationSavedLatencyMs = 0;
+    private int mNumRequestsServedFromCache = 0;
     private PerPeerTypeInfo[] mPerPeerTypeInfo;
 
     public RttMetrics(Clock clock) {
@@ -214,6 +219,37 @@ public class RttMetrics {
         }
     }
 
+    /**
+     * Record metrics for requests merged into the HAL command of another request.
+     *
+     * @param numAggregatedRequests Number of requests merged into the command.
+     * @param numDeduplicatedPeers Number of peers of the merged requests which were already part of
+     *                             the command.
+     */
+    public void recordAggregatedRequests(int numAggregatedRequests, int numDeduplicatedPeers) {
+        mNumAggregatedRequests += numAggregatedRequests;
+        mNumDeduplicatedPeers += numDeduplicatedPeers;
+    }
+
+    /**
+     * Record metrics for the results of a HAL command serving several requests.
+     *
+     * @param numRequests Number of requests served by the command.
+     * @param measurementDuration Duration of the command.
+     */
+    public void recordAggregatedResult(int numRequests, int measurementDuration) {
+        addValueToLinearHistogram(measurementDuration, mAggregatedMeasurementDurationHistogram,
+                MEASUREMENT_DURATION_HISTOGRAM_AP);
+        mAggregationSavedLatencyMs += (long) measurementDuration * (numRequests - 1);
+    }
+
+    /**
+     * Record metrics for a request served from recent results without ranging.
+     */
+    public void recordRequestServedFromCache() {
+        mNumRequestsServedFromCache++;
+    }
+
     /**
      * Record metrics for the overall ranging request status.
      */
@@ -282,6 +318,14 @@ public class RttMetrics {
                     linearHistogramToGenericBuckets(mMeasurementDurationWithAwareHistogram,
                             MEASUREMENT_DURATION_HISTOGRAM_AWARE));
 
+            log.numAggregatedRequests = mNumAggregatedRequests;
+            log.numDeduplicatedPeers = mNumDeduplicatedPeers;
+            log.histogramAggregatedMeasurementDuration = genericBucketsToRttBuckets(
+                    linearHistogramToGenericBuckets(mAggregatedMeasurementDurationHistogram,
+                            MEASUREMENT_DURATION_HISTOGRAM_AP));
+            log.aggregationSavedLatencyMs = mAggregationSavedLatencyMs;
+            log.numRequestsServedFromCache = mNumRequestsServedFromCache;
+
             consolidatePeerType(log.rttToAp, mPerPeerTypeInfo[PEER_AP]);
             consolidatePeerType(log.rttToAware, mPerPeerTypeInfo[PEER_AWARE]);
         }
@@ -385,6 +429,12 @@ public class RttMetrics {
             pw.println("mMeasurementDurationApOnlyHistogram" + mMeasurementDurationApOnlyHistogram);
             pw.println("mMeasurementDurationWithAwareHistogram"
                     + mMeasurementDurationWithAwareHistogram);
+            pw.println("mNumAggregatedRequests:" + mNumAggregatedRequests);
+            pw.println("mNumDeduplicatedPeers:" + mNumDeduplicatedPeers);
+            pw.println("mAggregatedMeasurementDurationHistogram:"
+                    + mAggregatedMeasurementDurationHistogram);
+            pw.println("mAggregationSavedLatencyMs:" + mAggregationSavedLatencyMs);
+            pw.println("mNumRequestsServedFromCache:" + mNumRequestsServedFromCache);
             pw.println("AP:" + mPerPeerTypeInfo[PEER_AP]);
             pw.println("AWARE:" + mPerPeerTypeInfo[PEER_AWARE]);
         }
@@ -401,6 +451,11 @@ public class RttMetrics {
             mPerPeerTypeInfo[PEER_AWARE] = new PerPeerTypeInfo();
             mMeasurementDurationApOnlyHistogram.clear();
             mMeasurementDurationWithAwareHistogram.clear();
+            mNumAggregatedRequests = 0;
+            mNumDeduplicatedPeers = 0;
+            mAggregatedMeasurementDurationHistogram.clear();
+            mAggregationSavedLatencyMs = 0;
+            mNumRequestsServedFromCache = 0;
         }
     }
 
@@ -54,6 +54,7 @@ import android.os.UserHandle;
 import android.os.WorkSource;
 import android.os.WorkSource.WorkChain;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -74,10 +75,12 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Implementation of the IWifiRttManager AIDL interface and of the RttService state manager.
@@ -114,6 +117,9 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
     // arbitrary, larger than anything reasonable
     /* package */ static final int MAX_QUEUED_PER_UID = 20;
 
+    // Maximum number of responders whose last result is cached.
+    private static final int MAX_CACHED_RESULTS = 64;
+
     public RttServiceImpl(Context context) {
         mContext = context;
         mShellCommand = new RttShellCommand();
@@ -580,6 +586,9 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         private int mNextCommandId = 1000;
         private Map<Integer, RttRequesterInfo> mRttRequesterInfo = new HashMap<>();
         private List<RttRequestInfo> mRttRequestQueue = new LinkedList<>();
+        // last successful HAL result per responder
+        private final LruCache<ResponderConfig, CachedRangingResult> mResultCache =
+                new LruCache<>(MAX_CACHED_RESULTS);
         private WakeupMessage mRangingTimeoutMessage = null;
 
         RttServiceSynchronized(Looper looper, RttNative rttNative) {
@@ -594,7 +603,9 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
         private void cancelRanging(RttRequestInfo rri) {
             ArrayList<byte[]> macAddresses = new ArrayList<>();
-            for (ResponderConfig peer : rri.request.mRttPeers) {
+            RangingRequest request =
+                    rri.dispatchedRequest == null ? rri.request : rri.dispatchedRequest;
+            for (ResponderConfig peer : request.mRttPeers) {
                 macAddresses.add(peer.macAddress.toByteArray());
             }
 
@@ -603,9 +614,11 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
         private void cleanUpOnDisable() {
             if (VDBG) Log.v(TAG, "RttServiceSynchronized.cleanUpOnDisable");
+            int lastCancelledCmdId = 0;
             for (RttRequestInfo rri : mRttRequestQueue) {
                 try {
-                    if (rri.dispatchedToNative) {
+                    if (rri.dispatchedToNative && rri.cmdId != lastCancelledCmdId) {
+                        lastCancelledCmdId = rri.cmdId;
                         // may not be necessary in some cases (e.g. Wi-Fi disable may already clear
                         // up active RTT), but in other cases will be needed (doze disabling RTT
                         // but Wi-Fi still up). Doesn't hurt - worst case will fail.
@@ -623,6 +636,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             }
             mRttRequestQueue.clear();
             mRangingTimeoutMessage.cancel();
+            mResultCache.evictAll();
         }
 
         /**
@@ -652,7 +666,9 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 }
 
                 if (match) {
-                    if (!rri.dispatchedToNative) {
+                    if (!rri.dispatchedToNative || getNumRequestsForCommand(rri.cmdId) > 1) {
+                        // a request aggregated with other requests is dropped without cancelling
+                        // the HAL command: its results are still needed by the other requests
                         it.remove();
                         rri.binder.unlinkToDeath(rri.dr, 0);
                     } else {
@@ -692,11 +708,14 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 return;
             }
             cancelRanging(rri);
-            try {
-                mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_TIMEOUT);
-                rri.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RttServiceSynchronized.timeoutRangingRequest: callback failed: " + e);
+            for (RttRequestInfo request : getRequestsForCommand(rri.cmdId)) {
+                try {
+                    mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_TIMEOUT);
+                    request.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
+                } catch (RemoteException e) {
+                    Log.e(TAG,
+                            "RttServiceSynchronized.timeoutRangingRequest: callback failed: " + e);
+                }
             }
             executeNextRangingRequestIfPossible(true);
         }
@@ -732,6 +751,11 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             newRequest.callback = callback;
             newRequest.isCalledFromPrivilegedContext = isCalledFromPrivilegedContext;
             newRequest.attributionSource = attributionSource;
+
+            if (serveFromResultCache(newRequest)) {
+                binder.unlinkToDeath(dr, 0);
+                return;
+            }
             mRttRequestQueue.add(newRequest);
 
             if (VDBG) {
@@ -793,6 +817,13 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 } else {
                     RttRequestInfo topOfQueueRequest = mRttRequestQueue.remove(0);
                     topOfQueueRequest.binder.unlinkToDeath(topOfQueueRequest.dr, 0);
+                    // also pop the requests aggregated into the same HAL command
+                    while (topOfQueueRequest.dispatchedToNative && mRttRequestQueue.size() != 0
+                            && mRttRequestQueue.get(0).dispatchedToNative
+                            && mRttRequestQueue.get(0).cmdId == topOfQueueRequest.cmdId) {
+                        RttRequestInfo aggregatedRequest = mRttRequestQueue.remove(0);
+                        aggregatedRequest.binder.unlinkToDeath(aggregatedRequest.dr, 0);
+                    }
                 }
             }
 
@@ -857,11 +888,12 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             }
 
             nextRequest.cmdId = mNextCommandId++;
+            nextRequest.dispatchedRequest = aggregateQueuedRequests(nextRequest);
             mLastRequestTimestamp = mClock.getWallClockMillis();
-            if (mRttNative.rangeRequest(nextRequest.cmdId, nextRequest.request,
+            if (mRttNative.rangeRequest(nextRequest.cmdId, nextRequest.dispatchedRequest,
                     nextRequest.isCalledFromPrivilegedContext)) {
                 long timeout = HAL_RANGING_TIMEOUT_MS;
-                for (ResponderConfig responderConfig : nextRequest.request.mRttPeers) {
+                for (ResponderConfig responderConfig : nextRequest.dispatchedRequest.mRttPeers) {
                     if (responderConfig.responderType == ResponderConfig.RESPONDER_AWARE) {
                         timeout = HAL_AWARE_RANGING_TIMEOUT_MS;
                         break;
@@ -870,19 +902,128 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 mRangingTimeoutMessage.schedule(mClock.getElapsedSinceBootMillis() + timeout);
             } else {
                 Log.w(TAG, "RttServiceSynchronized.startRanging: native rangeRequest call failed");
-                try {
-                    mRttMetrics.recordOverallStatus(
-                            WifiMetricsProto.WifiRttLog.OVERALL_HAL_FAILURE);
-                    nextRequest.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
-                } catch (RemoteException e) {
-                    Log.e(TAG, "RttServiceSynchronized.startRanging: HAL request failed, callback "
-                            + "failed -- " + e);
+                nextRequest.dispatchedToNative = true;
+                for (RttRequestInfo request : getRequestsForCommand(nextRequest.cmdId)) {
+                    try {
+                        mRttMetrics.recordOverallStatus(
+                                WifiMetricsProto.WifiRttLog.OVERALL_HAL_FAILURE);
+                        request.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "RttServiceSynchronized.startRanging: HAL request failed, "
+                                + "callback failed -- " + e);
+                    }
                 }
                 executeNextRangingRequestIfPossible(true);
             }
             nextRequest.dispatchedToNative = true;
         }
 
+        /**
+         * Merge the compatible queued requests into the HAL command of the request at the top of
+         * the queue, up to the HAL peer limit. Peers shared by several requests are only ranged
+         * once. The merged requests are moved right after the top of the queue and share its
+         * command ID; their results are demultiplexed in {@link #onRangingResults(int, List)}.
+         *
+         * @return the request to dispatch to the HAL.
+         */
+        private RangingRequest aggregateQueuedRequests(RttRequestInfo topOfQueueRequest) {
+            if (mRttRequestQueue.size() < 2 || !mContext.getResources().getBoolean(
+                    R.bool.config_wifiRttRequestAggregationEnabled)) {
+                return topOfQueueRequest.request;
+            }
+
+            Map<MacAddress, ResponderConfig> peers = new LinkedHashMap<>();
+            for (ResponderConfig peer : topOfQueueRequest.request.mRttPeers) {
+                peers.putIfAbsent(peer.macAddress, peer);
+            }
+            List<RttRequestInfo> aggregatedRequests = new ArrayList<>();
+            int numDeduplicatedPeers = 0;
+            for (int i = 1; i < mRttRequestQueue.size(); ++i) {
+                RttRequestInfo rri = mRttRequestQueue.get(i);
+                if (rri.dispatchedToNative || rri.peerHandlesTranslated
+                        || rri.isCalledFromPrivilegedContext
+                                != topOfQueueRequest.isCalledFromPrivilegedContext
+                        || rri.request.mRttBurstSize
+                                != topOfQueueRequest.request.mRttBurstSize) {
+                    continue;
+                }
+                int numNewPeers = 0;
+                boolean compatible = true;
+                for (ResponderConfig peer : rri.request.mRttPeers) {
+                    if (peer.macAddress == null) {
+                        // PeerHandle needing translation
+                        compatible = false;
+                        break;
+                    }
+                    ResponderConfig existingPeer = peers.get(peer.macAddress);
+                    if (existingPeer == null) {
+                        numNewPeers++;
+                    } else if (!existingPeer.equals(peer)) {
+                        compatible = false;
+                        break;
+                    }
+                }
+                if (!compatible || peers.size() + numNewPeers > RangingRequest.getMaxPeers()
+                        || !preExecThrottleCheck(rri.workSource)) {
+                    continue;
+                }
+                for (ResponderConfig peer : rri.request.mRttPeers) {
+                    peers.putIfAbsent(peer.macAddress, peer);
+                }
+                numDeduplicatedPeers += rri.request.mRttPeers.size() - numNewPeers;
+                aggregatedRequests.add(rri);
+            }
+            if (aggregatedRequests.isEmpty()) {
+                return topOfQueueRequest.request;
+            }
+
+            RangingRequest.Builder builder = new RangingRequest.Builder()
+                    .setRttBurstSize(topOfQueueRequest.request.mRttBurstSize);
+            for (ResponderConfig peer : peers.values()) {
+                builder.addResponder(peer);
+            }
+            RangingRequest aggregatedRangingRequest = builder.build();
+
+            mRttRequestQueue.removeAll(aggregatedRequests);
+            mRttRequestQueue.addAll(1, aggregatedRequests);
+            for (RttRequestInfo rri : aggregatedRequests) {
+                rri.cmdId = topOfQueueRequest.cmdId;
+                rri.dispatchedRequest = aggregatedRangingRequest;
+                rri.dispatchedToNative = true;
+            }
+            mRttMetrics.recordAggregatedRequests(aggregatedRequests.size(), numDeduplicatedPeers);
+            if (mDbg) {
+                Log.v(TAG, "aggregateQueuedRequests: cmdId=" + topOfQueueRequest.cmdId
+                        + ", numAggregatedRequests=" + aggregatedRequests.size()
+                        + ", numDeduplicatedPeers=" + numDeduplicatedPeers);
+            }
+            return aggregatedRangingRequest;
+        }
+
+        /**
+         * Returns the requests at the top of the queue served by the specified HAL command.
+         */
+        private List<RttRequestInfo> getRequestsForCommand(int cmdId) {
+            List<RttRequestInfo> requests = new ArrayList<>();
+            for (RttRequestInfo rri : mRttRequestQueue) {
+                if (!rri.dispatchedToNative || rri.cmdId != cmdId) {
+                    break;
+                }
+                requests.add(rri);
+            }
+            return requests;
+        }
+
+        private int getNumRequestsForCommand(int cmdId) {
+            int count = 0;
+            for (RttRequestInfo rri : mRttRequestQueue) {
+                if (rri.dispatchedToNative && rri.cmdId == cmdId) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
         /**
          * Perform pre-execution throttling checks:
          * - If all uids in ws are in background then check last execution and block if request is
@@ -1097,50 +1238,174 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 return;
             }
 
-            boolean onlyAwareApRanged = topOfQueueRequest.request.mRttPeers.stream().allMatch(
+            int measurementDuration = (int) (mClock.getWallClockMillis() - mLastRequestTimestamp);
+            cacheResults(topOfQueueRequest, results);
+            List<RttRequestInfo> requests = getRequestsForCommand(cmdId);
+            if (requests.size() > 1) {
+                mRttMetrics.recordAggregatedResult(requests.size(), measurementDuration);
+                for (RttRequestInfo rri : requests) {
+                    dispatchRangingResults(rri,
+                            filterResults(rri.request, rri.dispatchedRequest, results),
+                            measurementDuration);
+                }
+            } else {
+                dispatchRangingResults(topOfQueueRequest, results, measurementDuration);
+            }
+
+            executeNextRangingRequestIfPossible(true);
+        }
+
+        private long getResultCacheToleranceMs() {
+            return mContext.getResources().getInteger(
+                    R.integer.config_wifiRttResultCacheToleranceMs);
+        }
+
+        /**
+         * Cache the successful results of a HAL command, keyed by the configuration of their
+         * responder.
+         */
+        private void cacheResults(RttRequestInfo topOfQueueRequest, List<RangingResult> results) {
+            if (getResultCacheToleranceMs() <= 0 || results == null) {
+                return;
+            }
+            RangingRequest request = topOfQueueRequest.dispatchedRequest == null
+                    ? topOfQueueRequest.request : topOfQueueRequest.dispatchedRequest;
+            long now = mClock.getElapsedSinceBootMillis();
+            for (RangingResult result : results) {
+                if (result == null
+                        || result.getStatus() != RttNative.FRAMEWORK_RTT_STATUS_SUCCESS) {
+                    continue;
+                }
+                for (ResponderConfig peer : request.mRttPeers) {
+                    if (result.getMacAddress() != null
+                            && result.getMacAddress().equals(peer.macAddress)) {
+                        mResultCache.put(peer, new CachedRangingResult(result, now,
+                                topOfQueueRequest.isCalledFromPrivilegedContext));
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Serve a request from the result cache if the last result of each of its responders is
+         * within the configured tolerance. Results of non-privileged requests do not contain the
+         * LCI/LCR so they are not used to serve privileged requests. The cached results go
+         * through the same permission checks and post-processing as HAL results.
+         *
+         * @return true if the request was served, false if it needs to be executed.
+         */
+        private boolean serveFromResultCache(RttRequestInfo rri) {
+            long toleranceMs = getResultCacheToleranceMs();
+            if (toleranceMs <= 0 || !isAvailable()) {
+                return false;
+            }
+            long now = mClock.getElapsedSinceBootMillis();
+            List<RangingResult> results = new ArrayList<>(rri.request.mRttPeers.size());
+            for (ResponderConfig peer : rri.request.mRttPeers) {
+                if (peer.macAddress == null) {
+                    return false; // PeerHandle needing translation
+                }
+                CachedRangingResult cachedResult = mResultCache.get(peer);
+                if (cachedResult == null || now - cachedResult.timestamp > toleranceMs
+                        || (rri.isCalledFromPrivilegedContext
+                                && !cachedResult.isFromPrivilegedContext)) {
+                    return false;
+                }
+                results.add(cachedResult.result);
+            }
+
+            if (mDbg) {
+                Log.v(TAG, "serveFromResultCache: request=" + rri);
+            }
+            mRttMetrics.recordRequestServedFromCache();
+            dispatchRangingResults(rri, results, -1);
+            return true;
+        }
+
+        /**
+         * Deliver the results of a HAL command to one of the requests it served, after checking
+         * the permissions of its caller. A negative measurement duration indicates cached results
+         * which are not recorded again in the result metrics.
+         */
+        private void dispatchRangingResults(RttRequestInfo rri, List<RangingResult> results,
+                int measurementDuration) {
+            boolean onlyAwareApRanged = rri.request.mRttPeers.stream().allMatch(
                     config -> config.responderType == ResponderConfig.RESPONDER_AWARE);
             boolean permissionGranted = false;
             if (onlyAwareApRanged && SdkLevel.isAtLeastT()) {
                 // Special case: if only aware APs are ranged, then allow this request if the caller
                 // has nearby permission.
                 permissionGranted = mWifiPermissionsUtil.checkNearbyDevicesPermission(
-                        (AttributionSource) topOfQueueRequest.attributionSource, true,
+                        (AttributionSource) rri.attributionSource, true,
                         "wifi aware on ranging result");
             }
             if (!permissionGranted) {
                 permissionGranted =
                         mWifiPermissionsUtil.checkCallersLocationPermission(
-                                topOfQueueRequest.callingPackage,
-                                topOfQueueRequest.callingFeatureId,
-                                topOfQueueRequest.uid, /* coarseForTargetSdkLessThanQ */ false,
+                                rri.callingPackage,
+                                rri.callingFeatureId,
+                                rri.uid, /* coarseForTargetSdkLessThanQ */ false,
                                 null) && mWifiPermissionsUtil.isLocationModeEnabled();
             }
             try {
                 if (permissionGranted) {
-                    List<RangingResult> finalResults = postProcessResults(topOfQueueRequest.request,
-                            results, topOfQueueRequest.isCalledFromPrivilegedContext);
+                    List<RangingResult> finalResults = postProcessResults(rri.request,
+                            results, rri.isCalledFromPrivilegedContext);
                     mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
-                    mRttMetrics.recordResult(topOfQueueRequest.request, results,
-                            (int) (mClock.getWallClockMillis() - mLastRequestTimestamp));
+                    if (measurementDuration >= 0) {
+                        mRttMetrics.recordResult(rri.request, results, measurementDuration);
+                    }
                     if (VDBG) {
                         Log.v(TAG, "RttServiceSynchronized.onRangingResults: finalResults="
                                 + finalResults);
                     }
-                    topOfQueueRequest.callback.onRangingResults(finalResults);
+                    rri.callback.onRangingResults(finalResults);
                 } else {
                     Log.w(TAG, "RttServiceSynchronized.onRangingResults: location permission "
                             + "revoked - not forwarding results");
                     mRttMetrics.recordOverallStatus(
                             WifiMetricsProto.WifiRttLog.OVERALL_LOCATION_PERMISSION_MISSING);
-                    topOfQueueRequest.callback.onRangingFailure(
-                            RangingResultCallback.STATUS_CODE_FAIL);
+                    rri.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
                 }
             } catch (RemoteException e) {
                 Log.e(TAG,
                         "RttServiceSynchronized.onRangingResults: callback exception -- " + e);
             }
+        }
 
-            executeNextRangingRequestIfPossible(true);
+        /**
+         * Returns the results of an aggregated HAL command which correspond to the peers of the
+         * specified request. A result corresponds to a peer if it has its MAC address and was
+         * ranged with the same peer type and Aware peer handle.
+         */
+        private List<RangingResult> filterResults(RangingRequest request,
+                RangingRequest dispatchedRequest, List<RangingResult> results) {
+            Map<MacAddress, ResponderConfig> dispatchedPeers = new HashMap<>();
+            for (ResponderConfig peer : dispatchedRequest.mRttPeers) {
+                dispatchedPeers.put(peer.macAddress, peer);
+            }
+            List<RangingResult> filteredResults = new ArrayList<>();
+            for (RangingResult result : results) {
+                if (result.getMacAddress() == null) {
+                    continue;
+                }
+                ResponderConfig dispatchedPeer = dispatchedPeers.get(result.getMacAddress());
+                if (dispatchedPeer == null) {
+                    continue;
+                }
+                for (ResponderConfig peer : request.mRttPeers) {
+                    if (result.getMacAddress().equals(peer.macAddress)
+                            && peer.responderType == dispatchedPeer.responderType
+                            && Objects.equals(peer.peerHandle, dispatchedPeer.peerHandle)
+                            && (result.getPeerHandle() == null
+                                    || result.getPeerHandle().equals(peer.peerHandle))) {
+                        filteredResults.add(result);
+                        break;
+                    }
+                }
+            }
+            return filteredResults;
         }
 
         /*
@@ -1231,6 +1496,8 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             pw.println("  mRttRequesterInfo: " + mRttRequesterInfo);
             pw.println("  mRttRequestQueue: " + mRttRequestQueue);
             pw.println("  mRangingTimeoutMessage: " + mRangingTimeoutMessage);
+            pw.println("  mResultCache: size=" + mResultCache.size() + ", hits="
+                    + mResultCache.hitCount() + ", misses=" + mResultCache.missCount());
             mRttMetrics.dump(fd, pw, args);
             mRttNative.dump(fd, pw, args);
         }
@@ -1251,6 +1518,8 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         public Object attributionSource;
 
         public int cmdId = 0; // uninitialized cmdId value
+        // request dispatched to the HAL: may include the peers of other aggregated requests
+        public RangingRequest dispatchedRequest = null;
         public boolean dispatchedToNative = false;
         public boolean peerHandlesTranslated = false;
 
@@ -1267,6 +1536,19 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         }
     }
 
+    private static class CachedRangingResult {
+        public final RangingResult result;
+        public final long timestamp;
+        public final boolean isFromPrivilegedContext;
+
+        CachedRangingResult(RangingResult result, long timestamp,
+                boolean isFromPrivilegedContext) {
+            this.result = result;
+            this.timestamp = timestamp;
+            this.isFromPrivilegedContext = isFromPrivilegedContext;
+        }
+    }
+
     private static class RttRequesterInfo {
         public long lastRangingExecuted;
 
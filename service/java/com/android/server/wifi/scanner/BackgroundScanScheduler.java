@@ -604,25 +604,6 @@ public class BackgroundScanScheduler {
         return targetBucketSettings;
     }
 
-    /**
-     * Split the scan settings into 2 so that they can be put into 2 separate buckets.
-     * @return The first scan setting needs to be added back to the current bucket
-     *         The second scan setting needs to be added to the other bucket
-     */
-    private Pair<ScanSettings, ScanSettings> createSplitSettings(ScanSettings originalSettings,
-            ChannelCollection targetBucketChannelCol) {
-        Set<Integer> currentBucketChannels =
-                targetBucketChannelCol.getMissingChannelsFromSettings(originalSettings);
-        Set<Integer> targetBucketChannels =
-                targetBucketChannelCol.getContainingChannelsFromSettings(originalSettings);
-        // Two Copy of the original settings
-        ScanSettings currentBucketSettings =
-                createCurrentBucketSplitSettings(originalSettings, currentBucketChannels);
-        ScanSettings targetBucketSettings =
-                createTargetBucketSplitSettings(originalSettings, targetBucketChannels);
-        return Pair.create(currentBucketSettings, targetBucketSettings);
-    }
-
     /**
      * Try to merge the settings to lower buckets.
      * Check if the channels in this settings is already covered by a lower time period
@@ -640,27 +621,36 @@ public class BackgroundScanScheduler {
         ScanSettings remainingSplitSettings = null;
         boolean wasMerged = false;
         Bucket maxScheduledBucket = currentBucket;
+        ChannelCollection settingsChannelCol = mChannelHelper.createChannelCollection();
+        settingsChannelCol.addChannels(originalSettings);
+        // Channels of the settings which are not yet covered by a lower time period bucket.
+        ChannelCollection remainingChannelCol = mChannelHelper.createChannelCollection();
+        remainingChannelCol.addChannels(settingsChannelCol);
+        ChannelCollection splitChannelCol = mChannelHelper.createChannelCollection();
 
         while (iterTargetBuckets.hasPrevious()) {
             Bucket targetBucket = iterTargetBuckets.previous();
             ChannelCollection targetBucketChannelCol = targetBucket.getChannelCollection();
-            if (targetBucketChannelCol.containsSettings(originalSettings)) {
+            if (targetBucketChannelCol.containsChannels(settingsChannelCol)) {
                 targetBucket.addSettings(originalSettings);
                 // Update the max scheduled bucket for this setting
                 maxScheduledBucket = targetBucket;
                 wasMerged = true;
-            } else if (targetBucketChannelCol.partiallyContainsSettings(originalSettings)) {
-                Pair<ScanSettings, ScanSettings> splitSettings;
-                if (remainingSplitSettings == null) {
-                    splitSettings = createSplitSettings(originalSettings, targetBucketChannelCol);
-                } else {
-                    splitSettings =
-                            createSplitSettings(remainingSplitSettings, targetBucketChannelCol);
-                }
-                targetBucket.addSettings(splitSettings.second);
+                continue;
+            }
+            splitChannelCol.clear();
+            splitChannelCol.addChannels(remainingChannelCol);
+            splitChannelCol.retainChannels(targetBucketChannelCol);
+            if (!splitChannelCol.isEmpty()) {
+                // Split the settings: the channels already in the target bucket are moved to it
+                // and the other channels stay in the current bucket.
+                remainingChannelCol.removeChannels(targetBucketChannelCol);
+                targetBucket.addSettings(createTargetBucketSplitSettings(originalSettings,
+                        splitChannelCol.getAllChannels()));
                 // Update the |remainingSplitSettings| to keep track of the remaining scan settings.
                 // The original settings could be split across multiple buckets.
-                remainingSplitSettings = splitSettings.first;
+                remainingSplitSettings = createCurrentBucketSplitSettings(originalSettings,
+                        remainingChannelCol.getAllChannels());
                 wasMerged = true;
             }
         }
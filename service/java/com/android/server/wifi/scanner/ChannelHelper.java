@@ -142,6 +142,31 @@ public abstract class ChannelHelper {
          * Add 6Ghz Preferred Scanning Channels into the current channel collection.
          */
         public abstract void add6GhzPscChannels();
+        /**
+         * Add all the channels of another collection created by the same helper to this
+         * collection.
+         */
+        public abstract void addChannels(ChannelCollection other);
+        /**
+         * Remove all the channels which are not in another collection created by the same helper
+         * from this collection.
+         */
+        public abstract void retainChannels(ChannelCollection other);
+        /**
+         * Remove all the channels of another collection created by the same helper from this
+         * collection.
+         */
+        public abstract void removeChannels(ChannelCollection other);
+        /**
+         * @return true if the collection contains all the channels of another collection created
+         * by the same helper
+         */
+        public abstract boolean containsChannels(ChannelCollection other);
+        /**
+         * Gets all the channels in the current channel collection, including those of the bands
+         * which were added entirely.
+         */
+        public abstract Set<Integer> getAllChannels();
 
         /**
          * Add all channels in the ScanSetting to the collection
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.scanner;
+
+import android.annotation.NonNull;
+import android.net.wifi.ScanResult;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Caches the results of the most recent single scan of each channel, so that single scan requests
+ * which tolerate slightly stale results can be served without scanning the channel again.
+ *
+ * Note: This class is not thread safe and is expected to only be used from the single scan state
+ * machine.
+ */
+public class ChannelScanResultCache {
+    // Time (elapsed since boot) at which each channel was last scanned.
+    private final SparseLongArray mLastScanTimeMs = new SparseLongArray();
+    // Results seen on each channel during its last scan.
+    private final SparseArray<List<ScanResult>> mResultsByChannel = new SparseArray<>();
+
+    /**
+     * Record the results of a scan. The results of every scanned channel are replaced, even if
+     * nothing was seen on the channel this time. Results on channels that were not part of the
+     * scan are ignored.
+     *
+     * @param scannedChannels frequencies of all the channels covered by the scan.
+     * @param results results returned by the scan.
+     * @param nowMs time (elapsed since boot) at which the scan completed.
+     */
+    public void update(@NonNull Set<Integer> scannedChannels, @NonNull ScanResult[] results,
+            long nowMs) {
+        for (int channel : scannedChannels) {
+            mLastScanTimeMs.put(channel, nowMs);
+            List<ScanResult> channelResults = mResultsByChannel.get(channel);
+            if (channelResults == null) {
+                channelResults = new ArrayList<>();
+                mResultsByChannel.put(channel, channelResults);
+            } else {
+                channelResults.clear();
+            }
+        }
+        for (ScanResult result : results) {
+            if (!scannedChannels.contains(result.frequency)) continue;
+            mResultsByChannel.get(result.frequency).add(result);
+        }
+    }
+
+    /**
+     * Returns whether the channel was scanned less than |maxAgeMs| before |nowMs|.
+     */
+    public boolean isFresh(int channel, long nowMs, long maxAgeMs) {
+        int index = mLastScanTimeMs.indexOfKey(channel);
+        return index >= 0 && nowMs - mLastScanTimeMs.valueAt(index) < maxAgeMs;
+    }
+
+    /**
+     * Append the cached results for the given channel to |out|.
+     */
+    public void getResults(int channel, @NonNull List<ScanResult> out) {
+        List<ScanResult> channelResults = mResultsByChannel.get(channel);
+        if (channelResults != null) {
+            out.addAll(channelResults);
+        }
+    }
+
+    /**
+     * Drop all the cached results.
+     */
+    public void clear() {
+        mLastScanTimeMs.clear();
+        mResultsByChannel.clear();
+    }
+}
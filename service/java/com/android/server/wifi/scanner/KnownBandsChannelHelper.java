@@ -64,6 +64,13 @@ public class KnownBandsChannelHelper extends ChannelHelper {
     public static final int BAND_6_GHZ_HIGH_END_FREQ = ScanResult.BAND_6_GHZ_END_FREQ_MHZ;
 
     private WifiScanner.ChannelSpec[][] mBandsToChannels;
+    /**
+     * Sorted frequencies of all the known channels. The position of a frequency in this table is
+     * its index in the channel bitsets.
+     */
+    private int[] mChannelTable = new int[0];
+    private long[][] mBandsToChannelBits;
+    private long[] m6GhzPscChannelBits;
 
     protected void setBandChannels(int[] channels2G, int[] channels5G, int[] channelsDfs,
             int[] channels6G, int[] channels60G) {
@@ -112,6 +119,62 @@ public class KnownBandsChannelHelper extends ChannelHelper {
         } else {
             mBandsToChannels[WIFI_BAND_INDEX_60_GHZ] = NO_CHANNELS;
         }
+
+        buildChannelBits();
+    }
+
+    /**
+     * Build the channel table and the per band channel bitsets from {@link #mBandsToChannels}.
+     */
+    private void buildChannelBits() {
+        int[] channelTable = Arrays.stream(mBandsToChannels)
+                .flatMap(Arrays::stream)
+                .mapToInt(spec -> spec.frequency)
+                .sorted()
+                .distinct()
+                .toArray();
+        long[][] bandsToChannelBits = new long[WIFI_BAND_COUNT][];
+        long[] pscChannelBits = new long[getBitsetLength(channelTable.length)];
+        for (@WifiBandIndex int index = 0; index < WIFI_BAND_COUNT; index++) {
+            bandsToChannelBits[index] = new long[pscChannelBits.length];
+            for (WifiScanner.ChannelSpec spec : mBandsToChannels[index]) {
+                int bit = Arrays.binarySearch(channelTable, spec.frequency);
+                setBit(bandsToChannelBits[index], bit);
+                if (index == WIFI_BAND_INDEX_6_GHZ && ScanResult.is6GHzPsc(spec.frequency)) {
+                    setBit(pscChannelBits, bit);
+                }
+            }
+        }
+        mBandsToChannelBits = bandsToChannelBits;
+        m6GhzPscChannelBits = pscChannelBits;
+        // Assigned last since collections use the table reference to detect channel updates.
+        mChannelTable = channelTable;
+    }
+
+    private long[] newChannelBits() {
+        return new long[getBitsetLength(mChannelTable.length)];
+    }
+
+    /**
+     * @return the index of the channel in the channel bitsets, or -1 if the channel is not part
+     * of any known band.
+     */
+    private int getChannelIndex(int frequency) {
+        int index = Arrays.binarySearch(mChannelTable, frequency);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Fill the supplied bitset with the channels of all the bands in the supplied band mask.
+     */
+    private void fillBandBits(int band, long[] bits) {
+        Arrays.fill(bits, 0);
+        if (band <= WIFI_BAND_UNSPECIFIED || band > WIFI_BAND_ALL) return;
+        for (@WifiBandIndex int index = 0; index < WIFI_BAND_COUNT; index++) {
+            if ((band & (1 << index)) != 0) {
+                or(bits, mBandsToChannelBits[index]);
+            }
+        }
     }
 
     private static void copyChannels(
@@ -174,13 +237,8 @@ public class KnownBandsChannelHelper extends ChannelHelper {
     }
 
     private boolean isDfsChannel(int frequency) {
-        for (WifiScanner.ChannelSpec dfsChannel :
-                mBandsToChannels[WIFI_BAND_INDEX_5_GHZ_DFS_ONLY]) {
-            if (frequency == dfsChannel.frequency) {
-                return true;
-            }
-        }
-        return false;
+        int index = getChannelIndex(frequency);
+        return index >= 0 && isBitSet(mBandsToChannelBits[WIFI_BAND_INDEX_5_GHZ_DFS_ONLY], index);
     }
 
     // TODO this should be rewritten to be based on the input data instead of hardcoded ranges
@@ -281,12 +339,28 @@ public class KnownBandsChannelHelper extends ChannelHelper {
      * ChannelCollection that merges channels so that the optimal schedule will be generated.
      * When the max channels value is satisfied this implementation will always create a channel
      * list that includes no more than the added channels.
+     *
+     * Channels known to the helper are stored in a bitset indexed by
+     * {@link #getChannelIndex(int)} so that band and collection operations are word-wise and do
+     * not allocate. Channels that the helper does not know about are kept in a small side set.
      */
     public class KnownBandsChannelCollection extends ChannelCollection {
         /**
-         * Stores all channels, including those that belong to added bands.
+         * Stores all known channels, including those that belong to added bands.
+         */
+        private long[] mChannelBits;
+        /**
+         * Channel table that {@link #mChannelBits} is indexed against.
+         */
+        private int[] mIndexedFrequencies;
+        /**
+         * Stores added channels which are not part of any known band.
          */
-        private final ArraySet<Integer> mChannels = new ArraySet<Integer>();
+        private final ArraySet<Integer> mUnknownChannels = new ArraySet<Integer>();
+        /**
+         * Scratch mask used for band operations.
+         */
+        private long[] mBandMask;
         /**
          * Contains only the bands that were explicitly added as bands.
          */
@@ -297,59 +371,158 @@ public class KnownBandsChannelHelper extends ChannelHelper {
          */
         private int mAllBands = 0;
 
+        KnownBandsChannelCollection() {
+            mIndexedFrequencies = mChannelTable;
+            mChannelBits = newChannelBits();
+            mBandMask = newChannelBits();
+        }
+
+        /**
+         * Re-index the collection if the channels of the helper were updated since the bitset was
+         * last built, so that the collection stays consistent even if it is not cleared.
+         */
+        private void syncChannelTable() {
+            if (mIndexedFrequencies == mChannelTable) return;
+            long[] oldBits = mChannelBits;
+            int[] oldFrequencies = mIndexedFrequencies;
+            mIndexedFrequencies = mChannelTable;
+            mChannelBits = newChannelBits();
+            mBandMask = newChannelBits();
+            for (int i = nextSetBit(oldBits, 0); i >= 0; i = nextSetBit(oldBits, i + 1)) {
+                addChannelInternal(oldFrequencies[i]);
+            }
+            for (int i = mUnknownChannels.size() - 1; i >= 0; --i) {
+                int index = getChannelIndex(mUnknownChannels.valueAt(i));
+                if (index >= 0) {
+                    setBit(mChannelBits, index);
+                    mUnknownChannels.removeAt(i);
+                }
+            }
+        }
+
+        private void addChannelInternal(int frequency) {
+            int index = getChannelIndex(frequency);
+            if (index >= 0) {
+                setBit(mChannelBits, index);
+            } else {
+                mUnknownChannels.add(frequency);
+            }
+        }
+
+        private boolean containsChannelInternal(int frequency) {
+            int index = getChannelIndex(frequency);
+            if (index >= 0) {
+                return isBitSet(mChannelBits, index);
+            }
+            return mUnknownChannels.contains(frequency);
+        }
+
+        private long[] fillBandMask(int band) {
+            fillBandBits(band, mBandMask);
+            return mBandMask;
+        }
+
         @Override
         public void addChannel(int frequency) {
-            mChannels.add(frequency);
+            syncChannelTable();
+            addChannelInternal(frequency);
             mAllBands |= getBandFromChannel(frequency);
         }
 
         @Override
         public void addBand(int band) {
+            syncChannelTable();
             mExactBands |= band;
             mAllBands |= band;
-            WifiScanner.ChannelSpec[][] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                for (int j = 0; j < bandChannels[i].length; ++j) {
-                    mChannels.add(bandChannels[i][j].frequency);
-                }
-            }
+            or(mChannelBits, fillBandMask(band));
         }
 
         @Override
-        public boolean containsChannel(int channel) {
-            return mChannels.contains(channel);
+        public void addChannels(ChannelCollection otherCollection) {
+            KnownBandsChannelCollection other = (KnownBandsChannelCollection) otherCollection;
+            syncChannelTable();
+            other.syncChannelTable();
+            or(mChannelBits, other.mChannelBits);
+            mUnknownChannels.addAll(other.mUnknownChannels);
+            mExactBands |= other.mExactBands;
+            mAllBands |= other.mAllBands;
         }
 
         @Override
-        public boolean containsBand(int band) {
-            WifiScanner.ChannelSpec[][] bandChannels = getAvailableScanChannels(band);
+        public void retainChannels(ChannelCollection otherCollection) {
+            KnownBandsChannelCollection other = (KnownBandsChannelCollection) otherCollection;
+            syncChannelTable();
+            other.syncChannelTable();
+            and(mChannelBits, other.mChannelBits);
+            mUnknownChannels.retainAll(other.mUnknownChannels);
+            recomputeBands();
+        }
 
-            for (int i = 0; i < bandChannels.length; ++i) {
-                for (int j = 0; j < bandChannels[i].length; ++j) {
-                    if (!mChannels.contains(bandChannels[i][j].frequency)) {
-                        return false;
+        @Override
+        public void removeChannels(ChannelCollection otherCollection) {
+            KnownBandsChannelCollection other = (KnownBandsChannelCollection) otherCollection;
+            syncChannelTable();
+            other.syncChannelTable();
+            andNot(mChannelBits, other.mChannelBits);
+            mUnknownChannels.removeAll(other.mUnknownChannels);
+            recomputeBands();
+        }
+
+        @Override
+        public boolean containsChannels(ChannelCollection otherCollection) {
+            KnownBandsChannelCollection other = (KnownBandsChannelCollection) otherCollection;
+            syncChannelTable();
+            other.syncChannelTable();
+            return containsAll(mChannelBits, other.mChannelBits)
+                    && mUnknownChannels.containsAll(other.mUnknownChannels);
+        }
+
+        /**
+         * Recompute the band flags after channels were removed. A band is kept as an exact band
+         * only if all of its channels are still present.
+         */
+        private void recomputeBands() {
+            int allBands = 0;
+            int exactBands = 0;
+            for (@WifiBandIndex int index = 0; index < WIFI_BAND_COUNT; index++) {
+                int band = 1 << index;
+                long[] bandBits = mBandsToChannelBits[index];
+                if (intersects(mChannelBits, bandBits)) {
+                    allBands |= band;
+                    if ((mExactBands & band) != 0 && containsAll(mChannelBits, bandBits)) {
+                        exactBands |= band;
                     }
                 }
             }
-            return true;
+            for (int i = 0; i < mUnknownChannels.size(); ++i) {
+                allBands |= getBandFromChannel(mUnknownChannels.valueAt(i));
+            }
+            mAllBands = allBands;
+            mExactBands = exactBands;
+        }
+
+        @Override
+        public boolean containsChannel(int channel) {
+            syncChannelTable();
+            return containsChannelInternal(channel);
+        }
+
+        @Override
+        public boolean containsBand(int band) {
+            syncChannelTable();
+            return containsAll(mChannelBits, fillBandMask(band));
         }
 
         @Override
         public boolean partiallyContainsBand(int band) {
-            WifiScanner.ChannelSpec[][] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                for (int j = 0; j < bandChannels[i].length; ++j) {
-                    if (mChannels.contains(bandChannels[i][j].frequency)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
+            syncChannelTable();
+            return intersects(mChannelBits, fillBandMask(band));
         }
 
         @Override
         public boolean isEmpty() {
-            return mChannels.isEmpty();
+            syncChannelTable();
+            return isBitsetEmpty(mChannelBits) && mUnknownChannels.isEmpty();
         }
 
         @Override
@@ -361,41 +534,37 @@ public class KnownBandsChannelHelper extends ChannelHelper {
         public void clear() {
             mAllBands = 0;
             mExactBands = 0;
-            mChannels.clear();
+            mUnknownChannels.clear();
+            if (mIndexedFrequencies != mChannelTable) {
+                mIndexedFrequencies = mChannelTable;
+                mChannelBits = newChannelBits();
+                mBandMask = newChannelBits();
+            } else {
+                Arrays.fill(mChannelBits, 0);
+            }
         }
 
         @Override
         public Set<Integer> getMissingChannelsFromBand(int band) {
-            ArraySet<Integer> missingChannels = new ArraySet<>();
-            WifiScanner.ChannelSpec[][] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                for (int j = 0; j < bandChannels[i].length; ++j) {
-                    if (!mChannels.contains(bandChannels[i][j].frequency)) {
-                        missingChannels.add(bandChannels[i][j].frequency);
-                    }
-                }
-            }
-            return missingChannels;
+            syncChannelTable();
+            long[] bandMask = fillBandMask(band);
+            andNot(bandMask, mChannelBits);
+            return toFrequencySet(bandMask, null);
         }
 
         @Override
         public Set<Integer> getContainingChannelsFromBand(int band) {
-            ArraySet<Integer> containingChannels = new ArraySet<>();
-            WifiScanner.ChannelSpec[][] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                for (int j = 0; j < bandChannels[i].length; ++j) {
-                    if (mChannels.contains(bandChannels[i][j].frequency)) {
-                        containingChannels.add(bandChannels[i][j].frequency);
-                    }
-                }
-            }
-            return containingChannels;
+            syncChannelTable();
+            long[] bandMask = fillBandMask(band);
+            and(bandMask, mChannelBits);
+            return toFrequencySet(bandMask, null);
         }
 
         @Override
         public Set<Integer> getChannelSet() {
+            syncChannelTable();
             if (!isEmpty() && mAllBands != mExactBands) {
-                return mChannels;
+                return toFrequencySet(mChannelBits, mUnknownChannels);
             } else {
                 return new ArraySet<>();
             }
@@ -403,32 +572,35 @@ public class KnownBandsChannelHelper extends ChannelHelper {
 
         @Override
         public void add6GhzPscChannels() {
-            Set<Integer> missingChannels = getMissingChannelsFromBand(WIFI_BAND_6_GHZ);
-            if (missingChannels.isEmpty()) {
+            syncChannelTable();
+            if (containsAll(mChannelBits, m6GhzPscChannelBits)) {
                 return;
             }
-            for (int freq : missingChannels) {
-                if (ScanResult.is6GHzPsc(freq)) {
-                    mChannels.add(freq);
-                    mAllBands |= WIFI_BAND_6_GHZ;
-                }
-            }
+            or(mChannelBits, m6GhzPscChannelBits);
+            mAllBands |= WIFI_BAND_6_GHZ;
         }
 
         @Override
         public void fillBucketSettings(WifiNative.BucketSettings bucketSettings, int maxChannels) {
-            if ((mChannels.size() > maxChannels || mAllBands == mExactBands) && mAllBands != 0) {
+            syncChannelTable();
+            int size = cardinality(mChannelBits) + mUnknownChannels.size();
+            if ((size > maxChannels || mAllBands == mExactBands) && mAllBands != 0) {
                 bucketSettings.band = mAllBands;
                 bucketSettings.num_channels = 0;
                 bucketSettings.channels = null;
             } else {
                 bucketSettings.band = WIFI_BAND_UNSPECIFIED;
-                bucketSettings.num_channels = mChannels.size();
-                bucketSettings.channels = new WifiNative.ChannelSettings[mChannels.size()];
-                for (int i = 0; i < mChannels.size(); ++i) {
-                    WifiNative.ChannelSettings channelSettings = new WifiNative.ChannelSettings();
-                    channelSettings.frequency = mChannels.valueAt(i);
-                    bucketSettings.channels[i] = channelSettings;
+                bucketSettings.num_channels = size;
+                bucketSettings.channels = new WifiNative.ChannelSettings[size];
+                int i = 0;
+                for (int index = nextSetBit(mChannelBits, 0); index >= 0;
+                        index = nextSetBit(mChannelBits, index + 1)) {
+                    bucketSettings.channels[i++] =
+                            createChannelSettings(mIndexedFrequencies[index]);
+                }
+                for (int j = 0; j < mUnknownChannels.size(); ++j) {
+                    bucketSettings.channels[i++] =
+                            createChannelSettings(mUnknownChannels.valueAt(j));
                 }
             }
         }
@@ -438,13 +610,109 @@ public class KnownBandsChannelHelper extends ChannelHelper {
             if (mExactBands == WIFI_BAND_ALL) {
                 return null;
             } else {
-                return new ArraySet<Integer>(mChannels);
+                return getAllChannels();
             }
         }
 
+        @Override
         public Set<Integer> getAllChannels() {
-            return new ArraySet<Integer>(mChannels);
+            syncChannelTable();
+            return toFrequencySet(mChannelBits, mUnknownChannels);
+        }
+
+        private Set<Integer> toFrequencySet(long[] bits, ArraySet<Integer> extraChannels) {
+            ArraySet<Integer> channels = new ArraySet<>();
+            for (int index = nextSetBit(bits, 0); index >= 0; index = nextSetBit(bits, index + 1)) {
+                channels.add(mIndexedFrequencies[index]);
+            }
+            if (extraChannels != null) {
+                channels.addAll(extraChannels);
+            }
+            return channels;
+        }
+    }
+
+    private static WifiNative.ChannelSettings createChannelSettings(int frequency) {
+        WifiNative.ChannelSettings channelSettings = new WifiNative.ChannelSettings();
+        channelSettings.frequency = frequency;
+        return channelSettings;
+    }
+
+    /*
+     * Word-wise bitset operations over channel index bitsets. All the bitsets of a helper are
+     * allocated with the same length, see {@link #getBitsetLength(int)}.
+     */
+
+    private static int getBitsetLength(int numChannels) {
+        return (numChannels + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static void setBit(long[] bits, int index) {
+        bits[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+    }
+
+    private static boolean isBitSet(long[] bits, int index) {
+        return (bits[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0;
+    }
+
+    private static int nextSetBit(long[] bits, int fromIndex) {
+        int wordIndex = fromIndex / Long.SIZE;
+        if (wordIndex >= bits.length) return -1;
+        long word = bits[wordIndex] & (-1L << (fromIndex % Long.SIZE));
+        while (true) {
+            if (word != 0) {
+                return wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == bits.length) return -1;
+            word = bits[wordIndex];
+        }
+    }
+
+    private static void or(long[] dest, long[] src) {
+        for (int i = 0; i < dest.length; ++i) {
+            dest[i] |= src[i];
+        }
+    }
+
+    private static void and(long[] dest, long[] src) {
+        for (int i = 0; i < dest.length; ++i) {
+            dest[i] &= src[i];
+        }
+    }
+
+    private static void andNot(long[] dest, long[] src) {
+        for (int i = 0; i < dest.length; ++i) {
+            dest[i] &= ~src[i];
+        }
+    }
+
+    private static boolean containsAll(long[] bits, long[] subset) {
+        for (int i = 0; i < bits.length; ++i) {
+            if ((subset[i] & ~bits[i]) != 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean intersects(long[] bits, long[] other) {
+        for (int i = 0; i < bits.length; ++i) {
+            if ((bits[i] & other[i]) != 0) return true;
+        }
+        return false;
+    }
+
+    private static boolean isBitsetEmpty(long[] bits) {
+        for (int i = 0; i < bits.length; ++i) {
+            if (bits[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private static int cardinality(long[] bits) {
+        int count = 0;
+        for (int i = 0; i < bits.length; ++i) {
+            count += Long.bitCount(bits[i]);
         }
+        return count;
     }
 
     @Override
@@ -59,7 +59,9 @@ import com.android.internal.util.StateMachine;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.server.wifi.ClientModeImpl;
 import com.android.server.wifi.Clock;
+import com.android.server.wifi.DeviceConfigFacade;
 import com.android.server.wifi.FrameworkFacade;
+import com.android.server.wifi.WifiEventJournal;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiLog;
 import com.android.server.wifi.WifiMetrics;
@@ -403,6 +405,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     private static final int CMD_SCAN_FAILED                         = BASE + 10;
     private static final int CMD_PNO_NETWORK_FOUND                   = BASE + 11;
     private static final int CMD_PNO_SCAN_FAILED                     = BASE + 12;
+    private static final int CMD_SINGLE_SCAN_COALESCING_WINDOW_EXPIRED = BASE + 13;
 
     private final Context mContext;
     private final Looper mLooper;
@@ -432,6 +435,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     private final WifiNative mWifiNative;
     private final WifiManager mWifiManager;
     private final LastCallerInfoManager mLastCallerInfoManager;
+    private final DeviceConfigFacade mDeviceConfigFacade;
+    private final WifiEventJournal mWifiEventJournal;
 
     WifiScanningServiceImpl(Context context, Looper looper,
             WifiScannerImpl.WifiScannerImplFactory scannerImplFactory,
@@ -455,6 +460,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         mWifiManager = mContext.getSystemService(WifiManager.class);
         mPreviousSchedule = null;
         mLastCallerInfoManager = wifiInjector.getLastCallerInfoManager();
+        mDeviceConfigFacade = wifiInjector.getDeviceConfigFacade();
+        mWifiEventJournal = wifiInjector.getWifiEventJournal();
     }
 
     public void startService() {
@@ -583,8 +590,11 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     }
 
     private class RequestList<T> extends ArrayList<RequestInfo<T>> {
-        void addRequest(ClientInfo ci, int handler, WorkSource reqworkSource, T settings) {
-            add(new RequestInfo<T>(ci, handler, reqworkSource, settings));
+        RequestInfo<T> addRequest(ClientInfo ci, int handler, WorkSource reqworkSource,
+                T settings) {
+            RequestInfo<T> request = new RequestInfo<T>(ci, handler, reqworkSource, settings);
+            add(request);
+            return request;
         }
 
         T removeRequest(ClientInfo ci, int handlerId) {
@@ -678,12 +688,28 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         private final ScanningState  mScanningState  = new ScanningState();
 
         private WifiNative.ScanSettings mActiveScanSettings = null;
+        // Channels covered by the active scan, as computed when it was started. A 6Ghz PSC only
+        // request only covers the PSC channels of the 6Ghz band.
+        private Set<Integer> mActiveScanChannels = null;
         private RequestList<ScanSettings> mActiveScans = new RequestList<>();
         private RequestList<ScanSettings> mPendingScans = new RequestList<>();
 
         // Scan results cached from the last full single scan request.
         private final List<ScanResult> mCachedScanResults = new ArrayList<>();
 
+        // Results of the last scan of each channel, used to serve requests which set
+        // ScanSettings#maxCachedResultAgeMs.
+        private final ChannelScanResultCache mChannelScanResultCache =
+                new ChannelScanResultCache();
+        // Cached results to be delivered along with the scan results for requests which only
+        // scan the channels with stale cached results.
+        private final ArrayMap<RequestInfo<ScanSettings>, List<ScanResult>>
+                mCachedResultsForRequests = new ArrayMap<>();
+
+        // Whether scan requests are being held until the coalescing window expires.
+        private boolean mCoalescingWindowOpen = false;
+        private long mCoalescingWindowStartMs;
+
         // Tracks scan requests across multiple scanner impls.
         private final ScannerImplsTracker mScannerImplsTracker;
 
@@ -909,20 +935,48 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                     mWifiManager.setEmergencyScanRequestInProgress(true);
                 }
 
+                List<ScanResult> cachedResults = null;
+                if (getCurrentState() == mScanningState || getCurrentState() == mIdleState) {
+                    cachedResults = new ArrayList<>();
+                    ScanSettings staleChannelSettings =
+                            getSettingsForStaleChannels(scanSettings, cachedResults);
+                    if (staleChannelSettings == null) {
+                        // Every requested channel has fresh cached results.
+                        reportCachedScanResults(ci, handler, workSource, scanSettings,
+                                cachedResults);
+                        return;
+                    }
+                    if (staleChannelSettings == scanSettings) {
+                        cachedResults = null;
+                    } else {
+                        mWifiMetrics.logSingleScanServedFromCache(false);
+                        scanSettings = staleChannelSettings;
+                    }
+                }
+
+                RequestInfo<ScanSettings> request;
                 if (getCurrentState() == mScanningState) {
                     // If there is an active scan that will fulfill the scan request then
                     // mark this request as an active scan, otherwise mark it pending.
                     if (activeScanSatisfies(scanSettings)) {
-                        mActiveScans.addRequest(ci, handler, workSource, scanSettings);
+                        request = mActiveScans.addRequest(ci, handler, workSource, scanSettings);
                     } else {
-                        mPendingScans.addRequest(ci, handler, workSource, scanSettings);
+                        request = mPendingScans.addRequest(ci, handler, workSource, scanSettings);
+                    }
+                    if (cachedResults != null) {
+                        mCachedResultsForRequests.put(request, cachedResults);
                     }
                 } else if (getCurrentState() == mIdleState) {
                     // If were not currently scanning then try to start a scan. Otherwise
                     // this scan will be scheduled when transitioning back to IdleState
                     // after finishing the current scan.
-                    mPendingScans.addRequest(ci, handler, workSource, scanSettings);
-                    tryToStartNewScan();
+                    request = mPendingScans.addRequest(ci, handler, workSource, scanSettings);
+                    if (cachedResults != null) {
+                        mCachedResultsForRequests.put(request, cachedResults);
+                    }
+                    if (!maybeStartCoalescingWindow(scanSettings)) {
+                        tryToStartNewScan();
+                    }
                 } else if (getCurrentState() == mDefaultState) {
                     // If scanning is disabled and the request is for emergency purposes
                     // (checked above), add to pending list. this scan will be scheduled when
@@ -943,6 +997,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             public void enter() {
                 mActiveScans.clear();
                 mPendingScans.clear();
+                mCachedResultsForRequests.clear();
             }
             @Override
             public boolean processMessage(Message msg) {
@@ -1010,6 +1065,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             public void exit() {
                 // clear scan results when scan mode is not active
                 mCachedScanResults.clear();
+                mChannelScanResultCache.clear();
 
                 mWifiMetrics.incrementScanReturnEntry(
                         WifiMetricsProto.WifiLog.SCAN_FAILURE_INTERRUPTED,
@@ -1036,9 +1092,20 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 tryToStartNewScan();
             }
 
+            @Override
+            public void exit() {
+                cancelCoalescingWindow();
+            }
+
             @Override
             public boolean processMessage(Message msg) {
-                return NOT_HANDLED;
+                switch (msg.what) {
+                    case CMD_SINGLE_SCAN_COALESCING_WINDOW_EXPIRED:
+                        tryToStartNewScan();
+                        return HANDLED;
+                    default:
+                        return NOT_HANDLED;
+                }
             }
         }
 
@@ -1060,6 +1127,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             @Override
             public void exit() {
                 mActiveScanSettings = null;
+                mActiveScanChannels = null;
                 mBatteryStats.reportWifiScanStoppedFromSource(mScanWorkSource);
                 Pair<int[], String[]> uidsAndTags =
                         WorkSourceUtil.getUidsAndTagsForWs(mScanWorkSource);
@@ -1247,6 +1315,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 logScanRequest("removeSingleScanRequest", ci, handler, null, null, null);
                 mPendingScans.removeRequest(ci, handler);
                 mActiveScans.removeRequest(ci, handler);
+                mCachedResultsForRequests.keySet().removeIf(
+                        request -> request.clientInfo == ci && request.handlerId == handler);
             }
         }
 
@@ -1255,10 +1325,170 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 logScanRequest("removeSingleScanRequests", ci, -1, null, null, null);
                 mPendingScans.removeAllForClient(ci);
                 mActiveScans.removeAllForClient(ci);
+                mCachedResultsForRequests.keySet().removeIf(
+                        request -> request.clientInfo == ci);
             }
         }
 
+        /**
+         * Returns the channels requested by the provided settings.
+         */
+        private Set<Integer> getRequestedChannels(ScanSettings settings) {
+            if (settings.band == WifiScanner.WIFI_BAND_UNSPECIFIED) {
+                ArraySet<Integer> channels = new ArraySet<>();
+                for (WifiScanner.ChannelSpec channel : settings.channels) {
+                    channels.add(channel.frequency);
+                }
+                return channels;
+            }
+            ChannelCollection channels = mChannelHelper.createChannelCollection();
+            channels.addChannels(settings);
+            return channels.getContainingChannelsFromBand(WifiScanner.WIFI_BAND_ALL);
+        }
+
+        /**
+         * Check whether a request may be served from the per-channel result cache. Requests
+         * which need hidden network probes or a limited number of BSSIDs are always scanned.
+         */
+        private boolean canUseCachedResults(ScanSettings settings) {
+            return settings.maxCachedResultAgeMs > 0
+                    && !settings.ignoreLocationSettings
+                    && ArrayUtils.isEmpty(settings.hiddenNetworks)
+                    && settings.numBssidsPerScan <= 0;
+        }
+
+        /**
+         * Check whether a request with some fresh cached channels may only scan its stale
+         * channels. Requests which need full scan results or an RNR scan are either served
+         * entirely from the cache or scanned in full.
+         */
+        private boolean canScanStaleChannelsOnly(ScanSettings settings) {
+            return (settings.reportEvents & WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT) == 0
+                    && !mergeRnrSetting(false, settings);
+        }
+
+        /**
+         * Split the channels requested by |settings| into those with fresh cached results and
+         * those which need to be scanned.
+         *
+         * @param settings scan request.
+         * @param cachedResults populated with the cached results of the fresh channels.
+         * @return |settings| if the request cannot use the cache or none of its channels are
+         * fresh, null if all of its channels are fresh, and otherwise a copy of |settings| which
+         * only scans the stale channels.
+         */
+        private @Nullable ScanSettings getSettingsForStaleChannels(ScanSettings settings,
+                List<ScanResult> cachedResults) {
+            if (!canUseCachedResults(settings)) {
+                return settings;
+            }
+            mChannelHelper.updateChannels();
+            long nowMs = mClock.getElapsedSinceBootMillis();
+            Set<Integer> requestedChannels = getRequestedChannels(settings);
+            List<WifiScanner.ChannelSpec> staleChannels = new ArrayList<>();
+            for (int channel : requestedChannels) {
+                if (mChannelScanResultCache.isFresh(
+                        channel, nowMs, settings.maxCachedResultAgeMs)) {
+                    mChannelScanResultCache.getResults(channel, cachedResults);
+                } else {
+                    staleChannels.add(new WifiScanner.ChannelSpec(channel));
+                }
+            }
+            if (staleChannels.isEmpty()) {
+                return null;
+            }
+            if (staleChannels.size() == requestedChannels.size()
+                    || !canScanStaleChannelsOnly(settings)) {
+                cachedResults.clear();
+                return settings;
+            }
+            ScanSettings staleChannelSettings = new ScanSettings();
+            staleChannelSettings.band = WifiScanner.WIFI_BAND_UNSPECIFIED;
+            staleChannelSettings.channels =
+                    staleChannels.toArray(new WifiScanner.ChannelSpec[0]);
+            staleChannelSettings.type = settings.type;
+            staleChannelSettings.reportEvents = settings.reportEvents;
+            staleChannelSettings.hideFromAppOps = settings.hideFromAppOps;
+            return staleChannelSettings;
+        }
+
+        /**
+         * Deliver cached results to a request for which every channel has fresh cached results.
+         * The results are also delivered to the single scan listeners, and accounted, as for a
+         * scan.
+         */
+        private void reportCachedScanResults(ClientInfo ci, int handler, WorkSource workSource,
+                ScanSettings settings, List<ScanResult> cachedResults) {
+            mWifiMetrics.logSingleScanServedFromCache(true);
+            RequestInfo<ScanSettings> request =
+                    new RequestInfo<>(ci, handler, workSource, settings);
+            mBatteryStats.reportWifiScanStartedFromSource(request.workSource);
+            mBatteryStats.reportWifiScanStoppedFromSource(request.workSource);
+            mWifiMetrics.getScanMetrics().logScanServedFromCache(
+                    WifiMetrics.ScanMetrics.SCAN_TYPE_SINGLE, ci.mUid, request.workSource,
+                    cachedResults.size());
+            mWifiMetrics.incrementScanReturnEntry(WifiMetricsProto.WifiLog.SCAN_SUCCESS, 1);
+            if (cachedResults.size() > 0) {
+                mWifiMetrics.incrementNonEmptyScanResultCount();
+            } else {
+                mWifiMetrics.incrementEmptyScanResultCount();
+            }
+
+            for (ScanResult result : cachedResults) {
+                if ((settings.reportEvents & WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT) != 0) {
+                    request.reportEvent(WifiScanner.CMD_FULL_SCAN_RESULT, 0, result);
+                }
+                for (RequestInfo<Void> entry : mSingleScanListeners) {
+                    entry.reportEvent(WifiScanner.CMD_FULL_SCAN_RESULT, 0, result);
+                }
+            }
+            // All the requested channels are covered, so the results are reported for the
+            // requested band as if it was scanned.
+            ScanData[] resultsToDeliver = new ScanData[] {
+                    new ScanData(0, 0, 0, settings.band,
+                            cachedResults.toArray(new ScanResult[0]))};
+            WifiScanner.ParcelableScanData parcelableResultsToDeliver =
+                    new WifiScanner.ParcelableScanData(resultsToDeliver);
+            logCallback("singleScanCachedResults", ci, handler,
+                    describeForLog(resultsToDeliver));
+            request.reportEvent(WifiScanner.CMD_SCAN_RESULT, 0, parcelableResultsToDeliver);
+            request.reportEvent(WifiScanner.CMD_SINGLE_SCAN_COMPLETED, 0, null);
+            for (RequestInfo<Void> entry : mSingleScanListeners) {
+                logCallback("singleScanCachedResults", entry.clientInfo, entry.handlerId,
+                        describeForLog(resultsToDeliver));
+                entry.reportEvent(WifiScanner.CMD_SCAN_RESULT, 0, parcelableResultsToDeliver);
+            }
+        }
+
+        /**
+         * Opens a coalescing window for a scan request received while idle, so that requests
+         * arriving shortly after it are merged into the same hardware scan.
+         *
+         * @return true if the scan will be started when the coalescing window expires, false if
+         * the scan should be started right away.
+         */
+        private boolean maybeStartCoalescingWindow(ScanSettings scanSettings) {
+            int windowMs = mDeviceConfigFacade.getSingleScanCoalescingWindowMs();
+            if (windowMs <= 0 || scanSettings.ignoreLocationSettings) {
+                // Never delay emergency scans.
+                return false;
+            }
+            if (!mCoalescingWindowOpen) {
+                mCoalescingWindowOpen = true;
+                mCoalescingWindowStartMs = mClock.getElapsedSinceBootMillis();
+                sendMessageDelayed(CMD_SINGLE_SCAN_COALESCING_WINDOW_EXPIRED, windowMs);
+            }
+            return true;
+        }
+
+        private void cancelCoalescingWindow() {
+            removeMessages(CMD_SINGLE_SCAN_COALESCING_WINDOW_EXPIRED);
+            mCoalescingWindowOpen = false;
+        }
+
         void tryToStartNewScan() {
+            boolean wasCoalescing = mCoalescingWindowOpen;
+            cancelCoalescingWindow();
             if (mPendingScans.size() == 0) { // no pending requests
                 return;
             }
@@ -1316,9 +1546,15 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             if (mScannerImplsTracker.startSingleScan(settings)) {
                 mWifiMetrics.getScanMetrics().logScanStarted(
                         WifiMetrics.ScanMetrics.SCAN_TYPE_SINGLE);
+                if (wasCoalescing) {
+                    mWifiMetrics.logSingleScanCoalesced(mPendingScans.size() - 1,
+                            mClock.getElapsedSinceBootMillis() - mCoalescingWindowStartMs);
+                }
+                mWifiEventJournal.logScanStart(settings.scanType, mPendingScans.size());
 
                 // store the active scan settings
                 mActiveScanSettings = settings;
+                mActiveScanChannels = channels.getAllChannels();
                 // swap pending and active scan requests
                 RequestList<ScanSettings> tmp = mActiveScans;
                 mActiveScans = mPendingScans;
@@ -1345,6 +1581,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                         "reason=" + reason + ", " + description);
                 entry.reportEvent(WifiScanner.CMD_OP_FAILED, 0,
                         new WifiScanner.OperationResult(reason, description));
+                mCachedResultsForRequests.remove(entry);
             }
             clientHandlers.clear();
         }
@@ -1374,6 +1611,11 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             for (RequestInfo<ScanSettings> entry : mActiveScans) {
                 ScanData[] resultsToDeliver = ScanScheduleUtil.filterResultsForSettings(
                         mChannelHelper, allResults, entry.settings, -1);
+                List<ScanResult> cachedResults = mCachedResultsForRequests.remove(entry);
+                if (cachedResults != null) {
+                    resultsToDeliver = mergeCachedResults(results, resultsToDeliver,
+                            cachedResults);
+                }
                 WifiScanner.ParcelableScanData parcelableResultsToDeliver =
                         new WifiScanner.ParcelableScanData(resultsToDeliver);
                 logCallback("singleScanResults",  entry.clientInfo, entry.handlerId,
@@ -1392,12 +1634,34 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
         }
 
+        /**
+         * Combine the results of a scan of the stale channels of a request with the cached
+         * results of its fresh channels.
+         */
+        private ScanData[] mergeCachedResults(@NonNull ScanData results,
+                @Nullable ScanData[] filteredResults, @NonNull List<ScanResult> cachedResults) {
+            List<ScanResult> mergedResults = new ArrayList<>(cachedResults);
+            if (filteredResults != null) {
+                for (ScanData scanData : filteredResults) {
+                    mergedResults.addAll(Arrays.asList(scanData.getResults()));
+                }
+            }
+            return new ScanData[] {new ScanData(results.getId(), results.getFlags(), 0,
+                    results.getScannedBandsInternal(),
+                    mergedResults.toArray(new ScanResult[0]))};
+        }
+
         void handleScanResults(@NonNull ScanData results) {
             mWifiMetrics.getScanMetrics().logScanSucceeded(
                     WifiMetrics.ScanMetrics.SCAN_TYPE_SINGLE, results.getResults().length);
             mWifiMetrics.incrementScanReturnEntry(
                     WifiMetricsProto.WifiLog.SCAN_SUCCESS, mActiveScans.size());
+            mWifiEventJournal.logScanResults(results.getResults().length,
+                    results.getScannedBandsInternal());
             reportScanResults(results);
+            // Cache the results of each scanned channel.
+            mChannelScanResultCache.update(mActiveScanChannels, results.getResults(),
+                    mClock.getElapsedSinceBootMillis());
             // Cache full band (with DFS or not) scan results.
             if (WifiScanner.isFullBandScan(results.getScannedBandsInternal(), true)) {
                 mCachedScanResults.clear();
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Short lived cache of the permission facts of the callers of an API, keyed by
+ * (uid, package, feature id, API class).
+ *
+ * Only facts which do not involve app-ops are cached, as a bit mask computed by the caller, so
+ * that app-ops keep being noted on every access. Entries expire after a short time to live, and
+ * are expected to be invalidated on package, permission and user changes. Every invalidation
+ * starts a new generation, and facts computed before it are not cached by {@link #put}.
+ *
+ * This class is thread safe.
+ */
+public class PermissionDecisionCache {
+    /** Returned by {@link #get} when there is no fresh entry. */
+    public static final int MISS = -1;
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static class Key {
+        public final int apiClass;
+        public final int uid;
+        public final String packageName;
+        public final String featureId;
+
+        Key(int apiClass, int uid, String packageName, String featureId) {
+            this.apiClass = apiClass;
+            this.uid = uid;
+            this.packageName = packageName;
+            this.featureId = featureId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Key)) return false;
+            Key that = (Key) other;
+            return apiClass == that.apiClass && uid == that.uid
+                    && Objects.equals(packageName, that.packageName)
+                    && Objects.equals(featureId, that.featureId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(apiClass, uid, packageName, featureId);
+        }
+    }
+
+    private static class Entry {
+        public final int facts;
+        public final long timestampMs;
+        // Time it took to compute the facts, saved on every hit.
+        public final long costNanos;
+
+        Entry(int facts, long timestampMs, long costNanos) {
+            this.facts = facts;
+            this.timestampMs = timestampMs;
+            this.costNanos = costNanos;
+        }
+    }
+
+    // Least recently added first.
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int mGeneration = 0;
+    private long mNumHits = 0;
+    private long mNumMisses = 0;
+    private long mNumInvalidations = 0;
+    private long mSavedNanos = 0;
+
+    /**
+     * Return the current generation, to be read before computing the facts passed to
+     * {@link #put}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Return the facts cached for a caller of an API if they are not older than the given age,
+     * or {@link #MISS}.
+     */
+    public synchronized int get(int apiClass, int uid, @NonNull String packageName,
+            @Nullable String featureId, long nowMs, long maxAgeMs) {
+        Key key = new Key(apiClass, uid, packageName, featureId);
+        Entry entry = mEntries.get(key);
+        if (entry != null && nowMs - entry.timestampMs > maxAgeMs) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mNumMisses++;
+            return MISS;
+        }
+        mNumHits++;
+        mSavedNanos += entry.costNanos;
+        return entry.facts;
+    }
+
+    /**
+     * Cache the facts of a caller of an API, unless the cache was invalidated since the given
+     * generation.
+     *
+     * @param generation the generation read before computing the facts.
+     * @param facts non negative bit mask of the facts.
+     * @param nowMs the current time.
+     * @param costNanos how long it took to compute the facts.
+     */
+    public synchronized void put(int generation, int apiClass, int uid,
+            @NonNull String packageName, @Nullable String featureId, int facts, long nowMs,
+            long costNanos) {
+        if (facts < 0 || generation != mGeneration) return;
+        Key key = new Key(apiClass, uid, packageName, featureId);
+        // Re-insert to move the entry to the most recent position.
+        mEntries.remove(key);
+        mEntries.put(key, new Entry(facts, nowMs, costNanos));
+    }
+
+    /**
+     * Remove the entries of a uid.
+     */
+    public synchronized void invalidate(int uid) {
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().uid == uid) {
+                it.remove();
+            }
+        }
+        mGeneration++;
+        mNumInvalidations++;
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+        mGeneration++;
+        mNumInvalidations++;
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Dump the state of the cache.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        long lookups = mNumHits + mNumMisses;
+        pw.println("PermissionDecisionCache: size=" + mEntries.size()
+                + " hits=" + mNumHits
+                + " misses=" + mNumMisses
+                + " hitRate=" + (lookups == 0 ? 0 : mNumHits * 100 / lookups) + "%"
+                + " invalidations=" + mNumInvalidations
+                + " savedUs=" + mSavedNanos / 1000);
+    }
+}
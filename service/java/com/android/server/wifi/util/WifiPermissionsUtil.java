@@ -31,8 +31,11 @@ import android.app.AppOpsManager;
 import android.app.admin.DevicePolicyManager;
 import android.app.admin.WifiSsidPolicy;
 import android.content.AttributionSource;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -44,6 +47,7 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiSsid;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -59,13 +63,16 @@ import androidx.annotation.RequiresApi;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.modules.utils.build.SdkLevel;
+import com.android.server.wifi.Clock;
 import com.android.server.wifi.FrameworkFacade;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiLog;
 import com.android.wifi.resources.R;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.function.IntSupplier;
 
 /**
  * A wifi permissions utility assessing permissions
@@ -76,6 +83,20 @@ public class WifiPermissionsUtil {
 
     private static final int APP_INFO_FLAGS_SYSTEM_APP =
             ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP;
+
+    // API classes of the permission decision cache.
+    private static final int API_CLASS_SCAN_RESULTS = 0;
+    private static final int API_CLASS_LOCATION = 1;
+    private static final int API_CLASS_LOCATION_COARSE_FOR_PRE_Q = 2;
+
+    // Permission facts of a caller, which do not involve app-ops.
+    private static final int FACT_BYPASS = 1 << 0;
+    private static final int FACT_LOCATION_PERMISSION = 1 << 1;
+    private static final int FACT_TARGET_SDK_LESS_THAN_Q = 1 << 2;
+    private static final int FACT_PEERS_MAC_ADDRESS_PERMISSION = 1 << 3;
+    private static final int FACT_CURRENT_PROFILE = 1 << 4;
+    private static final int FACT_INTERACT_ACROSS_USERS_FULL = 1 << 5;
+
     private final WifiPermissionsWrapper mWifiPermissionsWrapper;
     private final Context mContext;
     private final FrameworkFacade mFrameworkFacade;
@@ -88,6 +109,10 @@ public class WifiPermissionsUtil {
     private WifiLog mLog;
     private boolean mVerboseLoggingEnabled;
     private final SparseBooleanArray mOemPrivilegedAdminUidCache = new SparseBooleanArray();
+    private final Clock mClock;
+    private final PermissionDecisionCache mPermissionDecisionCache = new PermissionDecisionCache();
+    // Time to live of the permission decisions, 0 until the cache is enabled.
+    private volatile long mPermissionDecisionCacheTtlMs = 0;
 
     public WifiPermissionsUtil(WifiPermissionsWrapper wifiPermissionsWrapper,
             Context context, UserManager userManager, WifiInjector wifiInjector) {
@@ -98,6 +123,7 @@ public class WifiPermissionsUtil {
         mAppOps = (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
         mPermissionManager = mContext.getSystemService(PermissionManager.class);
         mLog = wifiInjector.makeLog(TAG);
+        mClock = wifiInjector.getClock();
     }
 
 
@@ -370,6 +396,20 @@ public class WifiPermissionsUtil {
      */
     public boolean checkCallersLocationPermission(String pkgName, @Nullable String featureId,
             int uid, boolean coarseForTargetSdkLessThanQ, @Nullable String message) {
+        int facts = getPermissionFacts(coarseForTargetSdkLessThanQ
+                        ? API_CLASS_LOCATION_COARSE_FOR_PRE_Q : API_CLASS_LOCATION,
+                pkgName, featureId, uid,
+                () -> getLocationPermissionFacts(pkgName, uid, coarseForTargetSdkLessThanQ));
+        return noteLocationAppOps(pkgName, featureId, uid, coarseForTargetSdkLessThanQ, facts,
+                message);
+    }
+
+    /**
+     * Returns the FACT_LOCATION_PERMISSION and FACT_TARGET_SDK_LESS_THAN_Q facts of
+     * {@link #checkCallersLocationPermission(String, String, int, boolean, String)}.
+     */
+    private int getLocationPermissionFacts(String pkgName, int uid,
+            boolean coarseForTargetSdkLessThanQ) {
         boolean isTargetSdkLessThanQ = isTargetSdkLessThan(pkgName, Build.VERSION_CODES.Q, uid);
 
         String permissionType = ACCESS_FINE_LOCATION;
@@ -377,14 +417,29 @@ public class WifiPermissionsUtil {
             // Having FINE permission implies having COARSE permission (but not the reverse)
             permissionType = Manifest.permission.ACCESS_COARSE_LOCATION;
         }
+        int facts = isTargetSdkLessThanQ ? FACT_TARGET_SDK_LESS_THAN_Q : 0;
         if (mWifiPermissionsWrapper.getUidPermission(permissionType, uid)
                 == PackageManager.PERMISSION_DENIED) {
             if (mVerboseLoggingEnabled) {
                 Log.v(TAG, "checkCallersLocationPermission(" + pkgName + "): uid " + uid
                         + " doesn't have permission " + permissionType);
             }
+            return facts;
+        }
+        return facts | FACT_LOCATION_PERMISSION;
+    }
+
+    /**
+     * Notes the location app-ops of
+     * {@link #checkCallersLocationPermission(String, String, int, boolean, String)} given the
+     * facts returned by {@link #getLocationPermissionFacts(String, int, boolean)}.
+     */
+    private boolean noteLocationAppOps(String pkgName, @Nullable String featureId, int uid,
+            boolean coarseForTargetSdkLessThanQ, int facts, @Nullable String message) {
+        if ((facts & FACT_LOCATION_PERMISSION) == 0) {
             return false;
         }
+        boolean isTargetSdkLessThanQ = (facts & FACT_TARGET_SDK_LESS_THAN_Q) != 0;
 
         // Always checking FINE - even if will not enforce. This will record the request for FINE
         // so that a location request by the app is surfaced to the user.
@@ -533,14 +588,12 @@ public class WifiPermissionsUtil {
     public void enforceCanAccessScanResults(String pkgName, @Nullable String featureId, int uid,
             @Nullable String message)
             throws SecurityException {
-        checkPackage(uid, pkgName);
+        int facts = getPermissionFacts(API_CLASS_SCAN_RESULTS, pkgName, featureId, uid,
+                () -> getScanResultsAccessFacts(pkgName, uid));
 
         // Apps with NETWORK_SETTINGS, NETWORK_SETUP_WIZARD, NETWORK_MANAGED_PROVISIONING,
         // NETWORK_STACK & MAINLINE_NETWORK_STACK, RADIO_SCAN_WITHOUT_LOCATION are granted a bypass.
-        if (checkNetworkSettingsPermission(uid) || checkNetworkSetupWizardPermission(uid)
-                || checkNetworkManagedProvisioningPermission(uid)
-                || checkNetworkStackPermission(uid) || checkMainlineNetworkStackPermission(uid)
-                || checkScanWithoutLocationPermission(uid)) {
+        if ((facts & FACT_BYPASS) != 0) {
             return;
         }
 
@@ -555,11 +608,11 @@ public class WifiPermissionsUtil {
         }
 
         // Check if the calling Uid has CAN_READ_PEER_MAC_ADDRESS permission.
-        boolean canCallingUidAccessLocation = checkCallerHasPeersMacAddressPermission(uid);
+        boolean canCallingUidAccessLocation = (facts & FACT_PEERS_MAC_ADDRESS_PERMISSION) != 0;
         // LocationAccess by App: caller must have Coarse/Fine Location permission to have access to
         // location information.
-        boolean canAppPackageUseLocation = checkCallersLocationPermission(pkgName, featureId,
-                uid, /* coarseForTargetSdkLessThanQ */ true, message);
+        boolean canAppPackageUseLocation = noteLocationAppOps(pkgName, featureId,
+                uid, /* coarseForTargetSdkLessThanQ */ true, facts, message);
 
         // If neither caller or app has location access, there is no need to check
         // any other permissions. Deny access to scan results.
@@ -581,18 +634,125 @@ public class WifiPermissionsUtil {
         }
         // If the User or profile is current, permission is granted
         // Otherwise, uid must have INTERACT_ACROSS_USERS_FULL permission.
-        boolean isCurrentProfile = doesUidBelongToUser(
-                uid, mWifiPermissionsWrapper.getCurrentUser());
-        if (!isCurrentProfile && !checkInteractAcrossUsersFull(uid)) {
+        boolean isCurrentProfile = (facts & FACT_CURRENT_PROFILE) != 0;
+        boolean canInteractAcrossUsersFull = (facts & FACT_INTERACT_ACROSS_USERS_FULL) != 0;
+        if (!isCurrentProfile && !canInteractAcrossUsersFull) {
             if (mVerboseLoggingEnabled) {
                 Log.v(TAG, "enforceCanAccessScanResults(pkg=" + pkgName + ", uid=" + uid + "): "
                         + "isCurrentProfile=" + isCurrentProfile
-                        + ", checkInteractAcrossUsersFull=" + checkInteractAcrossUsersFull(uid));
+                        + ", checkInteractAcrossUsersFull=" + canInteractAcrossUsersFull);
             }
             throw new SecurityException("UID " + uid + " profile not permitted");
         }
     }
 
+    /**
+     * Returns the facts of {@link #enforceCanAccessScanResults(String, String, int, String)}
+     * which do not involve app-ops or the location mode. Throws SecurityException if the package
+     * does not belong to the uid.
+     */
+    private int getScanResultsAccessFacts(String pkgName, int uid) throws SecurityException {
+        checkPackage(uid, pkgName);
+
+        if (checkNetworkSettingsPermission(uid) || checkNetworkSetupWizardPermission(uid)
+                || checkNetworkManagedProvisioningPermission(uid)
+                || checkNetworkStackPermission(uid) || checkMainlineNetworkStackPermission(uid)
+                || checkScanWithoutLocationPermission(uid)) {
+            return FACT_BYPASS;
+        }
+        int facts = getLocationPermissionFacts(pkgName, uid,
+                /* coarseForTargetSdkLessThanQ */ true);
+        if (checkCallerHasPeersMacAddressPermission(uid)) {
+            facts |= FACT_PEERS_MAC_ADDRESS_PERMISSION;
+        }
+        if (doesUidBelongToUser(uid, mWifiPermissionsWrapper.getCurrentUser())) {
+            facts |= FACT_CURRENT_PROFILE;
+        } else if (checkInteractAcrossUsersFull(uid)) {
+            facts |= FACT_INTERACT_ACROSS_USERS_FULL;
+        }
+        return facts;
+    }
+
+    /**
+     * Returns the permission facts of a caller of an API, from the permission decision cache if
+     * it is enabled and has a fresh entry.
+     */
+    private int getPermissionFacts(int apiClass, String pkgName, @Nullable String featureId,
+            int uid, IntSupplier factsSupplier) {
+        long ttlMs = mPermissionDecisionCacheTtlMs;
+        if (ttlMs <= 0 || pkgName == null) {
+            return factsSupplier.getAsInt();
+        }
+        long nowMs = mClock.getElapsedSinceBootMillis();
+        int facts = mPermissionDecisionCache.get(apiClass, uid, pkgName, featureId, nowMs, ttlMs);
+        if (facts != PermissionDecisionCache.MISS) {
+            return facts;
+        }
+        // Facts computed across an invalidation may be stale, the cache then drops them.
+        int generation = mPermissionDecisionCache.getGeneration();
+        long startNanos = mClock.getElapsedSinceBootNanos();
+        facts = factsSupplier.getAsInt();
+        mPermissionDecisionCache.put(generation, apiClass, uid, pkgName, featureId, facts, nowMs,
+                mClock.getElapsedSinceBootNanos() - startNanos);
+        return facts;
+    }
+
+    /**
+     * Enables the permission decision cache, and registers the listeners invalidating it on
+     * package, permission and user changes. Does nothing if the cache is disabled by the overlay.
+     *
+     * @param handler the handler on which to receive the broadcasts.
+     */
+    public void enablePermissionDecisionCache(@NonNull Handler handler) {
+        long ttlMs = mContext.getResources().getInteger(
+                R.integer.config_wifiPermissionDecisionCacheTtlMillis);
+        if (ttlMs <= 0 || mPermissionDecisionCacheTtlMs > 0) {
+            return;
+        }
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(
+                new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                        if (uid == -1) {
+                            mPermissionDecisionCache.invalidateAll();
+                        } else {
+                            mPermissionDecisionCache.invalidate(uid);
+                        }
+                    }
+                },
+                packageFilter,
+                null,
+                handler);
+        // Managed profile changes move the current user's profile group, which the cross user
+        // facts depend on.
+        IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        mContext.registerReceiver(
+                new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        mPermissionDecisionCache.invalidateAll();
+                    }
+                },
+                userFilter,
+                null,
+                handler);
+        mContext.getPackageManager().addOnPermissionsChangeListener(
+                mPermissionDecisionCache::invalidate);
+        mPermissionDecisionCacheTtlMs = ttlMs;
+    }
+
     /**
      * API to determine if the caller has permissions to get scan results. Throws SecurityException
      * if the caller has no permission.
@@ -1178,6 +1338,15 @@ public class WifiPermissionsUtil {
         mVerboseLoggingEnabled = enabled;
     }
 
+    /**
+     * Dump the state of the permission decision cache.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("WifiPermissionsUtil: permission decision cache ttlMs="
+                + mPermissionDecisionCacheTtlMs);
+        mPermissionDecisionCache.dump(pw);
+    }
+
     /**
      * Returns true if the |callingUid|/|callingPackage| is an admin.
      */
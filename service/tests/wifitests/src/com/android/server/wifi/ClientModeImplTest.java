@@ -484,6 +484,7 @@ public class ClientModeImplTest extends WifiBaseTest {
     @Mock SupplicantStateTracker mSupplicantStateTracker;
     @Mock WifiMetrics mWifiMetrics;
     @Mock WifiInjector mWifiInjector;
+    @Mock WifiEventJournal mWifiEventJournal;
     @Mock WifiLastResortWatchdog mWifiLastResortWatchdog;
     @Mock WifiBlocklistMonitor mWifiBlocklistMonitor;
     @Mock WifiConfigManager mWifiConfigManager;
@@ -661,6 +662,7 @@ public class ClientModeImplTest extends WifiBaseTest {
                 WifiManager.WIFI_FEATURE_WPA3_SAE | WifiManager.WIFI_FEATURE_OWE);
         when(mWifiInjector.getWifiGlobals()).thenReturn(mWifiGlobals);
         when(mWifiInjector.getWifiHandlerThread()).thenReturn(mWifiHandlerThread);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
         when(mWifiHandlerThread.getLooper()).thenReturn(mLooper.getLooper());
         when(mWifiGlobals.isWpa3SaeUpgradeEnabled()).thenReturn(true);
         when(mWifiGlobals.isOweUpgradeEnabled()).thenReturn(true);
@@ -1232,6 +1234,25 @@ public class ClientModeImplTest extends WifiBaseTest {
         assertEquals("L3ProvisioningState", getCurrentState().getName());
     }
 
+    /**
+     * Verifies that the EAP-SIM identity is encrypted ahead of the identity request exactly once
+     * per connection attempt.
+     */
+    @Test
+    public void testSimIdentityPrecomputedOncePerConnect() throws Exception {
+        setupEapSimConnection();
+        verify(mWifiCarrierInfoManager).precomputeSimIdentity(mConnectedNetwork);
+    }
+
+    /**
+     * Verifies that the identity is not precomputed when connecting to a non SIM based network.
+     */
+    @Test
+    public void testSimIdentityNotPrecomputedForOpenNetwork() throws Exception {
+        connect();
+        verify(mWifiCarrierInfoManager, never()).precomputeSimIdentity(any());
+    }
+
     /**
      * Test when a roam occurs simultaneously with another connection attempt.
      * The roam's NETWORK_CONNECTION_EVENT should be ignored, only the new network's
@@ -2555,6 +2576,11 @@ public class ClientModeImplTest extends WifiBaseTest {
         verify(mWifiScoreCard).detectAbnormalDisconnection(WIFI_IFACE_NAME);
         verify(mWifiDiagnostics).takeBugReport(anyString(), anyString());
         verify(mWifiNative).disableNetwork(WIFI_IFACE_NAME);
+        verify(mWifiEventJournal).logConnectStart(eq(FRAMEWORK_NETWORK_ID), any(), eq(false));
+        verify(mWifiEventJournal, atLeastOnce()).logConnectEnd(FRAMEWORK_NETWORK_ID,
+                TEST_BSSID_STR, WifiMetrics.ConnectionEvent.FAILURE_NONE);
+        verify(mWifiEventJournal, atLeastOnce()).logDisconnect(eq(FRAMEWORK_NETWORK_ID),
+                eq(TEST_BSSID_STR), anyInt());
         // Set MAC address thrice - once at bootup, once for new connection, once for disconnect.
         verify(mWifiNative, times(3)).setStaMacAddress(eq(WIFI_IFACE_NAME), any());
         // ClientModeManager should only be stopped when in lingering mode
@@ -2927,6 +2953,31 @@ public class ClientModeImplTest extends WifiBaseTest {
                 argThat(new NetworkStateChangedIntentMatcher(CONNECTED)), any());
     }
 
+    /**
+     * Verifies that a roam done by the supplicant or the firmware is recorded in the event journal
+     * once, whether the BSSID change is reported by CMD_ASSOCIATED_BSSID or by
+     * NETWORK_CONNECTION_EVENT.
+     */
+    @Test
+    public void testDriverRoamRecordedInEventJournal() throws Exception {
+        connect();
+        verify(mWifiEventJournal, never()).logRoam(anyInt(), any());
+
+        mCmi.sendMessage(WifiMonitor.ASSOCIATED_BSSID_EVENT, 0, 0, TEST_BSSID_STR1);
+        mLooper.dispatchAll();
+        mCmi.sendMessage(WifiMonitor.NETWORK_CONNECTION_EVENT,
+                new NetworkConnectionEventInfo(FRAMEWORK_NETWORK_ID, TEST_WIFI_SSID,
+                        TEST_BSSID_STR1, false));
+        mLooper.dispatchAll();
+        verify(mWifiEventJournal).logRoam(FRAMEWORK_NETWORK_ID, TEST_BSSID_STR1);
+
+        mCmi.sendMessage(WifiMonitor.NETWORK_CONNECTION_EVENT,
+                new NetworkConnectionEventInfo(FRAMEWORK_NETWORK_ID, TEST_WIFI_SSID,
+                        TEST_BSSID_STR, false));
+        mLooper.dispatchAll();
+        verify(mWifiEventJournal).logRoam(FRAMEWORK_NETWORK_ID, TEST_BSSID_STR);
+    }
+
     /**
      * Verifies that WifiInfo is cleared upon exiting and entering WifiInfo, and that it is not
      * updated by SUPPLICAN_STATE_CHANGE_EVENTs in ScanModeState.
@@ -221,6 +221,10 @@ public class DeviceConfigFacadeTest extends WifiBaseTest {
         assertEquals(DeviceConfigFacade.DEFAULT_BANDWIDTH_ESTIMATOR_TIME_CONSTANT_LARGE_SEC,
                 mDeviceConfigFacade.getBandwidthEstimatorLargeTimeConstantSec());
         assertEquals(false, mDeviceConfigFacade.isInterfaceFailureBugreportEnabled());
+        assertEquals(DeviceConfigFacade.DEFAULT_SINGLE_SCAN_COALESCING_WINDOW_MS,
+                mDeviceConfigFacade.getSingleScanCoalescingWindowMs());
+        assertEquals(DeviceConfigFacade.DEFAULT_APP_SCAN_MAX_CACHED_RESULT_AGE_MS,
+                mDeviceConfigFacade.getAppScanMaxCachedResultAgeMs());
     }
 
     /**
@@ -347,6 +351,10 @@ public class DeviceConfigFacadeTest extends WifiBaseTest {
         when(DeviceConfig.getBoolean(anyString(),
                 eq("interface_failure_bugreport_enabled"),
                 anyBoolean())).thenReturn(true);
+        when(DeviceConfig.getInt(anyString(), eq("single_scan_coalescing_window_ms"),
+                anyInt())).thenReturn(50);
+        when(DeviceConfig.getInt(anyString(), eq("app_scan_max_cached_result_age_ms"),
+                anyInt())).thenReturn(2000);
         mOnPropertiesChangedListenerCaptor.getValue().onPropertiesChanged(null);
 
         // Verifying fields are updated to the new values
@@ -413,5 +421,7 @@ public class DeviceConfigFacadeTest extends WifiBaseTest {
         assertEquals(5000, mDeviceConfigFacade.getTrafficStatsThresholdMaxKbyte());
         assertEquals(30, mDeviceConfigFacade.getBandwidthEstimatorLargeTimeConstantSec());
         assertEquals(true, mDeviceConfigFacade.isInterfaceFailureBugreportEnabled());
+        assertEquals(50, mDeviceConfigFacade.getSingleScanCoalescingWindowMs());
+        assertEquals(2000, mDeviceConfigFacade.getAppScanMaxCachedResultAgeMs());
     }
 }
@@ -92,6 +92,7 @@ public class ScanRequestProxyTest extends WifiBaseTest {
     @Mock private Clock mClock;
     @Mock private WifiSettingsConfigStore mWifiSettingsConfigStore;
     @Mock private WifiNetworkSuggestionsManager mWifiNetworkSuggestionsManager;
+    @Mock private DeviceConfigFacade mDeviceConfigFacade;
     @Mock private IScanResultsCallback mScanResultsCallback;
     @Mock private IScanResultsCallback mAnotherScanResultsCallback;
     @Mock private TestLooper mLooper;
@@ -127,6 +128,7 @@ public class ScanRequestProxyTest extends WifiBaseTest {
         when(mWifiInjector.getWifiScanner()).thenReturn(mWifiScanner);
         when(mWifiInjector.getWifiNetworkSuggestionsManager())
                 .thenReturn(mWifiNetworkSuggestionsManager);
+        when(mWifiInjector.getDeviceConfigFacade()).thenReturn(mDeviceConfigFacade);
         when(mWifiConfigManager.retrieveHiddenNetworkList(false /* autoJoinOnly */))
                 .thenReturn(TEST_HIDDEN_NETWORKS_LIST);
         when(mWifiNetworkSuggestionsManager.retrieveHiddenNetworkList(false /* autoJoinOnly */))
@@ -158,7 +160,8 @@ public class ScanRequestProxyTest extends WifiBaseTest {
         mScanRequestProxy =
             new ScanRequestProxy(mContext, mAppOps, mActivityManager, mWifiInjector,
                     mWifiConfigManager, mWifiPermissionsUtil, mWifiMetrics, mClock,
-                    new Handler(mLooper.getLooper()), mWifiSettingsConfigStore);
+                    new Handler(mLooper.getLooper()), new Handler(mLooper.getLooper()),
+                    mWifiSettingsConfigStore);
         when(mScanResultsCallback.asBinder()).thenReturn(mBinder);
         when(mAnotherScanResultsCallback.asBinder()).thenReturn(mAnotherBinder);
     }
@@ -243,6 +246,26 @@ public class ScanRequestProxyTest extends WifiBaseTest {
         verifyScanMetricsDataWasSet();
     }
 
+    /**
+     * Verify that scan requests from apps accept the cached results allowed by DeviceConfig,
+     * and that those from apps with network settings permission do not.
+     */
+    @Test
+    public void testStartScanMaxCachedResultAge() {
+        enableScanning();
+        when(mDeviceConfigFacade.getAppScanMaxCachedResultAgeMs()).thenReturn(2000);
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any(), any());
+        assertEquals(2000, mScanSettingsArgumentCaptor.getValue().maxCachedResultAgeMs);
+        verifyScanMetricsDataWasSet();
+
+        when(mWifiPermissionsUtil.checkNetworkSettingsPermission(TEST_UID)).thenReturn(true);
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any(), any());
+        assertEquals(0, mScanSettingsArgumentCaptor.getValue().maxCachedResultAgeMs);
+        verifyScanMetricsDataWasSet(1, 2);
+    }
+
     /**
      * Verify scan request will forwarded to wifiscanner if wifiscanner is present.
      */
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.IScanResultsCallback;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.ScanResultsCallbackDispatcher}.
+ */
+@SmallTest
+public class ScanResultsCallbackDispatcherTest extends WifiBaseTest {
+    @Mock private Clock mClock;
+    @Mock private IScanResultsCallback mCallback;
+    @Mock private IScanResultsCallback mAnotherCallback;
+    @Mock private IBinder mBinder;
+    @Mock private IBinder mAnotherBinder;
+
+    private TestLooper mLooper;
+    private ScanResultsCallbackDispatcher mDispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mLooper = new TestLooper();
+        when(mCallback.asBinder()).thenReturn(mBinder);
+        when(mAnotherCallback.asBinder()).thenReturn(mAnotherBinder);
+        mDispatcher = new ScanResultsCallbackDispatcher(new Handler(mLooper.getLooper()), mClock);
+        assertTrue(mDispatcher.register(mCallback));
+        assertTrue(mDispatcher.register(mAnotherCallback));
+    }
+
+    /**
+     * Verify that events are delivered from the handler, and that events raised while one is
+     * pending are coalesced.
+     */
+    @Test
+    public void testEventsCoalescedWhilePending() throws Exception {
+        mDispatcher.notifyScanResultsAvailable();
+        mDispatcher.notifyScanResultsAvailable();
+        verify(mCallback, never()).onScanResultsAvailable();
+
+        mLooper.dispatchAll();
+        verify(mCallback).onScanResultsAvailable();
+        verify(mAnotherCallback).onScanResultsAvailable();
+
+        mDispatcher.notifyScanResultsAvailable();
+        mLooper.dispatchAll();
+        verify(mCallback, times(2)).onScanResultsAvailable();
+    }
+
+    /**
+     * Verify that an event raised while a client is being called is delivered once the call
+     * returns, and that the delivery latency is dumped.
+     */
+    @Test
+    public void testEventRaisedDuringDeliveryIsDeliveredAgain() throws Exception {
+        mDispatcher.unregister(mAnotherCallback);
+        doAnswer(invocation -> {
+            when(mClock.getElapsedSinceBootMillis()).thenReturn(100L);
+            mDispatcher.notifyScanResultsAvailable();
+            mDispatcher.notifyScanResultsAvailable();
+            return null;
+        }).doNothing().when(mCallback).onScanResultsAvailable();
+
+        mDispatcher.notifyScanResultsAvailable();
+        mLooper.dispatchAll();
+        verify(mCallback, times(2)).onScanResultsAvailable();
+
+        StringWriter sw = new StringWriter();
+        mDispatcher.dump(new PrintWriter(sw));
+        String dump = sw.toString();
+        assertTrue(dump.contains(mBinder + " delivered=2 coalesced=1 avgLatencyMs=50"
+                + " maxLatencyMs=100"));
+    }
+
+    /**
+     * Verify that a pending event is dropped when the callback is unregistered.
+     */
+    @Test
+    public void testPendingEventDroppedOnUnregister() throws Exception {
+        mDispatcher.notifyScanResultsAvailable();
+        mDispatcher.unregister(mCallback);
+        mLooper.dispatchAll();
+        verify(mCallback, never()).onScanResultsAvailable();
+        verify(mAnotherCallback).onScanResultsAvailable();
+    }
+}
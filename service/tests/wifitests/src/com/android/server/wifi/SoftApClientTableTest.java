@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.net.MacAddress;
+import android.net.wifi.WifiClient;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.SoftApClientTable}.
+ */
+@SmallTest
+public class SoftApClientTableTest extends WifiBaseTest {
+    private static final String TEST_INSTANCE_1 = "wlan0";
+    private static final String TEST_INSTANCE_2 = "wlan1";
+    private static final WifiClient TEST_CLIENT_1 = new WifiClient(
+            MacAddress.fromString("22:33:44:55:66:77"), TEST_INSTANCE_1);
+    private static final WifiClient TEST_CLIENT_2 = new WifiClient(
+            MacAddress.fromString("aa:bb:cc:dd:ee:ff"), TEST_INSTANCE_1);
+    private static final WifiClient TEST_CLIENT_3 = new WifiClient(
+            MacAddress.fromString("aa:bb:cc:11:22:33"), TEST_INSTANCE_2);
+
+    private SoftApClientTable mTable;
+
+    @Before
+    public void setUp() throws Exception {
+        mTable = new SoftApClientTable();
+    }
+
+    /**
+     * Verify that clients are added and removed once, and counted per instance.
+     */
+    @Test
+    public void testAddAndRemove() {
+        assertTrue(mTable.add(TEST_CLIENT_1, 0));
+        assertFalse(mTable.add(TEST_CLIENT_1, 0));
+        assertTrue(mTable.add(TEST_CLIENT_2, 0));
+        assertTrue(mTable.add(TEST_CLIENT_3, 0));
+        assertTrue(mTable.contains(TEST_CLIENT_1));
+        assertFalse(mTable.contains(new WifiClient(TEST_CLIENT_1.getMacAddress(),
+                TEST_INSTANCE_2)));
+        assertEquals(3, mTable.size());
+        assertEquals(2, mTable.size(TEST_INSTANCE_1));
+        assertEquals(1, mTable.size(TEST_INSTANCE_2));
+
+        assertTrue(mTable.remove(TEST_CLIENT_1));
+        assertFalse(mTable.remove(TEST_CLIENT_1));
+        assertFalse(mTable.contains(TEST_CLIENT_1));
+        assertEquals(2, mTable.size());
+
+        mTable.removeInstance(TEST_INSTANCE_2);
+        assertEquals(1, mTable.size());
+        assertEquals(0, mTable.size(TEST_INSTANCE_2));
+        assertEquals(Collections.singleton(TEST_INSTANCE_1), mTable.getInstances());
+
+        mTable.clear();
+        assertEquals(0, mTable.size());
+        assertTrue(mTable.getInstances().isEmpty());
+    }
+
+    /**
+     * Verify that the client list map keeps the connection order and that the same map is
+     * brought up to date after a change.
+     */
+    @Test
+    public void testClientListMap() {
+        mTable.addInstance(TEST_INSTANCE_2);
+        mTable.add(TEST_CLIENT_2, 0);
+        mTable.add(TEST_CLIENT_1, 0);
+        Map<String, List<WifiClient>> map = mTable.getClientListMap();
+        assertEquals(Arrays.asList(TEST_CLIENT_2, TEST_CLIENT_1), map.get(TEST_INSTANCE_1));
+        assertTrue(map.get(TEST_INSTANCE_2).isEmpty());
+
+        mTable.remove(TEST_CLIENT_2);
+        mTable.removeInstance(TEST_INSTANCE_2);
+        assertSame(map, mTable.getClientListMap());
+        assertEquals(Collections.singletonList(TEST_CLIENT_1), map.get(TEST_INSTANCE_1));
+        assertFalse(map.containsKey(TEST_INSTANCE_2));
+    }
+
+    /**
+     * Verify that slots are reused and that the table grows past its initial capacity.
+     */
+    @Test
+    public void testSlotReuseAndGrowth() {
+        for (int i = 0; i < 40; i++) {
+            WifiClient client = new WifiClient(
+                    MacAddress.fromString(String.format("02:00:00:00:00:%02x", i)),
+                    TEST_INSTANCE_1);
+            assertTrue(mTable.add(client, i));
+            if (i % 2 == 1) {
+                assertTrue(mTable.remove(client));
+            }
+        }
+        assertEquals(20, mTable.size());
+        assertEquals(20, mTable.getClients().size());
+        assertEquals(2, mTable.getConnectedDurationMs(new WifiClient(
+                MacAddress.fromString("02:00:00:00:00:26"), TEST_INSTANCE_1), 40));
+    }
+
+    /**
+     * Verify the connected duration of a client.
+     */
+    @Test
+    public void testConnectedDuration() {
+        mTable.add(TEST_CLIENT_1, 1000);
+        assertEquals(500, mTable.getConnectedDurationMs(TEST_CLIENT_1, 1500));
+        assertEquals(-1, mTable.getConnectedDurationMs(TEST_CLIENT_2, 1500));
+        mTable.remove(TEST_CLIENT_1);
+        assertEquals(-1, mTable.getConnectedDurationMs(TEST_CLIENT_1, 1500));
+    }
+
+    /**
+     * Verify that the connection attempts are counted per client over fixed windows, also once
+     * the client is disconnected.
+     */
+    @Test
+    public void testConnectionAttemptsCounted() {
+        MacAddress mac1 = TEST_CLIENT_1.getMacAddress();
+        MacAddress mac2 = TEST_CLIENT_2.getMacAddress();
+        assertEquals(1, mTable.noteConnectionAttempt(mac1, 0, 1000));
+        assertEquals(2, mTable.noteConnectionAttempt(mac1, 500, 1000));
+        assertEquals(1, mTable.noteConnectionAttempt(mac2, 500, 1000));
+        mTable.clear();
+        assertEquals(3, mTable.noteConnectionAttempt(mac1, 999, 1000));
+        // A new window starts.
+        assertEquals(1, mTable.noteConnectionAttempt(mac1, 1000, 1000));
+    }
+
+    /**
+     * Verify that the clients of an instance become idle once the instance moves no packet, and
+     * that the idle time of a client starts at its connection at the earliest.
+     */
+    @Test
+    public void testInstanceActivity() {
+        mTable.add(TEST_CLIENT_1, 0);
+        mTable.add(TEST_CLIENT_2, 0);
+        mTable.add(TEST_CLIENT_3, 0);
+        // The first update only records the counters.
+        assertFalse(mTable.updateInstancePackets(TEST_INSTANCE_1, 100, 200, 1000));
+        assertFalse(mTable.updateInstancePackets(TEST_INSTANCE_2, 0, 0, 1000));
+        assertTrue(mTable.updateInstancePackets(TEST_INSTANCE_1, 111, 220, 2000));
+        assertFalse(mTable.updateInstancePackets(TEST_INSTANCE_2, 0, 0, 2000));
+
+        assertEquals(1000, mTable.getIdleDurationMs(TEST_CLIENT_1, 3000));
+        assertEquals(1000, mTable.getIdleDurationMs(TEST_CLIENT_2, 3000));
+        assertEquals(3000, mTable.getIdleDurationMs(TEST_CLIENT_3, 3000));
+        assertEquals(-1, mTable.getIdleDurationMs(
+                new WifiClient(TEST_CLIENT_1.getMacAddress(), TEST_INSTANCE_2), 3000));
+        assertEquals(Arrays.asList(TEST_CLIENT_3), mTable.getIdleClients(3000, 2000));
+
+        // A client connecting to an idle instance is not idle before its connection.
+        mTable.remove(TEST_CLIENT_3);
+        mTable.add(TEST_CLIENT_3, 2500);
+        assertEquals(500, mTable.getIdleDurationMs(TEST_CLIENT_3, 3000));
+        assertTrue(mTable.getIdleClients(3000, 2000).isEmpty());
+
+        // Counters restarting from 0 are not counted as traffic.
+        assertFalse(mTable.updateInstancePackets(TEST_INSTANCE_1, 0, 0, 4000));
+        assertEquals(3000, mTable.getIdleDurationMs(TEST_CLIENT_1, 5000));
+        assertEquals(Arrays.asList(TEST_CLIENT_1, TEST_CLIENT_2),
+                mTable.getIdleClients(5000, 3000));
+    }
+}
@@ -190,6 +190,7 @@ public class SoftApManagerTest extends WifiBaseTest {
     @Mock WifiInfo mPrimaryWifiInfo;
     @Mock WifiInfo mSecondWifiInfo;
     @Mock BatteryManager mBatteryManager;
+    @Mock Clock mClock;
 
     final ArgumentCaptor<WifiNative.InterfaceCallback> mWifiNativeInterfaceCallbackCaptor =
             ArgumentCaptor.forClass(WifiNative.InterfaceCallback.class);
@@ -404,6 +405,7 @@ public class SoftApManagerTest extends WifiBaseTest {
                 mFakeSoftApNotifier,
                 mCmiMonitor,
                 mActiveModeWarden,
+                mClock,
                 TEST_MANAGER_ID,
                 TEST_WORKSOURCE,
                 role,
@@ -1219,6 +1221,37 @@ public class SoftApManagerTest extends WifiBaseTest {
                 apConfig.getTargetMode(), mTestSoftApInfo);
     }
 
+    /**
+     * Verify that the client changes within the batch window are reported with one callback,
+     * while the metrics are still updated for each change.
+     */
+    @Test
+    public void testConnectedClientsCallbackBatched() throws Exception {
+        when(mResources.getInteger(
+                R.integer.config_wifiSoftApConnectedClientsCallbackBatchWindowMillis))
+                .thenReturn(100);
+        SoftApModeConfiguration apConfig =
+                new SoftApModeConfiguration(WifiManager.IFACE_IP_MODE_TETHERED, null,
+                mTestSoftApCapability);
+        startSoftApAndVerifyEnabled(apConfig);
+        mockSoftApInfoUpdateAndVerifyAfterSapStarted(false, true);
+        reset(mCallback);
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, true, TEST_INTERFACE_NAME, true);
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS_2, true, TEST_INTERFACE_NAME, true);
+        mLooper.dispatchAll();
+
+        verify(mCallback, never()).onConnectedClientsOrInfoChanged(any(), any(), anyBoolean());
+        verify(mWifiMetrics).addSoftApNumAssociatedStationsChangedEvent(1, 1,
+                apConfig.getTargetMode(), mTestSoftApInfo);
+        verify(mWifiMetrics).addSoftApNumAssociatedStationsChangedEvent(2, 2,
+                apConfig.getTargetMode(), mTestSoftApInfo);
+
+        mLooper.moveTimeForward(100);
+        mLooper.dispatchAll();
+        verify(mCallback).onConnectedClientsOrInfoChanged(mTestSoftApInfoMap,
+                mTestWifiClientsMap, false);
+    }
+
     /**
      * If SoftApManager gets an update for the number of connected clients that is the same, do not
      * trigger callbacks a second time.
@@ -1332,6 +1365,125 @@ public class SoftApManagerTest extends WifiBaseTest {
         verify(mAlarmManager.getAlarmManager()).cancel(eq(timerOnTestInterface));
     }
 
+    @Test
+    public void testClientConnectFailureWhenBandLimitReached() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiSoftApMaxClientsPerBand)).thenReturn(1);
+        mTestSoftApCapability.setMaxSupportedClients(10);
+        SoftApModeConfiguration apConfig =
+                new SoftApModeConfiguration(WifiManager.IFACE_IP_MODE_TETHERED, null,
+                mTestSoftApCapability);
+        startSoftApAndVerifyEnabled(apConfig);
+        mockSoftApInfoUpdateAndVerifyAfterSapStarted(false, true);
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, true, TEST_INTERFACE_NAME, true);
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS_2, true, TEST_INTERFACE_NAME, false);
+        mLooper.dispatchAll();
+
+        verify(mWifiNative).forceClientDisconnect(
+                TEST_INTERFACE_NAME, TEST_CLIENT_MAC_ADDRESS_2,
+                WifiManager.SAP_CLIENT_BLOCK_REASON_CODE_NO_MORE_STAS);
+        verify(mCallback).onBlockedClientConnecting(TEST_CONNECTED_CLIENT_2,
+                WifiManager.SAP_CLIENT_BLOCK_REASON_CODE_NO_MORE_STAS);
+        verify(mWifiMetrics).noteSoftApClientBlockedByBandLimit();
+        verify(mWifiMetrics).addSoftApNumAssociatedStationsChangedEvent(1, 1,
+                apConfig.getTargetMode(), mTestSoftApInfo);
+        verify(mWifiMetrics, never()).addSoftApNumAssociatedStationsChangedEvent(2, 2,
+                apConfig.getTargetMode(), mTestSoftApInfo);
+    }
+
+    @Test
+    public void testClientDisconnectWhenReconnectLimitReached() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiSoftApClientReconnectLimit))
+                .thenReturn(2);
+        when(mResources.getInteger(R.integer.config_wifiSoftApClientReconnectWindowMillis))
+                .thenReturn(60000);
+        mTestSoftApCapability.setMaxSupportedClients(10);
+        SoftApModeConfiguration apConfig =
+                new SoftApModeConfiguration(WifiManager.IFACE_IP_MODE_TETHERED, null,
+                mTestSoftApCapability);
+        startSoftApAndVerifyEnabled(apConfig);
+        mockSoftApInfoUpdateAndVerifyAfterSapStarted(false, true);
+        for (int i = 0; i < 2; i++) {
+            mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, true, TEST_INTERFACE_NAME, true);
+            mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, false, TEST_INTERFACE_NAME, true);
+        }
+        mLooper.dispatchAll();
+        verify(mWifiNative, never()).forceClientDisconnect(any(), any(), anyInt());
+
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, true, TEST_INTERFACE_NAME, false);
+        mLooper.dispatchAll();
+        verify(mWifiNative).forceClientDisconnect(
+                TEST_INTERFACE_NAME, TEST_CLIENT_MAC_ADDRESS,
+                WifiManager.SAP_CLIENT_DISCONNECT_REASON_CODE_UNSPECIFIED);
+        verify(mWifiMetrics).noteSoftApClientBlockedByReconnectLimit();
+    }
+
+    @Test
+    public void testClientTrafficSampledAndIdleClientDisconnected() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiSoftApClientStatsSampleIntervalMillis))
+                .thenReturn(1000);
+        when(mResources.getInteger(R.integer.config_wifiSoftApClientIdleTimeoutMillis))
+                .thenReturn(4000);
+        mTestSoftApCapability.setMaxSupportedClients(10);
+        SoftApModeConfiguration apConfig =
+                new SoftApModeConfiguration(WifiManager.IFACE_IP_MODE_TETHERED, null,
+                mTestSoftApCapability);
+        startSoftApAndVerifyEnabled(apConfig);
+        mockSoftApInfoUpdateAndVerifyAfterSapStarted(false, true);
+        when(mWifiNative.getTxPackets(TEST_INTERFACE_NAME)).thenReturn(100L);
+        when(mWifiNative.getRxPackets(TEST_INTERFACE_NAME)).thenReturn(100L);
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, true, TEST_INTERFACE_NAME, true);
+        mLooper.dispatchAll();
+
+        // The client moves packets during the first interval.
+        when(mWifiNative.getTxPackets(TEST_INTERFACE_NAME)).thenReturn(110L);
+        when(mWifiNative.getRxPackets(TEST_INTERFACE_NAME)).thenReturn(105L);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+
+        // Then stays idle: the interval doubles and is capped by the idle timeout.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(4000L);
+        mLooper.moveTimeForward(2000);
+        mLooper.dispatchAll();
+        verify(mWifiNative, never()).forceClientDisconnect(any(), any(), anyInt());
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(8000L);
+        mLooper.moveTimeForward(4000);
+        mLooper.dispatchAll();
+        verify(mWifiNative).forceClientDisconnect(TEST_INTERFACE_NAME, TEST_CLIENT_MAC_ADDRESS,
+                SAP_CLIENT_DISCONNECT_REASON_CODE_UNSPECIFIED);
+        verify(mWifiMetrics).noteSoftApClientDisconnectedByIdleTimeout();
+
+        // The client is not asked again before its disconnection event.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(12000L);
+        mLooper.moveTimeForward(4000);
+        mLooper.dispatchAll();
+        verify(mWifiNative).forceClientDisconnect(any(), any(), anyInt());
+        verify(mWifiMetrics).noteSoftApClientDisconnectedByIdleTimeout();
+
+        // No more sample once the client is gone.
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, false, TEST_INTERFACE_NAME, true);
+        mLooper.dispatchAll();
+        mLooper.moveTimeForward(8000);
+        mLooper.dispatchAll();
+        verify(mWifiNative, times(6)).getTxPackets(TEST_INTERFACE_NAME);
+    }
+
+    @Test
+    public void testClientTrafficNotSampledByDefault() throws Exception {
+        SoftApModeConfiguration apConfig =
+                new SoftApModeConfiguration(WifiManager.IFACE_IP_MODE_TETHERED, null,
+                mTestSoftApCapability);
+        startSoftApAndVerifyEnabled(apConfig);
+        mockSoftApInfoUpdateAndVerifyAfterSapStarted(false, true);
+        mockClientConnectedEvent(TEST_CLIENT_MAC_ADDRESS, true, TEST_INTERFACE_NAME, true);
+        mLooper.moveTimeForward(60000);
+        mLooper.dispatchAll();
+        verify(mWifiNative, never()).getTxPackets(any());
+    }
+
     @Test
     public void testClientConnectFailureWhenClientInBlcokedListAndClientAuthorizationDisabled()
             throws Exception {
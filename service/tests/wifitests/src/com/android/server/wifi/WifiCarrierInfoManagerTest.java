@@ -40,6 +40,7 @@ import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.lenient;
@@ -69,6 +70,7 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.hotspot2.PasspointConfiguration;
 import android.net.wifi.hotspot2.pps.Credential;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
 import android.os.PersistableBundle;
 import android.os.UserHandle;
@@ -624,6 +626,108 @@ public class WifiCarrierInfoManagerTest extends WifiBaseTest {
         }
     }
 
+    /**
+     * Verify that an encrypted identity computed ahead of the connection is used once.
+     */
+    @Test
+    public void getEncryptedIdentityPrecomputed() throws Exception {
+        Cipher cipher = mock(Cipher.class);
+        String imsi = "3214561234567890";
+        String permanentIdentity = "03214561234567890@wlan.mnc456.mcc321.3gppnetwork.org";
+        String encryptedImsi = Base64.encodeToString(permanentIdentity.getBytes(), 0,
+                permanentIdentity.getBytes().length, Base64.NO_WRAP);
+        String encryptedIdentity = "\0" + encryptedImsi + ",key=testKey";
+        HandlerThread handlerThread = mock(HandlerThread.class);
+        when(handlerThread.getLooper()).thenReturn(mLooper.getLooper());
+        when(mWifiInjector.getWifiCarrierIdentityHandlerThread()).thenReturn(handlerThread);
+        WifiCarrierInfoManager spyTu = spy(mWifiCarrierInfoManager);
+        doReturn(true).when(spyTu).requiresImsiEncryption(DATA_SUBID);
+
+        // static mocking
+        MockitoSession session = ExtendedMockito.mockitoSession().mockStatic(
+                Cipher.class).startMocking();
+        try {
+            lenient().when(Cipher.getInstance(anyString())).thenReturn(cipher);
+            when(cipher.doFinal(any(byte[].class))).thenReturn(permanentIdentity.getBytes());
+            when(mDataTelephonyManager.getSubscriberId()).thenReturn(imsi);
+            when(mDataTelephonyManager.getSimOperator()).thenReturn("321456");
+            ImsiEncryptionInfo info = mock(ImsiEncryptionInfo.class);
+            when(info.getKeyIdentifier()).thenReturn("key=testKey");
+            when(mDataTelephonyManager.getCarrierInfoForImsiEncryption(
+                    eq(TelephonyManager.KEY_TYPE_WLAN)))
+                    .thenReturn(info);
+            WifiConfiguration config =
+                    WifiConfigurationTestUtil.createEapNetwork(WifiEnterpriseConfig.Eap.AKA,
+                            WifiEnterpriseConfig.Phase2.NONE);
+            config.carrierId = DATA_CARRIER_ID;
+
+            spyTu.precomputeSimIdentity(config);
+            verify(cipher, never()).doFinal(any(byte[].class));
+            mLooper.dispatchAll();
+            verify(cipher).doFinal(any(byte[].class));
+
+            // Reading the identity alone does not consume the precomputed one.
+            assertEquals(permanentIdentity, spyTu.getUnencryptedSimIdentity(config));
+            assertEquals(Pair.create(permanentIdentity, encryptedIdentity),
+                    spyTu.getSimIdentity(config));
+            verify(cipher).doFinal(any(byte[].class));
+            // The key read by the precompute is reused.
+            verify(mDataTelephonyManager).getCarrierInfoForImsiEncryption(
+                    TelephonyManager.KEY_TYPE_WLAN);
+
+            // The precomputed identity is not reused.
+            assertEquals(Pair.create(permanentIdentity, encryptedIdentity),
+                    spyTu.getSimIdentity(config));
+            verify(cipher, times(2)).doFinal(any(byte[].class));
+        } finally {
+            session.finishMocking();
+        }
+    }
+
+    /**
+     * Verify that the IMSI encryption key is read from telephony once, until it is reset.
+     */
+    @Test
+    public void getEncryptedIdentityKeyCachedUntilReset() throws Exception {
+        Cipher cipher = mock(Cipher.class);
+        String imsi = "3214561234567890";
+        String permanentIdentity = "03214561234567890@wlan.mnc456.mcc321.3gppnetwork.org";
+        WifiCarrierInfoManager spyTu = spy(mWifiCarrierInfoManager);
+        doReturn(true).when(spyTu).requiresImsiEncryption(DATA_SUBID);
+
+        // static mocking
+        MockitoSession session = ExtendedMockito.mockitoSession().mockStatic(
+                Cipher.class).startMocking();
+        try {
+            lenient().when(Cipher.getInstance(anyString())).thenReturn(cipher);
+            when(cipher.doFinal(any(byte[].class))).thenReturn(permanentIdentity.getBytes());
+            when(mDataTelephonyManager.getSubscriberId()).thenReturn(imsi);
+            when(mDataTelephonyManager.getSimOperator()).thenReturn("321456");
+            ImsiEncryptionInfo info = mock(ImsiEncryptionInfo.class);
+            when(info.getKeyIdentifier()).thenReturn("key=testKey");
+            when(mDataTelephonyManager.getCarrierInfoForImsiEncryption(
+                    eq(TelephonyManager.KEY_TYPE_WLAN)))
+                    .thenReturn(info);
+            WifiConfiguration config =
+                    WifiConfigurationTestUtil.createEapNetwork(WifiEnterpriseConfig.Eap.AKA,
+                            WifiEnterpriseConfig.Phase2.NONE);
+            config.carrierId = DATA_CARRIER_ID;
+            clearInvocations(mDataTelephonyManager);
+
+            assertNotNull(spyTu.getSimIdentity(config));
+            assertNotNull(spyTu.getSimIdentity(config));
+            verify(mDataTelephonyManager).getCarrierInfoForImsiEncryption(
+                    TelephonyManager.KEY_TYPE_WLAN);
+
+            spyTu.resetCarrierKeysForImsiEncryption(config);
+            assertNotNull(spyTu.getSimIdentity(config));
+            verify(mDataTelephonyManager, times(2)).getCarrierInfoForImsiEncryption(
+                    TelephonyManager.KEY_TYPE_WLAN);
+        } finally {
+            session.finishMocking();
+        }
+    }
+
     /**
      * Verify that {@code null} will be returned when IMSI encryption failed.
      *
@@ -1107,6 +1211,31 @@ public class WifiCarrierInfoManagerTest extends WifiBaseTest {
         assertFalse(mWifiCarrierInfoManager.isSimReady(DATA_SUBID));
     }
 
+    /**
+     * Verify that the SIM state is read once and cached until the SIM state changes.
+     */
+    @Test
+    public void isSimReadyCachesSimStateUntilSimStateChanged() {
+        when(mDataTelephonyManager.getSimApplicationState())
+                .thenReturn(TelephonyManager.SIM_STATE_NETWORK_LOCKED);
+        assertFalse(mWifiCarrierInfoManager.isSimReady(DATA_SUBID));
+        assertFalse(mWifiCarrierInfoManager.isSimReady(DATA_SUBID));
+        verify(mDataTelephonyManager).getSimApplicationState();
+
+        when(mDataTelephonyManager.getSimApplicationState())
+                .thenReturn(TelephonyManager.SIM_STATE_LOADED);
+        ArgumentCaptor<BroadcastReceiver> receiver =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiver(receiver.capture(), any(IntentFilter.class));
+        receiver.getValue().onReceive(mContext,
+                new Intent(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED));
+        mLooper.dispatchAll();
+
+        assertTrue(mWifiCarrierInfoManager.isSimReady(DATA_SUBID));
+        assertTrue(mWifiCarrierInfoManager.isSimReady(DATA_SUBID));
+        verify(mDataTelephonyManager, times(2)).getSimApplicationState();
+    }
+
     /**
      * The active SubscriptionInfo List may be null or empty from Telephony.
      */
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.net.MacAddress;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.wifi.proto.nano.WifiMetricsProto;
+import com.android.server.wifi.proto.nano.WifiMetricsProto.WifiEventJournal.Event;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.WifiEventJournal}.
+ */
+@SmallTest
+public class WifiEventJournalTest extends WifiBaseTest {
+    private static final int TEST_CAPACITY = 3;
+    private static final int TEST_NETWORK_ID = 5;
+    private static final String TEST_BSSID = "6c:f3:7f:ae:8c:f3";
+    private static final long TEST_BSSID_LONG = 0x6cf37fae8cf3L;
+
+    @Mock Clock mClock;
+    private WifiEventJournal mWifiEventJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mWifiEventJournal = new WifiEventJournal(mClock, TEST_CAPACITY);
+    }
+
+    /**
+     * Verify that events are exported oldest first with all of their fields.
+     */
+    @Test
+    public void testEventsExportedInOrder() {
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        mWifiEventJournal.logScanStart(2, 3);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        mWifiEventJournal.logNetworkSelection(TEST_NETWORK_ID, MacAddress.fromString(TEST_BSSID),
+                4, 2);
+
+        WifiMetricsProto.WifiEventJournal journal = mWifiEventJournal.toProto();
+
+        assertEquals(2, journal.events.length);
+        assertEquals(0, journal.numDroppedEvents);
+        assertEquals(1000L, journal.events[0].timestampMs);
+        assertEquals(Event.TYPE_SCAN_START, journal.events[0].type);
+        assertEquals(-1, journal.events[0].networkId);
+        assertEquals(2, journal.events[0].arg1);
+        assertEquals(3, journal.events[0].arg2);
+        assertEquals(2000L, journal.events[1].timestampMs);
+        assertEquals(Event.TYPE_NETWORK_SELECTION, journal.events[1].type);
+        assertEquals(TEST_NETWORK_ID, journal.events[1].networkId);
+        assertEquals(TEST_BSSID_LONG, journal.events[1].bssid);
+        assertEquals(4, journal.events[1].arg1);
+        assertEquals(2, journal.events[1].arg2);
+    }
+
+    /**
+     * Verify that the oldest events are overwritten once the journal is full.
+     */
+    @Test
+    public void testOldestEventsOverwrittenWhenFull() {
+        mWifiEventJournal.logConnectStart(TEST_NETWORK_ID, TEST_BSSID, false);
+        mWifiEventJournal.logConnectEnd(TEST_NETWORK_ID, TEST_BSSID, 0);
+        mWifiEventJournal.logConnectStart(TEST_NETWORK_ID, TEST_BSSID, true);
+        mWifiEventJournal.logDisconnect(TEST_NETWORK_ID, TEST_BSSID, 3);
+
+        WifiMetricsProto.WifiEventJournal journal = mWifiEventJournal.toProto();
+
+        assertEquals(TEST_CAPACITY, journal.events.length);
+        assertEquals(1, journal.numDroppedEvents);
+        assertEquals(Event.TYPE_CONNECT_END, journal.events[0].type);
+        assertEquals(Event.TYPE_ROAM_START, journal.events[1].type);
+        assertEquals(Event.TYPE_DISCONNECT, journal.events[2].type);
+        assertEquals(3, journal.events[2].arg1);
+        assertEquals(TEST_BSSID_LONG, journal.events[2].bssid);
+    }
+
+    /**
+     * Verify that roams done by the supplicant or the firmware are recorded.
+     */
+    @Test
+    public void testRoamRecorded() {
+        mWifiEventJournal.logRoam(TEST_NETWORK_ID, TEST_BSSID);
+
+        WifiMetricsProto.WifiEventJournal journal = mWifiEventJournal.toProto();
+
+        assertEquals(1, journal.events.length);
+        assertEquals(Event.TYPE_ROAM, journal.events[0].type);
+        assertEquals(TEST_NETWORK_ID, journal.events[0].networkId);
+        assertEquals(TEST_BSSID_LONG, journal.events[0].bssid);
+    }
+
+    /**
+     * Verify that malformed BSSIDs are recorded as 0.
+     */
+    @Test
+    public void testMalformedBssid() {
+        mWifiEventJournal.logConnectStart(TEST_NETWORK_ID, null, false);
+        mWifiEventJournal.logConnectStart(TEST_NETWORK_ID, "any", false);
+        mWifiEventJournal.logConnectStart(TEST_NETWORK_ID, "6c-f3-7f-ae-8c-f3", false);
+
+        WifiMetricsProto.WifiEventJournal journal = mWifiEventJournal.toProto();
+
+        for (Event event : journal.events) {
+            assertEquals(0, event.bssid);
+        }
+    }
+
+    /**
+     * Verify that clear drops all the events.
+     */
+    @Test
+    public void testClear() {
+        mWifiEventJournal.logScanResults(10, 3);
+        mWifiEventJournal.clear();
+
+        assertEquals(0, mWifiEventJournal.toProto().events.length);
+    }
+
+    /**
+     * Verify that events are formatted when dumped.
+     */
+    @Test
+    public void testDump() {
+        mWifiEventJournal.logDisconnect(TEST_NETWORK_ID, TEST_BSSID, 3);
+
+        StringWriter sw = new StringWriter();
+        mWifiEventJournal.dump(null, new PrintWriter(sw), null);
+
+        String dump = sw.toString();
+        assertTrue(dump.contains("DISCONNECT nid=" + TEST_NETWORK_ID + " bssid=" + TEST_BSSID));
+    }
+}
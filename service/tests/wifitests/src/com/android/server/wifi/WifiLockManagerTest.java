@@ -300,6 +300,31 @@ public class WifiLockManagerTest extends WifiBaseTest {
         assertEquals(1, checkMWS.size());
     }
 
+    /**
+     * The merged WorkSource should follow the locks being released and updated, and should not
+     * be changed by the caller modifying the returned WorkSource.
+     */
+    @Test
+    public void createMergedWorkSourceAfterReleaseAndUpdateShouldSucceed() throws Exception {
+        acquireWifiLockSuccessful(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "", mBinder, mWorkSource);
+        acquireWifiLockSuccessful(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "", mBinder2,
+                new WorkSource(DEFAULT_TEST_UID_2));
+        WorkSource merged = mWifiLockManager.createMergedWorkSource();
+        assertEquals(2, merged.size());
+        merged.add(DEFAULT_TEST_UID_3);
+        assertEquals(2, mWifiLockManager.createMergedWorkSource().size());
+
+        releaseWifiLockSuccessful(mBinder);
+        merged = mWifiLockManager.createMergedWorkSource();
+        assertEquals(1, merged.size());
+        assertEquals(DEFAULT_TEST_UID_2, merged.getUid(0));
+
+        mWifiLockManager.updateWifiLockWorkSource(mBinder2, new WorkSource(DEFAULT_TEST_UID_4));
+        merged = mWifiLockManager.createMergedWorkSource();
+        assertEquals(1, merged.size());
+        assertEquals(DEFAULT_TEST_UID_4, merged.getUid(0));
+    }
+
     /**
      * Checks that WorkChains are preserved when merged WorkSources are created.
      */
@@ -5682,6 +5682,10 @@ public class WifiMetricsTest extends WifiBaseTest {
         mWifiMetrics.noteSoftApClientBlocked(5);
         mWifiMetrics.noteSoftApClientBlocked(5);
         mWifiMetrics.noteSoftApClientBlocked(8);
+        mWifiMetrics.noteSoftApClientBlockedByBandLimit();
+        mWifiMetrics.noteSoftApClientBlockedByReconnectLimit();
+        mWifiMetrics.noteSoftApClientBlockedByReconnectLimit();
+        mWifiMetrics.noteSoftApClientDisconnectedByIdleTimeout();
 
         dumpProtoAndDeserialize();
 
@@ -5691,6 +5695,12 @@ public class WifiMetricsTest extends WifiBaseTest {
                 mDecodedProto.softApConfigLimitationMetrics.numMaxClientSettingResetToDefault);
         assertEquals(1,
                 mDecodedProto.softApConfigLimitationMetrics.numClientControlByUserResetToDefault);
+        assertEquals(1,
+                mDecodedProto.softApConfigLimitationMetrics.numClientBlockedByBandLimit);
+        assertEquals(2,
+                mDecodedProto.softApConfigLimitationMetrics.numClientBlockedByReconnectLimit);
+        assertEquals(1,
+                mDecodedProto.softApConfigLimitationMetrics.numClientDisconnectedByIdleTimeout);
 
         Int32Count[] expectedHistogram = {
                 buildInt32Count(5, 3),
@@ -6593,4 +6603,53 @@ public class WifiMetricsTest extends WifiBaseTest {
                 mDecodedProto.recentFailureAssociationStatus);
 
     }
+
+    /**
+     * Verify that coalesced single scans are counted correctly.
+     */
+    @Test
+    public void testSingleScanCoalescingMetrics() throws Exception {
+        mWifiMetrics.logSingleScanCoalesced(2, 40);
+        mWifiMetrics.logSingleScanCoalesced(0, 50);
+
+        dumpProtoAndDeserialize();
+
+        assertEquals(2, mDecodedProto.numSingleScansSavedByCoalescing);
+        assertEquals(90, mDecodedProto.totalSingleScanCoalescingDelayMs);
+    }
+
+    /**
+     * Verify that single scans served from the per-channel result cache are counted correctly.
+     */
+    @Test
+    public void testSingleScanServedFromCacheMetrics() throws Exception {
+        mWifiMetrics.logSingleScanServedFromCache(true);
+        mWifiMetrics.logSingleScanServedFromCache(false);
+        mWifiMetrics.logSingleScanServedFromCache(false);
+
+        dumpProtoAndDeserialize();
+
+        assertEquals(1, mDecodedProto.numSingleScansFullyServedFromCache);
+        assertEquals(2, mDecodedProto.numSingleScansPartiallyServedFromCache);
+    }
+
+    /**
+     * Verify that the ANQP query scheduling metrics are recorded correctly.
+     */
+    @Test
+    public void testAnqpQuerySchedulingMetrics() throws Exception {
+        mWifiMetrics.incrementNumAnqpQueriesAvoided();
+        mWifiMetrics.incrementNumAnqpQueriesAvoided();
+        mWifiMetrics.updateAnqpQueryQueueDepth(3);
+        mWifiMetrics.updateAnqpQueryQueueDepth(1);
+        mWifiMetrics.logPasspointTimeToFirstMatch(200);
+        mWifiMetrics.logPasspointTimeToFirstMatch(300);
+
+        dumpProtoAndDeserialize();
+
+        assertEquals(2, mDecodedProto.numAnqpQueriesAvoided);
+        assertEquals(3, mDecodedProto.maxAnqpQueryQueueDepth);
+        assertEquals(2, mDecodedProto.numPasspointFirstMatches);
+        assertEquals(500, mDecodedProto.totalPasspointTimeToFirstMatchMs);
+    }
 }
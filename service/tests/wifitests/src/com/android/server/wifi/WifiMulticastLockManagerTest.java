@@ -22,6 +22,8 @@ import static com.android.server.wifi.ActiveModeManager.ROLE_CLIENT_SECONDARY_TR
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import android.content.Context;
+import android.content.res.Resources;
 import android.os.BatteryStatsManager;
 import android.os.Binder;
 import android.os.IBinder;
@@ -33,6 +35,7 @@ import androidx.test.filters.SmallTest;
 
 import com.android.server.wifi.ActiveModeWarden.PrimaryClientModeManagerChangedCallback;
 import com.android.server.wifi.WifiMulticastLockManager.FilterController;
+import com.android.wifi.resources.R;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -58,6 +61,10 @@ public class WifiMulticastLockManagerTest extends WifiBaseTest {
     @Spy FakeFilterController mFilterController2 = new FakeFilterController();
     @Mock BatteryStatsManager mBatteryStats;
     @Mock ActiveModeWarden mActiveModeWarden;
+    @Mock Context mContext;
+    @Mock Resources mResources;
+    @Mock Clock mClock;
+    @Mock WifiMetrics mWifiMetrics;
     @Captor ArgumentCaptor<PrimaryClientModeManagerChangedCallback> mPrimaryChangedCallbackCaptor;
     WifiMulticastLockManager mManager;
 
@@ -78,8 +85,9 @@ public class WifiMulticastLockManagerTest extends WifiBaseTest {
         when(mClientModeManager2.getRole()).thenReturn(ROLE_CLIENT_SECONDARY_TRANSIENT);
 
         when(mActiveModeWarden.getPrimaryClientModeManager()).thenReturn(mClientModeManager);
+        when(mContext.getResources()).thenReturn(mResources);
         mManager = new WifiMulticastLockManager(mActiveModeWarden, mBatteryStats,
-                mLooper.getLooper());
+                mLooper.getLooper(), mContext, mClock, mWifiMetrics);
 
         verify(mActiveModeWarden).registerPrimaryClientModeManagerChangedCallback(
                 mPrimaryChangedCallbackCaptor.capture());
@@ -119,6 +127,45 @@ public class WifiMulticastLockManagerTest extends WifiBaseTest {
         assertFalse(mManager.isMulticastEnabled());
     }
 
+    /**
+     * Test that the filtering is only started again once no lock is acquired within the
+     * debounce window following the release of the last lock.
+     */
+    @Test
+    public void releaseAndAcquireWithinDebounceWindow() throws RemoteException {
+        when(mResources.getInteger(R.integer.config_wifiMulticastFilterDebounceMillis))
+                .thenReturn(1000);
+        mManager = new WifiMulticastLockManager(mActiveModeWarden, mBatteryStats,
+                mLooper.getLooper(), mContext, mClock, mWifiMetrics);
+        IBinder binder = mock(IBinder.class);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(100L);
+        mManager.acquireLock(binder, WL_1_TAG);
+        assertFalse(mFilterController.isFilteringStarted());
+        verify(mWifiMetrics).incrementNumMulticastFilterTransitions();
+
+        mManager.releaseLock(WL_1_TAG);
+        // The filtering is still disabled.
+        assertTrue(mManager.isMulticastEnabled());
+        assertFalse(mFilterController.isFilteringStarted());
+        mManager.acquireLock(binder, WL_2_TAG);
+        verify(mWifiMetrics).incrementNumMulticastFilterTogglesDebounced();
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        verify(mFilterController, never()).startFilteringMulticastPackets();
+        verify(mWifiMetrics).incrementNumMulticastFilterTransitions();
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(5100L);
+        mManager.releaseLock(WL_2_TAG);
+        assertFalse(mFilterController.isFilteringStarted());
+        assertTrue(mManager.isMulticastEnabled());
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        assertTrue(mFilterController.isFilteringStarted());
+        assertFalse(mManager.isMulticastEnabled());
+        verify(mWifiMetrics, times(2)).incrementNumMulticastFilterTransitions();
+        verify(mWifiMetrics).addMulticastEnabledDurationMs(5000L);
+    }
+
     private static class FakeFilterController implements FilterController {
 
         /** filters by default */
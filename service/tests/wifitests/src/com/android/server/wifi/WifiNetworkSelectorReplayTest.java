@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static com.android.server.wifi.WifiConfigurationTestUtil.SECURITY_NONE;
+import static com.android.server.wifi.WifiConfigurationTestUtil.SECURITY_PSK;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.*;
+
+import android.annotation.NonNull;
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.net.MacAddress;
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.os.SystemClock;
+import android.util.LocalLog;
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.wifi.WifiNetworkSelector.ClientModeManagerState;
+import com.android.server.wifi.WifiNetworkSelectorTestUtil.ScanDetailsAndWifiConfigs;
+import com.android.wifi.resources.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.Spy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays scan corpora through {@link com.android.server.wifi.WifiNetworkSelector} with all the
+ * candidate scorers registered, and reports the latency of each phase of network selection along
+ * with the chosen candidate. The saved networks and suggestions of a corpus are nominated by
+ * stand-in nominators, so that the replay does not depend on the state of WifiConfigManager and
+ * WifiNetworkSuggestionsManager.
+ *
+ * The latency is only logged, it is not checked since it depends on the load of the device.
+ */
+@SmallTest
+public class WifiNetworkSelectorReplayTest extends WifiBaseTest {
+    private static final String TAG = "WifiNetworkSelectorReplayTest";
+    private static final String TEST_IFACE_NAME = "mockWlan0";
+    private static final int WAIT_JUST_A_MINUTE = 60_000;
+    private static final long CORPUS_SEED = 0x5eedL;
+    private static final int NUM_WARMUP_REPLAYS = 5;
+    private static final int NUM_REPLAYS = 20;
+    private static final int[] VENUE_FREQS = {
+            2412, 2437, 2462, 5180, 5200, 5220, 5240, 5500, 5520, 5745, 5765, 5785, 5805};
+
+    /**
+     * A set of scan results along with the saved networks and suggestions which match them.
+     */
+    private static class Corpus {
+        final String name;
+        final String[] ssids;
+        final String[] bssids;
+        final int[] freqs;
+        final String[] caps;
+        final int[] levels;
+        final int[] securities;
+        final Set<String> suggestionSsids = new HashSet<>();
+
+        Corpus(String name, int size) {
+            this.name = name;
+            ssids = new String[size];
+            bssids = new String[size];
+            freqs = new int[size];
+            caps = new String[size];
+            levels = new int[size];
+            securities = new int[size];
+        }
+    }
+
+    /**
+     * Outcome of replaying a corpus once.
+     */
+    private static class ReplayResult {
+        int numCandidates;
+        int selectedNetworkId = WifiConfiguration.INVALID_NETWORK_ID;
+        long candidatesLatencyNs;
+        long selectionLatencyNs;
+    }
+
+    /**
+     * Nominates every scan result matching a saved network, or a suggestion.
+     */
+    private class CorpusNominator implements WifiNetworkSelector.NetworkNominator {
+        private final @NominatorId int mId;
+        private final boolean mNominateSuggestions;
+
+        CorpusNominator(@NominatorId int id, boolean nominateSuggestions) {
+            mId = id;
+            mNominateSuggestions = nominateSuggestions;
+        }
+
+        @Override
+        public @NominatorId int getId() {
+            return mId;
+        }
+
+        @Override
+        public String getName() {
+            return mNominateSuggestions ? "CorpusSuggestionNominator" : "CorpusSavedNominator";
+        }
+
+        @Override
+        public void update(List<ScanDetail> scanDetails) {}
+
+        @Override
+        public void nominateNetworks(List<ScanDetail> scanDetails,
+                boolean untrustedNetworkAllowed, boolean oemPaidNetworkAllowed,
+                boolean oemPrivateNetworkAllowed,
+                Set<Integer> restrictedNetworkAllowedUids,
+                @NonNull OnConnectableListener onConnectableListener) {
+            for (ScanDetail scanDetail : scanDetails) {
+                WifiConfiguration config =
+                        mWifiConfigManager.getSavedNetworkForScanDetailAndCache(scanDetail);
+                if (config == null || config.fromWifiNetworkSuggestion != mNominateSuggestions) {
+                    continue;
+                }
+                onConnectableListener.onConnectable(scanDetail, config);
+            }
+        }
+    }
+
+    @Mock private WifiConfigManager mWifiConfigManager;
+    @Mock private Context mContext;
+    @Mock private WifiScoreCard mWifiScoreCard;
+    @Mock private WifiScoreCard.PerBssid mPerBssid;
+    @Mock private WifiMetrics mWifiMetrics;
+    @Mock private WifiInjector mWifiInjector;
+    @Mock private WifiEventJournal mWifiEventJournal;
+    @Mock private ActiveModeWarden mActiveModeWarden;
+    @Mock private ClientModeManager mClientModeManager;
+    @Spy private MockResources mResource = new MockResources();
+    @Mock private WifiInfo mWifiInfo;
+    @Mock private Clock mClock;
+    @Mock private ThroughputPredictor mThroughputPredictor;
+    @Mock private WifiChannelUtilization mWifiChannelUtilization;
+    @Mock private WifiGlobals mWifiGlobals;
+    @Mock private ScanRequestProxy mScanRequestProxy;
+    @Mock private DevicePolicyManager mDevicePolicyManager;
+    private MockitoSession mSession;
+    private WifiNetworkSelector mWifiNetworkSelector;
+
+    /** Sets up test. */
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mSession = ExtendedMockito.mockitoSession()
+                .mockStatic(WifiInjector.class, withSettings().lenient())
+                .mockStatic(WifiInfo.class, withSettings().lenient())
+                .startMocking();
+        when(WifiInjector.getInstance()).thenReturn(mWifiInjector);
+        when(mContext.getResources()).thenReturn(mResource);
+        when(mContext.getSystemService(DevicePolicyManager.class)).thenReturn(mDevicePolicyManager);
+        doReturn(true).when(mResource).getBoolean(
+                R.bool.config_wifi_framework_enable_associated_network_selection);
+        doReturn(WAIT_JUST_A_MINUTE).when(mResource).getInteger(
+                R.integer.config_wifiSufficientDurationAfterUserSelectionMilliseconds);
+        doReturn(false).when(mResource).getBoolean(R.bool.config_wifi11axSupportOverride);
+
+        // simulate a disconnected state
+        when(mWifiInfo.getSupplicantState()).thenReturn(SupplicantState.DISCONNECTED);
+        when(mWifiInfo.getNetworkId()).thenReturn(WifiConfiguration.INVALID_NETWORK_ID);
+        when(mWifiInfo.getBSSID()).thenReturn(null);
+        when(mWifiInfo.getRssi()).thenReturn(-70);
+        when(mWifiInfo.getFrequency()).thenReturn(2400);
+        when(mWifiInfo.isUsable()).thenReturn(true);
+        when(mWifiInfo.getScore()).thenReturn(ConnectedScore.WIFI_INITIAL_SCORE);
+        when(mWifiConfigManager.getLastSelectedNetwork())
+                .thenReturn(WifiConfiguration.INVALID_NETWORK_ID);
+        when(mWifiGlobals.isWpa3SaeUpgradeEnabled()).thenReturn(true);
+        when(mWifiGlobals.isOweUpgradeEnabled()).thenReturn(true);
+        when(mWifiInjector.getActiveModeWarden()).thenReturn(mActiveModeWarden);
+        when(mWifiInjector.getWifiGlobals()).thenReturn(mWifiGlobals);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
+        when(mActiveModeWarden.getPrimaryClientModeManager()).thenReturn(mClientModeManager);
+        when(mWifiScoreCard.lookupBssid(any(), any())).thenReturn(mPerBssid);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(SystemClock.elapsedRealtime());
+        // Favor stronger BSSIDs so that the throughput based scorer has a clear choice.
+        when(mThroughputPredictor.predictThroughput(any(), anyInt(), anyInt(), anyInt(),
+                anyInt(), anyInt(), anyInt(), anyInt(), anyBoolean()))
+                .thenAnswer(invocation -> 100 + (int) invocation.getArgument(3));
+
+        ScoringParams scoringParams = new ScoringParams();
+        mWifiNetworkSelector = new WifiNetworkSelector(mContext, mWifiScoreCard, scoringParams,
+                mWifiConfigManager, mClock, new LocalLog(512), mWifiMetrics, mWifiInjector,
+                mThroughputPredictor, mWifiChannelUtilization, mWifiGlobals, mScanRequestProxy);
+        mWifiNetworkSelector.registerNetworkNominator(new CorpusNominator(
+                WifiNetworkSelector.NetworkNominator.NOMINATOR_ID_SAVED, false));
+        mWifiNetworkSelector.registerNetworkNominator(new CorpusNominator(
+                WifiNetworkSelector.NetworkNominator.NOMINATOR_ID_SUGGESTION, true));
+        mWifiNetworkSelector.registerCandidateScorer(new ThroughputScorer(scoringParams));
+        mWifiNetworkSelector.registerCandidateScorer(new BubbleFunScorer(scoringParams));
+        mWifiNetworkSelector.registerCandidateScorer(new CompatibilityScorer(scoringParams));
+        mWifiNetworkSelector.registerCandidateScorer(new ScoreCardBasedScorer(scoringParams));
+    }
+
+    /** Cleans up test. */
+    @After
+    public void cleanup() {
+        validateMockitoUsage();
+        if (mSession != null) {
+            mSession.finishMocking();
+        }
+    }
+
+    /**
+     * Generate a corpus of |numSsids| networks, each served by |numBssidsPerSsid| access points
+     * spread over the 2.4 and 5 GHz channels with random signal strengths. A third of the
+     * networks are open and every fourth network is a suggestion. The corpus only depends on
+     * |seed|.
+     */
+    private static Corpus createDenseVenueCorpus(String name, int numSsids,
+            int numBssidsPerSsid, long seed) {
+        Random random = new Random(seed);
+        Corpus corpus = new Corpus(name, numSsids * numBssidsPerSsid);
+        for (int s = 0; s < numSsids; s++) {
+            String ssid = "\"venue-" + s + "\"";
+            boolean isOpen = s % 3 == 0;
+            if (s % 4 == 1) {
+                corpus.suggestionSsids.add(ssid);
+            }
+            for (int b = 0; b < numBssidsPerSsid; b++) {
+                int i = s * numBssidsPerSsid + b;
+                corpus.ssids[i] = ssid;
+                corpus.bssids[i] = String.format(Locale.US, "02:00:00:%02x:%02x:%02x",
+                        s, (b >> 8) & 0xff, b & 0xff);
+                corpus.freqs[i] = VENUE_FREQS[random.nextInt(VENUE_FREQS.length)];
+                corpus.levels[i] = -90 + random.nextInt(55);
+                corpus.caps[i] = isOpen ? "[ESS]" : "[WPA2-PSK-CCMP][ESS]";
+                corpus.securities[i] = isOpen ? SECURITY_NONE : SECURITY_PSK;
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Load the corpus into the mocked WifiConfigManager and return its scan results.
+     */
+    private List<ScanDetail> loadCorpus(Corpus corpus) {
+        ScanDetailsAndWifiConfigs scanDetailsAndConfigs =
+                WifiNetworkSelectorTestUtil.setupScanDetailsAndConfigStore(corpus.ssids,
+                        corpus.bssids, corpus.freqs, corpus.caps, corpus.levels,
+                        corpus.securities, mWifiConfigManager, mClock);
+        for (WifiConfiguration config : scanDetailsAndConfigs.getWifiConfigs()) {
+            config.fromWifiNetworkSuggestion = corpus.suggestionSsids.contains(config.SSID);
+        }
+        return scanDetailsAndConfigs.getScanDetails();
+    }
+
+    private ReplayResult replay(List<ScanDetail> scanDetails) {
+        ReplayResult result = new ReplayResult();
+        long startNs = System.nanoTime();
+        List<WifiCandidates.Candidate> candidates = mWifiNetworkSelector.getCandidatesFromScan(
+                scanDetails, Collections.emptySet(),
+                Arrays.asList(new ClientModeManagerState(TEST_IFACE_NAME, false, true, mWifiInfo)),
+                false, true, true, Collections.emptySet(), false);
+        long candidatesNs = System.nanoTime();
+        assertNotNull(candidates);
+        WifiConfiguration selected = mWifiNetworkSelector.selectNetwork(candidates);
+        long endNs = System.nanoTime();
+        assertNotNull(selected);
+
+        result.numCandidates = candidates.size();
+        result.selectedNetworkId = selected.networkId;
+        result.candidatesLatencyNs = candidatesNs - startNs;
+        result.selectionLatencyNs = endNs - candidatesNs;
+        return result;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Replay the corpus repeatedly, verify that every replay makes the same choice, and log the
+     * median latency of each phase of network selection.
+     */
+    private void replayAndVerifyDeterministic(Corpus corpus) {
+        List<ScanDetail> scanDetails = loadCorpus(corpus);
+        for (int i = 0; i < NUM_WARMUP_REPLAYS; i++) {
+            replay(scanDetails);
+        }
+        clearInvocations(mWifiEventJournal);
+
+        ReplayResult first = null;
+        long[] candidatesLatencyNs = new long[NUM_REPLAYS];
+        long[] selectionLatencyNs = new long[NUM_REPLAYS];
+        long[] totalLatencyNs = new long[NUM_REPLAYS];
+        for (int i = 0; i < NUM_REPLAYS; i++) {
+            ReplayResult result = replay(scanDetails);
+            if (first == null) {
+                first = result;
+            }
+            assertEquals(first.numCandidates, result.numCandidates);
+            assertEquals(first.selectedNetworkId, result.selectedNetworkId);
+            candidatesLatencyNs[i] = result.candidatesLatencyNs;
+            selectionLatencyNs[i] = result.selectionLatencyNs;
+            totalLatencyNs[i] = result.candidatesLatencyNs + result.selectionLatencyNs;
+        }
+
+        // The chosen BSSID must also be stable across replays.
+        ArgumentCaptor<MacAddress> bssidCaptor = ArgumentCaptor.forClass(MacAddress.class);
+        verify(mWifiEventJournal, times(NUM_REPLAYS)).logNetworkSelection(
+                eq(first.selectedNetworkId), bssidCaptor.capture(), eq(first.numCandidates),
+                anyInt());
+        MacAddress selectedBssid = bssidCaptor.getAllValues().get(0);
+        assertNotNull(selectedBssid);
+        for (MacAddress bssid : bssidCaptor.getAllValues()) {
+            assertEquals(selectedBssid, bssid);
+        }
+
+        Log.i(TAG, corpus.name + ": scanResults=" + scanDetails.size()
+                + " candidates=" + first.numCandidates
+                + " selected=" + first.selectedNetworkId + "/" + selectedBssid
+                + " medianCandidatesUs=" + median(candidatesLatencyNs) / 1000
+                + " medianSelectionUs=" + median(selectionLatencyNs) / 1000
+                + " medianTotalUs=" + median(totalLatencyNs) / 1000);
+    }
+
+    /**
+     * Replay a venue with many networks, each served by a moderate number of access points.
+     */
+    @Test
+    public void replayDenseVenueWithManyNetworks() {
+        replayAndVerifyDeterministic(
+                createDenseVenueCorpus("manyNetworks", 16, 24, CORPUS_SEED));
+
+        // Every registered scorer other than the active one is compared against it.
+        verify(mWifiMetrics, atLeast(3 * NUM_REPLAYS)).logNetworkSelectionDecision(
+                anyInt(), anyInt(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Replay a venue with a few networks, each served by a large number of access points.
+     */
+    @Test
+    public void replayDenseVenueWithManyAccessPoints() {
+        replayAndVerifyDeterministic(
+                createDenseVenueCorpus("manyAccessPoints", 4, 128, CORPUS_SEED));
+    }
+}
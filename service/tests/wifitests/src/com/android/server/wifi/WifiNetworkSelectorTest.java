@@ -35,10 +35,12 @@ import android.annotation.NonNull;
 import android.app.admin.DevicePolicyManager;
 import android.app.admin.WifiSsidPolicy;
 import android.content.Context;
+import android.net.MacAddress;
 import android.net.wifi.ScanResult;
 import android.net.wifi.SecurityParams;
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiEnterpriseConfig;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiSsid;
 import android.os.SystemClock;
@@ -130,6 +132,8 @@ public class WifiNetworkSelectorTest extends WifiBaseTest {
         mThroughputScorer = new ThroughputScorer(mScoringParams);
         when(mWifiInjector.getActiveModeWarden()).thenReturn(mActiveModeWarden);
         when(mWifiInjector.getWifiGlobals()).thenReturn(mWifiGlobals);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
+        when(mWifiInjector.getWifiCarrierInfoManager()).thenReturn(mWifiCarrierInfoManager);
         when(mWifiGlobals.getWifiLowConnectedScoreThresholdToTriggerScanForMbb()).thenReturn(
                 ConnectedScore.WIFI_TRANSITION_SCORE);
         when(mActiveModeWarden.getPrimaryClientModeManager()).thenReturn(mClientModeManager);
@@ -279,6 +283,8 @@ public class WifiNetworkSelectorTest extends WifiBaseTest {
     @Mock private WifiCandidates.CandidateScorer mCandidateScorer;
     @Mock private WifiMetrics mWifiMetrics;
     @Mock private WifiInjector mWifiInjector;
+    @Mock private WifiEventJournal mWifiEventJournal;
+    @Mock private WifiCarrierInfoManager mWifiCarrierInfoManager;
     @Mock private ActiveModeWarden mActiveModeWarden;
     @Mock private ClientModeManager mClientModeManager;
     @Mock private WifiNetworkSelector.NetworkNominator mNetworkNominator;
@@ -566,6 +572,8 @@ public class WifiNetworkSelectorTest extends WifiBaseTest {
                 false, true, true, Collections.emptySet(), false);
         WifiConfiguration candidate = mWifiNetworkSelector.selectNetwork(candidates);
         WifiConfigurationTestUtil.assertConfigurationEqual(savedConfigs[0], candidate);
+        verify(mWifiEventJournal).logNetworkSelection(eq(savedConfigs[0].networkId),
+                eq(MacAddress.fromString(bssids[0])), eq(candidates.size()), anyInt());
 
         when(mClock.getElapsedSinceBootMillis()).thenReturn(SystemClock.elapsedRealtime()
                 + WifiNetworkSelector.MINIMUM_NETWORK_SELECTION_INTERVAL_MS - 2000);
@@ -583,6 +591,41 @@ public class WifiNetworkSelectorTest extends WifiBaseTest {
                 chosenScanResult, candidate);
     }
 
+    /**
+     * Verify that the identity of a selected SIM based network is encrypted ahead of the
+     * connection, and that it is not for other networks.
+     */
+    @Test
+    public void verifySimIdentityPrecomputedOnSelection() {
+        String[] ssids = {"\"test1\""};
+        String[] bssids = {"6c:f3:7f:ae:8c:f3"};
+        int[] freqs = {5180};
+        String[] caps = {"[WPA2-EAP/SHA1-CCMP][ESS]"};
+        int[] levels = {mThresholdMinimumRssi5G + RSSI_BUMP};
+        int[] securities = {SECURITY_EAP};
+
+        ScanDetailsAndWifiConfigs scanDetailsAndConfigs =
+                WifiNetworkSelectorTestUtil.setupScanDetailsAndConfigStore(ssids, bssids,
+                    freqs, caps, levels, securities, mWifiConfigManager, mClock);
+        List<ScanDetail> scanDetails = scanDetailsAndConfigs.getScanDetails();
+        WifiConfiguration savedConfig = scanDetailsAndConfigs.getWifiConfigs()[0];
+        List<WifiCandidates.Candidate> candidates = mWifiNetworkSelector.getCandidatesFromScan(
+                scanDetails, new HashSet<>(),
+                Arrays.asList(new ClientModeManagerState(TEST_IFACE_NAME, false, true, mWifiInfo)),
+                false, true, true, Collections.emptySet(), false);
+        assertNotNull(mWifiNetworkSelector.selectNetwork(candidates));
+        verify(mWifiCarrierInfoManager, never()).precomputeSimIdentity(any());
+
+        savedConfig.enterpriseConfig.setEapMethod(WifiEnterpriseConfig.Eap.AKA);
+        savedConfig.enterpriseConfig.setPhase2Method(WifiEnterpriseConfig.Phase2.NONE);
+        candidates = mWifiNetworkSelector.getCandidatesFromScan(
+                scanDetails, new HashSet<>(),
+                Arrays.asList(new ClientModeManagerState(TEST_IFACE_NAME, false, true, mWifiInfo)),
+                false, true, true, Collections.emptySet(), false);
+        WifiConfiguration candidate = mWifiNetworkSelector.selectNetwork(candidates);
+        verify(mWifiCarrierInfoManager).precomputeSimIdentity(candidate);
+    }
+
     /**
      * New network selection is performed if the currently connected network
      * has low RSSI value.
@@ -62,6 +62,7 @@ import androidx.test.filters.SmallTest;
 
 import com.android.modules.utils.build.SdkLevel;
 import com.android.server.wifi.coex.CoexManager;
+import com.android.server.wifi.proto.nano.WifiMetricsProto;
 
 import org.junit.After;
 import org.junit.Before;
@@ -99,6 +100,7 @@ public class WifiShellCommandTest extends WifiBaseTest {
     @Mock WifiGlobals mWifiGlobals;
     @Mock WifiThreadRunner mWifiThreadRunner;
     @Mock ScanRequestProxy mScanRequestProxy;
+    @Mock WifiEventJournal mWifiEventJournal;
 
     WifiShellCommand mWifiShellCommand;
 
@@ -122,6 +124,8 @@ public class WifiShellCommandTest extends WifiBaseTest {
         when(mWifiInjector.getWifiCarrierInfoManager()).thenReturn(mWifiCarrierInfoManager);
         when(mWifiInjector.getWifiNetworkFactory()).thenReturn(mWifiNetworkFactory);
         when(mWifiInjector.getScanRequestProxy()).thenReturn(mScanRequestProxy);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
+        when(mWifiEventJournal.toProto()).thenReturn(new WifiMetricsProto.WifiEventJournal());
         when(mContext.getSystemService(ConnectivityManager.class)).thenReturn(mConnectivityManager);
 
         mWifiShellCommand = new WifiShellCommand(mWifiInjector, mWifiService, mContext,
@@ -907,6 +911,27 @@ public class WifiShellCommandTest extends WifiBaseTest {
         verify(mScanRequestProxy).enableScanning(true, true);
     }
 
+    @Test
+    public void testGetEventJournal() {
+        // not allowed for unrooted shell.
+        mWifiShellCommand.exec(
+                new Binder(), new FileDescriptor(), new FileDescriptor(), new FileDescriptor(),
+                new String[]{"get-event-journal"});
+        verify(mWifiEventJournal, never()).toProto();
+
+        BinderUtil.setUid(Process.ROOT_UID);
+        mWifiShellCommand.exec(
+                new Binder(), new FileDescriptor(), new FileDescriptor(), new FileDescriptor(),
+                new String[]{"get-event-journal"});
+        verify(mWifiEventJournal).toProto();
+        verify(mWifiEventJournal, never()).clear();
+
+        mWifiShellCommand.exec(
+                new Binder(), new FileDescriptor(), new FileDescriptor(), new FileDescriptor(),
+                new String[]{"get-event-journal", "-c"});
+        verify(mWifiEventJournal).clear();
+    }
+
     @Test
     public void testAddNetworkRequest() {
         BinderUtil.setUid(Process.ROOT_UID);
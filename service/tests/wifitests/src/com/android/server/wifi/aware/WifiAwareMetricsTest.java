@@ -647,6 +647,43 @@ public class WifiAwareMetricsTest extends WifiBaseTest {
                 WifiMetricsProto.WifiAwareLog.NETWORK_SPECIFIER_TYPE_IB_ANY_PEER, 1);
     }
 
+    /**
+     * Validate the follow-up message transmission metrics.
+     */
+    @Test
+    public void testMessageSendMetrics() {
+        setTime(150);
+        mDut.recordMessageSendSuccess(140, 10);  // 10ms
+        mDut.recordMessageSendSuccess(135, 20);  // 15ms
+        mDut.recordMessageSendSuccess(25, 255);  // 125ms
+
+        WifiMetricsProto.WifiAwareLog log = mDut.consolidateProto();
+        assertEquals(3, log.numMessagesSent);
+        assertEquals(285, log.numMessageBytesSent);
+        assertEquals(2, log.histogramMessageSendLatencyMs.length);
+        validateProtoHistBucket("Latency[0]", log.histogramMessageSendLatencyMs[0], 10, 20, 2);
+        validateProtoHistBucket("Latency[1]", log.histogramMessageSendLatencyMs[1], 100, 200, 1);
+
+        mDut.clear();
+        log = mDut.consolidateProto();
+        assertEquals(0, log.numMessagesSent);
+        assertEquals(0, log.histogramMessageSendLatencyMs.length);
+    }
+
+    /**
+     * Validate the discovery match coalescing and drop counters.
+     */
+    @Test
+    public void testMatchCounters() {
+        mDut.recordMatchCoalesced();
+        mDut.recordMatchCoalesced();
+        mDut.recordMatchDropped();
+
+        WifiMetricsProto.WifiAwareLog log = mDut.consolidateProto();
+        assertEquals(2, log.numMatchesCoalesced);
+        assertEquals(1, log.numMatchesDropped);
+    }
+
     // utilities
 
     /**
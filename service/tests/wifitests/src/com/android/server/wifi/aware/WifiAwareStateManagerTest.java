@@ -39,6 +39,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -65,6 +66,7 @@ import android.net.wifi.WifiAvailableChannel;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiScanner;
 import android.net.wifi.aware.AwareResources;
+import android.net.wifi.aware.Characteristics;
 import android.net.wifi.aware.ConfigRequest;
 import android.net.wifi.aware.IWifiAwareDiscoverySessionCallback;
 import android.net.wifi.aware.IWifiAwareEventCallback;
@@ -102,6 +104,7 @@ import com.android.server.wifi.WifiBaseTest;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiNative;
 import com.android.server.wifi.WifiThreadRunner;
+import com.android.server.wifi.proto.nano.WifiMetricsProto;
 import com.android.server.wifi.util.NetdWrapper;
 import com.android.server.wifi.util.WaitingState;
 import com.android.server.wifi.util.WifiPermissionsUtil;
@@ -145,6 +148,7 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
     @Mock private Context mMockContext;
     @Mock private AppOpsManager mMockAppOpsManager;
     @Mock private WifiAwareMetrics mAwareMetricsMock;
+    @Spy private Clock mClock = new Clock();
     @Mock private WifiPermissionsUtil mWifiPermissionsUtil;
     @Mock private WifiPermissionsWrapper mPermissionsWrapperMock;
     @Mock private InterfaceConflictManager mInterfaceConflictManager;
@@ -219,7 +223,7 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
         mDut = new WifiAwareStateManager(mWifiInjector);
         mDut.setNative(mMockNativeManager, mMockNative);
         mDut.start(mMockContext, mMockLooper.getLooper(), mAwareMetricsMock,
-                mWifiPermissionsUtil, mPermissionsWrapperMock, new Clock(),
+                mWifiPermissionsUtil, mPermissionsWrapperMock, mClock,
                 mock(NetdWrapper.class), mInterfaceConflictManager);
         mDut.startLate();
         mMockLooper.dispatchAll();
@@ -1785,12 +1789,131 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
         mMockLooper.dispatchAll();
         inOrder.verify(mockSessionCallback).onMessageSendFail(messageId, reasonFail);
         inOrder.verify(mockSessionCallback).onMessageSendSuccess(messageId2);
+        inOrderM.verify(mAwareMetricsMock).recordMessageSendSuccess(anyLong(),
+                eq(ssi.getBytes().length));
         validateInternalSendMessageQueuesCleanedUp(messageId);
         validateInternalSendMessageQueuesCleanedUp(messageId2);
 
         verifyNoMoreInteractions(mockCallback, mockSessionCallback, mMockNative, mAwareMetricsMock);
     }
 
+    /**
+     * Validate that duplicate matches of a peer within the coalescing window are delivered once
+     * when coalescing is enabled, and that matches for an unknown session are dropped.
+     */
+    @Test
+    public void testMatchCoalescing() throws Exception {
+        final int clientId = 1005;
+        final int uid = 1000;
+        final int pid = 2000;
+        final String callingPackage = "com.google.somePackage";
+        final String callingFeature = "com.google.someFeature";
+        final String serviceName = "some-service-name";
+        final byte subscribeId = 15;
+        final int requestorId = 22;
+        final byte[] peerMac = HexEncoding.decode("060708090A0B".toCharArray(), false);
+        final String peerSsi = "some peer ssi data";
+        final String peerSsi2 = "some other peer ssi data";
+        final byte[] scid = "some scid".getBytes();
+
+        ConfigRequest configRequest = new ConfigRequest.Builder().build();
+        SubscribeConfig subscribeConfig = new SubscribeConfig.Builder()
+                .setServiceName(serviceName).build();
+
+        IWifiAwareEventCallback mockCallback = mock(IWifiAwareEventCallback.class);
+        IWifiAwareDiscoverySessionCallback mockSessionCallback = mock(
+                IWifiAwareDiscoverySessionCallback.class);
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        ArgumentCaptor<Integer> sessionId = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> peerIdCaptor = ArgumentCaptor.forClass(Integer.class);
+        InOrder inOrder = inOrder(mockCallback, mockSessionCallback, mMockNative);
+
+        mDut.enableUsage();
+        mMockLooper.dispatchAll();
+        setSettableParam(WifiAwareStateManager.PARAM_MATCH_COALESCE_WINDOW_MS,
+                Integer.toString(1000), true);
+        doReturn(10000L).when(mClock).getElapsedSinceBootMillis();
+
+        // (0) connect
+        mDut.connect(clientId, uid, pid, callingPackage, callingFeature, mockCallback,
+                configRequest, false, mExtras);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).enableAndConfigure(transactionId.capture(),
+                eq(configRequest), eq(false), eq(true), eq(true), eq(false), eq(false), eq(false),
+                anyInt());
+        mDut.onConfigSuccessResponse(transactionId.getValue());
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockCallback).onConnectSuccess(clientId);
+
+        // (1) subscribe
+        mDut.subscribe(clientId, subscribeConfig, mockSessionCallback);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).subscribe(transactionId.capture(), eq((byte) 0),
+                eq(subscribeConfig));
+        mDut.onSessionConfigSuccessResponse(transactionId.getValue(), false, subscribeId);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onSessionStarted(sessionId.capture());
+
+        // (2) the same match twice: only delivered once
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi.getBytes(), null, 0,
+                0, null, 0);
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi.getBytes(), null, 0,
+                0, null, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(peerIdCaptor.capture(),
+                eq(peerSsi.getBytes()), isNull(), anyInt(), any());
+        verify(mAwareMetricsMock).recordMatchCoalesced();
+
+        // (3) a match with different content is delivered
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(), null, 0,
+                0, null, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(eq(peerIdCaptor.getValue()),
+                eq(peerSsi2.getBytes()), isNull(), anyInt(), any());
+
+        // (4) a match with a different cipher suite or SCID is delivered
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(), null, 0,
+                0, null, Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(eq(peerIdCaptor.getValue()),
+                eq(peerSsi2.getBytes()), isNull(),
+                eq(Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128), isNull());
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(), null, 0,
+                0, scid, Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(eq(peerIdCaptor.getValue()),
+                eq(peerSsi2.getBytes()), isNull(),
+                eq(Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128), eq(scid));
+
+        // (5) the same match is delivered again once the window has passed
+        doReturn(11000L).when(mClock).getElapsedSinceBootMillis();
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(), null, 0,
+                0, scid, Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(eq(peerIdCaptor.getValue()),
+                eq(peerSsi2.getBytes()), isNull(),
+                eq(Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128), eq(scid));
+        verify(mAwareMetricsMock).recordMatchCoalesced();
+
+        // (6) with coalescing disabled the same match is delivered again
+        setSettableParam(WifiAwareStateManager.PARAM_MATCH_COALESCE_WINDOW_MS,
+                Integer.toString(0), true);
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(), null, 0,
+                0, scid, Characteristics.WIFI_AWARE_CIPHER_SUITE_NCS_PK_128);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(eq(peerIdCaptor.getValue()),
+                eq(peerSsi2.getBytes()), isNull(), anyInt(), any());
+        verify(mAwareMetricsMock).recordMatchCoalesced();
+
+        // (7) a match for an unknown session is dropped
+        mDut.onMatchNotification(subscribeId + 1, requestorId, peerMac, peerSsi.getBytes(), null,
+                0, 0, null, 0);
+        mMockLooper.dispatchAll();
+        verify(mAwareMetricsMock).recordMatchDropped();
+
+        verifyNoMoreInteractions(mockCallback, mockSessionCallback);
+    }
+
     /**
      * Summary: in a single publish session interact with multiple peers
      * (different MAC addresses).
@@ -2277,6 +2400,93 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
         verifyNoMoreInteractions(mockCallback, mockSessionCallback, mMockNative);
     }
 
+    /**
+     * Validate that the send latency of a message is measured with the injected clock, from its
+     * queuing by the app to its successful transmission.
+     */
+    @Test
+    public void testSendMessageLatencyMetrics() throws Exception {
+        final int clientId = 1005;
+        final int uid = 1000;
+        final int pid = 2000;
+        final String callingPackage = "com.google.somePackage";
+        final String callingFeature = "com.google.someFeature";
+        final String ssi = "some much longer and more arbitrary data";
+        final byte subscribeId = 15;
+        final int requestorId = 22;
+        final byte[] peerMac = HexEncoding.decode("060708090A0B".toCharArray(), false);
+        final String peerSsi = "some peer ssi data";
+        final String peerMatchFilter = "filter binary array represented as string";
+        final int messageId = 6948;
+
+        ConfigRequest configRequest = new ConfigRequest.Builder().build();
+        SubscribeConfig subscribeConfig = new SubscribeConfig.Builder().build();
+
+        IWifiAwareEventCallback mockCallback = mock(IWifiAwareEventCallback.class);
+        IWifiAwareDiscoverySessionCallback mockSessionCallback = mock(
+                IWifiAwareDiscoverySessionCallback.class);
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        ArgumentCaptor<Integer> sessionId = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> peerIdCaptor = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Long> enqueueTimeCaptor = ArgumentCaptor.forClass(Long.class);
+        InOrder inOrder = inOrder(mockCallback, mockSessionCallback, mMockNative);
+
+        mDut.enableUsage();
+        mMockLooper.dispatchAll();
+
+        // (1) connect
+        mDut.connect(clientId, uid, pid, callingPackage, callingFeature, mockCallback,
+                configRequest, false, mExtras);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).enableAndConfigure(transactionId.capture(), eq(configRequest),
+                eq(false), eq(true), eq(true), eq(false), eq(false), eq(false), anyInt());
+        mDut.onConfigSuccessResponse(transactionId.getValue());
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockCallback).onConnectSuccess(clientId);
+
+        // (2) subscribe & match
+        mDut.subscribe(clientId, subscribeConfig, mockSessionCallback);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).subscribe(transactionId.capture(), eq((byte) 0),
+                eq(subscribeConfig));
+        mDut.onSessionConfigSuccessResponse(transactionId.getValue(), false, subscribeId);
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi.getBytes(),
+                peerMatchFilter.getBytes(), 0, 0, null, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onSessionStarted(sessionId.capture());
+        inOrder.verify(mockSessionCallback).onMatch(peerIdCaptor.capture(), eq(peerSsi.getBytes()),
+                eq(peerMatchFilter.getBytes()), anyInt(), any());
+
+        // (3) send message at 1000ms
+        doReturn(1000L).when(mClock).getElapsedSinceBootMillis();
+        mDut.sendMessage(uid, clientId, sessionId.getValue(), peerIdCaptor.getValue(),
+                ssi.getBytes(), messageId, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(subscribeId),
+                eq(requestorId), eq(peerMac), eq(ssi.getBytes()), eq(messageId));
+        mDut.onMessageSendQueuedSuccessResponse(transactionId.getValue());
+        mMockLooper.dispatchAll();
+
+        // (4) the message is transmitted at 1150ms
+        doReturn(1150L).when(mClock).getElapsedSinceBootMillis();
+        mDut.onMessageSendSuccessNotification(transactionId.getValue());
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMessageSendSuccess(messageId);
+        verify(mAwareMetricsMock).recordMessageSendSuccess(enqueueTimeCaptor.capture(),
+                eq(ssi.getBytes().length));
+        assertEquals(1000L, (long) enqueueTimeCaptor.getValue());
+
+        // (5) the latency recorded with the same clock is 150ms
+        WifiAwareMetrics awareMetrics = new WifiAwareMetrics(mClock);
+        awareMetrics.recordMessageSendSuccess(enqueueTimeCaptor.getValue(),
+                ssi.getBytes().length);
+        WifiMetricsProto.WifiAwareLog log = awareMetrics.consolidateProto();
+        assertEquals(1, log.histogramMessageSendLatencyMs.length);
+        assertEquals(100, log.histogramMessageSendLatencyMs[0].start);
+        assertEquals(200, log.histogramMessageSendLatencyMs[0].end);
+        assertEquals(1, log.histogramMessageSendLatencyMs[0].count);
+    }
+
     /**
      * Validate that when sending a message with a retry count the message is retried the specified
      * number of times. Scenario ending with failure.
@@ -2610,11 +2820,12 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
                     (int) messageIdCaptorFail.getAllValues().get(i + numOfReject));
         }
 
+        // the two clients are served in turn
         for (int i = 0; i < messageQueueDepthPerUid; ++i) {
             assertEquals("message ID: " + i, messageIdBase1 + i,
-                    (int) messageIdCaptorSuccess.getAllValues().get(i));
+                    (int) messageIdCaptorSuccess.getAllValues().get(2 * i));
             assertEquals("message ID: " + i,  messageIdBase2 + i,
-                    (int) messageIdCaptorSuccess.getAllValues().get(i + messageQueueDepthPerUid));
+                    (int) messageIdCaptorSuccess.getAllValues().get(2 * i + 1));
         }
 
         verifyNoMoreInteractions(mockCallback, mockSessionCallback);
@@ -1042,4 +1042,108 @@ public class CoexManagerTest extends WifiBaseTest {
                 new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 9),
                 new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 10));
     }
+
+    /**
+     * Verifies that the unsafe channels of a cell channel are taken from the cache when the inputs
+     * are unchanged.
+     */
+    @Test
+    public void testUpdateCoexUnsafeChannels_sameInputs_usesCachedResult() throws Exception {
+        when(mMockResources.getString(R.string.config_wifiCoexTableFilepath))
+                .thenReturn(createFileFromResource(FILEPATH_LTE_40_NEIGHBORING).getCanonicalPath());
+        CoexManager coexManager = createCoexManager();
+        final List<CoexUtils.CoexCellChannel> cellChannels = Arrays.asList(
+                new CoexUtils.CoexCellChannel(NETWORK_TYPE_LTE, 40, 2399_900, 10_000, 0, 0,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(1);
+        final List<CoexUnsafeChannel> unsafeChannels = coexManager.getCoexUnsafeChannels();
+
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(1);
+        assertThat(coexManager.getCoexUnsafeChannels())
+                .containsExactlyElementsIn(unsafeChannels);
+    }
+
+    /**
+     * Verifies that reading the coex table invalidates the cached unsafe channels.
+     */
+    @Test
+    public void testUpdateCoexUnsafeChannels_tableRead_invalidatesCachedResult() throws Exception {
+        when(mMockResources.getString(R.string.config_wifiCoexTableFilepath))
+                .thenReturn(createFileFromResource(FILEPATH_LTE_40_NEIGHBORING).getCanonicalPath());
+        CoexManager coexManager = createCoexManager();
+        final List<CoexUtils.CoexCellChannel> cellChannels = Arrays.asList(
+                new CoexUtils.CoexCellChannel(NETWORK_TYPE_LTE, 40, 2399_900, 10_000, 0, 0,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(1);
+
+        when(mMockResources.getString(R.string.config_wifiCoexTableFilepath))
+                .thenReturn(createFileFromResource(FILEPATH_LTE_40_OVERRIDE).getCanonicalPath());
+        assertThat(coexManager.readTableFromXml()).isTrue();
+        coexManager.setMockCellChannels(cellChannels);
+
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(2);
+        assertThat(coexManager.getCoexUnsafeChannels()).contains(
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 11));
+    }
+
+    /**
+     * Verifies that a carrier config change invalidates the cached unsafe channels.
+     */
+    @Test
+    public void testUpdateCoexUnsafeChannels_carrierConfigsChanged_invalidatesCachedResult()
+            throws Exception {
+        when(mMockCarrierConfigManager.getConfigForSubId(0)).thenReturn(mUnrestrictedBundle);
+        setUpSubIdMocks(0);
+        CoexManager coexManager = createCoexManager();
+        verify(mMockSubscriptionManager).addOnSubscriptionsChangedListener(
+                any(), mCoexSubscriptionsListenerCaptor.capture());
+        mCoexSubscriptionsListenerCaptor.getValue().onSubscriptionsChanged();
+        verify(mMockContext).registerReceiver(mBroadcastReceiverCaptor.capture(),
+                any(IntentFilter.class), eq(null), any(Handler.class));
+        final List<CoexUtils.CoexCellChannel> cellChannels = Arrays.asList(
+                new CoexUtils.CoexCellChannel(NETWORK_TYPE_LTE,
+                        AccessNetworkConstants.EutranBand.BAND_46, 5150_000, 1_000, 0, 0, 0));
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(1);
+
+        when(mMockCarrierConfigManager.getConfigForSubId(0)).thenReturn(mRestrictedBundle);
+        Intent intent = new Intent();
+        intent.setAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext, intent);
+        coexManager.setMockCellChannels(cellChannels);
+
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(2);
+        assertThat(coexManager.getCoexRestrictions() & COEX_RESTRICTION_SOFTAP)
+                .isNotEqualTo(0);
+    }
+
+    /**
+     * Verifies that a GPS L1 config change invalidates the cached unsafe channels.
+     */
+    @Test
+    public void testUpdateCoexUnsafeChannels_gpsConfigsChanged_invalidatesCachedResult() {
+        CoexManager coexManager = createCoexManager();
+        final List<CoexUtils.CoexCellChannel> cellChannels = Arrays.asList(
+                new CoexUtils.CoexCellChannel(NETWORK_TYPE_LTE, 40, 0, 0, 861_580, 10_000,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(1);
+        assertThat(coexManager.getCoexUnsafeChannels()).isEmpty();
+
+        when(mMockResources.getBoolean(R.bool.config_wifiCoexForGpsL1)).thenReturn(true);
+        when(mMockResources.getInteger(R.integer.config_wifiCoexGpsL1ThresholdKhz))
+                .thenReturn(5_000);
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(2);
+        assertThat(coexManager.getCoexUnsafeChannels()).isNotEmpty();
+
+        when(mMockResources.getInteger(R.integer.config_wifiCoexGpsL1ThresholdKhz))
+                .thenReturn(1_000);
+        coexManager.setMockCellChannels(cellChannels);
+        assertThat(coexManager.getNumCellChannelResultsComputed()).isEqualTo(3);
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.coex;
+
+import static android.net.wifi.CoexUnsafeChannel.POWER_CAP_NONE;
+import static android.net.wifi.WifiScanner.WIFI_BAND_24_GHZ;
+import static android.net.wifi.WifiScanner.WIFI_BAND_5_GHZ;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.net.wifi.CoexUnsafeChannel;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.modules.utils.build.SdkLevel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.coex.CoexUnsafeChannelTable}.
+ */
+@SmallTest
+public class CoexUnsafeChannelTableTest {
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(SdkLevel.isAtLeastS());
+    }
+
+    /**
+     * Verifies that adding a channel which is already unsafe keeps the lowest power cap, and
+     * that a power cap takes precedence over no power cap.
+     */
+    @Test
+    public void testAdd_sameChannel_keepsLowestPowerCap() {
+        CoexUnsafeChannelTable table = new CoexUnsafeChannelTable();
+        table.add(WIFI_BAND_24_GHZ, 6, POWER_CAP_NONE);
+        table.add(WIFI_BAND_24_GHZ, 6, 10);
+        table.add(WIFI_BAND_24_GHZ, 6, 15);
+        table.add(WIFI_BAND_24_GHZ, 6, POWER_CAP_NONE);
+        table.add(WIFI_BAND_5_GHZ, 36, POWER_CAP_NONE);
+
+        assertThat(table.size(WIFI_BAND_24_GHZ)).isEqualTo(1);
+        assertThat(table.size(WIFI_BAND_5_GHZ)).isEqualTo(1);
+        assertThat(table.toList()).containsExactly(
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 6, 10),
+                new CoexUnsafeChannel(WIFI_BAND_5_GHZ, 36));
+    }
+
+    /**
+     * Verifies that merging tables combines their unsafe channels.
+     */
+    @Test
+    public void testAddAll_mergesTables() {
+        CoexUnsafeChannelTable table1 = new CoexUnsafeChannelTable();
+        table1.addAll(Arrays.asList(
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 1, 5),
+                new CoexUnsafeChannel(WIFI_BAND_5_GHZ, 149)));
+        CoexUnsafeChannelTable table2 = new CoexUnsafeChannelTable();
+        table2.addAll(Arrays.asList(
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 1, 3),
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 2)));
+
+        table1.addAll(table2);
+        assertThat(table1.toList()).containsExactly(
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 1, 3),
+                new CoexUnsafeChannel(WIFI_BAND_24_GHZ, 2),
+                new CoexUnsafeChannel(WIFI_BAND_5_GHZ, 149));
+    }
+
+    /**
+     * Verifies that removed channels are no longer unsafe and invalid channels are ignored.
+     */
+    @Test
+    public void testRemove_andInvalidChannels() {
+        CoexUnsafeChannelTable table = new CoexUnsafeChannelTable();
+        table.add(WIFI_BAND_24_GHZ, 6, POWER_CAP_NONE);
+        table.add(WIFI_BAND_24_GHZ, 300, POWER_CAP_NONE);
+        table.remove(WIFI_BAND_24_GHZ, 6);
+        table.remove(WIFI_BAND_5_GHZ, 36);
+
+        assertThat(table.isEmpty()).isTrue();
+        assertThat(table.toList()).isEmpty();
+    }
+}
@@ -21,17 +21,26 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyObject;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import android.content.Context;
+import android.os.Handler;
+import android.os.test.TestLooper;
+
 import androidx.test.filters.SmallTest;
 
 import com.android.server.wifi.Clock;
+import com.android.server.wifi.MockResources;
 import com.android.server.wifi.WifiBaseTest;
+import com.android.server.wifi.WifiMetrics;
 import com.android.server.wifi.hotspot2.anqp.Constants;
+import com.android.wifi.resources.R;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -46,8 +55,11 @@ import java.util.List;
 @SmallTest
 public class ANQPRequestManagerTest extends WifiBaseTest {
     private static final long TEST_BSSID = 0x123456L;
+    private static final long TEST_HESSID = 0x654321L;
     private static final ANQPNetworkKey TEST_ANQP_KEY =
             new ANQPNetworkKey("TestSSID", TEST_BSSID, 0, 0);
+    private static final int TEST_MAX_IN_FLIGHT_QUERIES = 4;
+    private static final int TEST_MAX_QUEUED_REQUESTS = 2;
 
     private static final List<Constants.ANQPElementType> R1_ANQP_WITHOUT_RC = Arrays.asList(
             Constants.ANQPElementType.ANQPVenueName,
@@ -97,6 +109,12 @@ public class ANQPRequestManagerTest extends WifiBaseTest {
     PasspointEventHandler mHandler;
     @Mock
     Clock mClock;
+    @Mock
+    WifiMetrics mWifiMetrics;
+    @Mock
+    Context mContext;
+    MockResources mResources;
+    TestLooper mLooper;
     ANQPRequestManager mManager;
 
     /**
@@ -105,7 +123,15 @@ public class ANQPRequestManagerTest extends WifiBaseTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        mManager = new ANQPRequestManager(mHandler, mClock);
+        mResources = new MockResources();
+        mResources.setInteger(R.integer.config_wifiPasspointAnqpMaxInFlightQueries,
+                TEST_MAX_IN_FLIGHT_QUERIES);
+        mResources.setInteger(R.integer.config_wifiPasspointAnqpMaxQueuedRequests,
+                TEST_MAX_QUEUED_REQUESTS);
+        when(mContext.getResources()).thenReturn(mResources);
+        mLooper = new TestLooper();
+        mManager = new ANQPRequestManager(mHandler, mClock, mWifiMetrics, mContext,
+                new Handler(mLooper.getLooper()));
     }
 
     /**
@@ -372,4 +398,189 @@ public class ANQPRequestManagerTest extends WifiBaseTest {
         when(mHandler.requestVenueUrlAnqp(TEST_BSSID)).thenReturn(true);
         assertTrue(mManager.requestVenueUrlAnqpElement(TEST_BSSID, TEST_ANQP_KEY));
     }
+
+    /**
+     * Verify that an ANQP request to an AP is dropped while another AP of the same ESS is being
+     * queried, and sent once that query is completed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void requestANQPElementsDeduplicatedPerEss() throws Exception {
+        ANQPNetworkKey essKey = new ANQPNetworkKey("TestSSID", 0, TEST_HESSID, 1);
+        when(mHandler.requestANQP(anyLong(), anyObject())).thenReturn(true);
+        assertTrue(mManager.requestANQPElements(TEST_BSSID, essKey, false,
+                NetworkDetail.HSRelease.R1));
+
+        assertFalse(mManager.requestANQPElements(TEST_BSSID + 1, essKey, false,
+                NetworkDetail.HSRelease.R1));
+        verify(mHandler, never()).requestANQP(eq(TEST_BSSID + 1), anyObject());
+        verify(mWifiMetrics).incrementNumAnqpQueriesAvoided();
+
+        assertEquals(essKey, mManager.onRequestCompleted(TEST_BSSID, false));
+        assertTrue(mManager.requestANQPElements(TEST_BSSID + 1, essKey, false,
+                NetworkDetail.HSRelease.R1));
+    }
+
+    /**
+     * Verify that ANQP requests are queued once the max number of queries are in flight, and
+     * sent when queries complete, preferring the APs which may match a provider and then the
+     * strongest APs.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void requestANQPElementsQueuedAndSentByPriority() throws Exception {
+        mResources.setInteger(R.integer.config_wifiPasspointAnqpMaxQueuedRequests, 3);
+        mManager = new ANQPRequestManager(mHandler, mClock, mWifiMetrics, mContext,
+                new Handler(mLooper.getLooper()));
+        when(mHandler.requestANQP(anyLong(), anyObject())).thenReturn(true);
+        for (int i = 0; i < TEST_MAX_IN_FLIGHT_QUERIES; i++) {
+            assertTrue(mManager.requestANQPElements(TEST_BSSID + i, createKey(TEST_BSSID + i),
+                    false, NetworkDetail.HSRelease.R1, -50, false));
+        }
+
+        long weakBssid = TEST_BSSID + 100;
+        long strongBssid = TEST_BSSID + 101;
+        long mayMatchBssid = TEST_BSSID + 102;
+        assertFalse(mManager.requestANQPElements(weakBssid, createKey(weakBssid), false,
+                NetworkDetail.HSRelease.R1, -80, false));
+        assertFalse(mManager.requestANQPElements(strongBssid, createKey(strongBssid), false,
+                NetworkDetail.HSRelease.R1, -60, false));
+        assertFalse(mManager.requestANQPElements(mayMatchBssid, createKey(mayMatchBssid), false,
+                NetworkDetail.HSRelease.R1, -85, true));
+        verify(mHandler, never()).requestANQP(eq(weakBssid), anyObject());
+        verify(mHandler, never()).requestANQP(eq(strongBssid), anyObject());
+        verify(mHandler, never()).requestANQP(eq(mayMatchBssid), anyObject());
+        verify(mWifiMetrics).updateAnqpQueryQueueDepth(3);
+
+        mManager.onRequestCompleted(TEST_BSSID, true);
+        verify(mHandler).requestANQP(eq(mayMatchBssid), anyObject());
+        verify(mHandler, never()).requestANQP(eq(strongBssid), anyObject());
+
+        mManager.onRequestCompleted(TEST_BSSID + 1, true);
+        verify(mHandler).requestANQP(eq(strongBssid), anyObject());
+        verify(mHandler, never()).requestANQP(eq(weakBssid), anyObject());
+
+        // Unanswered queries no longer count as in flight after the query timeout.
+        when(mClock.getElapsedSinceBootMillis())
+                .thenReturn((long) ANQPRequestManager.QUERY_TIMEOUT_MILLISECONDS);
+        assertTrue(mManager.requestANQPElements(TEST_BSSID + 200, createKey(TEST_BSSID + 200),
+                false, NetworkDetail.HSRelease.R1, -90, false));
+        verify(mHandler).requestANQP(eq(weakBssid), anyObject());
+    }
+
+    /**
+     * Verify that a queued ANQP request is dropped after waiting for
+     * {@link ANQPRequestManager#MAX_QUEUED_REQUEST_AGE_MILLISECONDS}.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void queuedRequestDroppedAfterMaxAge() throws Exception {
+        when(mHandler.requestANQP(anyLong(), anyObject())).thenReturn(true);
+        for (int i = 0; i < TEST_MAX_IN_FLIGHT_QUERIES; i++) {
+            assertTrue(mManager.requestANQPElements(TEST_BSSID + i, createKey(TEST_BSSID + i),
+                    false, NetworkDetail.HSRelease.R1));
+        }
+        long queuedBssid = TEST_BSSID + 100;
+        assertFalse(mManager.requestANQPElements(queuedBssid, createKey(queuedBssid), false,
+                NetworkDetail.HSRelease.R1));
+
+        when(mClock.getElapsedSinceBootMillis())
+                .thenReturn((long) ANQPRequestManager.MAX_QUEUED_REQUEST_AGE_MILLISECONDS + 1);
+        mManager.onRequestCompleted(TEST_BSSID, true);
+        verify(mHandler, never()).requestANQP(eq(queuedBssid), anyObject());
+        verify(mWifiMetrics).incrementNumAnqpQueriesAvoided();
+    }
+
+    /**
+     * Verify that the time from the first ANQP query to an ESS to its first match is logged
+     * once.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void logTimeToFirstMatch() throws Exception {
+        when(mHandler.requestANQP(anyLong(), anyObject())).thenReturn(true);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        assertTrue(mManager.requestANQPElements(TEST_BSSID, TEST_ANQP_KEY, false,
+                NetworkDetail.HSRelease.R1));
+        mManager.onRequestCompleted(TEST_BSSID, true);
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1500L);
+        mManager.onProviderMatched(TEST_ANQP_KEY);
+        mManager.onProviderMatched(TEST_ANQP_KEY);
+        verify(mWifiMetrics, times(1)).logPasspointTimeToFirstMatch(500L);
+    }
+
+    /**
+     * Verify that the queued ANQP requests are sent when the queries in flight time out, even if
+     * no query completes and no new request is received.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void queuedRequestSentOnQueryTimeout() throws Exception {
+        when(mHandler.requestANQP(anyLong(), anyObject())).thenReturn(true);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(0L);
+        for (int i = 0; i < TEST_MAX_IN_FLIGHT_QUERIES; i++) {
+            assertTrue(mManager.requestANQPElements(TEST_BSSID + i, createKey(TEST_BSSID + i),
+                    false, NetworkDetail.HSRelease.R1));
+        }
+        long queuedBssid = TEST_BSSID + 100;
+        assertFalse(mManager.requestANQPElements(queuedBssid, createKey(queuedBssid), false,
+                NetworkDetail.HSRelease.R1));
+
+        mLooper.moveTimeForward(ANQPRequestManager.QUERY_TIMEOUT_MILLISECONDS - 1);
+        mLooper.dispatchAll();
+        verify(mHandler, never()).requestANQP(eq(queuedBssid), anyObject());
+
+        when(mClock.getElapsedSinceBootMillis())
+                .thenReturn((long) ANQPRequestManager.QUERY_TIMEOUT_MILLISECONDS);
+        mLooper.moveTimeForward(1);
+        mLooper.dispatchAll();
+        verify(mHandler).requestANQP(eq(queuedBssid), anyObject());
+    }
+
+    /**
+     * Verify that the ANQP requests with the lowest priority are dropped once the queue is full.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void lowestPriorityRequestDroppedWhenQueueFull() throws Exception {
+        when(mHandler.requestANQP(anyLong(), anyObject())).thenReturn(true);
+        for (int i = 0; i < TEST_MAX_IN_FLIGHT_QUERIES; i++) {
+            assertTrue(mManager.requestANQPElements(TEST_BSSID + i, createKey(TEST_BSSID + i),
+                    false, NetworkDetail.HSRelease.R1, -50, false));
+        }
+        long weakBssid = TEST_BSSID + 100;
+        long strongBssid = TEST_BSSID + 101;
+        long mediumBssid = TEST_BSSID + 102;
+        long weakestBssid = TEST_BSSID + 103;
+        assertFalse(mManager.requestANQPElements(weakBssid, createKey(weakBssid), false,
+                NetworkDetail.HSRelease.R1, -80, false));
+        assertFalse(mManager.requestANQPElements(strongBssid, createKey(strongBssid), false,
+                NetworkDetail.HSRelease.R1, -60, false));
+        // Replaces the weak request.
+        assertFalse(mManager.requestANQPElements(mediumBssid, createKey(mediumBssid), false,
+                NetworkDetail.HSRelease.R1, -70, false));
+        // Dropped.
+        assertFalse(mManager.requestANQPElements(weakestBssid, createKey(weakestBssid), false,
+                NetworkDetail.HSRelease.R1, -90, false));
+        verify(mWifiMetrics, times(2)).incrementNumAnqpQueriesAvoided();
+
+        for (int i = 0; i < TEST_MAX_IN_FLIGHT_QUERIES; i++) {
+            mManager.onRequestCompleted(TEST_BSSID + i, true);
+        }
+        verify(mHandler).requestANQP(eq(strongBssid), anyObject());
+        verify(mHandler).requestANQP(eq(mediumBssid), anyObject());
+        verify(mHandler, never()).requestANQP(eq(weakBssid), anyObject());
+        verify(mHandler, never()).requestANQP(eq(weakestBssid), anyObject());
+    }
+
+    private static ANQPNetworkKey createKey(long bssid) {
+        return new ANQPNetworkKey("TestSSID", bssid, 0, 0);
+    }
 }
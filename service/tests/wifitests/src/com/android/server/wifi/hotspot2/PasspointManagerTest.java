@@ -200,6 +200,7 @@ public class PasspointManagerTest extends WifiBaseTest {
     @Mock PasspointEventHandler.Callbacks mCallbacks;
     @Mock AnqpCache mAnqpCache;
     @Mock ANQPRequestManager mAnqpRequestManager;
+    @Mock PasspointProviderIndex mProviderMatchIndex;
     @Mock WifiConfigManager mWifiConfigManager;
     @Mock WifiConfigStore mWifiConfigStore;
     @Mock WifiSettingsStore mWifiSettingsStore;
@@ -247,7 +248,15 @@ public class PasspointManagerTest extends WifiBaseTest {
     public void setUp() throws Exception {
         initMocks(this);
         when(mObjectFactory.makeAnqpCache(mClock)).thenReturn(mAnqpCache);
-        when(mObjectFactory.makeANQPRequestManager(any(), eq(mClock)))
+        // Every provider added to the match index is a match candidate for all APs.
+        Set<PasspointProvider> indexedProviders = new HashSet<>();
+        when(mObjectFactory.makePasspointProviderIndex()).thenReturn(mProviderMatchIndex);
+        doAnswer(invocation -> indexedProviders.add(invocation.getArgument(0)))
+                .when(mProviderMatchIndex).addProvider(any());
+        when(mProviderMatchIndex.getCandidateProviders(any(), any()))
+                .thenReturn(indexedProviders);
+        when(mObjectFactory.makeANQPRequestManager(any(), eq(mClock), eq(mWifiMetrics), any(),
+                any()))
                 .thenReturn(mAnqpRequestManager);
         when(mObjectFactory.makeOsuNetworkConnection(any(Context.class)))
                 .thenReturn(mOsuNetworkConnection);
@@ -804,10 +813,12 @@ public class PasspointManagerTest extends WifiBaseTest {
         assertEquals(config, providers.get(0).getConfig());
         // Provider index start with 0, should be 1 after adding a provider.
         assertEquals(1, mSharedDataSource.getProviderIndex());
+        verify(mProviderMatchIndex).addProvider(provider);
 
         // Remove the provider as a privileged non-creator app.
         assertTrue(mManager.removeProvider(TEST_UID, true, null, TEST_FQDN));
         verify(provider).uninstallCertsAndKeys();
+        verify(mProviderMatchIndex).removeProvider(provider);
         verify(mWifiConfigManager).removePasspointConfiguredNetwork(
                 provider.getWifiConfig().getProfileKey());
         verify(mWifiConfigManager).saveToStore(true);
@@ -1068,7 +1079,7 @@ public class PasspointManagerTest extends WifiBaseTest {
             // Verify that a request for ANQP elements is initiated.
             verify(mAnqpRequestManager).requestANQPElements(eq(TEST_BSSID),
                     any(ANQPNetworkKey.class),
-                    anyBoolean(), any(NetworkDetail.HSRelease.class));
+                    anyBoolean(), any(NetworkDetail.HSRelease.class), anyInt(), anyBoolean());
         } finally {
             session.finishMocking();
         }
@@ -1133,6 +1144,30 @@ public class PasspointManagerTest extends WifiBaseTest {
         assertTrue(mManager.matchProvider(createTestScanResult()).isEmpty());
     }
 
+    /**
+     * Verify that providers which are not match candidates according to the provider index are
+     * not matched against the AP.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void matchProviderSkipsProvidersNotInMatchIndex() throws Exception {
+        PasspointProvider provider =
+                addTestProvider(TEST_FQDN, TEST_FRIENDLY_NAME, TEST_PACKAGE, false, null, false);
+        ANQPData entry = new ANQPData(mClock, null);
+
+        when(mAnqpCache.getEntry(TEST_ANQP_KEY)).thenReturn(entry);
+        when(mProviderMatchIndex.getCandidateProviders(any(), any()))
+                .thenReturn(Collections.emptySet());
+        when(provider.match(anyMap(), any(RoamingConsortium.class), any(ScanResult.class)))
+            .thenReturn(PasspointMatch.HomeProvider);
+        assertTrue(mManager.matchProvider(createTestScanResult()).isEmpty());
+        verify(provider, never()).match(anyMap(), any(), any());
+        // Carrier IDs and the match state are still updated for all the providers.
+        verify(provider).tryUpdateCarrierId();
+        verify(provider).onMatchSkipped();
+    }
+
     /**
      * Verify the expectations for sweepCache.
      *
@@ -2569,7 +2604,8 @@ public class PasspointManagerTest extends WifiBaseTest {
         reset(mWifiConfigManager);
         when(mAnqpCache.getEntry(TEST_ANQP_KEY2)).thenReturn(null);
         verify(mAnqpRequestManager, never()).requestANQPElements(any(long.class),
-                any(ANQPNetworkKey.class), any(boolean.class), any(NetworkDetail.HSRelease.class));
+                any(ANQPNetworkKey.class), any(boolean.class), any(NetworkDetail.HSRelease.class),
+                anyInt(), anyBoolean());
     }
 
     /**
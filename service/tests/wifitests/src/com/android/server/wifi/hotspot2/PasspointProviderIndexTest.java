@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.hotspot2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.hotspot2.PasspointConfiguration;
+import android.net.wifi.hotspot2.pps.Credential;
+import android.net.wifi.hotspot2.pps.HomeSp;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.wifi.WifiBaseTest;
+import com.android.server.wifi.hotspot2.anqp.ANQPElement;
+import com.android.server.wifi.hotspot2.anqp.CellularNetwork;
+import com.android.server.wifi.hotspot2.anqp.Constants.ANQPElementType;
+import com.android.server.wifi.hotspot2.anqp.DomainNameElement;
+import com.android.server.wifi.hotspot2.anqp.NAIRealmData;
+import com.android.server.wifi.hotspot2.anqp.NAIRealmElement;
+import com.android.server.wifi.hotspot2.anqp.RoamingConsortiumElement;
+import com.android.server.wifi.hotspot2.anqp.ThreeGPPNetworkElement;
+import com.android.server.wifi.util.InformationElementUtil.RoamingConsortium;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.hotspot2.PasspointProviderIndex}.
+ */
+@SmallTest
+public class PasspointProviderIndexTest extends WifiBaseTest {
+    private static final String TEST_FQDN = "test.com";
+    private static final String TEST_REALM = "realm.test.com";
+    private static final long TEST_OI = 0x1234L;
+
+    private PasspointProviderIndex mIndex;
+    private Map<ANQPElementType, ANQPElement> mAnqpElements;
+
+    @Before
+    public void setUp() throws Exception {
+        mIndex = new PasspointProviderIndex();
+        mAnqpElements = new HashMap<>();
+    }
+
+    private static PasspointProvider createProvider(String fqdn, String realm, long[] rcois,
+            String imsi) {
+        PasspointConfiguration config = new PasspointConfiguration();
+        HomeSp homeSp = new HomeSp();
+        homeSp.setFqdn(fqdn);
+        homeSp.setRoamingConsortiumOis(rcois);
+        config.setHomeSp(homeSp);
+        Credential credential = new Credential();
+        credential.setRealm(realm);
+        if (imsi != null) {
+            Credential.SimCredential simCredential = new Credential.SimCredential();
+            simCredential.setImsi(imsi);
+            credential.setSimCredential(simCredential);
+        }
+        config.setCredential(credential);
+        PasspointProvider provider = mock(PasspointProvider.class);
+        when(provider.getConfig()).thenReturn(config);
+        return provider;
+    }
+
+    private Set<PasspointProvider> getCandidates() {
+        return mIndex.getCandidateProviders(mAnqpElements, null);
+    }
+
+    /**
+     * Verify that providers are candidates for APs advertising their FQDN, a sub-domain of it, or
+     * one of their Other Home Partners.
+     */
+    @Test
+    public void matchDomainName() {
+        PasspointProvider provider = createProvider(TEST_FQDN, null, null, null);
+        provider.getConfig().getHomeSp().setOtherHomePartners(new String[] {"partner.org"});
+        mIndex.addProvider(provider);
+
+        mAnqpElements.put(ANQPElementType.ANQPDomName,
+                new DomainNameElement(Arrays.asList("TEST.com")));
+        assertEquals(Collections.singleton(provider), getCandidates());
+        mAnqpElements.put(ANQPElementType.ANQPDomName,
+                new DomainNameElement(Arrays.asList("hotspot.test.com")));
+        assertEquals(Collections.singleton(provider), getCandidates());
+        mAnqpElements.put(ANQPElementType.ANQPDomName,
+                new DomainNameElement(Arrays.asList("ap.partner.org")));
+        assertEquals(Collections.singleton(provider), getCandidates());
+
+        // A parent domain or an unrelated domain is not a match.
+        mAnqpElements.put(ANQPElementType.ANQPDomName,
+                new DomainNameElement(Arrays.asList("com", "test.org", "othertest.com")));
+        assertTrue(getCandidates().isEmpty());
+    }
+
+    /**
+     * Verify that providers are candidates for APs advertising one of their OIs, either in the
+     * ANQP Roaming Consortium element or in the Roaming Consortium IE.
+     */
+    @Test
+    public void matchRoamingConsortium() {
+        PasspointProvider provider =
+                createProvider(TEST_FQDN, null, new long[] {TEST_OI, TEST_OI + 1}, null);
+        provider.getConfig().getHomeSp().setMatchAllOis(new long[] {TEST_OI + 2});
+        mIndex.addProvider(provider);
+
+        mAnqpElements.put(ANQPElementType.ANQPRoamingConsortium,
+                new RoamingConsortiumElement(Arrays.asList(TEST_OI + 1)));
+        assertEquals(Collections.singleton(provider), getCandidates());
+        mAnqpElements.put(ANQPElementType.ANQPRoamingConsortium,
+                new RoamingConsortiumElement(Arrays.asList(TEST_OI + 3)));
+        assertTrue(getCandidates().isEmpty());
+
+        RoamingConsortium roamingConsortium = mock(RoamingConsortium.class);
+        when(roamingConsortium.getRoamingConsortiums()).thenReturn(new long[] {TEST_OI + 2});
+        assertEquals(Collections.singleton(provider),
+                mIndex.getCandidateProviders(mAnqpElements, roamingConsortium));
+    }
+
+    /**
+     * Verify that providers are candidates for APs advertising their credential realm or a
+     * sub-domain of it.
+     */
+    @Test
+    public void matchNaiRealm() {
+        PasspointProvider provider = createProvider(TEST_FQDN, TEST_REALM, null, null);
+        mIndex.addProvider(provider);
+
+        mAnqpElements.put(ANQPElementType.ANQPNAIRealm, new NAIRealmElement(Arrays.asList(
+                new NAIRealmData(Arrays.asList("other.com", "sub." + TEST_REALM), null))));
+        assertEquals(Collections.singleton(provider), getCandidates());
+        mAnqpElements.put(ANQPElementType.ANQPNAIRealm, new NAIRealmElement(Arrays.asList(
+                new NAIRealmData(Arrays.asList("test.com"), null))));
+        assertTrue(getCandidates().isEmpty());
+    }
+
+    /**
+     * Verify that SIM providers are candidates for APs advertising the MCC-MNC of their IMSI,
+     * either in the ANQP 3GPP Network element or as a 3GPP domain name.
+     */
+    @Test
+    public void matchMccMnc() {
+        PasspointProvider prefixProvider = createProvider(TEST_FQDN, null, null, "310150*");
+        PasspointProvider fullImsiProvider =
+                createProvider("other.com", null, null, "310260123456789");
+        mIndex.addProvider(prefixProvider);
+        mIndex.addProvider(fullImsiProvider);
+
+        mAnqpElements.put(ANQPElementType.ANQP3GPPNetwork, new ThreeGPPNetworkElement(
+                Arrays.asList(new CellularNetwork(Arrays.asList("310150", "31026")))));
+        assertEquals(2, getCandidates().size());
+        // A 5 digit MCC-MNC does not match a 6 digit IMSI prefix.
+        mAnqpElements.put(ANQPElementType.ANQP3GPPNetwork, new ThreeGPPNetworkElement(
+                Arrays.asList(new CellularNetwork(Arrays.asList("31015")))));
+        assertTrue(getCandidates().isEmpty());
+
+        mAnqpElements.clear();
+        mAnqpElements.put(ANQPElementType.ANQPDomName, new DomainNameElement(
+                Arrays.asList("wlan.mnc260.mcc310.3gppnetwork.org")));
+        assertEquals(Collections.singleton(fullImsiProvider), getCandidates());
+    }
+
+    /**
+     * Verify that removed providers are no longer candidates.
+     */
+    @Test
+    public void removeAndClearProviders() {
+        PasspointProvider provider1 = createProvider(TEST_FQDN, TEST_REALM, null, null);
+        PasspointProvider provider2 = createProvider("sub." + TEST_FQDN, null, null, null);
+        mIndex.addProvider(provider1);
+        mIndex.addProvider(provider2);
+        mAnqpElements.put(ANQPElementType.ANQPDomName,
+                new DomainNameElement(Arrays.asList("ap.sub." + TEST_FQDN)));
+        assertEquals(2, getCandidates().size());
+
+        mIndex.removeProvider(provider2);
+        assertEquals(Collections.singleton(provider1), getCandidates());
+        assertEquals(1, mIndex.size());
+
+        mIndex.clear();
+        assertTrue(getCandidates().isEmpty());
+        assertEquals(0, mIndex.size());
+    }
+
+    /**
+     * Verify that each AP only yields the providers which could match it when many providers
+     * are installed.
+     */
+    @Test
+    public void manyProvidersOnlyYieldMatchingCandidates() {
+        final int numProviders = 100;
+        final int numAps = 1000;
+        PasspointProvider[] providers = new PasspointProvider[numProviders];
+        for (int i = 0; i < numProviders; i++) {
+            providers[i] = createProvider("provider" + i + ".com", null,
+                    new long[] {TEST_OI + i}, null);
+            mIndex.addProvider(providers[i]);
+        }
+
+        for (int ap = 0; ap < numAps; ap++) {
+            int i = ap % numProviders;
+            mAnqpElements.put(ANQPElementType.ANQPRoamingConsortium,
+                    new RoamingConsortiumElement(Arrays.asList(TEST_OI + i)));
+            mAnqpElements.put(ANQPElementType.ANQPDomName,
+                    new DomainNameElement(Arrays.asList("ap" + ap + ".provider" + i + ".com")));
+            assertEquals(Collections.singleton(providers[i]), getCandidates());
+        }
+    }
+}
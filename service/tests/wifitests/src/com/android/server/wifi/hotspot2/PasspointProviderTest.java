@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -2028,4 +2029,103 @@ public class PasspointProviderTest extends WifiBaseTest {
         // aged out
         assertEquals(0, mProvider.getAndRemoveMatchedRcoi(TEST_SSID_QUOTED));
     }
+
+    /**
+     * Verify that a provider skipped for a match still ages out its matched RCOIs and updates
+     * the best guess carrier ID of its SIM credential.
+     */
+    @Test
+    public void testMatchStateUpdatedWhenMatchSkipped() throws Exception {
+        PasspointConfiguration config = generateTestPasspointConfiguration(
+                CredentialType.SIM, false);
+        mProvider = createProvider(config);
+        when(mWifiCarrierInfoManager.getMatchingImsiCarrierId(
+                eq(config.getCredential().getSimCredential().getImsi())))
+                .thenReturn(new Pair<>(TEST_IMSI, VALID_CARRIER_ID));
+
+        Map<ANQPElementType, ANQPElement> anqpElementMap = new HashMap<>();
+        anqpElementMap.put(ANQPElementType.ANQPRoamingConsortium,
+                createRoamingConsortiumElement(TEST_ANQP_RC_OIS));
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(TEST_ELAPSED_TIME_SINCE_BOOT);
+        assertEquals(PasspointMatch.RoamingProvider,
+                mProvider.match(anqpElementMap, mRoamingConsortium, createTestScanResult()));
+
+        // The SIM card matching the credential changed.
+        when(mWifiCarrierInfoManager.getMatchingImsiCarrierId(
+                eq(config.getCredential().getSimCredential().getImsi())))
+                .thenReturn(new Pair<>(TEST_IMSI, VALID_CARRIER_ID + 1));
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(TEST_ELAPSED_TIME_SINCE_BOOT
+                + 700_000L);
+        mProvider.onMatchSkipped();
+
+        assertEquals(0, mProvider.getAndRemoveMatchedRcoi(TEST_SSID_QUOTED));
+        assertEquals(VALID_CARRIER_ID + 1, mProvider.getWifiConfig().carrierId);
+    }
+
+    /**
+     * Verify that the match result is memoized across the BSSIDs sharing the same ANQP elements,
+     * and that the selected RCOI is still recorded for each of them.
+     */
+    @Test
+    public void matchMemoizedForSameAnqpElements() throws Exception {
+        PasspointConfiguration config = generateTestPasspointConfiguration(
+                CredentialType.SIM, false);
+        mProvider = createProvider(config);
+        when(mWifiCarrierInfoManager.getMatchingImsiCarrierId(
+                eq(config.getCredential().getSimCredential().getImsi())))
+                .thenReturn(new Pair<>(TEST_IMSI, VALID_CARRIER_ID));
+
+        Map<ANQPElementType, ANQPElement> anqpElementMap = new HashMap<>();
+        anqpElementMap.put(ANQPElementType.ANQPRoamingConsortium,
+                createRoamingConsortiumElement(TEST_ANQP_RC_OIS));
+        assertEquals(PasspointMatch.RoamingProvider,
+                mProvider.match(anqpElementMap, mRoamingConsortium, createTestScanResult()));
+        assertEquals(0, mProvider.getMatchCacheHitCount());
+        assertEquals(1, mProvider.getMatchCacheMissCount());
+
+        // Equal ANQP elements from another AP are served from the memoized result.
+        Map<ANQPElementType, ANQPElement> otherAnqpElementMap = new HashMap<>();
+        otherAnqpElementMap.put(ANQPElementType.ANQPRoamingConsortium,
+                createRoamingConsortiumElement(TEST_ANQP_RC_OIS));
+        assertEquals(PasspointMatch.RoamingProvider, mProvider.match(otherAnqpElementMap,
+                mRoamingConsortium, createSecondaryTestScanResult()));
+        assertEquals(1, mProvider.getMatchCacheHitCount());
+        assertEquals(1, mProvider.getMatchCacheMissCount());
+        assertEquals(TEST_IE_RC_OIS[0], mProvider.getAndRemoveMatchedRcoi(TEST_SSID_QUOTED));
+        assertEquals(TEST_IE_RC_OIS[0], mProvider.getAndRemoveMatchedRcoi(TEST_SSID_2_QUOTED));
+
+        // Different ANQP elements are matched again.
+        otherAnqpElementMap.put(ANQPElementType.ANQPRoamingConsortium,
+                createRoamingConsortiumElement(TEST_ANQP_RC_OIS_2));
+        assertEquals(PasspointMatch.None, mProvider.match(otherAnqpElementMap,
+                mRoamingConsortium, createSecondaryTestScanResult()));
+        assertEquals(2, mProvider.getMatchCacheMissCount());
+    }
+
+    /**
+     * Verify that the memoized match results are dropped when the carrier ID of the provider is
+     * updated.
+     */
+    @Test
+    public void matchNotMemoizedAfterCarrierIdUpdate() throws Exception {
+        PasspointConfiguration config = generateTestPasspointConfiguration(
+                CredentialType.SIM, false);
+        mProvider = createProvider(config);
+        when(mWifiCarrierInfoManager.getMatchingImsiCarrierId(
+                eq(config.getCredential().getSimCredential().getImsi())))
+                .thenReturn(new Pair<>(TEST_IMSI, VALID_CARRIER_ID));
+
+        Map<ANQPElementType, ANQPElement> anqpElementMap = new HashMap<>();
+        anqpElementMap.put(ANQPElementType.ANQPRoamingConsortium,
+                createRoamingConsortiumElement(TEST_ANQP_RC_OIS));
+        mProvider.match(anqpElementMap, mRoamingConsortium, createTestScanResult());
+        mProvider.match(anqpElementMap, mRoamingConsortium, createTestScanResult());
+        assertEquals(1, mProvider.getMatchCacheHitCount());
+
+        when(mWifiCarrierInfoManager.tryUpdateCarrierIdForPasspoint(any())).thenReturn(true);
+        assertTrue(mProvider.tryUpdateCarrierId());
+        mProvider.match(anqpElementMap, mRoamingConsortium, createTestScanResult());
+        assertEquals(1, mProvider.getMatchCacheHitCount());
+        assertEquals(2, mProvider.getMatchCacheMissCount());
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.wifi.WifiBaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.p2p.FastReconnectCache}.
+ */
+@SmallTest
+public class FastReconnectCacheTest extends WifiBaseTest {
+    private static final String TEST_PEER_ADDRESS = "aa:bb:cc:dd:ee:ff";
+    private static final String TEST_NETWORK_NAME = "DIRECT-xy-TEST";
+    private static final long TEST_TTL_MS = 1000;
+
+    private FastReconnectCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new FastReconnectCache();
+    }
+
+    private static FastReconnectCache.Entry createEntry(String deviceAddress, long timestampMs) {
+        return new FastReconnectCache.Entry(deviceAddress, 2437, 7, true, 0,
+                TEST_NETWORK_NAME, timestampMs);
+    }
+
+    /**
+     * Verify that the entry of a peer is returned while it is fresh and replaced by a newer one.
+     */
+    @Test
+    public void testPutAndGet() {
+        FastReconnectCache.Entry entry = createEntry(TEST_PEER_ADDRESS, 0);
+        mCache.put(entry);
+        assertSame(entry, mCache.get(TEST_PEER_ADDRESS, TEST_TTL_MS, TEST_TTL_MS));
+        assertNull(mCache.get("12:34:56:78:90:ab", TEST_TTL_MS, TEST_TTL_MS));
+        assertNull(mCache.get(null, TEST_TTL_MS, TEST_TTL_MS));
+
+        FastReconnectCache.Entry newEntry = createEntry(TEST_PEER_ADDRESS, TEST_TTL_MS);
+        mCache.put(newEntry);
+        assertEquals(1, mCache.size());
+        assertSame(newEntry, mCache.get(TEST_PEER_ADDRESS, TEST_TTL_MS, TEST_TTL_MS));
+
+        mCache.remove(TEST_PEER_ADDRESS);
+        assertNull(mCache.get(TEST_PEER_ADDRESS, TEST_TTL_MS, TEST_TTL_MS));
+    }
+
+    /**
+     * Verify that expired entries are dropped.
+     */
+    @Test
+    public void testExpiredEntriesDropped() {
+        mCache.put(createEntry(TEST_PEER_ADDRESS, 0));
+        mCache.put(createEntry("12:34:56:78:90:ab", TEST_TTL_MS));
+
+        assertNull(mCache.get(TEST_PEER_ADDRESS, TEST_TTL_MS + 1, TEST_TTL_MS));
+        assertEquals(1, mCache.size());
+
+        mCache.clear();
+        assertEquals(0, mCache.size());
+    }
+
+    /**
+     * Verify that the least recently connected peers are evicted when the cache is full.
+     */
+    @Test
+    public void testLeastRecentEntriesEvicted() {
+        for (int i = 0; i < 40; i++) {
+            mCache.put(createEntry(String.format("aa:bb:cc:dd:ee:%02x", i), 0));
+        }
+        assertEquals(32, mCache.size());
+        assertNull(mCache.get("aa:bb:cc:dd:ee:00", 0, TEST_TTL_MS));
+        assertEquals("aa:bb:cc:dd:ee:27",
+                mCache.get("aa:bb:cc:dd:ee:27", 0, TEST_TTL_MS).deviceAddress);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceResponse;
+import android.net.wifi.p2p.nsd.WifiP2pUpnpServiceRequest;
+import android.os.Handler;
+import android.os.Messenger;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.wifi.WifiBaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.p2p.ServiceDiscoveryStore}.
+ */
+@SmallTest
+public class ServiceDiscoveryStoreTest extends WifiBaseTest {
+    private static final String TEST_PEER_ADDRESS = "aa:bb:cc:dd:ee:ff";
+    private static final int TEST_TRANSACTION_ID = 1;
+    private static final long TEST_TTL_MS = 1000;
+
+    private ServiceDiscoveryStore mStore;
+    private Messenger mClient1;
+    private Messenger mClient2;
+    private WifiP2pDeviceList mPeers;
+    private WifiP2pDevice mPeer;
+
+    @Before
+    public void setUp() throws Exception {
+        TestLooper looper = new TestLooper();
+        mStore = new ServiceDiscoveryStore();
+        mClient1 = new Messenger(new Handler(looper.getLooper()));
+        mClient2 = new Messenger(new Handler(looper.getLooper()));
+        mPeer = new WifiP2pDevice();
+        mPeer.deviceAddress = TEST_PEER_ADDRESS;
+        mPeers = new WifiP2pDeviceList();
+        mPeers.update(mPeer);
+    }
+
+    private WifiP2pServiceResponse createResponse(int transactionId, byte data) {
+        // Vendor specific service response TLV: length, type, transaction id, status, data.
+        byte[] tlvs = new byte[] {4, 0, (byte) WifiP2pServiceInfo.SERVICE_TYPE_VENDOR_SPECIFIC,
+                (byte) transactionId, (byte) WifiP2pServiceResponse.Status.SUCCESS, data};
+        return WifiP2pServiceResponse.newInstance(TEST_PEER_ADDRESS, tlvs).get(0);
+    }
+
+    private WifiP2pServiceResponse createFailureResponse(int transactionId, int status) {
+        WifiP2pServiceResponse resp = mock(WifiP2pServiceResponse.class);
+        when(resp.getTransactionId()).thenReturn(transactionId);
+        when(resp.getStatus()).thenReturn(status);
+        when(resp.getSrcDevice()).thenReturn(mPeer);
+        return resp;
+    }
+
+    /**
+     * Verify that clients issuing equal requests share a transaction id, and that the request
+     * is released once no client uses it anymore.
+     */
+    @Test
+    public void testEqualRequestsShareTransactionId() {
+        WifiP2pServiceRequest request = WifiP2pDnsSdServiceRequest.newInstance();
+        assertEquals(0, mStore.getTransactionId(request));
+        mStore.addRequest(mClient1, request, TEST_TRANSACTION_ID);
+
+        WifiP2pServiceRequest equalRequest = WifiP2pDnsSdServiceRequest.newInstance();
+        assertEquals(TEST_TRANSACTION_ID, mStore.getTransactionId(equalRequest));
+        mStore.addRequest(mClient2, equalRequest, TEST_TRANSACTION_ID);
+
+        assertEquals(1, mStore.getRequests().size());
+        assertEquals(2, mStore.getClients(TEST_TRANSACTION_ID).size());
+        assertEquals(0, mStore.getTransactionId(WifiP2pUpnpServiceRequest.newInstance()));
+
+        mStore.removeRequest(mClient1, request);
+        assertTrue(mStore.isTransactionIdInUse(TEST_TRANSACTION_ID));
+        assertEquals(1, mStore.getClients(TEST_TRANSACTION_ID).size());
+        mStore.removeClient(mClient2);
+        assertFalse(mStore.isTransactionIdInUse(TEST_TRANSACTION_ID));
+        assertTrue(mStore.getRequests().isEmpty());
+        assertTrue(mStore.getClients(TEST_TRANSACTION_ID).isEmpty());
+    }
+
+    /**
+     * Verify that the successful responses are returned for an equal request while they are
+     * fresh and the peer is still present.
+     */
+    @Test
+    public void testFreshResponses() {
+        WifiP2pServiceRequest request = WifiP2pDnsSdServiceRequest.newInstance();
+        mStore.addRequest(mClient1, request, TEST_TRANSACTION_ID);
+        WifiP2pServiceResponse resp1 = createResponse(TEST_TRANSACTION_ID, (byte) 1);
+        WifiP2pServiceResponse resp2 = createResponse(TEST_TRANSACTION_ID, (byte) 2);
+        WifiP2pServiceResponse failure = createFailureResponse(TEST_TRANSACTION_ID,
+                WifiP2pServiceResponse.Status.REQUESTED_INFORMATION_NOT_AVAILABLE);
+        mStore.putResponses(Arrays.asList(resp1, resp2, failure), 0);
+
+        List<WifiP2pServiceResponse> responses = mStore.getFreshResponses(
+                WifiP2pDnsSdServiceRequest.newInstance(), mPeers, TEST_TTL_MS, TEST_TTL_MS);
+        assertEquals(Arrays.asList(resp1, resp2), responses);
+        assertEquals(mPeer, responses.get(0).getSrcDevice());
+        assertTrue(mStore.getFreshResponses(WifiP2pUpnpServiceRequest.newInstance(), mPeers,
+                TEST_TTL_MS, TEST_TTL_MS).isEmpty());
+
+        // The peer is gone.
+        assertTrue(mStore.getFreshResponses(request, new WifiP2pDeviceList(), TEST_TTL_MS,
+                TEST_TTL_MS).isEmpty());
+
+        // A later response event replaces the previous responses.
+        WifiP2pServiceResponse resp3 = createResponse(TEST_TRANSACTION_ID, (byte) 3);
+        mStore.putResponses(Arrays.asList(resp3), TEST_TTL_MS);
+        assertEquals(Arrays.asList(resp3), mStore.getFreshResponses(request, mPeers,
+                TEST_TTL_MS, TEST_TTL_MS));
+    }
+
+    /**
+     * Verify that the returned responses are copies, so that updating their source device
+     * does not modify the cached responses.
+     */
+    @Test
+    public void testFreshResponsesAreCopies() {
+        WifiP2pServiceRequest request = WifiP2pDnsSdServiceRequest.newInstance();
+        mStore.addRequest(mClient1, request, TEST_TRANSACTION_ID);
+        WifiP2pServiceResponse resp = createResponse(TEST_TRANSACTION_ID, (byte) 1);
+        WifiP2pDevice cachedDevice = resp.getSrcDevice();
+        mStore.putResponses(Arrays.asList(resp), 0);
+
+        WifiP2pDevice updatedPeer = new WifiP2pDevice();
+        updatedPeer.deviceAddress = TEST_PEER_ADDRESS;
+        updatedPeer.deviceName = "updated";
+        WifiP2pDeviceList peers = new WifiP2pDeviceList();
+        peers.update(updatedPeer);
+        List<WifiP2pServiceResponse> responses = mStore.getFreshResponses(request, peers,
+                TEST_TTL_MS, TEST_TTL_MS);
+        assertEquals(1, responses.size());
+        assertNotSame(resp, responses.get(0));
+        assertEquals(resp, responses.get(0));
+        assertEquals("updated", responses.get(0).getSrcDevice().deviceName);
+        assertSame(cachedDevice, resp.getSrcDevice());
+
+        // Each call returns new copies.
+        assertNotSame(responses.get(0), mStore.getFreshResponses(request, peers,
+                TEST_TTL_MS, TEST_TTL_MS).get(0));
+    }
+
+    /**
+     * Verify that expired responses are dropped.
+     */
+    @Test
+    public void testExpiredResponses() {
+        WifiP2pServiceRequest request = WifiP2pDnsSdServiceRequest.newInstance();
+        mStore.addRequest(mClient1, request, TEST_TRANSACTION_ID);
+        mStore.putResponses(Arrays.asList(createResponse(TEST_TRANSACTION_ID,
+                (byte) 1)), 0);
+
+        assertTrue(mStore.getFreshResponses(request, mPeers, TEST_TTL_MS + 1,
+                TEST_TTL_MS).isEmpty());
+        assertTrue(mStore.getFreshResponses(request, mPeers, 0, TEST_TTL_MS).isEmpty());
+    }
+
+    /**
+     * Verify that responses to unknown transaction ids are not cached.
+     */
+    @Test
+    public void testResponseToUnknownRequestNotCached() {
+        WifiP2pServiceRequest request = WifiP2pDnsSdServiceRequest.newInstance();
+        mStore.addRequest(mClient1, request, TEST_TRANSACTION_ID);
+        mStore.putResponses(Arrays.asList(createResponse(TEST_TRANSACTION_ID + 1,
+                (byte) 1)), 0);
+
+        assertTrue(mStore.getFreshResponses(request, mPeers, 0, TEST_TTL_MS).isEmpty());
+
+        mStore.putResponses(Arrays.asList(createResponse(TEST_TRANSACTION_ID,
+                (byte) 1)), 0);
+        mStore.clearResponses();
+        assertTrue(mStore.getFreshResponses(request, mPeers, 0, TEST_TTL_MS).isEmpty());
+    }
+}
@@ -119,6 +119,52 @@ public class WifiP2pMetricsTest extends WifiBaseTest {
         assertEquals(4, stats.connectionEvent.length);
     }
 
+    /**
+     * Test that the durations of the connection phases are recorded, including the IP
+     * provisioning phase completing after the connection event ended.
+     * @throws Exception
+     */
+    @Test
+    public void recordConnectionPhaseDurations() throws Exception {
+        WifiP2pStats stats;
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        mWifiP2pMetrics.incrementPeerScans();
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(4000L);
+        mWifiP2pMetrics.startConnectionEvent(P2pConnectionEvent.CONNECTION_FRESH, null,
+                GroupEvent.GROUP_CLIENT);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(4100L);
+        mWifiP2pMetrics.endConnectionPhase(WifiP2pMetrics.CONNECTION_PHASE_PROVISION_DISCOVERY);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(4300L);
+        mWifiP2pMetrics.endConnectionPhase(WifiP2pMetrics.CONNECTION_PHASE_GROUP_NEGOTIATION);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(4700L);
+        mWifiP2pMetrics.endConnectionPhase(WifiP2pMetrics.CONNECTION_PHASE_GROUP_FORMATION);
+        mWifiP2pMetrics.endConnectionEvent(P2pConnectionEvent.CLF_NONE);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(5500L);
+        mWifiP2pMetrics.endConnectionPhase(WifiP2pMetrics.CONNECTION_PHASE_IP_PROVISIONING);
+        // A later DHCP renewal is not part of the connection.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(9000L);
+        mWifiP2pMetrics.endConnectionPhase(WifiP2pMetrics.CONNECTION_PHASE_IP_PROVISIONING);
+
+        stats = mWifiP2pMetrics.consolidateProto();
+        assertEquals(1, stats.connectionEvent.length);
+        P2pConnectionEvent event = stats.connectionEvent[0];
+        assertEquals(3000, event.durationDiscoveryMillis);
+        assertEquals(100, event.durationProvisionDiscoveryMillis);
+        assertEquals(200, event.durationGroupNegotiationMillis);
+        assertEquals(400, event.durationGroupFormationMillis);
+        assertEquals(800, event.durationIpProvisioningMillis);
+        assertEquals(700, event.durationTakenToConnectMillis);
+
+        // A peer scan older than the discovery timeout is not part of the connection.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(300000L);
+        mWifiP2pMetrics.startConnectionEvent(P2pConnectionEvent.CONNECTION_FRESH, null,
+                GroupEvent.GROUP_CLIENT);
+        mWifiP2pMetrics.endConnectionEvent(P2pConnectionEvent.CLF_TIMEOUT);
+        stats = mWifiP2pMetrics.consolidateProto();
+        assertEquals(0, stats.connectionEvent[1].durationDiscoveryMillis);
+    }
+
     /**
      * Test that startGroupEvent and endGroupEvent can be called repeastedly and out of order.
      * Only tests no exception occurs and the count is correct.
@@ -200,6 +246,25 @@ public class WifiP2pMetricsTest extends WifiBaseTest {
         assertEquals(1, stats.numTotalServiceScans);
     }
 
+    /**
+     * Test that saved peers changed broadcast counter works normally.
+     * @throws Exception
+     */
+    @Test
+    public void increasePeersChangedBroadcastsSaved() throws Exception {
+        WifiP2pStats stats;
+
+        mWifiP2pMetrics.incrementPeersChangedBroadcastsSaved();
+        mWifiP2pMetrics.incrementPeersChangedBroadcastsSaved();
+        stats = mWifiP2pMetrics.consolidateProto();
+        assertEquals(2, stats.numPeersChangedBroadcastsSaved);
+
+        mWifiP2pMetrics.clear();
+
+        stats = mWifiP2pMetrics.consolidateProto();
+        assertEquals(0, stats.numPeersChangedBroadcastsSaved);
+    }
+
     /**
      * Test that updating persistent group number works normally.
      * @throws Exception
@@ -42,6 +42,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
@@ -502,6 +503,27 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
         mLooper.dispatchAll();
     }
 
+    /**
+     * Mock send WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER
+     *
+     * @param replyMessenger for checking replied message.
+     * @param enabled whether the listener is set or removed.
+     */
+    private void sendSetPeerListChangedListenerMsg(Messenger replyMessenger, boolean enabled)
+            throws Exception {
+        Message msg = Message.obtain();
+        Bundle extras = new Bundle();
+        msg.what = WifiP2pManager.SET_PEER_LIST_CHANGED_LISTENER;
+        msg.arg1 = enabled ? 1 : 0;
+        if (SdkLevel.isAtLeastS()) {
+            msg.obj = new AttributionSource(1000, TEST_PACKAGE_NAME, null);
+        }
+        msg.getData().putBundle(WifiP2pManager.EXTRA_PARAM_KEY_BUNDLE, extras);
+        msg.replyTo = replyMessenger;
+        mP2pStateMachineMessenger.send(Message.obtain(msg));
+        mLooper.dispatchAll();
+    }
+
     private void sendNegotiationRequestEvent(WifiP2pConfig config) throws Exception {
         Message msg = Message.obtain();
         msg.what = WifiP2pMonitor.P2P_GO_NEGOTIATION_REQUEST_EVENT;
@@ -2314,6 +2336,166 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
         assertNotEquals(null, peers.get(mTestWifiP2pDevice.deviceAddress));
     }
 
+    /**
+     * Verify that a client with a peer list changed listener receives the known peers when it
+     * registers and then only the changes of the peer list.
+     */
+    @Test
+    public void testPeerListChangedListener() throws Exception {
+        setTargetSdkGreaterThanT();
+        forceP2pEnabled(mClient1);
+        sendChannelInfoUpdateMsg("testPkg1", "testFeature", mClient1, mClientMessenger);
+        mockPeersList();
+
+        sendSetPeerListChangedListenerMsg(mClientMessenger, true);
+        verify(mClientHandler).sendMessage(mMessageCaptor.capture());
+        assertEquals(WifiP2pManager.PEER_LIST_CHANGED, mMessageCaptor.getValue().what);
+        Bundle bundle = (Bundle) mMessageCaptor.getValue().obj;
+        ArrayList<WifiP2pDevice> addedPeers = bundle.getParcelableArrayList(
+                WifiP2pManager.EXTRA_PARAM_KEY_ADDED_PEERS);
+        assertEquals(1, addedPeers.size());
+        assertEquals(mTestWifiP2pDevice.deviceAddress, addedPeers.get(0).deviceAddress);
+
+        // An unchanged peer is not reported again.
+        mockPeersList();
+        verify(mClientHandler).sendMessage(any());
+
+        WifiP2pDevice updatedDevice = new WifiP2pDevice(mTestWifiP2pDevice);
+        updatedDevice.deviceName = "UpdatedDeviceName";
+        sendDeviceFoundEventMsg(updatedDevice);
+        verify(mClientHandler, times(2)).sendMessage(mMessageCaptor.capture());
+        bundle = (Bundle) mMessageCaptor.getValue().obj;
+        assertTrue(bundle.getParcelableArrayList(
+                WifiP2pManager.EXTRA_PARAM_KEY_ADDED_PEERS).isEmpty());
+        ArrayList<WifiP2pDevice> updatedPeers = bundle.getParcelableArrayList(
+                WifiP2pManager.EXTRA_PARAM_KEY_UPDATED_PEERS);
+        assertEquals(1, updatedPeers.size());
+        assertEquals("UpdatedDeviceName", updatedPeers.get(0).deviceName);
+
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_DEVICE_LOST_EVENT, mTestWifiP2pDevice);
+        verify(mClientHandler, times(3)).sendMessage(mMessageCaptor.capture());
+        bundle = (Bundle) mMessageCaptor.getValue().obj;
+        ArrayList<WifiP2pDevice> removedPeers = bundle.getParcelableArrayList(
+                WifiP2pManager.EXTRA_PARAM_KEY_REMOVED_PEERS);
+        assertEquals(1, removedPeers.size());
+        assertEquals(mTestWifiP2pDevice.deviceAddress, removedPeers.get(0).deviceAddress);
+
+        // No more changes are sent once the listener is removed.
+        sendSetPeerListChangedListenerMsg(mClientMessenger, false);
+        mockPeersList();
+        verify(mClientHandler, times(3)).sendMessage(any());
+    }
+
+    /**
+     * Verify that the permissions of a client with a peer list changed listener are checked
+     * again before each notification, and that the listener is removed once they are revoked.
+     */
+    @Test
+    public void testPeerListChangedListenerRemovedOnPermissionRevoked() throws Exception {
+        forceP2pEnabled(mClient1);
+        sendChannelInfoUpdateMsg("testPkg1", "testFeature", mClient1, mClientMessenger);
+        sendSetPeerListChangedListenerMsg(mClientMessenger, true);
+
+        mockPeersList();
+        verify(mClientHandler).sendMessage(mMessageCaptor.capture());
+        assertEquals(WifiP2pManager.PEER_LIST_CHANGED, mMessageCaptor.getValue().what);
+
+        when(mWifiPermissionsUtil.checkCanAccessWifiDirect(anyString(), anyString(), anyInt(),
+                anyBoolean())).thenReturn(false);
+        if (SdkLevel.isAtLeastT()) {
+            when(mWifiPermissionsUtil.checkNearbyDevicesPermission(any(), anyBoolean(), any()))
+                    .thenReturn(false);
+        }
+        WifiP2pDevice updatedDevice = new WifiP2pDevice(mTestWifiP2pDevice);
+        updatedDevice.deviceName = "UpdatedDeviceName";
+        sendDeviceFoundEventMsg(updatedDevice);
+        verify(mClientHandler).sendMessage(any());
+
+        // The listener stays removed once the permissions are granted again.
+        when(mWifiPermissionsUtil.checkCanAccessWifiDirect(anyString(), anyString(), anyInt(),
+                anyBoolean())).thenReturn(true);
+        if (SdkLevel.isAtLeastT()) {
+            when(mWifiPermissionsUtil.checkNearbyDevicesPermission(any(), anyBoolean(), any()))
+                    .thenReturn(true);
+        }
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_DEVICE_LOST_EVENT, mTestWifiP2pDevice);
+        verify(mClientHandler).sendMessage(any());
+    }
+
+    /**
+     * Verify that a coalesced peer list change notification is sent at once when P2P is
+     * disabled, and not again once the coalescing window ends.
+     */
+    @Test
+    public void testPeersChangedBroadcastFlushedOnP2pDisabled() throws Exception {
+        forceP2pEnabled(mClient1);
+        when(mResources.getInteger(R.integer.config_wifiP2pPeerUpdateCoalesceWindowMs))
+                .thenReturn(1000);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(5000L);
+        clearInvocations(mContext);
+        ArgumentMatcher<Intent> peersChangedMatcher = intent ->
+                WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(intent.getAction());
+
+        mockPeersList();
+        WifiP2pDevice updatedDevice = new WifiP2pDevice(mTestWifiP2pDevice);
+        updatedDevice.deviceName = "UpdatedDeviceName";
+        sendDeviceFoundEventMsg(updatedDevice);
+        verify(mContext).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+
+        simulateWifiStateChange(false);
+        mLooper.dispatchAll();
+        verify(mContext, times(2)).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        verify(mContext, times(2)).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+    }
+
+    /**
+     * Verify that the peer list changes within the coalescing window are sent in a single
+     * WIFI_P2P_PEERS_CHANGED_ACTION broadcast, and that no broadcast is sent if the peer list
+     * did not change.
+     */
+    @Test
+    public void testPeersChangedBroadcastCoalesced() throws Exception {
+        forceP2pEnabled(mClient1);
+        when(mResources.getInteger(R.integer.config_wifiP2pPeerUpdateCoalesceWindowMs))
+                .thenReturn(1000);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(5000L);
+        clearInvocations(mContext);
+        ArgumentMatcher<Intent> peersChangedMatcher = intent ->
+                WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(intent.getAction());
+
+        mockPeersList();
+        verify(mContext).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+
+        // Changes within the window are coalesced.
+        mockPeersList();
+        WifiP2pDevice updatedDevice = new WifiP2pDevice(mTestWifiP2pDevice);
+        updatedDevice.deviceName = "UpdatedDeviceName";
+        sendDeviceFoundEventMsg(updatedDevice);
+        verify(mContext).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+        verify(mWifiP2pMetrics).incrementPeersChangedBroadcastsSaved();
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(6000L);
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        verify(mContext, times(2)).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+
+        // The peer list did not change, no broadcast.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(7000L);
+        sendDeviceFoundEventMsg(updatedDevice);
+        verify(mContext, times(2)).sendBroadcastWithMultiplePermissions(
+                argThat(peersChangedMatcher), any());
+        verify(mWifiP2pMetrics, times(2)).incrementPeersChangedBroadcastsSaved();
+    }
+
     /**
      * Verify WifiP2pManager.RESPONSE_GROUP_INFO is returned with null object when a caller
      * uses abnormal way to send WifiP2pManager.REQUEST_GROUP_INFO (i.e no channel info updated).
@@ -2790,6 +2972,34 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
         assertEquals(mTestWifiP2pPeerConfig.toString(), configCaptor.getValue().toString());
     }
 
+    /**
+     * Verify the connection phases are recorded as a fresh connection progresses.
+     */
+    @Test
+    public void testConnectionPhasesRecorded() throws Exception {
+        setTargetSdkGreaterThanT();
+        forceP2pEnabled(mClient1);
+        sendChannelInfoUpdateMsg("testPkg1", "testFeature", mClient1, mClientMessenger);
+
+        mockEnterProvisionDiscoveryState();
+        WifiP2pProvDiscEvent pdEvent = new WifiP2pProvDiscEvent();
+        pdEvent.device = mTestWifiP2pDevice;
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_PROV_DISC_PBC_RSP_EVENT, pdEvent);
+        verify(mWifiP2pMetrics).endConnectionPhase(
+                WifiP2pMetrics.CONNECTION_PHASE_PROVISION_DISCOVERY);
+
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_GO_NEGOTIATION_SUCCESS_EVENT);
+        verify(mWifiP2pMetrics).endConnectionPhase(
+                WifiP2pMetrics.CONNECTION_PHASE_GROUP_NEGOTIATION);
+
+        sendGroupStartedMsg(mTestWifiP2pNewPersistentGoGroup);
+        verify(mWifiP2pMetrics).endConnectionPhase(
+                WifiP2pMetrics.CONNECTION_PHASE_GROUP_FORMATION);
+        simulateTetherReady();
+        verify(mWifiP2pMetrics).endConnectionPhase(
+                WifiP2pMetrics.CONNECTION_PHASE_IP_PROVISIONING);
+    }
+
     /**
      * Verify the connection event for a reinvoked connection.
      */
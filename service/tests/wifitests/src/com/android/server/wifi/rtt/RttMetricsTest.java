@@ -518,6 +518,48 @@ public class RttMetricsTest extends WifiBaseTest {
                 WifiMetricsProto.WifiRttLog.OVERALL_LOCATION_PERMISSION_MISSING, 12);
     }
 
+    /**
+     * Verify that the request aggregation metrics are recorded correctly.
+     */
+    @Test
+    public void testRecordAggregation() {
+        WifiMetricsProto.WifiRttLog log;
+
+        mDut.clear();
+        mDut.recordAggregatedRequests(2, 1);
+        mDut.recordAggregatedRequests(1, 0);
+        mDut.recordAggregatedResult(3, 1500);
+        mDut.recordAggregatedResult(2, 500);
+
+        log = mDut.consolidateProto();
+
+        collector.checkThat("numAggregatedRequests", log.numAggregatedRequests, equalTo(3));
+        collector.checkThat("numDeduplicatedPeers", log.numDeduplicatedPeers, equalTo(1));
+        collector.checkThat("aggregationSavedLatencyMs", log.aggregationSavedLatencyMs,
+                equalTo(1500L * 2 + 500L));
+        collector.checkThat("histogramAggregatedMeasurementDuration.length",
+                log.histogramAggregatedMeasurementDuration.length, equalTo(2));
+
+        mDut.clear();
+        log = mDut.consolidateProto();
+        collector.checkThat("numAggregatedRequests", log.numAggregatedRequests, equalTo(0));
+        collector.checkThat("aggregationSavedLatencyMs", log.aggregationSavedLatencyMs,
+                equalTo(0L));
+    }
+
+    /**
+     * Verify that the requests served from the result cache are counted.
+     */
+    @Test
+    public void testRecordRequestServedFromCache() {
+        mDut.clear();
+        mDut.recordRequestServedFromCache();
+        mDut.recordRequestServedFromCache();
+
+        collector.checkThat("numRequestsServedFromCache",
+                mDut.consolidateProto().numRequestsServedFromCache, equalTo(2));
+    }
+
     // Utilities
 
     /**
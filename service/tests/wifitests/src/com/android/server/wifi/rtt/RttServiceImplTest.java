@@ -552,6 +552,121 @@ public class RttServiceImplTest extends WifiBaseTest {
                 mAlarmManager.getAlarmManager());
     }
 
+    /**
+     * Validate that compatible queued requests are merged into a single HAL request, that shared
+     * peers are ranged once and that the results are delivered to each requester subject to its
+     * own permissions.
+     */
+    @Test
+    public void testRangingRequestAggregation() throws Exception {
+        mMockResources.setBoolean(R.bool.config_wifiRttRequestAggregationEnabled, true);
+        String otherPackageName = "some.other.package";
+        IRttCallback mockCallback2 = mock(IRttCallback.class);
+        RangingRequest request1 = RttTestUtils.getDummyRangingRequestMcOnly((byte) 1);
+        RangingRequest request2 = RttTestUtils.getDummyRangingRequestMcOnly((byte) 2);
+        // same peer as request2: deduplicated
+        RangingRequest request3 = RttTestUtils.getDummyRangingRequestMcOnly((byte) 2);
+        // same MAC as request2 but a different configuration: not aggregated
+        RangingRequest request4 = RttTestUtils.getDummyRangingRequestNo80211mcSupport((byte) 2);
+        Pair<List<RangingResult>, List<RangingResult>> results1 =
+                RttTestUtils.getDummyRangingResults(request1);
+        Pair<List<RangingResult>, List<RangingResult>> results2 =
+                RttTestUtils.getDummyRangingResults(request2);
+        Pair<List<RangingResult>, List<RangingResult>> results4 =
+                RttTestUtils.getDummyRangingResults(request4);
+
+        // (1) request 4 ranging operations: the first is dispatched on its own
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request1, mockCallback,
+                mExtras);
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request2, mockCallback,
+                mExtras);
+        mDut.startRanging(mockIbinder, otherPackageName, mFeatureId, null, request3,
+                mockCallback2, mExtras);
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request4, mockCallback,
+                mExtras);
+        mMockLooper.dispatchAll();
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request1), eq(true));
+        verifyWakeupSet(false, 0);
+
+        // (2) results of the first request: requests 2 and 3 are dispatched as a single request
+        mDut.onRangingResults(mIntCaptor.getValue(), results1.second);
+        mMockLooper.dispatchAll();
+        verify(mockCallback).onRangingResults(results1.second);
+        verifyWakeupCancelled();
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request2), eq(true));
+        verifyWakeupSet(false, 0);
+        verify(mockMetrics).recordAggregatedRequests(1, 1);
+
+        // (3) results are delivered to request 2, request 3 has no location permission
+        mDut.onRangingResults(mIntCaptor.getValue(), results2.second);
+        mMockLooper.dispatchAll();
+        verify(mockCallback).onRangingResults(results2.second);
+        verify(mockCallback2).onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
+        verify(mockMetrics).recordAggregatedResult(eq(2), anyInt());
+        verifyWakeupCancelled();
+
+        // (4) request 4 is dispatched on its own
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request4), eq(true));
+        verifyWakeupSet(false, 0);
+        mDut.onRangingResults(mIntCaptor.getValue(), results4.second);
+        mMockLooper.dispatchAll();
+        verify(mockCallback).onRangingResults(results4.second);
+        verifyWakeupCancelled();
+
+        verify(mockNative, atLeastOnce()).isReady();
+        verifyNoMoreInteractions(mockNative, mockCallback, mockCallback2,
+                mAlarmManager.getAlarmManager());
+    }
+
+    /**
+     * Validate that a request is served from the last results of its responders while they are
+     * within the configured tolerance, and ranged again otherwise.
+     */
+    @Test
+    public void testRangingResultCache() throws Exception {
+        final int toleranceMs = 1000;
+        mMockResources.setInteger(R.integer.config_wifiRttResultCacheToleranceMs, toleranceMs);
+        RangingRequest request = RttTestUtils.getDummyRangingRequestMcOnly((byte) 1);
+        Pair<List<RangingResult>, List<RangingResult>> results =
+                RttTestUtils.getDummyRangingResults(request);
+
+        // (1) first request is ranged
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request, mockCallback,
+                mExtras);
+        mMockLooper.dispatchAll();
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request), eq(true));
+        verifyWakeupSet(false, 0);
+        mDut.onRangingResults(mIntCaptor.getValue(), results.second);
+        mMockLooper.dispatchAll();
+        verify(mockCallback).onRangingResults(results.second);
+        verifyWakeupCancelled();
+
+        // (2) a request within the tolerance is served from the cache
+        when(mockClock.getElapsedSinceBootMillis()).thenReturn((long) toleranceMs);
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request, mockCallback,
+                mExtras);
+        mMockLooper.dispatchAll();
+        verify(mockCallback, times(2)).onRangingResults(results.second);
+        verify(mockMetrics).recordRequestServedFromCache();
+
+        // (3) once the results are stale the request is ranged again
+        when(mockClock.getElapsedSinceBootMillis()).thenReturn((long) toleranceMs + 1);
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request, mockCallback,
+                mExtras);
+        mMockLooper.dispatchAll();
+        verify(mockNative, times(2)).rangeRequest(mIntCaptor.capture(), eq(request), eq(true));
+        verifyWakeupSet(false, toleranceMs + 1);
+        mDut.onRangingResults(mIntCaptor.getValue(), results.second);
+        mMockLooper.dispatchAll();
+        verify(mockCallback, times(3)).onRangingResults(results.second);
+        verifyWakeupCancelled();
+
+        verify(mockMetrics, times(3)).recordRequest(eq(mDefaultWs), eq(request));
+        verify(mockMetrics, times(2)).recordResult(eq(request), eq(results.second), anyInt());
+        verify(mockNative, atLeastOnce()).isReady();
+        verifyNoMoreInteractions(mockNative, mockCallback, mAlarmManager.getAlarmManager());
+    }
+
     /**
      * Validate that the ranging app's binder death clears record of request - no callbacks are
      * attempted.
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.scanner;
+
+import static com.android.server.wifi.ScanTestUtil.createFreqSet;
+import static com.android.server.wifi.ScanTestUtil.createScanResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.net.wifi.ScanResult;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.wifi.WifiBaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.scanner.ChannelScanResultCache}.
+ */
+@SmallTest
+public class ChannelScanResultCacheTest extends WifiBaseTest {
+    private ChannelScanResultCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new ChannelScanResultCache();
+    }
+
+    /**
+     * Verify that channels are only fresh for the requested max age after being scanned.
+     */
+    @Test
+    public void channelFreshness() {
+        assertFalse(mCache.isFresh(2412, 0, 1000));
+
+        mCache.update(createFreqSet(2412, 5180), new ScanResult[0], 1000);
+
+        assertTrue(mCache.isFresh(2412, 1500, 1000));
+        assertTrue(mCache.isFresh(5180, 1999, 1000));
+        assertFalse(mCache.isFresh(5180, 2000, 1000));
+        assertFalse(mCache.isFresh(2437, 1500, 1000));
+    }
+
+    /**
+     * Verify that results are cached per scanned channel and replaced by the next scan of the
+     * channel.
+     */
+    @Test
+    public void resultsReplacedPerChannel() {
+        ScanResult result2412 = createScanResult(2412);
+        ScanResult result5180 = createScanResult(5180);
+        ScanResult result2437 = createScanResult(2437);
+        mCache.update(createFreqSet(2412, 5180),
+                new ScanResult[] {result2412, result5180, result2437}, 1000);
+
+        List<ScanResult> results = new ArrayList<>();
+        mCache.getResults(2412, results);
+        mCache.getResults(2437, results);
+        assertEquals(1, results.size());
+        assertSame(result2412, results.get(0));
+
+        // A scan of 2412 which saw nothing clears the results of that channel only.
+        mCache.update(createFreqSet(2412), new ScanResult[0], 2000);
+        results.clear();
+        mCache.getResults(2412, results);
+        assertTrue(results.isEmpty());
+        mCache.getResults(5180, results);
+        assertEquals(1, results.size());
+        assertSame(result5180, results.get(0));
+    }
+
+    /**
+     * Verify that clear drops all the cached state.
+     */
+    @Test
+    public void clear() {
+        mCache.update(createFreqSet(2412), new ScanResult[] {createScanResult(2412)}, 1000);
+        mCache.clear();
+
+        assertFalse(mCache.isFresh(2412, 1000, 1000));
+        List<ScanResult> results = new ArrayList<>();
+        mCache.getResults(2412, results);
+        assertTrue(results.isEmpty());
+    }
+}
@@ -333,6 +333,7 @@ public class KnownBandsChannelHelperTest {
      */
     @SmallTest
     public static class KnownBandsChannelCollectionTest extends WifiBaseTest {
+        KnownBandsChannelHelper mChannelHelper;
         ChannelHelper.ChannelCollection mChannelCollection;
 
         /**
@@ -341,13 +342,13 @@ public class KnownBandsChannelHelperTest {
          */
         @Before
         public void setUp() throws Exception {
-            KnownBandsChannelHelper channelHelper = new PresetKnownBandsChannelHelper(
+            mChannelHelper = new PresetKnownBandsChannelHelper(
                     CHANNELS_24_GHZ,
                     CHANNELS_5_GHZ,
                     CHANNELS_DFS,
                     CHANNELS_6_GHZ,
                     CHANNELS_60_GHZ);
-            mChannelCollection = channelHelper.createChannelCollection();
+            mChannelCollection = mChannelHelper.createChannelCollection();
         }
 
         /**
@@ -578,5 +579,76 @@ public class KnownBandsChannelHelperTest {
                             58320, 60480));
             assertTrue(mChannelCollection.isAllChannels());
         }
+
+        /**
+         * Add a channel which is not part of any known band to the collection
+         */
+        @Test
+        public void addChannel_unknownChannel() {
+            mChannelCollection.addChannel(2400);
+            mChannelCollection.addChannel(2412);
+
+            WifiNative.BucketSettings bucketSettings = new WifiNative.BucketSettings();
+            mChannelCollection.fillBucketSettings(bucketSettings, Integer.MAX_VALUE);
+            assertThat(bucketSettings, channelsAre(2400, 2412));
+
+            assertTrue(mChannelCollection.containsChannel(2400));
+            assertTrue(mChannelCollection.containsChannel(2412));
+            assertFalse(mChannelCollection.containsChannel(2450));
+            assertEquals(new HashSet<Integer>(Arrays.asList(2400, 2412)),
+                    mChannelCollection.getScanFreqs());
+        }
+
+        /**
+         * Verify the union, intersection and difference of two collections
+         */
+        @Test
+        public void collectionOperations() {
+            KnownBandsChannelHelper.KnownBandsChannelCollection collection1 =
+                    mChannelHelper.createChannelCollection();
+            KnownBandsChannelHelper.KnownBandsChannelCollection collection2 =
+                    mChannelHelper.createChannelCollection();
+            collection1.addBand(WifiScanner.WIFI_BAND_24_GHZ);
+            collection1.addChannel(5160);
+            collection2.addChannel(2450);
+            collection2.addChannel(5600);
+
+            assertFalse(collection1.containsChannels(collection2));
+            collection1.addChannels(collection2);
+            assertTrue(collection1.containsChannels(collection2));
+            assertEquals(new HashSet<Integer>(Arrays.asList(2412, 2450, 5160, 5600)),
+                    collection1.getAllChannels());
+
+            collection1.removeChannels(collection2);
+            assertEquals(new HashSet<Integer>(Arrays.asList(2412, 5160)),
+                    collection1.getAllChannels());
+            WifiNative.BucketSettings bucketSettings = new WifiNative.BucketSettings();
+            collection1.fillBucketSettings(bucketSettings, Integer.MAX_VALUE);
+            assertThat(bucketSettings, channelsAre(2412, 5160));
+
+            collection2.addBand(WifiScanner.WIFI_BAND_24_GHZ);
+            collection1.retainChannels(collection2);
+            assertEquals(new HashSet<Integer>(Arrays.asList(2412)),
+                    collection1.getAllChannels());
+        }
+
+        /**
+         * Verify that a collection keeps its channels when the channels of the helper are updated
+         */
+        @Test
+        public void updateBandChannels() {
+            mChannelCollection.addChannel(2412);
+            mChannelCollection.addChannel(5680);
+            assertTrue(mChannelCollection.containsChannel(5680));
+
+            mChannelHelper.setBandChannels(CHANNELS_24_GHZ, CHANNELS_5_GHZ, CHANNELS_DFS_OTHER,
+                    CHANNELS_6_GHZ, CHANNELS_60_GHZ);
+
+            assertTrue(mChannelCollection.containsChannel(2412));
+            assertTrue(mChannelCollection.containsChannel(5680));
+            assertFalse(mChannelCollection.containsChannel(5600));
+            assertEquals(new HashSet<Integer>(Arrays.asList(2412, 5680)),
+                    mChannelCollection.getScanFreqs());
+        }
     }
 }
@@ -25,6 +25,7 @@ import static com.android.server.wifi.ScanTestUtil.assertNativePnoSettingsEquals
 import static com.android.server.wifi.ScanTestUtil.assertNativeScanSettingsEquals;
 import static com.android.server.wifi.ScanTestUtil.assertScanDatasEquals;
 import static com.android.server.wifi.ScanTestUtil.assertScanResultsEquals;
+import static com.android.server.wifi.ScanTestUtil.channelsAre;
 import static com.android.server.wifi.ScanTestUtil.channelsToSpec;
 import static com.android.server.wifi.ScanTestUtil.computeSingleScanNativeSettings;
 import static com.android.server.wifi.ScanTestUtil.computeSingleScanNativeSettingsWithChannelHelper;
@@ -33,6 +34,7 @@ import static com.android.server.wifi.ScanTestUtil.createSingleScanNativeSetting
 import static com.android.server.wifi.scanner.WifiScanningServiceImpl.WifiSingleScanStateMachine.CACHED_SCAN_RESULTS_MAX_AGE_IN_MILLIS;
 import static com.android.server.wifi.scanner.WifiScanningServiceImpl.WifiSingleScanStateMachine.EMERGENCY_SCAN_END_INDICATION_ALARM_TAG;
 
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -87,11 +89,13 @@ import com.android.internal.util.Protocol;
 import com.android.internal.util.test.BidirectionalAsyncChannel;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.server.wifi.Clock;
+import com.android.server.wifi.DeviceConfigFacade;
 import com.android.server.wifi.FakeWifiLog;
 import com.android.server.wifi.FrameworkFacade;
 import com.android.server.wifi.MockResources;
 import com.android.server.wifi.ScanResults;
 import com.android.server.wifi.WifiBaseTest;
+import com.android.server.wifi.WifiEventJournal;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiMetrics;
 import com.android.server.wifi.WifiNative;
@@ -151,6 +155,8 @@ public class WifiScanningServiceTest extends WifiBaseTest {
     @Mock WifiMetrics.ScanMetrics mScanMetrics;
     @Mock WifiManager mWifiManager;
     @Mock LastCallerInfoManager mLastCallerInfoManager;
+    @Mock DeviceConfigFacade mDeviceConfigFacade;
+    @Mock WifiEventJournal mWifiEventJournal;
     PresetKnownBandsChannelHelper mChannelHelper0;
     PresetKnownBandsChannelHelper mChannelHelper1;
     TestLooper mLooper;
@@ -203,6 +209,8 @@ public class WifiScanningServiceTest extends WifiBaseTest {
                 anyInt(), eq(Binder.getCallingUid())))
                 .thenReturn(PERMISSION_GRANTED);
         when(mWifiInjector.getLastCallerInfoManager()).thenReturn(mLastCallerInfoManager);
+        when(mWifiInjector.getDeviceConfigFacade()).thenReturn(mDeviceConfigFacade);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
         mWifiScanningServiceImpl = new WifiScanningServiceImpl(mContext, mLooper.getLooper(),
                 mWifiScannerImplFactory, mBatteryStats, mWifiInjector);
     }
@@ -671,6 +679,7 @@ public class WifiScanningServiceTest extends WifiBaseTest {
         }
         verifySuccessfulResponse(order, handler, requestId);
         verify(mBatteryStats).reportWifiScanStartedFromSource(eq(workSource));
+        verify(mWifiEventJournal).logScanStart(nativeSettings.scanType, 1);
 
         when(mWifiScannerImpl0.getLatestSingleScanResults())
                 .thenReturn(resultsForImpl0.getScanData());
@@ -692,6 +701,9 @@ public class WifiScanningServiceTest extends WifiBaseTest {
         verifySingleScanCompletedReceived(order, handler, requestId);
         verifyNoMoreInteractions(handler);
         verify(mBatteryStats).reportWifiScanStoppedFromSource(eq(workSource));
+        verify(mWifiEventJournal).logScanResults(
+                expectedResults.getScanData().getResults().length,
+                expectedResults.getScanData().getScannedBandsInternal());
         assertDumpContainsRequestLog("addSingleScanRequest", requestId);
         assertDumpContainsCallbackLog("singleScanResults", requestId,
                 "results=" + expectedResults.getScanData().getResults().length);
@@ -1560,6 +1572,321 @@ public class WifiScanningServiceTest extends WifiBaseTest {
     }
 
 
+    /**
+     * Send two single scan requests within the coalescing window. Verify that no scan is started
+     * before the window expires and that both requests are merged into one scan.
+     */
+    @Test
+    public void sendSingleScanRequestsWithinCoalescingWindowAreMerged() throws RemoteException {
+        when(mDeviceConfigFacade.getSingleScanCoalescingWindowMs()).thenReturn(50);
+
+        WifiScanner.ScanSettings requestSettings1 = createRequest(channelsToSpec(2412), 0,
+                0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings1.type = WifiScanner.SCAN_TYPE_LOW_LATENCY;
+        int requestId1 = 12;
+        WorkSource workSource1 = new WorkSource(1121);
+        ScanResults results1 = ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED, 2412);
+
+        WifiScanner.ScanSettings requestSettings2 = createRequest(channelsToSpec(2450, 5175), 0,
+                0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings2.type = WifiScanner.SCAN_TYPE_HIGH_ACCURACY;
+        int requestId2 = 13;
+        WorkSource workSource2 = new WorkSource(2292);
+        ScanResults results2 =
+                ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED, 2450, 5175, 2450);
+
+        WifiNative.ScanSettings nativeSettings1and2 = createSingleScanNativeSettingsForChannels(
+                WifiScanner.SCAN_TYPE_HIGH_ACCURACY, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN,
+                channelsToSpec(2412, 2450, 5175));
+        ScanResults results1and2 =
+                ScanResults.merge(WifiScanner.WIFI_BAND_UNSPECIFIED, results1, results2);
+        WorkSource workSource1and2 = new WorkSource();
+        workSource1and2.add(workSource1);
+        workSource1and2.add(workSource2);
+
+        startServiceAndLoadDriver();
+
+        when(mWifiScannerImpl0.startSingleScan(any(WifiNative.ScanSettings.class),
+                        any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder handlerOrder = inOrder(handler);
+        InOrder nativeOrder = inOrder(mWifiScannerImpl0);
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        sendSingleScanRequest(controlChannel, requestId1, requestSettings1, workSource1);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(handlerOrder, handler, requestId1);
+
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings2, workSource2);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(handlerOrder, handler, requestId2);
+
+        // No scan is started until the coalescing window expires.
+        verify(mWifiScannerImpl0, never()).startSingleScan(any(), any());
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1050L);
+        mLooper.moveTimeForward(50);
+        mLooper.dispatchAll();
+
+        WifiNative.ScanEventHandler eventHandler = verifyStartSingleScan(nativeOrder,
+                nativeSettings1and2);
+        verify(mBatteryStats).reportWifiScanStartedFromSource(eq(workSource1and2));
+        verify(mWifiMetrics).logSingleScanCoalesced(1, 50L);
+
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results1and2.getScanData());
+        eventHandler.onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+
+        verifyMultipleSingleScanResults(handlerOrder, handler, requestId1, results1, requestId2,
+                results2);
+        verify(mBatteryStats).reportWifiScanStoppedFromSource(eq(workSource1and2));
+        verify(mWifiScannerImpl0, times(1)).startSingleScan(any(), any());
+    }
+
+    /**
+     * Send single scan requests which accept cached results. Verify that a request whose channels
+     * were all recently scanned is served from the cache without scanning, and that a request
+     * with some stale channels only scans those channels and gets the cached results for the
+     * rest.
+     */
+    @Test
+    public void sendSingleScanRequestsServedFromChannelResultCache() throws RemoteException {
+        WifiScanner.ScanSettings requestSettings1 = createRequest(channelsToSpec(2412, 5175), 0,
+                0, 0, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings1.maxCachedResultAgeMs = 5000;
+        int requestId1 = 12;
+        ScanResults results2412 = ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED, 2412);
+        ScanResults results5175 = ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED, 5175);
+        ScanResults results1 =
+                ScanResults.merge(WifiScanner.WIFI_BAND_UNSPECIFIED, results2412, results5175);
+
+        WifiScanner.ScanSettings requestSettings2 = createRequest(channelsToSpec(2412), 0,
+                0, 0, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings2.maxCachedResultAgeMs = 5000;
+        int requestId2 = 13;
+
+        WifiScanner.ScanSettings requestSettings3 = createRequest(channelsToSpec(2412, 2450), 0,
+                0, 0, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings3.maxCachedResultAgeMs = 5000;
+        int requestId3 = 14;
+        ScanResults results2450 = ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED, 2450);
+        List<ScanResult> expectedResults3 = new ArrayList<>();
+        expectedResults3.addAll(Arrays.asList(results2412.getScanData().getResults()));
+        expectedResults3.addAll(Arrays.asList(results2450.getScanData().getResults()));
+        WifiScanner.ScanData expectedScanData3 = new WifiScanner.ScanData(0, 0, 0,
+                WifiScanner.WIFI_BAND_UNSPECIFIED, expectedResults3.toArray(new ScanResult[0]));
+
+        WorkSource workSource = new WorkSource(2292);
+
+        startServiceAndLoadDriver();
+
+        when(mWifiScannerImpl0.startSingleScan(any(WifiNative.ScanSettings.class),
+                        any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0);
+
+        // No results are cached yet, so the first request is scanned in full.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        sendSingleScanRequest(controlChannel, requestId1, requestSettings1, workSource);
+        mLooper.dispatchAll();
+        WifiNative.ScanEventHandler eventHandler = verifyStartSingleScan(order,
+                createSingleScanNativeSettingsForChannels(
+                        WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN, channelsToSpec(2412, 5175)));
+        verifySuccessfulResponse(order, handler, requestId1);
+
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results1.getScanData());
+        eventHandler.onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+        verifyScanResultsReceived(order, handler, requestId1, results1.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId1);
+
+        // All of the channels of the second request are fresh.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings2, workSource);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, requestId2);
+        verifyScanResultsReceived(order, handler, requestId2, results2412.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId2);
+        verify(mWifiScannerImpl0, times(1)).startSingleScan(any(), any());
+        verify(mWifiMetrics).logSingleScanServedFromCache(true);
+
+        // Only the stale channel of the third request is scanned.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(3000L);
+        sendSingleScanRequest(controlChannel, requestId3, requestSettings3, workSource);
+        mLooper.dispatchAll();
+        eventHandler = verifyStartSingleScan(order, createSingleScanNativeSettingsForChannels(
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN, channelsToSpec(2450)));
+        verifySuccessfulResponse(order, handler, requestId3);
+        verify(mWifiMetrics).logSingleScanServedFromCache(false);
+
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results2450.getScanData());
+        eventHandler.onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+        verifyScanResultsReceived(order, handler, requestId3, expectedScanData3);
+        verifySingleScanCompletedReceived(order, handler, requestId3);
+    }
+
+    /**
+     * Send a 6Ghz PSC only scan request, then a request which accepts cached results for a PSC
+     * and a non PSC channel. Verify that only the PSC channel is fresh, even if results were seen
+     * on the non PSC channel through RNR, so that the non PSC channel is scanned.
+     */
+    @Test
+    public void sendSingleScanRequestAfterPscOnlyScanScansNonPscChannels() throws Exception {
+        assumeTrue(SdkLevel.isAtLeastS());
+        WifiScanner.ScanSettings requestSettings1 = createRequest(WifiScanner.WIFI_BAND_6_GHZ, 0,
+                0, 0, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings1.set6GhzPscOnlyEnabled(true);
+        int requestId1 = 12;
+        ScanResults results1 = ScanResults.create(0, WifiScanner.WIFI_BAND_6_GHZ,
+                TEST_PSC_CHANNEL, TEST_NON_PSC_CHANNEL);
+
+        WifiScanner.ScanSettings requestSettings2 = createRequest(
+                channelsToSpec(TEST_PSC_CHANNEL, TEST_NON_PSC_CHANNEL), 0, 0, 0,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings2.maxCachedResultAgeMs = 5000;
+        int requestId2 = 13;
+
+        WorkSource workSource = new WorkSource(2292);
+
+        startServiceAndLoadDriver();
+
+        when(mWifiScannerImpl0.startSingleScan(any(WifiNative.ScanSettings.class),
+                        any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0);
+        ArgumentCaptor<WifiNative.ScanSettings> scanSettingsCaptor =
+                ArgumentCaptor.forClass(WifiNative.ScanSettings.class);
+        ArgumentCaptor<WifiNative.ScanEventHandler> eventHandlerCaptor =
+                ArgumentCaptor.forClass(WifiNative.ScanEventHandler.class);
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        sendSingleScanRequest(controlChannel, requestId1, requestSettings1, workSource);
+        mLooper.dispatchAll();
+        order.verify(mWifiScannerImpl0).startSingleScan(scanSettingsCaptor.capture(),
+                eventHandlerCaptor.capture());
+        assertThat(scanSettingsCaptor.getValue().buckets[0], channelsAre(TEST_PSC_CHANNEL));
+        verifySuccessfulResponse(order, handler, requestId1);
+
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results1.getScanData());
+        eventHandlerCaptor.getValue().onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+        verifyScanResultsReceived(order, handler, requestId1, results1.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId1);
+
+        // Only the PSC channel was scanned, so the non PSC channel is stale.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings2, workSource);
+        mLooper.dispatchAll();
+        order.verify(mWifiScannerImpl0).startSingleScan(scanSettingsCaptor.capture(),
+                eventHandlerCaptor.capture());
+        assertThat(scanSettingsCaptor.getValue().buckets[0], channelsAre(TEST_NON_PSC_CHANNEL));
+        verifySuccessfulResponse(order, handler, requestId2);
+        verify(mWifiMetrics).logSingleScanServedFromCache(false);
+    }
+
+    /**
+     * Send single scan requests which accept cached results and want full scan results, with a
+     * scan listener registered. Verify that a request whose channels were all recently scanned is
+     * served from the cache to the request and to the listener, and accounted as a scan, and that
+     * a request with some stale channels is scanned in full.
+     */
+    @Test
+    public void sendSingleScanRequestWithFullResultsServedFromChannelResultCache()
+            throws Exception {
+        int reportEvents = WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN
+                | WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT;
+        WifiScanner.ScanSettings requestSettings1 = createRequest(channelsToSpec(2412, 5175), 0,
+                0, 0, reportEvents);
+        requestSettings1.maxCachedResultAgeMs = 5000;
+        int requestId1 = 12;
+        ScanResults results1 = ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED,
+                2412, 5175);
+
+        WifiScanner.ScanSettings requestSettings2 = createRequest(channelsToSpec(2412, 5175), 0,
+                0, 0, reportEvents);
+        requestSettings2.maxCachedResultAgeMs = 5000;
+        int requestId2 = 13;
+
+        WifiScanner.ScanSettings requestSettings3 = createRequest(channelsToSpec(2412, 2450), 0,
+                0, 0, reportEvents);
+        requestSettings3.maxCachedResultAgeMs = 5000;
+        int requestId3 = 14;
+        int listenerRequestId = 15;
+
+        WorkSource workSource = new WorkSource(2292);
+
+        startServiceAndLoadDriver();
+
+        when(mWifiScannerImpl0.startSingleScan(any(WifiNative.ScanSettings.class),
+                        any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0);
+
+        registerScanListener(controlChannel, listenerRequestId);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, listenerRequestId);
+
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        sendSingleScanRequest(controlChannel, requestId1, requestSettings1, workSource);
+        mLooper.dispatchAll();
+        WifiNative.ScanEventHandler eventHandler = verifyStartSingleScan(order,
+                createSingleScanNativeSettingsForChannels(reportEvents,
+                        channelsToSpec(2412, 5175)));
+        verifySuccessfulResponse(order, handler, requestId1);
+
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results1.getScanData());
+        eventHandler.onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+        verifyScanResultsReceived(order, handler, requestId1, results1.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId1);
+        verifyScanResultsReceived(order, handler, listenerRequestId, results1.getScanData());
+
+        // All of the channels of the second request are fresh.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings2, workSource);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, requestId2);
+        verifyScanResultsReceived(order, handler, requestId2, results1.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId2);
+        verifyScanResultsReceived(order, handler, listenerRequestId, results1.getScanData());
+        // Each cached result is reported as a full result to the request and to the listener.
+        verify(handler, times(4)).handleMessage(
+                argThat(message -> message.what == WifiScanner.CMD_FULL_SCAN_RESULT));
+        verify(mWifiScannerImpl0, times(1)).startSingleScan(any(), any());
+        verify(mWifiMetrics).logSingleScanServedFromCache(true);
+        verify(mScanMetrics).logScanServedFromCache(
+                eq(WifiMetrics.ScanMetrics.SCAN_TYPE_SINGLE), anyInt(), eq(workSource), eq(2));
+        verify(mBatteryStats, times(2)).reportWifiScanStartedFromSource(eq(workSource));
+        verify(mBatteryStats, times(2)).reportWifiScanStoppedFromSource(eq(workSource));
+        verify(mWifiMetrics, times(2)).incrementScanReturnEntry(
+                WifiMetricsProto.WifiLog.SCAN_SUCCESS, 1);
+
+        // The third request wants full scan results and has a stale channel, so all of its
+        // channels are scanned.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(3000L);
+        sendSingleScanRequest(controlChannel, requestId3, requestSettings3, workSource);
+        mLooper.dispatchAll();
+        verifyStartSingleScan(order, createSingleScanNativeSettingsForChannels(reportEvents,
+                channelsToSpec(2412, 2450)));
+        verifySuccessfulResponse(order, handler, requestId3);
+        verify(mWifiMetrics, never()).logSingleScanServedFromCache(false);
+    }
+
+
     /**
      * Send a single scan request and then two more before the first completes. Neither are
      * satisfied by the first scan. Verify that the first completes and the second two are merged.
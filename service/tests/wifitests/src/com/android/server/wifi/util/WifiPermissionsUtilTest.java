@@ -23,6 +23,7 @@ import static android.content.pm.PackageManager.GET_PERMISSIONS;
 import static android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
@@ -44,9 +45,12 @@ import android.app.AppOpsManager;
 import android.app.admin.DevicePolicyManager;
 import android.app.admin.WifiSsidPolicy;
 import android.content.AttributionSource;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -56,8 +60,10 @@ import android.net.NetworkStack;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiSsid;
 import android.os.Build;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.os.test.TestLooper;
 import android.permission.PermissionManager;
 import android.provider.Settings;
 import android.util.ArraySet;
@@ -66,6 +72,7 @@ import androidx.test.filters.SmallTest;
 
 import com.android.modules.utils.build.SdkLevel;
 import com.android.server.wifi.BinderUtil;
+import com.android.server.wifi.Clock;
 import com.android.server.wifi.FakeWifiLog;
 import com.android.server.wifi.FrameworkFacade;
 import com.android.server.wifi.WifiBaseTest;
@@ -76,6 +83,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
@@ -104,6 +112,7 @@ public class WifiPermissionsUtilTest extends WifiBaseTest {
     @Mock private UserManager mMockUserManager;
     @Mock private ContentResolver mMockContentResolver;
     @Mock private WifiInjector mWifiInjector;
+    @Mock private Clock mClock;
     @Mock private LocationManager mLocationManager;
     @Mock private DevicePolicyManager mDevicePolicyManager;
     @Mock private PermissionManager mPermissionManager;
@@ -356,6 +365,145 @@ public class WifiPermissionsUtilTest extends WifiBaseTest {
         codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
     }
 
+    /**
+     * Verify that the permission facts of the callers of enforceCanAccessScanResults are cached
+     * once the permission decision cache is enabled, that app-ops are still noted and enforced on
+     * every call, and that the cache is invalidated on permission changes and expires.
+     */
+    @Test
+    public void testEnforceCanAccessScanResultsUsesPermissionDecisionCache() throws Exception {
+        mThrowSecurityException = false;
+        mMockApplInfo.targetSdkVersion = Build.VERSION_CODES.GINGERBREAD;
+        mIsLocationEnabled = true;
+        mCoarseLocationPermission = PackageManager.PERMISSION_GRANTED;
+        mAllowCoarseLocationApps = AppOpsManager.MODE_ALLOWED;
+        mWifiScanAllowApps = AppOpsManager.MODE_ALLOWED;
+        mUid = MANAGED_PROFILE_UID;
+        setupTestCase();
+        Resources mockResources = mock(Resources.class);
+        when(mockResources.getInteger(R.integer.config_wifiPermissionDecisionCacheTtlMillis))
+                .thenReturn(1000);
+        when(mMockContext.getResources()).thenReturn(mockResources);
+        when(mWifiInjector.getClock()).thenReturn(mClock);
+        WifiPermissionsUtil codeUnderTest = new WifiPermissionsUtil(mMockPermissionsWrapper,
+                mMockContext, mMockUserManager, mWifiInjector);
+        codeUnderTest.enablePermissionDecisionCache(new Handler(new TestLooper().getLooper()));
+        ArgumentCaptor<PackageManager.OnPermissionsChangedListener> listenerCaptor =
+                ArgumentCaptor.forClass(PackageManager.OnPermissionsChangedListener.class);
+        verify(mMockPkgMgr).addOnPermissionsChangeListener(listenerCaptor.capture());
+
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        verify(mMockAppOps).checkPackage(mUid, TEST_PACKAGE_NAME);
+        verify(mMockAppOps, times(2)).noteOp(AppOpsManager.OPSTR_WIFI_SCAN, mUid,
+                TEST_PACKAGE_NAME, TEST_FEATURE_ID, null);
+
+        // A denied app-op is enforced on a cache hit.
+        when(mMockAppOps.noteOp(AppOpsManager.OPSTR_WIFI_SCAN, mUid, TEST_PACKAGE_NAME,
+                TEST_FEATURE_ID, null)).thenReturn(AppOpsManager.MODE_ERRORED);
+        try {
+            codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid,
+                    null);
+            fail("Expected SecurityException is not thrown");
+        } catch (SecurityException e) {
+        }
+        verify(mMockAppOps).checkPackage(mUid, TEST_PACKAGE_NAME);
+
+        // A revoked permission invalidates the cache.
+        when(mMockAppOps.noteOp(AppOpsManager.OPSTR_WIFI_SCAN, mUid, TEST_PACKAGE_NAME,
+                TEST_FEATURE_ID, null)).thenReturn(AppOpsManager.MODE_ALLOWED);
+        when(mMockPermissionsWrapper.getUidPermission(mManifestStringCoarse, mUid))
+                .thenReturn(PackageManager.PERMISSION_DENIED);
+        listenerCaptor.getValue().onPermissionsChanged(mUid);
+        try {
+            codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid,
+                    null);
+            fail("Expected SecurityException is not thrown");
+        } catch (SecurityException e) {
+        }
+        verify(mMockAppOps, times(2)).checkPackage(mUid, TEST_PACKAGE_NAME);
+
+        // The cached facts expire.
+        when(mMockPermissionsWrapper.getUidPermission(mManifestStringCoarse, mUid))
+                .thenReturn(PackageManager.PERMISSION_GRANTED);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1001L);
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        verify(mMockAppOps, times(3)).checkPackage(mUid, TEST_PACKAGE_NAME);
+    }
+
+    /**
+     * Verify that the permission decision cache does not keep facts computed across an
+     * invalidation, and that it is invalidated on managed profile changes.
+     */
+    @Test
+    public void testPermissionDecisionCacheInvalidation() throws Exception {
+        mThrowSecurityException = false;
+        mMockApplInfo.targetSdkVersion = Build.VERSION_CODES.GINGERBREAD;
+        mIsLocationEnabled = true;
+        mCoarseLocationPermission = PackageManager.PERMISSION_GRANTED;
+        mAllowCoarseLocationApps = AppOpsManager.MODE_ALLOWED;
+        mWifiScanAllowApps = AppOpsManager.MODE_ALLOWED;
+        mUid = MANAGED_PROFILE_UID;
+        setupTestCase();
+        Resources mockResources = mock(Resources.class);
+        when(mockResources.getInteger(R.integer.config_wifiPermissionDecisionCacheTtlMillis))
+                .thenReturn(1000);
+        when(mMockContext.getResources()).thenReturn(mockResources);
+        when(mWifiInjector.getClock()).thenReturn(mClock);
+        WifiPermissionsUtil codeUnderTest = new WifiPermissionsUtil(mMockPermissionsWrapper,
+                mMockContext, mMockUserManager, mWifiInjector);
+        codeUnderTest.enablePermissionDecisionCache(new Handler(new TestLooper().getLooper()));
+        ArgumentCaptor<PackageManager.OnPermissionsChangedListener> listenerCaptor =
+                ArgumentCaptor.forClass(PackageManager.OnPermissionsChangedListener.class);
+        verify(mMockPkgMgr).addOnPermissionsChangeListener(listenerCaptor.capture());
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filterCaptor = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mMockContext, times(2)).registerReceiver(receiverCaptor.capture(),
+                filterCaptor.capture(), any(), any(Handler.class));
+        BroadcastReceiver userReceiver = null;
+        for (int i = 0; i < filterCaptor.getAllValues().size(); i++) {
+            IntentFilter filter = filterCaptor.getAllValues().get(i);
+            if (filter.hasAction(Intent.ACTION_USER_SWITCHED)) {
+                assertTrue(filter.hasAction(Intent.ACTION_MANAGED_PROFILE_ADDED));
+                assertTrue(filter.hasAction(Intent.ACTION_MANAGED_PROFILE_REMOVED));
+                assertTrue(filter.hasAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE));
+                assertTrue(filter.hasAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE));
+                userReceiver = receiverCaptor.getAllValues().get(i);
+            }
+        }
+        assertNotNull(userReceiver);
+
+        // The permission changes while the facts are computed, they are not cached.
+        doAnswer(invocation -> {
+            listenerCaptor.getValue().onPermissionsChanged(mUid);
+            return PackageManager.PERMISSION_GRANTED;
+        }).when(mMockPermissionsWrapper).getUidPermission(mManifestStringCoarse, mUid);
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        when(mMockPermissionsWrapper.getUidPermission(mManifestStringCoarse, mUid))
+                .thenReturn(PackageManager.PERMISSION_DENIED);
+        try {
+            codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid,
+                    null);
+            fail("Expected SecurityException is not thrown");
+        } catch (SecurityException e) {
+        }
+        verify(mMockAppOps, times(2)).checkPackage(mUid, TEST_PACKAGE_NAME);
+
+        // The facts computed without a concurrent invalidation are cached.
+        when(mMockPermissionsWrapper.getUidPermission(mManifestStringCoarse, mUid))
+                .thenReturn(PackageManager.PERMISSION_GRANTED);
+        listenerCaptor.getValue().onPermissionsChanged(mUid);
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        verify(mMockAppOps, times(3)).checkPackage(mUid, TEST_PACKAGE_NAME);
+
+        // A managed profile change invalidates the cache.
+        userReceiver.onReceive(mMockContext, new Intent(Intent.ACTION_MANAGED_PROFILE_REMOVED));
+        codeUnderTest.enforceCanAccessScanResults(TEST_PACKAGE_NAME, TEST_FEATURE_ID, mUid, null);
+        verify(mMockAppOps, times(4)).checkPackage(mUid, TEST_PACKAGE_NAME);
+    }
+
     /**
      * Test case setting: Package is valid
      *                    Location Mode Enabled